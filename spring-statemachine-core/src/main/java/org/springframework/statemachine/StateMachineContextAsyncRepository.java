@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine;
+
+import org.springframework.util.concurrent.ListenableFuture;
+
+/**
+ * Extension of a {@link StateMachineContextRepository} which is able to save
+ * and get a {@link StateMachineContext} without blocking a calling thread.
+ * Returned futures complete when a storage operation has completed and
+ * fail with an exception thrown from a storage.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ * @param <T> The type of state machine context
+ */
+public interface StateMachineContextAsyncRepository<S, E, T extends StateMachineContext<S, E>>
+		extends StateMachineContextRepository<S, E, T> {
+
+	/**
+	 * Save a context asynchronously.
+	 *
+	 * @param context the context
+	 * @param id the id
+	 * @return the future completing when context is saved
+	 */
+	ListenableFuture<Void> saveAsync(T context, String id);
+
+	/**
+	 * Gets the context asynchronously.
+	 *
+	 * @param id the id
+	 * @return the future of a context, completing with {@code null} if
+	 *         there is no context
+	 */
+	ListenableFuture<T> getContextAsync(String id);
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Extension of a {@link StateMachineContextRepository} which is able to save
+ * and get multiple {@link StateMachineContext}s with less round trips to a
+ * storage than saving and getting contexts one by one.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ * @param <T> The type of state machine context
+ */
+public interface StateMachineContextBulkRepository<S, E, T extends StateMachineContext<S, E>>
+		extends StateMachineContextRepository<S, E, T> {
+
+	/**
+	 * Save contexts.
+	 *
+	 * @param contexts the contexts mapped by id
+	 */
+	void saveAll(Map<String, T> contexts);
+
+	/**
+	 * Gets the contexts.
+	 *
+	 * @param ids the ids
+	 * @return the contexts mapped by id, not containing ids without a context
+	 */
+	Map<String, T> getContexts(Collection<String> ids);
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine;
+
+/**
+ * Extension of a {@link StateMachineContextRepository} which is able to save
+ * a delta of a {@link StateMachineContext} on top of a previously saved
+ * context. {@link #save(StateMachineContext, String)} replaces a context
+ * and all its deltas, {@link #getContext(String)} returns a context with
+ * all its deltas applied.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ * @param <T> The type of state machine context
+ * @see org.springframework.statemachine.persist.StateMachineContextDeltas
+ */
+public interface StateMachineContextDeltaRepository<S, E, T extends StateMachineContext<S, E>>
+		extends StateMachineContextRepository<S, E, T> {
+
+	/**
+	 * Checks if deltas are stored as is. If not, saving a delta needs to read
+	 * and write a whole context and callers should save full contexts
+	 * instead.
+	 *
+	 * @return true, if deltas are stored as is
+	 */
+	boolean isDeltaSupported();
+
+	/**
+	 * Save a context delta.
+	 *
+	 * @param delta the context delta
+	 * @param id the id
+	 * @return the number of deltas saved after a last full context, or
+	 *         {@link Integer#MAX_VALUE} if a delta wasn't saved as there's no
+	 *         context to save it on and a full context needs to be saved
+	 */
+	int saveDelta(T delta, String id);
+
+}
@@ -35,6 +35,9 @@ public abstract class StateMachineSystemConstants {
 	/** State machine id key for headers and variables */
 	public static final String STATEMACHINE_IDENTIFIER = "_sm_id_";
 
+	/** Header requesting a distributed state change to be confirmed by an ensemble */
+	public static final String STATEMACHINE_ENSEMBLE_CONFIRM = "_sm_ensemble_confirm_";
+
 	/** Bean name for task executor */
 	public static final String TASK_EXECUTOR_BEAN_NAME = "stateMachineTaskExecutor";
 
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.access;
+
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+
+/**
+ * Extension of {@link StateMachineAccess} for {@link StateMachine}
+ * implementations able to restore a state in place. Callers should check
+ * for this interface and fall back to
+ * {@link StateMachineAccess#resetStateMachine(StateMachineContext)} if a
+ * machine doesn't implement it.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ */
+public interface StateMachineRestoreAccess<S, E> extends StateMachineAccess<S, E> {
+
+	/**
+	 * Restore state machine in place. Contrary to
+	 * {@link #resetStateMachine(StateMachineContext)} this method doesn't
+	 * require machine to be stopped and started, and handles submachines and
+	 * regions by itself, thus it should be called only for a top level
+	 * machine. State configuration, history and extended state are
+	 * rehydrated without executing entry or exit actions, and only those
+	 * submachines and regions whose activity changes are stopped or
+	 * started. Passing {@code null} restores machine
+	 * into its initial state and clears extended state.
+	 *
+	 * @param stateMachineContext the state machine context
+	 */
+	void restoreStateMachine(StateMachineContext<S, E> stateMachineContext);
+
+}
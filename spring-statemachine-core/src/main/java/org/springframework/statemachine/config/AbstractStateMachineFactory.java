@@ -15,21 +15,33 @@
  */
 package org.springframework.statemachine.config;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
 import java.util.Stack;
 import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.BeanNameAware;
 import org.springframework.context.SmartLifecycle;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.core.task.TaskExecutor;
 import org.springframework.messaging.Message;
 import org.springframework.scheduling.TaskScheduler;
@@ -37,6 +49,7 @@ import org.springframework.statemachine.ExtendedState;
 import org.springframework.statemachine.StateMachine;
 import org.springframework.statemachine.access.StateMachineAccess;
 import org.springframework.statemachine.access.StateMachineFunction;
+import org.springframework.statemachine.access.StateMachineRestoreAccess;
 import org.springframework.statemachine.action.Action;
 import org.springframework.statemachine.config.model.ChoiceData;
 import org.springframework.statemachine.config.model.DefaultStateMachineModel;
@@ -73,6 +86,7 @@ import org.springframework.statemachine.state.RegionState;
 import org.springframework.statemachine.state.State;
 import org.springframework.statemachine.state.StateHolder;
 import org.springframework.statemachine.state.StateMachineState;
+import org.springframework.statemachine.support.AbstractStateMachine;
 import org.springframework.statemachine.support.DefaultExtendedState;
 import org.springframework.statemachine.support.LifecycleObjectSupport;
 import org.springframework.statemachine.support.tree.Tree;
@@ -87,6 +101,7 @@ import org.springframework.statemachine.transition.TransitionKind;
 import org.springframework.statemachine.trigger.EventTrigger;
 import org.springframework.statemachine.trigger.TimerTrigger;
 import org.springframework.statemachine.trigger.Trigger;
+import org.springframework.util.Assert;
 import org.springframework.util.ObjectUtils;
 
 /**
@@ -112,6 +127,24 @@ public abstract class AbstractStateMachineFactory<S, E> extends LifecycleObjectS
 
 	private String beanName;
 
+	// models are tracked by identity and weakly so that models
+	// built for every request by a model factory can be collected
+	private final Map<StateMachineModel<S, E>, Boolean> verifiedModels = Collections
+			.synchronizedMap(new WeakHashMap<StateMachineModel<S, E>, Boolean>());
+
+	private final Map<StateMachineModel<S, E>, StateMachineModel<S, E>> resolvedModels = Collections
+			.synchronizedMap(new WeakHashMap<StateMachineModel<S, E>, StateMachineModel<S, E>>());
+
+	private static final Object DEFAULT_RESERVE_KEY = new Object();
+
+	private final ConcurrentMap<Object, MachineReserve> reserves = new ConcurrentHashMap<Object, MachineReserve>();
+
+	private volatile int reserveSize = 0;
+
+	private volatile boolean reservesDestroyed = false;
+
+	private volatile TaskExecutor reserveTaskExecutor;
+
 	/**
 	 * Instantiates a new abstract state machine factory.
 	 *
@@ -150,16 +183,69 @@ public abstract class AbstractStateMachineFactory<S, E> extends LifecycleObjectS
 	 * @param machineId represent a user Id, up to you to set what you want.
 	 * @return a {@link StateMachine}
 	 */
-	@SuppressWarnings("unchecked")
 	public StateMachine<S, E> getStateMachine(UUID uuid, String machineId) {
-		StateMachineModel<S, E> stateMachineModel = resolveStateMachineModel(machineId);
-		if (stateMachineModel.getConfigurationData().isVerifierEnabled()) {
-			StateMachineModelVerifier<S, E> verifier = stateMachineModel.getConfigurationData().getVerifier();
-			if (verifier == null) {
-				verifier = new CompositeStateMachineModelVerifier<S, E>();
+		// uuid is fixed when machine is created so only
+		// requests without uuid can be served from a reserve
+		if (uuid == null && reserveSize > 0) {
+			StateMachine<S, E> machine = getReservedStateMachine(machineId);
+			if (machine != null) {
+				return machine;
 			}
-			verifier.verify(stateMachineModel);
 		}
+		return buildStateMachine(uuid, machineId);
+	}
+
+	/**
+	 * Sets the number of pre-built machines kept in a reserve.
+	 * Reserve is kept per machine id if machines are built from models
+	 * resolved from a {@link StateMachineModelFactory}, otherwise a single
+	 * reserve is shared and a requested machine id is set to a returned
+	 * machine. Reserve is filled on a first request and replenished in a
+	 * background after every machine taken from it. Requests with an
+	 * explicit uuid and distributed machines are never served from a reserve.
+	 * <p>
+	 * Machines in a reserve are started only if machines are configured to
+	 * be auto started. In that case listeners added to a returned machine
+	 * will not see a machine start and a state should be restored with
+	 * {@link StateMachineRestoreAccess#restoreStateMachine}.
+	 * Zero disables a reserve which is a default.
+	 *
+	 * @param reserveSize the new reserve size
+	 */
+	public void setReserveSize(int reserveSize) {
+		Assert.isTrue(reserveSize >= 0, "Reserve size must not be negative");
+		if (reserveSize > 0 && reserveTaskExecutor == null) {
+			SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("statemachine-reserve-");
+			executor.setDaemon(true);
+			this.reserveTaskExecutor = executor;
+		}
+		this.reserveSize = reserveSize;
+	}
+
+	/**
+	 * Sets the task executor used to replenish reserves. Defaults to
+	 * {@link SimpleAsyncTaskExecutor} created when a reserve is enabled.
+	 *
+	 * @param reserveTaskExecutor the new reserve task executor
+	 */
+	public void setReserveTaskExecutor(TaskExecutor reserveTaskExecutor) {
+		Assert.notNull(reserveTaskExecutor, "Reserve task executor must be set");
+		this.reserveTaskExecutor = reserveTaskExecutor;
+	}
+
+	@Override
+	protected void doDestroy() {
+		reservesDestroyed = true;
+		for (MachineReserve reserve : reserves.values()) {
+			reserve.clear();
+		}
+		reserves.clear();
+	}
+
+	@SuppressWarnings("unchecked")
+	private StateMachine<S, E> buildStateMachine(UUID uuid, String machineId) {
+		StateMachineModel<S, E> stateMachineModel = resolveStateMachineModel(machineId);
+		verifyStateMachineModel(stateMachineModel);
 
 		// shared
 		DefaultExtendedState defaultExtendedState = new DefaultExtendedState();
@@ -172,9 +258,10 @@ public abstract class AbstractStateMachineFactory<S, E> extends LifecycleObjectS
 		// states.
 		final Map<S, State<S, E>> stateMap = new HashMap<S, State<S, E>>();
 		Stack<MachineStackItem<S, E>> regionStack = new Stack<MachineStackItem<S, E>>();
-		Stack<StateData<S, E>> stateStack = new Stack<StateData<S, E>>();
+		StateDataStack<S, E> stateStack = new StateDataStack<S, E>();
 		Map<Object, StateMachine<S, E>> machineMap = new HashMap<Object, StateMachine<S,E>>();
 		Map<S, StateHolder<S, E>> holderMap = new HashMap<S, StateHolder<S, E>>();
+		Map<Object, List<TransitionData<S, E>>> transitionsByParent = buildTransitionDataIndex(stateMachineModel);
 
 		Iterator<Node<StateData<S, E>>> iterator = buildStateDataIterator(stateMachineModel);
 		while (iterator.hasNext()) {
@@ -188,25 +275,15 @@ public abstract class AbstractStateMachineFactory<S, E> extends LifecycleObjectS
 				continue;
 			}
 
-			boolean stackContainsSameParent = false;
-			Iterator<StateData<S, E>> ii = stateStack.iterator();
-			while (ii.hasNext()) {
-				StateData<S, E> sd = ii.next();
-				if (stateData != null && ObjectUtils.nullSafeEquals(stateData.getState(), sd.getParent())) {
-					stackContainsSameParent = true;
-					break;
-				}
-			}
-
-			if (stateData != null && !stackContainsSameParent) {
+			if (stateData != null && !stateStack.containsParent(stateData.getState())) {
 				stateStack.push(stateData);
 				continue;
 			}
 
-			Collection<StateData<S, E>> stateDatas = popSameParents(stateStack);
+			Collection<StateData<S, E>> stateDatas = stateStack.popSameParents();
 			int initialCount = getInitialCount(stateDatas);
 			Collection<Collection<StateData<S, E>>> regionsStateDatas = splitIntoRegions(stateDatas);
-			Collection<TransitionData<S, E>> transitionsData = getTransitionData(iterator.hasNext(), stateDatas, stateMachineModel);
+			Collection<TransitionData<S, E>> transitionsData = getTransitionData(iterator.hasNext(), stateDatas, transitionsByParent);
 
 			if (initialCount > 1) {
 				for (Collection<StateData<S, E>> regionStateDatas : regionsStateDatas) {
@@ -355,6 +432,21 @@ public abstract class AbstractStateMachineFactory<S, E> extends LifecycleObjectS
 		}
 	}
 
+	/**
+	 * Verify a {@link StateMachineModel} resolved for a given machine id.
+	 * Every distinct model is verified only once, thus calling this method
+	 * during a startup moves a cost of a verification away from a state
+	 * machine instantiation. Model factories should return a same model
+	 * instance for a same machine id, i.e. by using a
+	 * {@link org.springframework.statemachine.config.model.CachingStateMachineModelFactory},
+	 * for a verification to be reused.
+	 *
+	 * @param machineId the machine id
+	 */
+	public void verifyStateMachineModel(String machineId) {
+		verifyStateMachineModel(resolveStateMachineModel(machineId));
+	}
+
 	protected StateMachineModel<S, E> resolveStateMachineModel(String machineId) {
 		if (stateMachineModelFactory == null) {
 			return defaultStateMachineModel;
@@ -362,15 +454,152 @@ public abstract class AbstractStateMachineFactory<S, E> extends LifecycleObjectS
 			StateMachineModel<S, E> m = stateMachineModelFactory.build(machineId);
 			if (m.getConfigurationData() == null) {
 				// if model doesn't have explicit configuration data,
-				// get it from default model
-				return new DefaultStateMachineModel<>(defaultStateMachineModel.getConfigurationData(), m.getStatesData(),
-						m.getTransitionsData());
+				// get it from default model. merged model is kept
+				// so that a same model resolves to a same instance.
+				synchronized (resolvedModels) {
+					StateMachineModel<S, E> resolved = resolvedModels.get(m);
+					if (resolved == null) {
+						resolved = new DefaultStateMachineModel<>(defaultStateMachineModel.getConfigurationData(),
+								m.getStatesData(), m.getTransitionsData());
+						resolvedModels.put(m, resolved);
+					}
+					return resolved;
+				}
 			} else {
 				return m;
 			}
 		}
 	}
 
+	private void verifyStateMachineModel(StateMachineModel<S, E> stateMachineModel) {
+		if (!stateMachineModel.getConfigurationData().isVerifierEnabled() || verifiedModels.containsKey(stateMachineModel)) {
+			return;
+		}
+		StateMachineModelVerifier<S, E> verifier = stateMachineModel.getConfigurationData().getVerifier();
+		if (verifier == null) {
+			verifier = new CompositeStateMachineModelVerifier<S, E>();
+		}
+		verifier.verify(stateMachineModel);
+		verifiedModels.put(stateMachineModel, Boolean.TRUE);
+	}
+
+	private StateMachine<S, E> getReservedStateMachine(final String machineId) {
+		// without a model factory every machine id uses a same model
+		boolean shared = stateMachineModelFactory == null;
+		Object key = shared || machineId == null ? DEFAULT_RESERVE_KEY : machineId;
+		MachineReserve reserve = reserves.get(key);
+		if (reserve == null) {
+			if (reservesDestroyed) {
+				return null;
+			}
+			MachineReserve created = new MachineReserve(shared ? null : machineId);
+			reserve = reserves.putIfAbsent(key, created);
+			if (reserve == null) {
+				reserve = created;
+			}
+		}
+		StateMachine<S, E> machine = reserve.take();
+		if (machine != null && shared && machineId != null) {
+			machine.getStateMachineAccessor().doWithAllRegions(new StateMachineFunction<StateMachineAccess<S, E>>() {
+
+				@Override
+				public void apply(StateMachineAccess<S, E> function) {
+					if (function instanceof AbstractStateMachine) {
+						((AbstractStateMachine<S, E>) function).setId(machineId);
+					}
+				}
+			});
+		}
+		return machine;
+	}
+
+	/**
+	 * Reserve of started machines for a machine id.
+	 */
+	private class MachineReserve implements Runnable {
+
+		private final String machineId;
+		private final Queue<StateMachine<S, E>> machines = new ConcurrentLinkedQueue<StateMachine<S, E>>();
+		private final AtomicInteger size = new AtomicInteger();
+		private final AtomicBoolean replenishing = new AtomicBoolean();
+		private volatile boolean disabled;
+
+		MachineReserve(String machineId) {
+			this.machineId = machineId;
+		}
+
+		StateMachine<S, E> take() {
+			StateMachine<S, E> machine = machines.poll();
+			if (machine != null) {
+				size.decrementAndGet();
+			}
+			replenish();
+			return machine;
+		}
+
+		void clear() {
+			synchronized (this) {
+				disabled = true;
+			}
+			StateMachine<S, E> machine;
+			while ((machine = machines.poll()) != null) {
+				machine.stop();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				// joining an ensemble is not something to do ahead of time
+				if (resolveStateMachineModel(machineId).getConfigurationData().getStateMachineEnsemble() != null) {
+					disabled = true;
+				}
+				while (!disabled && size.get() < reserveSize) {
+					StateMachine<S, E> machine = buildStateMachine(null, machineId);
+					if (machine instanceof DistributedStateMachine) {
+						// model changed after a check, leave an ensemble
+						machine.stop();
+						disabled = true;
+						break;
+					}
+					// machine is already started by a build if auto startup is enabled,
+					// offer under a same lock with clear so that nothing gets added
+					// into a reserve which is already cleared
+					synchronized (this) {
+						if (!disabled) {
+							machines.offer(machine);
+							size.incrementAndGet();
+							machine = null;
+						}
+					}
+					if (machine != null) {
+						machine.stop();
+					}
+				}
+			} catch (Exception e) {
+				log.warn("Unable to pre-build state machine for reserve, disabling reserve for id " + machineId, e);
+				disabled = true;
+			} finally {
+				replenishing.set(false);
+			}
+			// machine may have been taken after we stopped
+			if (!disabled && size.get() < reserveSize) {
+				replenish();
+			}
+		}
+
+		private void replenish() {
+			if (!disabled && size.get() < reserveSize && replenishing.compareAndSet(false, true)) {
+				try {
+					reserveTaskExecutor.execute(this);
+				} catch (Exception e) {
+					replenishing.set(false);
+					log.warn("Unable to replenish state machine reserve", e);
+				}
+			}
+		}
+	}
+
 	private int getInitialCount(Collection<StateData<S, E>> stateDatas) {
 		int count = 0;
 		for (StateData<S, E> stateData : stateDatas) {
@@ -394,27 +623,30 @@ public abstract class AbstractStateMachineFactory<S, E> extends LifecycleObjectS
 		return map.values();
 	}
 
-	private Collection<TransitionData<S, E>> getTransitionData(boolean roots, Collection<StateData<S, E>> stateDatas, StateMachineModel<S, E> stateMachineModel) {
+	private Collection<TransitionData<S, E>> getTransitionData(boolean roots, Collection<StateData<S, E>> stateDatas,
+			Map<Object, List<TransitionData<S, E>>> transitionsByParent) {
 		if (roots) {
-			return resolveTransitionData(stateMachineModel.getTransitionsData().getTransitions(), stateDatas);
+			return resolveTransitionData(transitionsByParent, stateDatas);
 		} else {
-			return resolveTransitionData2(stateMachineModel.getTransitionsData().getTransitions());
+			return resolveTransitionData(transitionsByParent, null);
 		}
 	}
 
-	private static <S, E> Collection<StateData<S, E>> popSameParents(Stack<StateData<S, E>> stack) {
-		Collection<StateData<S, E>> data = new ArrayList<StateData<S, E>>();
-		Object parent = null;
-		if (!stack.isEmpty()) {
-			parent = stack.peek().getParent();
-		}
-		while (!stack.isEmpty() && ObjectUtils.nullSafeEquals(parent, stack.peek().getParent())) {
-			data.add(stack.pop());
+	private Map<Object, List<TransitionData<S, E>>> buildTransitionDataIndex(StateMachineModel<S, E> stateMachineModel) {
+		// index transitions by their containing state so that every
+		// machine in a hierarchy doesn't need to go through all transitions
+		Map<Object, List<TransitionData<S, E>>> index = new HashMap<Object, List<TransitionData<S, E>>>();
+		for (TransitionData<S, E> transitionData : stateMachineModel.getTransitionsData().getTransitions()) {
+			List<TransitionData<S, E>> list = index.get(transitionData.getState());
+			if (list == null) {
+				list = new ArrayList<TransitionData<S, E>>();
+				index.put(transitionData.getState(), list);
+			}
+			list.add(transitionData);
 		}
-		return data;
+		return index;
 	}
 
-
 	private static class MachineStackItem<S, E> {
 
 		StateMachine<S, E> machine;
@@ -425,35 +657,84 @@ public abstract class AbstractStateMachineFactory<S, E> extends LifecycleObjectS
 
 	}
 
-	private Collection<TransitionData<S, E>> resolveTransitionData(Collection<TransitionData<S, E>> in, Collection<StateData<S, E>> stateDatas) {
-		ArrayList<TransitionData<S, E>> out = new ArrayList<TransitionData<S,E>>();
+	/**
+	 * Stack of {@link StateData}s keeping count of parents in a stack so that
+	 * checking if a stack contains children of a given state doesn't need to
+	 * scan through a stack.
+	 */
+	private static class StateDataStack<S, E> {
 
-		Collection<Object> states = new ArrayList<Object>();
-		for (StateData<S, E> stateData : stateDatas) {
-			states.add(stateData.getParent());
-		}
+		private final ArrayDeque<StateData<S, E>> stack = new ArrayDeque<StateData<S, E>>();
+		private final Map<Object, Integer> parents = new HashMap<Object, Integer>();
 
-		for (TransitionData<S, E> transitionData : in) {
-			S state = transitionData.getState();
-			if (state != null && states.contains(state)) {
-				out.add(transitionData);
+		void push(StateData<S, E> stateData) {
+			// null marks a root and is always a last item
+			if (stateData == null) {
+				return;
 			}
+			stack.push(stateData);
+			Integer count = parents.get(stateData.getParent());
+			parents.put(stateData.getParent(), count != null ? count + 1 : 1);
 		}
 
-		return out;
+		StateData<S, E> peek() {
+			return stack.peek();
+		}
+
+		boolean isEmpty() {
+			return stack.isEmpty();
+		}
+
+		boolean containsParent(Object parent) {
+			return parents.containsKey(parent);
+		}
+
+		Collection<StateData<S, E>> popSameParents() {
+			Collection<StateData<S, E>> data = new ArrayList<StateData<S, E>>();
+			Object parent = null;
+			if (!stack.isEmpty()) {
+				parent = stack.peek().getParent();
+			}
+			while (!stack.isEmpty() && ObjectUtils.nullSafeEquals(parent, stack.peek().getParent())) {
+				data.add(stack.pop());
+			}
+			if (!data.isEmpty()) {
+				Integer count = parents.get(parent) - data.size();
+				if (count > 0) {
+					parents.put(parent, count);
+				} else {
+					parents.remove(parent);
+				}
+			}
+			return data;
+		}
 	}
 
-	private Collection<TransitionData<S, E>> resolveTransitionData2(Collection<TransitionData<S, E>> in) {
+	private Collection<TransitionData<S, E>> resolveTransitionData(Map<Object, List<TransitionData<S, E>>> transitionsByParent,
+			Collection<StateData<S, E>> stateDatas) {
+		if (stateDatas == null) {
+			// root level transitions
+			List<TransitionData<S, E>> out = transitionsByParent.get(null);
+			return out != null ? out : new ArrayList<TransitionData<S, E>>();
+		}
+		// states popped from a stack share a same parent
+		// but resolve all to be on a safe side
+		Set<Object> parents = new LinkedHashSet<Object>();
+		for (StateData<S, E> stateData : stateDatas) {
+			if (stateData.getParent() != null) {
+				parents.add(stateData.getParent());
+			}
+		}
 		ArrayList<TransitionData<S, E>> out = new ArrayList<TransitionData<S,E>>();
-		for (TransitionData<S, E> transitionData : in) {
-			if (transitionData.getState() == null) {
-				out.add(transitionData);
+		for (Object parent : parents) {
+			List<TransitionData<S, E>> list = transitionsByParent.get(parent);
+			if (list != null) {
+				out.addAll(list);
 			}
 		}
 		return out;
 	}
 
-
 	@SuppressWarnings("unchecked")
 	private StateMachine<S, E> buildMachine(Map<Object, StateMachine<S, E>> machineMap, Map<S, State<S, E>> stateMap,
 			Map<S, StateHolder<S, E>> holderMap, Collection<StateData<S, E>> stateDatas, Collection<TransitionData<S, E>> transitionsData,
@@ -66,6 +66,7 @@ public class StateMachineConfigurationBuilder<S, E>
 	private AccessDecisionManager eventSecurityAccessDecisionManager;
 	private SecurityRule eventSecurityRule;
 	private SecurityRule transitionSecurityRule;
+	private boolean lazyInit = false;
 
 	/**
 	 * Instantiates a new state machine configuration builder.
@@ -118,7 +119,7 @@ public class StateMachineConfigurationBuilder<S, E>
 	protected ConfigurationData<S, E> performBuild() throws Exception {
 		return new ConfigurationData<S, E>(beanFactory, taskExecutor, taskScheculer, autoStart, ensemble, listeners,
 				securityEnabled, transitionSecurityAccessDecisionManager, eventSecurityAccessDecisionManager, eventSecurityRule,
-				transitionSecurityRule, verifierEnabled, verifier, machineId);
+				transitionSecurityRule, verifierEnabled, verifier, machineId, lazyInit);
 	}
 
 	/**
@@ -175,6 +176,15 @@ public class StateMachineConfigurationBuilder<S, E>
 		this.autoStart = autoStart;
 	}
 
+	/**
+	 * Sets the lazy init flag.
+	 *
+	 * @param lazyInit the new lazy init flag
+	 */
+	public void setLazyInit(boolean lazyInit) {
+		this.lazyInit = lazyInit;
+	}
+
 	/**
 	 * Sets the state machine listeners.
 	 *
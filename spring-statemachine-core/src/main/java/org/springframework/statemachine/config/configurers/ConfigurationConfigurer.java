@@ -76,6 +76,19 @@ public interface ConfigurationConfigurer<S, E> extends
 	 */
 	ConfigurationConfigurer<S, E> autoStartup(boolean autoStartup);
 
+	/**
+	 * Specify if machines should be initialized lazily. When enabled,
+	 * internal executors of a machine, its submachines and regions are
+	 * created when a machine is started first time instead of when it
+	 * is built. This reduces a creation cost and a memory footprint of
+	 * deep hierarchical machines where most of the submachines and regions
+	 * are never entered. On default machines are initialized eagerly.
+	 *
+	 * @param lazyInit the lazy init flag
+	 * @return configurer for chaining
+	 */
+	ConfigurationConfigurer<S, E> lazyInit(boolean lazyInit);
+
 	/**
 	 * Specify a {@link StateMachineListener} to be registered
 	 * with a state machine. This method can be called multiple times
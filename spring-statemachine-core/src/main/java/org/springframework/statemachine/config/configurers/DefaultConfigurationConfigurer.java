@@ -44,6 +44,7 @@ public class DefaultConfigurationConfigurer<S, E>
 	private TaskExecutor taskExecutor;
 	private TaskScheduler taskScheculer;
 	private boolean autoStart = false;
+	private boolean lazyInit = false;
 	private final List<StateMachineListener<S, E>> listeners = new ArrayList<StateMachineListener<S, E>>();
 
 	@Override
@@ -53,6 +54,7 @@ public class DefaultConfigurationConfigurer<S, E>
 		builder.setTaskExecutor(taskExecutor);
 		builder.setTaskScheculer(taskScheculer);
 		builder.setAutoStart(autoStart);
+		builder.setLazyInit(lazyInit);
 		builder.setStateMachineListeners(listeners);
 	}
 
@@ -86,6 +88,12 @@ public class DefaultConfigurationConfigurer<S, E>
 		return this;
 	}
 
+	@Override
+	public ConfigurationConfigurer<S, E> lazyInit(boolean lazyInit) {
+		this.lazyInit = lazyInit;
+		return this;
+	}
+
 	@Override
 	public ConfigurationConfigurer<S, E> listener(StateMachineListener<S, E> listener) {
 		this.listeners.add(listener);
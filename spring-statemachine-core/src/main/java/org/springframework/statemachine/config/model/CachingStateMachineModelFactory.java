@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.config.model;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.util.Assert;
+
+/**
+ * {@link StateMachineModelFactory} decorator caching built
+ * {@link StateMachineModel}s per machine id. Models built by factories
+ * reading from external sources, like an uml file or a repository, are
+ * expensive to create and as models are not modified when a machine is
+ * built, a same model instance can be shared across all machines.
+ * <p>
+ * Cached models live until invalidated or, if time to live is set,
+ * until expired.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ */
+public class CachingStateMachineModelFactory<S, E> implements StateMachineModelFactory<S, E> {
+
+	private static final Object DEFAULT_KEY = new Object();
+	private static final Object NULL_KEY = new Object();
+	private final StateMachineModelFactory<S, E> stateMachineModelFactory;
+	private final ConcurrentMap<Object, CachedModel<S, E>> models = new ConcurrentHashMap<Object, CachedModel<S, E>>();
+	private volatile long timeToLive = 0;
+
+	/**
+	 * Instantiates a new caching state machine model factory.
+	 *
+	 * @param stateMachineModelFactory the delegating state machine model factory
+	 */
+	public CachingStateMachineModelFactory(StateMachineModelFactory<S, E> stateMachineModelFactory) {
+		Assert.notNull(stateMachineModelFactory, "StateMachineModelFactory must be set");
+		this.stateMachineModelFactory = stateMachineModelFactory;
+	}
+
+	@Override
+	public StateMachineModel<S, E> build() {
+		return build(DEFAULT_KEY, null);
+	}
+
+	@Override
+	public StateMachineModel<S, E> build(String machineId) {
+		return build(machineId != null ? machineId : NULL_KEY, machineId);
+	}
+
+	/**
+	 * Invalidate a cached model for a given machine id.
+	 *
+	 * @param machineId the machine id
+	 */
+	public void invalidate(String machineId) {
+		models.remove(machineId != null ? machineId : NULL_KEY);
+	}
+
+	/**
+	 * Invalidate all cached models.
+	 */
+	public void invalidateAll() {
+		models.clear();
+	}
+
+	/**
+	 * Sets the time to live in milliseconds for a cached model. Zero or
+	 * negative value means that models never expire.
+	 *
+	 * @param timeToLive the new time to live
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	private StateMachineModel<S, E> build(Object key, String machineId) {
+		CachedModel<S, E> cached = models.get(key);
+		if (cached == null) {
+			CachedModel<S, E> created = new CachedModel<S, E>();
+			cached = models.putIfAbsent(key, created);
+			if (cached == null) {
+				cached = created;
+			}
+		}
+		StateMachineModel<S, E> model = cached.get();
+		if (model != null) {
+			return model;
+		}
+		// build under entry lock so that concurrent
+		// requests for a same id build model only once
+		synchronized (cached) {
+			model = cached.get();
+			if (model == null) {
+				model = key == DEFAULT_KEY ? stateMachineModelFactory.build() : stateMachineModelFactory.build(machineId);
+				long ttl = timeToLive;
+				cached.set(model, ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE);
+			}
+			return model;
+		}
+	}
+
+	private static class CachedModel<S, E> {
+
+		private volatile StateMachineModel<S, E> model;
+		private volatile long expires;
+
+		StateMachineModel<S, E> get() {
+			StateMachineModel<S, E> m = model;
+			if (m != null && System.currentTimeMillis() < expires) {
+				return m;
+			}
+			return null;
+		}
+
+		void set(StateMachineModel<S, E> model, long expires) {
+			this.expires = expires;
+			this.model = model;
+		}
+	}
+}
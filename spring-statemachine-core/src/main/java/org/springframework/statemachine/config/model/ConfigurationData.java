@@ -55,6 +55,7 @@ public class ConfigurationData<S, E> {
 	private final AccessDecisionManager eventSecurityAccessDecisionManager;
 	private final SecurityRule eventSecurityRule;
 	private final SecurityRule transitionSecurityRule;
+	private final boolean lazyInit;
 
 	/**
 	 * Instantiates a new state machine configuration config data.
@@ -88,6 +89,36 @@ public class ConfigurationData<S, E> {
 			AccessDecisionManager transitionSecurityAccessDecisionManager, AccessDecisionManager eventSecurityAccessDecisionManager,
 			SecurityRule eventSecurityRule, SecurityRule transitionSecurityRule, boolean verifierEnabled,
 			StateMachineModelVerifier<S, E> verifier, String machineId) {
+		this(beanFactory, taskExecutor, taskScheduler, autoStart, ensemble, listeners, securityEnabled,
+				transitionSecurityAccessDecisionManager, eventSecurityAccessDecisionManager, eventSecurityRule,
+				transitionSecurityRule, verifierEnabled, verifier, machineId, false);
+	}
+
+	/**
+	 * Instantiates a new state machine configuration config data.
+	 *
+	 * @param beanFactory the bean factory
+	 * @param taskExecutor the task executor
+	 * @param taskScheduler the task scheduler
+	 * @param autoStart the autostart flag
+	 * @param ensemble the state machine ensemble
+	 * @param listeners the state machine listeners
+	 * @param securityEnabled the security enabled flag
+	 * @param transitionSecurityAccessDecisionManager the transition security access decision manager
+	 * @param eventSecurityAccessDecisionManager the event security access decision manager
+	 * @param eventSecurityRule the event security rule
+	 * @param transitionSecurityRule the transition security rule
+	 * @param verifierEnabled the verifier enabled flag
+	 * @param verifier the state machine model verifier
+	 * @param machineId the machine id
+	 * @param lazyInit the lazy init flag
+	 */
+	public ConfigurationData(BeanFactory beanFactory, TaskExecutor taskExecutor,
+			TaskScheduler taskScheduler, boolean autoStart, StateMachineEnsemble<S, E> ensemble,
+			List<StateMachineListener<S, E>> listeners, boolean securityEnabled,
+			AccessDecisionManager transitionSecurityAccessDecisionManager, AccessDecisionManager eventSecurityAccessDecisionManager,
+			SecurityRule eventSecurityRule, SecurityRule transitionSecurityRule, boolean verifierEnabled,
+			StateMachineModelVerifier<S, E> verifier, String machineId, boolean lazyInit) {
 		this.beanFactory = beanFactory;
 		this.taskExecutor = taskExecutor;
 		this.taskScheduler = taskScheduler;
@@ -102,6 +133,7 @@ public class ConfigurationData<S, E> {
 		this.verifierEnabled = verifierEnabled;
 		this.verifier = verifier;
 		this.machineId = machineId;
+		this.lazyInit = lazyInit;
 	}
 
 	public String getMachineId() {
@@ -224,4 +256,13 @@ public class ConfigurationData<S, E> {
 	public SecurityRule getTransitionSecurityRule() {
 		return transitionSecurityRule;
 	}
+
+	/**
+	 * Checks if lazy initialization of machines is enabled.
+	 *
+	 * @return true, if lazy initialization is enabled
+	 */
+	public boolean isLazyInit() {
+		return lazyInit;
+	}
 }
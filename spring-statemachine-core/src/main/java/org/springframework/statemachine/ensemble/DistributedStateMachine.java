@@ -17,6 +17,7 @@ package org.springframework.statemachine.ensemble;
 
 import java.util.Collection;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -26,6 +27,7 @@ import org.springframework.statemachine.ExtendedState;
 import org.springframework.statemachine.StateContext;
 import org.springframework.statemachine.StateMachine;
 import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineException;
 import org.springframework.statemachine.StateMachineSystemConstants;
 import org.springframework.statemachine.access.StateMachineAccess;
 import org.springframework.statemachine.access.StateMachineAccessor;
@@ -39,6 +41,8 @@ import org.springframework.statemachine.transition.Transition;
 import org.springframework.statemachine.transition.TransitionKind;
 import org.springframework.util.Assert;
 import org.springframework.util.ObjectUtils;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
 
 /**
  * {@code DistributedStateMachine} is wrapping a real {@link StateMachine} and works
@@ -47,6 +51,13 @@ import org.springframework.util.ObjectUtils;
  *
  * Every distributed state machine will enter its initial state regardless of
  * a distributed state status.
+ * <p>
+ * By default a state change waits until an ensemble has accepted it. With
+ * {@link #setAsyncStateChanges(boolean)} and a {@link StateMachineAsyncEnsemble}
+ * state changes are passed to an ensemble without waiting, and only events
+ * having a {@link StateMachineSystemConstants#STATEMACHINE_ENSEMBLE_CONFIRM}
+ * header set to {@code true} wait for a confirmation. A state change rejected
+ * by an ensemble without waiting is reported as an ensemble error.
  *
  * @author Janne Valkealahti
  *
@@ -60,6 +71,7 @@ public class DistributedStateMachine<S, E> extends LifecycleObjectSupport implem
 	private final StateMachine<S, E> delegate;
 	private final LocalEnsembleListener listener = new LocalEnsembleListener();
 	private final LocalStateMachineInterceptor interceptor = new LocalStateMachineInterceptor();
+	private boolean asyncStateChanges = false;
 
 	/**
 	 * Instantiates a new distributed state machine.
@@ -74,6 +86,16 @@ public class DistributedStateMachine<S, E> extends LifecycleObjectSupport implem
 		this.delegate = delegate;
 	}
 
+	/**
+	 * Sets if state changes are passed to a {@link StateMachineAsyncEnsemble}
+	 * without waiting for a confirmation. Defaults to {@code false}.
+	 *
+	 * @param asyncStateChanges the async state changes flag
+	 */
+	public void setAsyncStateChanges(boolean asyncStateChanges) {
+		this.asyncStateChanges = asyncStateChanges;
+	}
+
 	@Override
 	protected void onInit() throws Exception {
 		// TODO: should we register with all, not just top one?
@@ -184,6 +206,40 @@ public class DistributedStateMachine<S, E> extends LifecycleObjectSupport implem
 		return "DistributedStateMachine [delegate=" + delegate + "]";
 	}
 
+	private void setEnsembleState(StateMachineContext<S, E> context, Object confirm) {
+		if (!asyncStateChanges || !(ensemble instanceof StateMachineAsyncEnsemble)) {
+			ensemble.setState(context);
+			return;
+		}
+		ListenableFuture<Void> future = ((StateMachineAsyncEnsemble<S, E>) ensemble).setStateAsync(context);
+		if (Boolean.TRUE.equals(confirm)) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StateMachineException("Interrupted waiting state to be accepted", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new StateMachineException("Error setting state", e.getCause());
+			}
+		} else {
+			future.addCallback(new ListenableFutureCallback<Void>() {
+
+				@Override
+				public void onSuccess(Void result) {
+				}
+
+				@Override
+				public void onFailure(Throwable ex) {
+					log.error("State change not accepted by ensemble", ex);
+					setStateMachineError(new StateMachineEnsembleException("State change not accepted by ensemble", ex));
+				}
+			});
+		}
+	}
+
 	/**
 	 * We intercept state changes order to attempt to update global
 	 * distributed state. This attempt is sent to an ensemble which will
@@ -206,8 +262,9 @@ public class DistributedStateMachine<S, E> extends LifecycleObjectSupport implem
 			if (message != null
 					&& ObjectUtils.nullSafeEquals(delegate.getUuid(),
 							message.getHeaders().get(StateMachineSystemConstants.STATEMACHINE_IDENTIFIER))) {
-				ensemble.setState(new DefaultStateMachineContext<S, E>(transition.getTarget().getId(), message
-						.getPayload(), message.getHeaders(), stateMachine.getExtendedState()));
+				setEnsembleState(new DefaultStateMachineContext<S, E>(transition.getTarget().getId(), message
+						.getPayload(), message.getHeaders(), stateMachine.getExtendedState()),
+						message.getHeaders().get(StateMachineSystemConstants.STATEMACHINE_ENSEMBLE_CONFIRM));
 			}
 		}
 
@@ -230,14 +287,16 @@ public class DistributedStateMachine<S, E> extends LifecycleObjectSupport implem
 							stateContext.getMessageHeader(StateMachineSystemConstants.STATEMACHINE_IDENTIFIER))) {
 				StateMachineContext<S, E> current = ensemble.getState();
 				if (current != null) {
-					ensemble.setState(new DefaultStateMachineContext<S, E>(
+					setEnsembleState(new DefaultStateMachineContext<S, E>(
 							current.getState(), stateContext.getEvent(), stateContext
-									.getMessageHeaders(), stateContext.getStateMachine().getExtendedState()));
+									.getMessageHeaders(), stateContext.getStateMachine().getExtendedState()),
+							stateContext.getMessageHeader(StateMachineSystemConstants.STATEMACHINE_ENSEMBLE_CONFIRM));
 				} else if (stateContext.getStateMachine().getState() != null) {
 					// if current ensemble state is null, get it from sm itself
-					ensemble.setState(new DefaultStateMachineContext<S, E>(stateContext.getStateMachine().getState()
+					setEnsembleState(new DefaultStateMachineContext<S, E>(stateContext.getStateMachine().getState()
 							.getId(), stateContext.getEvent(), stateContext.getMessageHeaders(), stateContext
-							.getStateMachine().getExtendedState()));
+							.getStateMachine().getExtendedState()),
+							stateContext.getMessageHeader(StateMachineSystemConstants.STATEMACHINE_ENSEMBLE_CONFIRM));
 				}
 			}
 			return stateContext;
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.ensemble;
+
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.util.concurrent.ListenableFuture;
+
+/**
+ * Extension of a {@link StateMachineEnsemble} which is able to set a state
+ * without blocking a calling thread. States set asynchronously are written
+ * in an order they were requested and returned futures complete when a
+ * state has been accepted by an ensemble or fail if it was rejected.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ */
+public interface StateMachineAsyncEnsemble<S, E> extends StateMachineEnsemble<S, E> {
+
+	/**
+	 * Sets the state as a {@link StateMachineContext} asynchronously.
+	 *
+	 * @param context the state machine context
+	 * @return the future completing when state is accepted
+	 */
+	ListenableFuture<Void> setStateAsync(StateMachineContext<S, E> context);
+
+}
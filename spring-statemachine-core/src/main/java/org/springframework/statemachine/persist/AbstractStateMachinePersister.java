@@ -17,15 +17,21 @@ package org.springframework.statemachine.persist;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.WeakHashMap;
 
+import org.springframework.scheduling.annotation.AsyncResult;
 import org.springframework.statemachine.ExtendedState;
 import org.springframework.statemachine.StateMachine;
 import org.springframework.statemachine.StateMachineContext;
 import org.springframework.statemachine.StateMachinePersist;
 import org.springframework.statemachine.access.StateMachineAccess;
 import org.springframework.statemachine.access.StateMachineFunction;
+import org.springframework.statemachine.access.StateMachineRestoreAccess;
 import org.springframework.statemachine.region.Region;
 import org.springframework.statemachine.state.AbstractState;
 import org.springframework.statemachine.state.HistoryPseudoState;
@@ -35,10 +41,19 @@ import org.springframework.statemachine.support.AbstractStateMachine;
 import org.springframework.statemachine.support.DefaultExtendedState;
 import org.springframework.statemachine.support.DefaultStateMachineContext;
 import org.springframework.util.Assert;
+import org.springframework.util.ObjectUtils;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.util.concurrent.SettableListenableFuture;
 
 /**
  * Base implementation of a {@link StateMachinePersister} easing persist
  * and restore operations with a {@link StateMachinePersist}.
+ * <p>
+ * Asynchronous operations use a {@link StateMachineAsyncPersist} if
+ * available, otherwise a {@link StateMachinePersist} is called synchronously
+ * and a completed future is returned. Asynchronous persist always writes
+ * a full context.
  *
  * @author Janne Valkealahti
  *
@@ -46,9 +61,14 @@ import org.springframework.util.Assert;
  * @param <E> the type of event
  * @param <T> the type of context object
  */
-public abstract class AbstractStateMachinePersister<S, E, T> implements StateMachinePersister<S, E, T> {
+public abstract class AbstractStateMachinePersister<S, E, T> implements StateMachineBulkPersister<S, E, T>,
+		StateMachineAsyncPersister<S, E, T> {
 
 	private final StateMachinePersist<S, E, T> stateMachinePersist;
+	private boolean restoreInPlace = false;
+	private int deltaSnapshotInterval = 0;
+	private final Map<StateMachine<S, E>, PersistedContext> persistedContexts =
+			Collections.synchronizedMap(new WeakHashMap<StateMachine<S, E>, PersistedContext>());
 
 	/**
 	 * Instantiates a new abstract state machine persister.
@@ -60,14 +80,185 @@ public abstract class AbstractStateMachinePersister<S, E, T> implements StateMac
 		this.stateMachinePersist = stateMachinePersist;
 	}
 
+	/**
+	 * Sets if restore should happen in place. If enabled, a running machine
+	 * is not stopped and started during a restore and state is rehydrated
+	 * without executing entry or exit actions. Machines not implementing
+	 * {@link StateMachineRestoreAccess} are always stopped and started.
+	 *
+	 * @param restoreInPlace the new restore in place flag
+	 * @see StateMachineRestoreAccess#restoreStateMachine(StateMachineContext)
+	 */
+	public void setRestoreInPlace(boolean restoreInPlace) {
+		this.restoreInPlace = restoreInPlace;
+	}
+
+	/**
+	 * Sets the interval of full context writes when only a delta of a context
+	 * is written otherwise. Delta contains a state of a machine and extended
+	 * state variables changed since a machine was last persisted or restored
+	 * with a same context object by this persister. Full context is written
+	 * when a machine is persisted first time and after given number of
+	 * deltas. Deltas are only used if {@link StateMachinePersist} is a
+	 * {@link StateMachineDeltaPersist} which supports deltas, otherwise
+	 * full contexts are always written. Defaults to {@code 0} which disables
+	 * writing of deltas.
+	 * <p>
+	 * Variables of immutable types, i.e. strings, numbers and enums, are
+	 * compared using {@code equals}. Other variables may be modified in
+	 * place and are written with every delta.
+	 *
+	 * @param deltaSnapshotInterval the number of deltas between full contexts
+	 */
+	public void setDeltaSnapshotInterval(int deltaSnapshotInterval) {
+		Assert.isTrue(deltaSnapshotInterval >= 0, "Delta snapshot interval must not be negative");
+		this.deltaSnapshotInterval = deltaSnapshotInterval;
+	}
+
 	@Override
 	public final void persist(StateMachine<S, E> stateMachine, T contextOjb) throws Exception {
-		stateMachinePersist.write(buildStateMachineContext(stateMachine), contextOjb);
+		StateMachineContext<S, E> context = buildStateMachineContext(stateMachine);
+		if (!isDeltaEnabled()) {
+			stateMachinePersist.write(context, contextOjb);
+			return;
+		}
+		PersistedContext persisted = persistedContexts.remove(stateMachine);
+		if (persisted != null && ObjectUtils.nullSafeEquals(persisted.contextOjb, contextOjb)) {
+			int deltas = ((StateMachineDeltaPersist<S, E, T>) stateMachinePersist).writeDelta(
+					StateMachineContextDeltas.createDelta(context, persisted.variables), contextOjb);
+			if (deltas >= deltaSnapshotInterval) {
+				stateMachinePersist.write(context, contextOjb);
+			}
+		} else {
+			stateMachinePersist.write(context, contextOjb);
+		}
+		// only remember what was written if write didn't fail as
+		// otherwise next write needs to be a full context.
+		persistedContexts.put(stateMachine, new PersistedContext(contextOjb, context));
+	}
+
+	@Override
+	public final void persistAll(Map<T, StateMachine<S, E>> stateMachines) throws Exception {
+		if (!(stateMachinePersist instanceof StateMachineBulkPersist)) {
+			for (Entry<T, StateMachine<S, E>> entry : stateMachines.entrySet()) {
+				persist(entry.getValue(), entry.getKey());
+			}
+			return;
+		}
+		Map<T, StateMachineContext<S, E>> contexts = new LinkedHashMap<T, StateMachineContext<S, E>>(stateMachines.size());
+		for (Entry<T, StateMachine<S, E>> entry : stateMachines.entrySet()) {
+			contexts.put(entry.getKey(), buildStateMachineContext(entry.getValue()));
+		}
+		((StateMachineBulkPersist<S, E, T>) stateMachinePersist).writeAll(contexts);
+		if (isDeltaEnabled()) {
+			for (Entry<T, StateMachine<S, E>> entry : stateMachines.entrySet()) {
+				persistedContexts.put(entry.getValue(), new PersistedContext(entry.getKey(), contexts.get(entry.getKey())));
+			}
+		}
 	}
 
 	@Override
 	public final StateMachine<S, E> restore(StateMachine<S, E> stateMachine, T contextOjb) throws Exception {
-		final StateMachineContext<S, E> context = stateMachinePersist.read(contextOjb);
+		return doRestore(stateMachine, contextOjb, stateMachinePersist.read(contextOjb));
+	}
+
+	@Override
+	public final Map<T, StateMachine<S, E>> restoreAll(Map<T, StateMachine<S, E>> stateMachines) throws Exception {
+		if (!(stateMachinePersist instanceof StateMachineBulkPersist)) {
+			for (Entry<T, StateMachine<S, E>> entry : stateMachines.entrySet()) {
+				restore(entry.getValue(), entry.getKey());
+			}
+			return stateMachines;
+		}
+		Map<T, StateMachineContext<S, E>> contexts = ((StateMachineBulkPersist<S, E, T>) stateMachinePersist)
+				.readAll(stateMachines.keySet());
+		for (Entry<T, StateMachine<S, E>> entry : stateMachines.entrySet()) {
+			doRestore(entry.getValue(), entry.getKey(), contexts.get(entry.getKey()));
+		}
+		return stateMachines;
+	}
+
+	@Override
+	public final ListenableFuture<Void> persistAsync(final StateMachine<S, E> stateMachine, final T contextOjb) {
+		if (!(stateMachinePersist instanceof StateMachineAsyncPersist)) {
+			try {
+				persist(stateMachine, contextOjb);
+				return new AsyncResult<Void>(null);
+			} catch (Exception e) {
+				return AsyncResult.forExecutionException(e);
+			}
+		}
+		final StateMachineContext<S, E> context = buildStateMachineContext(stateMachine);
+		if (!isDeltaEnabled()) {
+			return ((StateMachineAsyncPersist<S, E, T>) stateMachinePersist).writeAsync(context, contextOjb);
+		}
+		// a write in progress may fail, so deltas are written only after
+		// this write has completed.
+		persistedContexts.remove(stateMachine);
+		ListenableFuture<Void> future = ((StateMachineAsyncPersist<S, E, T>) stateMachinePersist).writeAsync(context,
+				contextOjb);
+		future.addCallback(new ListenableFutureCallback<Void>() {
+
+			@Override
+			public void onSuccess(Void result) {
+				persistedContexts.put(stateMachine, new PersistedContext(contextOjb, context));
+			}
+
+			@Override
+			public void onFailure(Throwable ex) {
+			}
+		});
+		return future;
+	}
+
+	@Override
+	public final ListenableFuture<StateMachine<S, E>> restoreAsync(final StateMachine<S, E> stateMachine,
+			final T contextOjb) {
+		ListenableFuture<StateMachineContext<S, E>> read;
+		if (stateMachinePersist instanceof StateMachineAsyncPersist) {
+			read = ((StateMachineAsyncPersist<S, E, T>) stateMachinePersist).readAsync(contextOjb);
+		} else {
+			try {
+				read = AsyncResult.forValue(stateMachinePersist.read(contextOjb));
+			} catch (Exception e) {
+				return AsyncResult.forExecutionException(e);
+			}
+		}
+		final SettableListenableFuture<StateMachine<S, E>> future = new SettableListenableFuture<StateMachine<S, E>>();
+		read.addCallback(new ListenableFutureCallback<StateMachineContext<S, E>>() {
+
+			@Override
+			public void onSuccess(StateMachineContext<S, E> context) {
+				try {
+					future.set(doRestore(stateMachine, contextOjb, context));
+				} catch (Exception e) {
+					future.setException(e);
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable ex) {
+				future.setException(ex);
+			}
+		});
+		return future;
+	}
+
+	private StateMachine<S, E> doRestore(StateMachine<S, E> stateMachine, T contextOjb,
+			final StateMachineContext<S, E> context) {
+		if (isDeltaEnabled()) {
+			if (context != null) {
+				persistedContexts.put(stateMachine, new PersistedContext(contextOjb, context));
+			} else {
+				persistedContexts.remove(stateMachine);
+			}
+		}
+		StateMachineAccess<S, E> access = stateMachine.getStateMachineAccessor().withRegion();
+		if (restoreInPlace && access instanceof StateMachineRestoreAccess) {
+			((StateMachineRestoreAccess<S, E>) access).restoreStateMachine(context);
+			stateMachine.start();
+			return stateMachine;
+		}
 		stateMachine.stop();
 		stateMachine.getStateMachineAccessor().doWithAllRegions(new StateMachineFunction<StateMachineAccess<S, E>>() {
 
@@ -132,4 +323,27 @@ public abstract class AbstractStateMachinePersister<S, E, T> implements StateMac
 		}
 		return new DefaultStateMachineContext<S, E>(childs, id, null, null, extendedState, historyStates, stateMachine.getId());
 	}
+
+	private boolean isDeltaEnabled() {
+		return deltaSnapshotInterval > 0 && stateMachinePersist instanceof StateMachineDeltaPersist
+				&& ((StateMachineDeltaPersist<S, E, T>) stateMachinePersist).isDeltaSupported();
+	}
+
+	/**
+	 * Variables last written or read for a machine with a context object.
+	 */
+	private static class PersistedContext {
+
+		final Object contextOjb;
+		final Map<Object, Object> variables;
+
+		PersistedContext(Object contextOjb, StateMachineContext<?, ?> context) {
+			this.contextOjb = contextOjb;
+			// copy as restored machine may use variables from a read context
+			this.variables = new HashMap<Object, Object>();
+			if (context.getExtendedState() != null && context.getExtendedState().getVariables() != null) {
+				this.variables.putAll(context.getExtendedState().getVariables());
+			}
+		}
+	}
 }
@@ -0,0 +1,629 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.persist;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.statemachine.ExtendedState;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineContextBulkRepository;
+import org.springframework.statemachine.StateMachineContextDeltaRepository;
+import org.springframework.statemachine.StateMachineContextRepository;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+import org.springframework.util.Assert;
+import org.springframework.util.ObjectUtils;
+
+/**
+ * {@link StateMachineContextRepository} decorator keeping recently used
+ * contexts in a local memory. Saves are written through to a delegating
+ * repository before a context is cached, so traffic to a backing store
+ * is unchanged while contexts saved or read by this node are served from
+ * a cache until evicted. A cache is bounded by a maximum size and entries
+ * are evicted either by {@link EvictionPolicy#LRU} or
+ * {@link EvictionPolicy#LFU}. Larger caches are split into segments by id,
+ * each with its own lock and share of a maximum size, thus an evicted
+ * context is a least recently or frequently used within its segment.
+ * <p>
+ * Saves and reads in progress are tracked per id and a context is cached
+ * only if no other save of a same id has overlapped with it, otherwise
+ * a cached context is invalidated as order of writes in a delegating
+ * repository is not known. Contexts are copied when cached and returned
+ * so that a machine restored from a cached context doesn't modify it,
+ * however variable values are not copied.
+ * <p>
+ * If other nodes write into a same backing store, a {@link VersionProvider}
+ * can be set to validate cached contexts against a store before those are
+ * used. As a version written by a save is not known, a save then invalidates
+ * a cached context and only contexts read together with their versions
+ * are cached.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ */
+public class CachingStateMachineContextRepository<S, E>
+		implements StateMachineContextDeltaRepository<S, E, StateMachineContext<S, E>>,
+		StateMachineContextBulkRepository<S, E, StateMachineContext<S, E>> {
+
+	private static final int MAX_SEGMENTS = 16;
+	private static final int MIN_SEGMENT_SIZE = 64;
+
+	private final StateMachineContextRepository<S, E, StateMachineContext<S, E>> delegate;
+	private final List<Segment> segments;
+	private volatile VersionProvider versionProvider;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	// saves and reads in progress per id, removed when last one completes
+	private final ConcurrentMap<String, WriteState> writeStates = new ConcurrentHashMap<String, WriteState>();
+
+	/**
+	 * Instantiates a new caching state machine context repository.
+	 *
+	 * @param delegate the delegating repository
+	 * @param maxSize the maximum number of cached contexts
+	 */
+	public CachingStateMachineContextRepository(StateMachineContextRepository<S, E, StateMachineContext<S, E>> delegate,
+			int maxSize) {
+		Assert.notNull(delegate, "Delegating StateMachineContextRepository must be set");
+		Assert.isTrue(maxSize > 0, "Maximum size must be positive");
+		this.delegate = delegate;
+		int count = Math.max(1, Math.min(MAX_SEGMENTS, maxSize / MIN_SEGMENT_SIZE));
+		this.segments = new ArrayList<Segment>(count);
+		for (int i = 0; i < count; i++) {
+			segments.add(new Segment(maxSize / count + (i < maxSize % count ? 1 : 0)));
+		}
+	}
+
+	/**
+	 * Sets the eviction policy. Changing a policy clears a cache. Defaults
+	 * to {@link EvictionPolicy#LRU}.
+	 *
+	 * @param evictionPolicy the eviction policy
+	 */
+	public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+		Assert.notNull(evictionPolicy, "Eviction policy must be set");
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.evictionPolicy = evictionPolicy;
+				segment.clear();
+			}
+		}
+	}
+
+	/**
+	 * Sets the version provider used to validate cached contexts. If set,
+	 * a version of a context is requested from a provider on every cache hit
+	 * and a context is read from a delegating repository if a version has
+	 * changed after a context was read. Saves invalidate cached contexts
+	 * while a provider is set.
+	 *
+	 * @param versionProvider the version provider
+	 */
+	public void setVersionProvider(VersionProvider versionProvider) {
+		this.versionProvider = versionProvider;
+	}
+
+	@Override
+	public void save(StateMachineContext<S, E> context, String id) {
+		StateMachineContext<S, E> copy = copy(context);
+		long sequence = beginWrite(id);
+		boolean written = false;
+		try {
+			delegate.save(context, id);
+			written = true;
+		} finally {
+			endWrite(id, sequence, written, copy, null);
+		}
+	}
+
+	@Override
+	public boolean isDeltaSupported() {
+		return delegate instanceof StateMachineContextDeltaRepository
+				&& ((StateMachineContextDeltaRepository<S, E, StateMachineContext<S, E>>) delegate).isDeltaSupported();
+	}
+
+	@Override
+	public int saveDelta(StateMachineContext<S, E> delta, String id) {
+		int deltas = 0;
+		long sequence = beginWrite(id);
+		boolean written = false;
+		try {
+			if (delegate instanceof StateMachineContextDeltaRepository) {
+				deltas = ((StateMachineContextDeltaRepository<S, E, StateMachineContext<S, E>>) delegate).saveDelta(delta,
+						id);
+			} else {
+				delegate.save(StateMachineContextDeltas.applyDeltas(delegate.getContext(id),
+						Collections.singletonList(delta)), id);
+			}
+			// delegate didn't have a context to save a delta on
+			written = deltas < Integer.MAX_VALUE;
+		} finally {
+			endWrite(id, sequence, written, null, delta);
+		}
+		return deltas;
+	}
+
+	@Override
+	public StateMachineContext<S, E> getContext(String id) {
+		StateMachineContext<S, E> context = getCached(id);
+		if (context != null) {
+			hits.incrementAndGet();
+			return context;
+		}
+		misses.incrementAndGet();
+		long sequence = beginRead(id);
+		Object version = null;
+		try {
+			VersionProvider versionProvider = this.versionProvider;
+			version = versionProvider != null ? versionProvider.getVersion(id) : null;
+			context = delegate.getContext(id);
+		} finally {
+			endRead(id, sequence, context, version);
+		}
+		return context;
+	}
+
+	@Override
+	public void saveAll(Map<String, StateMachineContext<S, E>> contexts) {
+		Map<String, StateMachineContext<S, E>> copies = new HashMap<String, StateMachineContext<S, E>>();
+		Map<String, Long> sequences = new HashMap<String, Long>();
+		for (Entry<String, StateMachineContext<S, E>> entry : contexts.entrySet()) {
+			copies.put(entry.getKey(), copy(entry.getValue()));
+			sequences.put(entry.getKey(), beginWrite(entry.getKey()));
+		}
+		boolean written = false;
+		try {
+			if (delegate instanceof StateMachineContextBulkRepository) {
+				((StateMachineContextBulkRepository<S, E, StateMachineContext<S, E>>) delegate).saveAll(contexts);
+			} else {
+				for (Entry<String, StateMachineContext<S, E>> entry : contexts.entrySet()) {
+					delegate.save(entry.getValue(), entry.getKey());
+				}
+			}
+			written = true;
+		} finally {
+			for (Entry<String, StateMachineContext<S, E>> entry : copies.entrySet()) {
+				endWrite(entry.getKey(), sequences.get(entry.getKey()), written, entry.getValue(), null);
+			}
+		}
+	}
+
+	@Override
+	public Map<String, StateMachineContext<S, E>> getContexts(Collection<String> ids) {
+		Map<String, StateMachineContext<S, E>> contexts = new LinkedHashMap<String, StateMachineContext<S, E>>();
+		List<String> missing = new ArrayList<String>();
+		for (String id : ids) {
+			StateMachineContext<S, E> context = getCached(id);
+			if (context != null) {
+				contexts.put(id, context);
+			} else {
+				missing.add(id);
+			}
+		}
+		hits.addAndGet(contexts.size());
+		misses.addAndGet(missing.size());
+		if (!missing.isEmpty()) {
+			Map<String, Long> sequences = new LinkedHashMap<String, Long>();
+			Map<String, Object> versions = new HashMap<String, Object>();
+			Map<String, StateMachineContext<S, E>> read = Collections.emptyMap();
+			for (String id : missing) {
+				sequences.put(id, beginRead(id));
+			}
+			try {
+				VersionProvider versionProvider = this.versionProvider;
+				if (versionProvider != null) {
+					for (String id : missing) {
+						versions.put(id, versionProvider.getVersion(id));
+					}
+				}
+				read = getDelegateContexts(missing);
+			} finally {
+				for (Entry<String, Long> entry : sequences.entrySet()) {
+					endRead(entry.getKey(), entry.getValue(), read.get(entry.getKey()), versions.get(entry.getKey()));
+				}
+			}
+			contexts.putAll(read);
+		}
+		return contexts;
+	}
+
+	private Map<String, StateMachineContext<S, E>> getDelegateContexts(List<String> ids) {
+		if (delegate instanceof StateMachineContextBulkRepository) {
+			return ((StateMachineContextBulkRepository<S, E, StateMachineContext<S, E>>) delegate).getContexts(ids);
+		}
+		Map<String, StateMachineContext<S, E>> contexts = new LinkedHashMap<String, StateMachineContext<S, E>>();
+		for (String id : ids) {
+			StateMachineContext<S, E> context = delegate.getContext(id);
+			if (context != null) {
+				contexts.put(id, context);
+			}
+		}
+		return contexts;
+	}
+
+	/**
+	 * Removes a cached context.
+	 *
+	 * @param id the id
+	 */
+	public void invalidate(String id) {
+		Segment segment = getSegment(id);
+		synchronized (segment) {
+			segment.invalidate(id);
+		}
+	}
+
+	/**
+	 * Removes all cached contexts.
+	 */
+	public void invalidateAll() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of cached contexts.
+	 *
+	 * @return the number of cached contexts
+	 */
+	public int getSize() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.entries.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the number of contexts served from a cache.
+	 *
+	 * @return the hit count
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of contexts requested from a delegating repository.
+	 *
+	 * @return the miss count
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	private StateMachineContext<S, E> getCached(String id) {
+		Segment segment = getSegment(id);
+		VersionProvider versionProvider = this.versionProvider;
+		CacheEntry entry;
+		Object cachedVersion;
+		synchronized (segment) {
+			entry = segment.entries.get(id);
+			if (entry == null) {
+				return null;
+			}
+			segment.touch(id, entry);
+			cachedVersion = entry.version;
+			if (versionProvider == null) {
+				return copy(entry.context);
+			}
+		}
+		// don't hold a lock while calling a provider
+		Object version = versionProvider.getVersion(id);
+		synchronized (segment) {
+			if (segment.entries.get(id) != entry) {
+				return null;
+			}
+			if (cachedVersion != null && !ObjectUtils.nullSafeEquals(cachedVersion, version)) {
+				segment.invalidate(id);
+				return null;
+			}
+			entry.version = version;
+			return copy(entry.context);
+		}
+	}
+
+	private Segment getSegment(String id) {
+		return segments.get((id.hashCode() & 0x7fffffff) % segments.size());
+	}
+
+	private long beginWrite(String id) {
+		return register(id, true);
+	}
+
+	private long beginRead(String id) {
+		return register(id, false);
+	}
+
+	/**
+	 * Registers a save or a read in progress and returns a sequence of
+	 * writes of an id it started with.
+	 */
+	private long register(String id, boolean write) {
+		while (true) {
+			WriteState state = writeStates.get(id);
+			if (state == null) {
+				WriteState created = new WriteState();
+				state = writeStates.putIfAbsent(id, created);
+				if (state == null) {
+					state = created;
+				}
+			}
+			synchronized (state) {
+				// state removed after it was looked up, retry with a new one
+				if (!state.removed) {
+					state.active++;
+					if (write) {
+						state.writes++;
+						state.sequence++;
+					}
+					return state.sequence;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Unregisters an operation in progress and removes a state of an id
+	 * when it was a last one. Needs to be called while holding a lock
+	 * of a state.
+	 */
+	private void unregister(String id, WriteState state) {
+		if (--state.active == 0) {
+			state.removed = true;
+			writeStates.remove(id, state);
+		}
+	}
+
+	/**
+	 * Ends a write started with {@link #beginWrite(String)}. Either caches
+	 * a written context, applies a written delta to a cached context, or
+	 * invalidates a cached context if other writes of a same id overlapped
+	 * as those may have been written in any order.
+	 */
+	private void endWrite(String id, long sequence, boolean written, StateMachineContext<S, E> copy,
+			StateMachineContext<S, E> delta) {
+		WriteState state = writeStates.get(id);
+		Segment segment = getSegment(id);
+		synchronized (state) {
+			state.writes--;
+			boolean cacheable = ++state.sequence == sequence + 1 && written && versionProvider == null;
+			unregister(id, state);
+			// cache while holding a state so that a next write of an id
+			// can't begin before this one is cached
+			synchronized (segment) {
+				if (!cacheable) {
+					segment.invalidate(id);
+				} else if (delta == null) {
+					segment.cache(id, copy, null);
+				} else {
+					CacheEntry entry = segment.entries.get(id);
+					if (entry != null) {
+						entry.context = StateMachineContextDeltas.applyDeltas(entry.context,
+								Collections.singletonList(delta));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Ends a read started with {@link #beginRead(String)} and caches a read
+	 * context unless a same id was written while it was read, as a read
+	 * context may then be stale.
+	 */
+	private void endRead(String id, long sequence, StateMachineContext<S, E> context, Object version) {
+		StateMachineContext<S, E> copy = context != null ? copy(context) : null;
+		WriteState state = writeStates.get(id);
+		Segment segment = getSegment(id);
+		synchronized (state) {
+			boolean cacheable = copy != null && state.sequence == sequence && state.writes == 0;
+			unregister(id, state);
+			if (cacheable) {
+				synchronized (segment) {
+					segment.cache(id, copy, version);
+				}
+			}
+		}
+	}
+
+	private StateMachineContext<S, E> copy(StateMachineContext<S, E> context) {
+		ExtendedState extendedState = new DefaultExtendedState();
+		if (context.getExtendedState() != null && context.getExtendedState().getVariables() != null) {
+			extendedState.getVariables().putAll(context.getExtendedState().getVariables());
+		}
+		return new DefaultStateMachineContext<S, E>(context.getChilds(), context.getState(), context.getEvent(),
+				context.getEventHeaders(), extendedState, context.getHistoryStates(), context.getId());
+	}
+
+	/**
+	 * Policy deciding which cached context is evicted when a cache is full.
+	 */
+	public enum EvictionPolicy {
+
+		/** Evicts a least recently used context. */
+		LRU,
+
+		/** Evicts a least frequently used context. */
+		LFU
+	}
+
+	/**
+	 * Strategy interface resolving a current version of a context in a
+	 * backing store, for example a modification counter or a timestamp
+	 * which is cheaper to request than a context itself.
+	 */
+	public interface VersionProvider {
+
+		/**
+		 * Gets the current version of a context.
+		 *
+		 * @param id the id
+		 * @return the version, {@code null} if not known
+		 */
+		Object getVersion(String id);
+	}
+
+	/**
+	 * Saves and reads of an id in progress. A sequence is increased when
+	 * a write begins and ends, thus an operation knows if a write has
+	 * overlapped with it.
+	 */
+	private static class WriteState {
+
+		int active;
+		int writes;
+		long sequence;
+		boolean removed;
+	}
+
+	/**
+	 * Cached contexts of a segment of ids with their eviction order. Needs
+	 * to be used while holding a lock of a segment.
+	 */
+	private class Segment {
+
+		final int maxSize;
+		final Map<String, CacheEntry> entries = new HashMap<String, CacheEntry>();
+		final LinkedHashSet<String> accessOrder = new LinkedHashSet<String>();
+		final Map<Integer, LinkedHashSet<String>> frequencies = new HashMap<Integer, LinkedHashSet<String>>();
+		EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+		int minFrequency;
+
+		Segment(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		/**
+		 * Caches a copied context.
+		 */
+		void cache(String id, StateMachineContext<S, E> copy, Object version) {
+			CacheEntry entry = entries.get(id);
+			if (entry != null) {
+				entry.context = copy;
+				entry.version = version;
+				touch(id, entry);
+				return;
+			}
+			if (entries.size() >= maxSize) {
+				evict();
+			}
+			entry = new CacheEntry(copy, version);
+			entries.put(id, entry);
+			if (evictionPolicy == EvictionPolicy.LRU) {
+				accessOrder.add(id);
+			} else {
+				addFrequency(id, entry.frequency);
+				minFrequency = entry.frequency;
+			}
+		}
+
+		void invalidate(String id) {
+			CacheEntry entry = entries.remove(id);
+			if (entry != null) {
+				accessOrder.remove(id);
+				removeFrequency(id, entry.frequency);
+			}
+		}
+
+		void touch(String id, CacheEntry entry) {
+			if (evictionPolicy == EvictionPolicy.LRU) {
+				accessOrder.remove(id);
+				accessOrder.add(id);
+			} else {
+				removeFrequency(id, entry.frequency);
+				if (minFrequency == entry.frequency && !frequencies.containsKey(entry.frequency)) {
+					minFrequency++;
+				}
+				entry.frequency++;
+				addFrequency(id, entry.frequency);
+			}
+		}
+
+		void evict() {
+			String id;
+			if (evictionPolicy == EvictionPolicy.LRU) {
+				id = accessOrder.iterator().next();
+			} else {
+				if (!frequencies.containsKey(minFrequency)) {
+					// invalidated entries may leave minimum frequency stale
+					minFrequency = Collections.min(frequencies.keySet());
+				}
+				id = frequencies.get(minFrequency).iterator().next();
+			}
+			invalidate(id);
+		}
+
+		void addFrequency(String id, int frequency) {
+			LinkedHashSet<String> ids = frequencies.get(frequency);
+			if (ids == null) {
+				ids = new LinkedHashSet<String>();
+				frequencies.put(frequency, ids);
+			}
+			ids.add(id);
+		}
+
+		void removeFrequency(String id, int frequency) {
+			LinkedHashSet<String> ids = frequencies.get(frequency);
+			if (ids != null) {
+				ids.remove(id);
+				if (ids.isEmpty()) {
+					frequencies.remove(frequency);
+				}
+			}
+		}
+
+		void clear() {
+			entries.clear();
+			accessOrder.clear();
+			frequencies.clear();
+			minFrequency = 0;
+		}
+	}
+
+	/**
+	 * Cached context with a version it was read with and a use frequency.
+	 */
+	private class CacheEntry {
+
+		StateMachineContext<S, E> context;
+		Object version;
+		int frequency = 1;
+
+		CacheEntry(StateMachineContext<S, E> context, Object version) {
+			this.context = context;
+			this.version = version;
+		}
+	}
+}
@@ -15,20 +15,41 @@
  */
 package org.springframework.statemachine.persist;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.springframework.scheduling.annotation.AsyncResult;
 import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineContextAsyncRepository;
+import org.springframework.statemachine.StateMachineContextBulkRepository;
+import org.springframework.statemachine.StateMachineContextDeltaRepository;
 import org.springframework.statemachine.StateMachineContextRepository;
 import org.springframework.statemachine.StateMachinePersist;
+import org.springframework.util.concurrent.ListenableFuture;
 
 /**
  * A {@link StateMachinePersist} using a generic {@link StateMachineContextRepository}
- * for persisting {@link StateMachineContext}.
+ * for persisting {@link StateMachineContext}. Deltas are saved as is if
+ * repository is a {@link StateMachineContextDeltaRepository} supporting
+ * deltas, otherwise a delta is applied to a current context which is then
+ * saved and {@link #isDeltaSupported()} returns {@code false}. Asynchronous
+ * operations are delegated if repository is a
+ * {@link StateMachineContextAsyncRepository}, otherwise a repository is
+ * called synchronously and a completed future is returned. Similarly bulk
+ * operations are delegated if repository is a
+ * {@link StateMachineContextBulkRepository}, otherwise contexts are saved
+ * and read one by one.
  *
  * @author Janne Valkealahti
  *
  * @param <S> the type of state
  * @param <E> the type of event
  */
-public class RepositoryStateMachinePersist<S, E> implements StateMachinePersist<S, E, String> {
+public class RepositoryStateMachinePersist<S, E> implements StateMachineDeltaPersist<S, E, String>,
+		StateMachineBulkPersist<S, E, String>, StateMachineAsyncPersist<S, E, String> {
 
 	private final StateMachineContextRepository<S, E, StateMachineContext<S,E>> repository;
 
@@ -46,9 +67,81 @@ public class RepositoryStateMachinePersist<S, E> implements StateMachinePersist<
 		repository.save(context, contextOjb);
 	}
 
+	@Override
+	public boolean isDeltaSupported() {
+		return repository instanceof StateMachineContextDeltaRepository
+				&& ((StateMachineContextDeltaRepository<S, E, StateMachineContext<S, E>>) repository).isDeltaSupported();
+	}
+
+	@Override
+	public int writeDelta(StateMachineContext<S, E> delta, String contextOjb) throws Exception {
+		if (repository instanceof StateMachineContextDeltaRepository) {
+			// repository applies a delta by itself if not supported
+			return ((StateMachineContextDeltaRepository<S, E, StateMachineContext<S, E>>) repository).saveDelta(delta,
+					contextOjb);
+		}
+		repository.save(StateMachineContextDeltas.applyDeltas(repository.getContext(contextOjb),
+				Collections.singletonList(delta)), contextOjb);
+		return 0;
+	}
+
 	@Override
 	public StateMachineContext<S, E> read(String contextOjb) throws Exception {
 		return repository.getContext(contextOjb);
 	}
 
+	@Override
+	public void writeAll(Map<String, StateMachineContext<S, E>> contexts) throws Exception {
+		if (repository instanceof StateMachineContextBulkRepository) {
+			((StateMachineContextBulkRepository<S, E, StateMachineContext<S, E>>) repository).saveAll(contexts);
+			return;
+		}
+		for (Entry<String, StateMachineContext<S, E>> entry : contexts.entrySet()) {
+			repository.save(entry.getValue(), entry.getKey());
+		}
+	}
+
+	@Override
+	public Map<String, StateMachineContext<S, E>> readAll(Collection<String> contextOjbs) throws Exception {
+		if (repository instanceof StateMachineContextBulkRepository) {
+			return ((StateMachineContextBulkRepository<S, E, StateMachineContext<S, E>>) repository)
+					.getContexts(contextOjbs);
+		}
+		Map<String, StateMachineContext<S, E>> contexts = new LinkedHashMap<String, StateMachineContext<S, E>>();
+		for (String contextOjb : contextOjbs) {
+			StateMachineContext<S, E> context = repository.getContext(contextOjb);
+			if (context != null) {
+				contexts.put(contextOjb, context);
+			}
+		}
+		return contexts;
+	}
+
+	@Override
+	public ListenableFuture<Void> writeAsync(StateMachineContext<S, E> context, String contextOjb) {
+		if (repository instanceof StateMachineContextAsyncRepository) {
+			return ((StateMachineContextAsyncRepository<S, E, StateMachineContext<S, E>>) repository).saveAsync(context,
+					contextOjb);
+		}
+		try {
+			repository.save(context, contextOjb);
+			return new AsyncResult<Void>(null);
+		} catch (Exception e) {
+			return AsyncResult.forExecutionException(e);
+		}
+	}
+
+	@Override
+	public ListenableFuture<StateMachineContext<S, E>> readAsync(String contextOjb) {
+		if (repository instanceof StateMachineContextAsyncRepository) {
+			return ((StateMachineContextAsyncRepository<S, E, StateMachineContext<S, E>>) repository)
+					.getContextAsync(contextOjb);
+		}
+		try {
+			return AsyncResult.forValue(repository.getContext(contextOjb));
+		} catch (Exception e) {
+			return AsyncResult.forExecutionException(e);
+		}
+	}
+
 }
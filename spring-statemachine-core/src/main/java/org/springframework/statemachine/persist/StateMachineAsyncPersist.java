@@ -0,0 +1,56 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.persist;
+
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachinePersist;
+import org.springframework.util.concurrent.ListenableFuture;
+
+/**
+ * Extension of a {@link StateMachinePersist} which is able to write and
+ * read a {@link StateMachineContext} without blocking a calling thread.
+ * Returned futures complete when a persistent store operation has completed
+ * and fail with an exception thrown from a persistent store.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ * @param <T> the type of context object
+ */
+public interface StateMachineAsyncPersist<S, E, T> extends StateMachinePersist<S, E, T> {
+
+	/**
+	 * Write a {@link StateMachineContext} into a persistent store
+	 * asynchronously with a context object {@code T}.
+	 *
+	 * @param context the context
+	 * @param contextOjb the context ojb
+	 * @return the future completing when context is written
+	 */
+	ListenableFuture<Void> writeAsync(StateMachineContext<S, E> context, T contextOjb);
+
+	/**
+	 * Read a {@link StateMachineContext} from a persistent store
+	 * asynchronously with a context object {@code T}.
+	 *
+	 * @param contextOjb the context ojb
+	 * @return the future of a context, completing with {@code null} if
+	 *         there is no context
+	 */
+	ListenableFuture<StateMachineContext<S, E>> readAsync(T contextOjb);
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.persist;
+
+import org.springframework.statemachine.StateMachine;
+import org.springframework.util.concurrent.ListenableFuture;
+
+/**
+ * Extension of a {@link StateMachinePersister} which is able to persist and
+ * restore a {@link StateMachine} without blocking a calling thread.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ * @param <T> the type of context object
+ */
+public interface StateMachineAsyncPersister<S, E, T> extends StateMachinePersister<S, E, T> {
+
+	/**
+	 * Persist a state machine with a given context object without blocking
+	 * a calling thread for a persistent storage. A context is built from
+	 * a machine before this method returns.
+	 *
+	 * @param stateMachine the state machine
+	 * @param contextOjb the context ojb
+	 * @return the future completing when machine is persisted
+	 */
+	ListenableFuture<Void> persistAsync(StateMachine<S, E> stateMachine, T contextOjb);
+
+	/**
+	 * Reset a state machine with a given context object without blocking
+	 * a calling thread for a persistent storage. Machine is reseted by
+	 * a thread completing a read from a persistent storage.
+	 *
+	 * @param stateMachine the state machine
+	 * @param contextOjb the context ojb
+	 * @return the future of a state machine completing when machine is reseted
+	 */
+	ListenableFuture<StateMachine<S, E>> restoreAsync(StateMachine<S, E> stateMachine, T contextOjb);
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.persist;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachinePersist;
+
+/**
+ * Extension of a {@link StateMachinePersist} which is able to write and
+ * read multiple {@link StateMachineContext}s with less round trips to a
+ * persistent store than writing and reading contexts one by one.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ * @param <T> the type of context object
+ */
+public interface StateMachineBulkPersist<S, E, T> extends StateMachinePersist<S, E, T> {
+
+	/**
+	 * Write {@link StateMachineContext}s into a persistent store.
+	 *
+	 * @param contexts the contexts mapped by context object
+	 * @throws Exception the exception
+	 */
+	void writeAll(Map<T, StateMachineContext<S, E>> contexts) throws Exception;
+
+	/**
+	 * Read {@link StateMachineContext}s from a persistent store.
+	 *
+	 * @param contextOjbs the context objects
+	 * @return the contexts mapped by context object, not containing
+	 *         context objects without a context
+	 * @throws Exception the exception
+	 */
+	Map<T, StateMachineContext<S, E>> readAll(Collection<T> contextOjbs) throws Exception;
+
+}
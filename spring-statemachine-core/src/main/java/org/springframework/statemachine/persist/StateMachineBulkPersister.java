@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.persist;
+
+import java.util.Map;
+
+import org.springframework.statemachine.StateMachine;
+
+/**
+ * Extension of a {@link StateMachinePersister} which is able to persist and
+ * restore multiple {@link StateMachine}s at once.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ * @param <T> the type of context object
+ */
+public interface StateMachineBulkPersister<S, E, T> extends StateMachinePersister<S, E, T> {
+
+	/**
+	 * Persist state machines with given context objects. Depending on
+	 * a persistent storage, machines may be written with less round trips
+	 * than persisting machines one by one.
+	 *
+	 * @param stateMachines the state machines mapped by context object
+	 * @throws Exception the exception in case or any persist error
+	 */
+	void persistAll(Map<T, StateMachine<S, E>> stateMachines) throws Exception;
+
+	/**
+	 * Reset state machines with given context objects. Depending on
+	 * a persistent storage, machines may be read with less round trips
+	 * than restoring machines one by one.
+	 *
+	 * @param stateMachines the state machines mapped by context object
+	 * @return the state machines mapped by context object
+	 * @throws Exception the exception in case or any persist error
+	 */
+	Map<T, StateMachine<S, E>> restoreAll(Map<T, StateMachine<S, E>> stateMachines) throws Exception;
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.persist;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+
+import org.springframework.statemachine.ExtendedState;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+import org.springframework.util.ObjectUtils;
+
+/**
+ * Utility methods for creating and applying deltas of a
+ * {@link StateMachineContext}. Delta carries a full state of a machine
+ * as it's small compared to extended state variables, but its extended
+ * state only contains changed variables and removed variables mapped to
+ * {@link #REMOVED}.
+ * <p>
+ * As a previous value may be a same instance than a current value, only
+ * values of known immutable types are compared. Other values, i.e.
+ * collections and beans, may have been modified in place and are always
+ * carried by a delta.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public abstract class StateMachineContextDeltas {
+
+	/** Value of a variable removed in a delta. */
+	public static final Object REMOVED = Marker.REMOVED;
+
+	private static final Set<Class<?>> IMMUTABLE_TYPES = new HashSet<Class<?>>(Arrays.<Class<?>>asList(String.class,
+			Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class,
+			Double.class, BigInteger.class, BigDecimal.class, UUID.class, Class.class));
+
+	/**
+	 * Creates a delta containing a state of a given context and variables
+	 * changed compared to given previous variables. Variables whose values
+	 * are not of a known immutable type are always treated as changed.
+	 *
+	 * @param <S> the type of state
+	 * @param <E> the type of event
+	 * @param context the context
+	 * @param previousVariables the previously written variables
+	 * @return the context delta
+	 */
+	public static <S, E> StateMachineContext<S, E> createDelta(StateMachineContext<S, E> context,
+			Map<Object, Object> previousVariables) {
+		Map<Object, Object> variables = getVariables(context);
+		Map<Object, Object> changed = new HashMap<Object, Object>();
+		for (Entry<Object, Object> entry : variables.entrySet()) {
+			Object value = entry.getValue();
+			if (!isImmutable(value) || !previousVariables.containsKey(entry.getKey())
+					|| !ObjectUtils.nullSafeEquals(previousVariables.get(entry.getKey()), value)) {
+				changed.put(entry.getKey(), value);
+			}
+		}
+		for (Object key : previousVariables.keySet()) {
+			if (!variables.containsKey(key)) {
+				changed.put(key, REMOVED);
+			}
+		}
+		return new DefaultStateMachineContext<S, E>(context.getChilds(), context.getState(), context.getEvent(),
+				context.getEventHeaders(), new DefaultExtendedState(changed), context.getHistoryStates(), context.getId());
+	}
+
+	/**
+	 * Applies deltas on top of a context.
+	 *
+	 * @param <S> the type of state
+	 * @param <E> the type of event
+	 * @param context the context, may be {@code null}
+	 * @param deltas the deltas in written order
+	 * @return the context with deltas applied
+	 */
+	public static <S, E> StateMachineContext<S, E> applyDeltas(StateMachineContext<S, E> context,
+			List<StateMachineContext<S, E>> deltas) {
+		if (deltas == null || deltas.isEmpty()) {
+			return context;
+		}
+		ExtendedState extendedState = new DefaultExtendedState();
+		Map<Object, Object> variables = extendedState.getVariables();
+		if (context != null) {
+			variables.putAll(getVariables(context));
+		}
+		StateMachineContext<S, E> last = null;
+		for (StateMachineContext<S, E> delta : deltas) {
+			for (Entry<Object, Object> entry : getVariables(delta).entrySet()) {
+				if (entry.getValue() == REMOVED) {
+					variables.remove(entry.getKey());
+				} else {
+					variables.put(entry.getKey(), entry.getValue());
+				}
+			}
+			last = delta;
+		}
+		return new DefaultStateMachineContext<S, E>(last.getChilds(), last.getState(), last.getEvent(),
+				last.getEventHeaders(), extendedState, last.getHistoryStates(), last.getId());
+	}
+
+	private static boolean isImmutable(Object value) {
+		return value == null || value instanceof Enum || IMMUTABLE_TYPES.contains(value.getClass());
+	}
+
+	private static Map<Object, Object> getVariables(StateMachineContext<?, ?> context) {
+		ExtendedState extendedState = context.getExtendedState();
+		Map<Object, Object> variables = extendedState != null ? extendedState.getVariables() : null;
+		return variables != null ? variables : new HashMap<Object, Object>();
+	}
+
+	/**
+	 * Enum used as a removed marker so that serializers restore it as a
+	 * same instance.
+	 */
+	private enum Marker {
+		REMOVED
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.persist;
+
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachinePersist;
+
+/**
+ * Extension of a {@link StateMachinePersist} which is able to write a delta
+ * of a {@link StateMachineContext} on top of a previously written context.
+ * Delta is a context whose extended state only contains variables changed
+ * since a previous write and removed variables mapped to
+ * {@link StateMachineContextDeltas#REMOVED}. Reading a context returns a
+ * last fully written context with all deltas written after it applied.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ * @param <T> the type of context object
+ * @see StateMachineContextDeltas
+ */
+public interface StateMachineDeltaPersist<S, E, T> extends StateMachinePersist<S, E, T> {
+
+	/**
+	 * Checks if deltas are written as is into a persistent store. If not,
+	 * writing a delta needs to read and write a whole context and callers
+	 * should write full contexts instead.
+	 *
+	 * @return true, if deltas are written as is
+	 */
+	boolean isDeltaSupported();
+
+	/**
+	 * Write a delta of a {@link StateMachineContext} into a persistent
+	 * store with a context object {@code T}.
+	 *
+	 * @param delta the context delta
+	 * @param contextOjb the context ojb
+	 * @return the number of deltas written after a last full context, or
+	 *         {@link Integer#MAX_VALUE} if a delta wasn't written as there's no
+	 *         context to write it on and a full context needs to be written
+	 * @throws Exception the exception
+	 */
+	int writeDelta(StateMachineContext<S, E> delta, T contextOjb) throws Exception;
+
+}
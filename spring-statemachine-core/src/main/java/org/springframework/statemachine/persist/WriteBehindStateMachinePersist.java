@@ -0,0 +1,312 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.persist;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachinePersist;
+import org.springframework.statemachine.support.LifecycleObjectSupport;
+import org.springframework.util.Assert;
+
+/**
+ * {@link StateMachinePersist} decorator which buffers written contexts and
+ * writes them into a delegating {@link StateMachinePersist} asynchronously.
+ * Only a latest context is kept per context object, thus intermediate
+ * contexts of a machine written between flushes are never written.
+ * Buffered contexts are flushed in batches when a number of buffered
+ * contexts reaches a batch size, periodically with a flush interval,
+ * explicitly with {@link #flush()} and when this persist is stopped or
+ * destroyed. If delegate is a {@link StateMachineBulkPersist} a batch is
+ * written with a single bulk write. While this persist is not running,
+ * a batch size triggered flush happens synchronously in a writing thread.
+ * <p>
+ * A number of buffered contexts is bounded by a maximum buffered count.
+ * A write of a new context object into a full buffer flushes in a writing
+ * thread, which blocks it until a flush in progress has completed and
+ * throws an exception from a delegating persist if writing fails, so that
+ * a slow or failing delegate can't make a buffer grow without a limit.
+ * <p>
+ * Reads return a buffered context if one exists so that a machine can be
+ * restored from a context which is not yet written. Context objects are
+ * used as map keys and thus need to implement {@code equals} and
+ * {@code hashCode} and must not be modified after written. Contexts
+ * buffered at a time of a crash are lost.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ * @param <T> the type of context object
+ */
+public class WriteBehindStateMachinePersist<S, E, T> extends LifecycleObjectSupport
+		implements StateMachineBulkPersist<S, E, T> {
+
+	private static final Log log = LogFactory.getLog(WriteBehindStateMachinePersist.class);
+	private final StateMachinePersist<S, E, T> delegate;
+	private final ConcurrentMap<T, StateMachineContext<S, E>> pending = new ConcurrentHashMap<T, StateMachineContext<S, E>>();
+	private final ConcurrentMap<T, StateMachineContext<S, E>> inFlight = new ConcurrentHashMap<T, StateMachineContext<S, E>>();
+	private final Object flushLock = new Object();
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+	private int batchSize = 100;
+	private int maxBufferedCount = 10000;
+	private long flushInterval = 1000;
+	private volatile TaskScheduler scheduler;
+	private ThreadPoolTaskScheduler internalScheduler;
+	private ScheduledFuture<?> scheduledFlush;
+
+	private final Runnable flushTask = new Runnable() {
+
+		@Override
+		public void run() {
+			flushRequested.set(false);
+			try {
+				flush();
+			} catch (Exception e) {
+				log.warn("Flushing buffered contexts failed, retrying on next flush", e);
+			}
+		}
+	};
+
+	/**
+	 * Instantiates a new write behind state machine persist.
+	 *
+	 * @param delegate the delegating state machine persist
+	 */
+	public WriteBehindStateMachinePersist(StateMachinePersist<S, E, T> delegate) {
+		Assert.notNull(delegate, "Delegating StateMachinePersist must be set");
+		this.delegate = delegate;
+		setAutoStartup(true);
+	}
+
+	/**
+	 * Sets the number of buffered contexts triggering a flush and a maximum
+	 * number of contexts written together. Defaults to {@code 100}.
+	 *
+	 * @param batchSize the batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		Assert.isTrue(batchSize > 0, "Batch size must be positive");
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the maximum number of buffered contexts. A write of a new context
+	 * object into a full buffer flushes in a writing thread and throws an
+	 * exception if a flush fails. Defaults to {@code 10000}.
+	 *
+	 * @param maxBufferedCount the maximum buffered count
+	 */
+	public void setMaxBufferedCount(int maxBufferedCount) {
+		Assert.isTrue(maxBufferedCount > 0, "Max buffered count must be positive");
+		this.maxBufferedCount = maxBufferedCount;
+	}
+
+	/**
+	 * Sets the interval in milliseconds of periodic flushes. Defaults to
+	 * {@code 1000}.
+	 *
+	 * @param flushInterval the flush interval
+	 */
+	public void setFlushInterval(long flushInterval) {
+		Assert.isTrue(flushInterval > 0, "Flush interval must be positive");
+		this.flushInterval = flushInterval;
+	}
+
+	@Override
+	public void write(StateMachineContext<S, E> context, T contextOjb) throws Exception {
+		Assert.notNull(contextOjb, "Context object must be set");
+		if (pending.size() >= maxBufferedCount && !pending.containsKey(contextOjb)) {
+			flush();
+		}
+		pending.put(contextOjb, context);
+		if (pending.size() >= batchSize) {
+			requestFlush();
+		}
+	}
+
+	@Override
+	public void writeAll(Map<T, StateMachineContext<S, E>> contexts) throws Exception {
+		if (pending.size() + contexts.size() > maxBufferedCount) {
+			flush();
+		}
+		pending.putAll(contexts);
+		if (pending.size() >= batchSize) {
+			requestFlush();
+		}
+	}
+
+	@Override
+	public StateMachineContext<S, E> read(T contextOjb) throws Exception {
+		StateMachineContext<S, E> context = getBuffered(contextOjb);
+		return context != null ? context : delegate.read(contextOjb);
+	}
+
+	@Override
+	public Map<T, StateMachineContext<S, E>> readAll(Collection<T> contextOjbs) throws Exception {
+		Map<T, StateMachineContext<S, E>> contexts = new LinkedHashMap<T, StateMachineContext<S, E>>();
+		List<T> unbuffered = new ArrayList<T>();
+		for (T contextOjb : contextOjbs) {
+			StateMachineContext<S, E> context = getBuffered(contextOjb);
+			if (context != null) {
+				contexts.put(contextOjb, context);
+			} else {
+				unbuffered.add(contextOjb);
+			}
+		}
+		if (delegate instanceof StateMachineBulkPersist) {
+			contexts.putAll(((StateMachineBulkPersist<S, E, T>) delegate).readAll(unbuffered));
+		} else {
+			for (T contextOjb : unbuffered) {
+				StateMachineContext<S, E> context = delegate.read(contextOjb);
+				if (context != null) {
+					contexts.put(contextOjb, context);
+				}
+			}
+		}
+		return contexts;
+	}
+
+	/**
+	 * Write all currently buffered contexts into a delegating persist.
+	 * If writing fails, contexts not written are buffered again unless
+	 * newer contexts has been written in between.
+	 *
+	 * @throws Exception the exception thrown from a delegating persist
+	 */
+	public void flush() throws Exception {
+		synchronized (flushLock) {
+			Map<T, StateMachineContext<S, E>> batch = new LinkedHashMap<T, StateMachineContext<S, E>>();
+			for (Entry<T, StateMachineContext<S, E>> entry : pending.entrySet()) {
+				// keep in flight so that reads see context until it's written
+				inFlight.put(entry.getKey(), entry.getValue());
+				if (pending.remove(entry.getKey(), entry.getValue())) {
+					batch.put(entry.getKey(), entry.getValue());
+				} else {
+					inFlight.remove(entry.getKey());
+				}
+				if (batch.size() == batchSize) {
+					writeBatch(batch);
+					batch.clear();
+				}
+			}
+			if (!batch.isEmpty()) {
+				writeBatch(batch);
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of buffered contexts not yet written.
+	 *
+	 * @return the number of buffered contexts
+	 */
+	public int getBufferedCount() {
+		return pending.size();
+	}
+
+	@Override
+	protected void doStart() {
+		scheduler = getTaskScheduler();
+		if (scheduler == null) {
+			internalScheduler = new ThreadPoolTaskScheduler();
+			internalScheduler.setThreadNamePrefix("statemachine-writebehind-");
+			internalScheduler.setDaemon(true);
+			internalScheduler.initialize();
+			scheduler = internalScheduler;
+		}
+		scheduledFlush = scheduler.scheduleWithFixedDelay(flushTask,
+				new Date(System.currentTimeMillis() + flushInterval), flushInterval);
+	}
+
+	@Override
+	protected void doStop() {
+		if (scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+		drain();
+		if (internalScheduler != null) {
+			internalScheduler.shutdown();
+			internalScheduler = null;
+		}
+		scheduler = null;
+	}
+
+	@Override
+	protected void doDestroy() {
+		stop();
+		drain();
+	}
+
+	private void drain() {
+		try {
+			flush();
+		} catch (Exception e) {
+			log.error("Draining buffered contexts failed, " + pending.size() + " contexts not written", e);
+		}
+	}
+
+	private void requestFlush() {
+		TaskScheduler scheduler = this.scheduler;
+		if (scheduler == null) {
+			// not running, flush in a writing thread so that buffer doesn't grow
+			flushTask.run();
+		} else if (flushRequested.compareAndSet(false, true)) {
+			scheduler.schedule(flushTask, new Date());
+		}
+	}
+
+	private StateMachineContext<S, E> getBuffered(T contextOjb) {
+		StateMachineContext<S, E> context = pending.get(contextOjb);
+		return context != null ? context : inFlight.get(contextOjb);
+	}
+
+	private void writeBatch(Map<T, StateMachineContext<S, E>> batch) throws Exception {
+		try {
+			if (delegate instanceof StateMachineBulkPersist) {
+				((StateMachineBulkPersist<S, E, T>) delegate).writeAll(batch);
+			} else {
+				for (Entry<T, StateMachineContext<S, E>> entry : batch.entrySet()) {
+					delegate.write(entry.getValue(), entry.getKey());
+				}
+			}
+		} catch (Exception e) {
+			for (Entry<T, StateMachineContext<S, E>> entry : batch.entrySet()) {
+				pending.putIfAbsent(entry.getKey(), entry.getValue());
+			}
+			throw e;
+		} finally {
+			for (Entry<T, StateMachineContext<S, E>> entry : batch.entrySet()) {
+				inFlight.remove(entry.getKey());
+			}
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.pool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineException;
+import org.springframework.statemachine.access.StateMachineAccess;
+import org.springframework.statemachine.access.StateMachineFunction;
+import org.springframework.statemachine.access.StateMachineRestoreAccess;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.state.HistoryPseudoState;
+import org.springframework.statemachine.state.PseudoState;
+import org.springframework.statemachine.support.AbstractStateMachine;
+import org.springframework.util.Assert;
+
+/**
+ * Default implementation of a {@link StateMachinePool} creating its machines
+ * from a {@link StateMachineFactory}. Borrow and release operations don't
+ * use locks, idle machines are kept in a concurrent deque and a pool size
+ * is guarded with a compare-and-set counter.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ */
+public class DefaultStateMachinePool<S, E> implements StateMachinePool<S, E>, DisposableBean {
+
+	private static final Log log = LogFactory.getLog(DefaultStateMachinePool.class);
+
+	private final StateMachineFactory<S, E> stateMachineFactory;
+	private final int maxSize;
+	private final ConcurrentLinkedDeque<StateMachine<S, E>> idle = new ConcurrentLinkedDeque<StateMachine<S, E>>();
+	private final Set<StateMachine<S, E>> borrowed = Collections
+			.newSetFromMap(new ConcurrentHashMap<StateMachine<S, E>, Boolean>());
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	/**
+	 * Instantiates a new default state machine pool.
+	 *
+	 * @param stateMachineFactory the state machine factory
+	 * @param maxSize the maximum number of machines in a pool
+	 */
+	public DefaultStateMachinePool(StateMachineFactory<S, E> stateMachineFactory, int maxSize) {
+		Assert.notNull(stateMachineFactory, "StateMachineFactory must be set");
+		Assert.isTrue(maxSize > 0, "Max size must be positive");
+		this.stateMachineFactory = stateMachineFactory;
+		this.maxSize = maxSize;
+	}
+
+	@Override
+	public StateMachine<S, E> borrow() {
+		StateMachine<S, E> stateMachine = idle.pollFirst();
+		if (stateMachine != null) {
+			idleCount.decrementAndGet();
+		} else {
+			stateMachine = create();
+		}
+		borrowed.add(stateMachine);
+		return stateMachine;
+	}
+
+	@Override
+	public StateMachine<S, E> borrow(StateMachineContext<S, E> stateMachineContext) {
+		StateMachine<S, E> stateMachine = borrow();
+		try {
+			resetStateMachine(stateMachine, stateMachineContext);
+		} catch (RuntimeException e) {
+			discard(stateMachine);
+			throw e;
+		}
+		return stateMachine;
+	}
+
+	@Override
+	public void release(StateMachine<S, E> stateMachine) {
+		Assert.notNull(stateMachine, "State machine must be set");
+		Assert.state(borrowed.remove(stateMachine), "State machine " + stateMachine + " was not borrowed from this pool");
+		try {
+			resetStateMachine(stateMachine);
+		} catch (Exception e) {
+			log.warn("Unable to reset state machine, discarding it from a pool", e);
+			size.decrementAndGet();
+			try {
+				stateMachine.stop();
+			} catch (Exception ee) {
+				log.warn("Unable to stop discarded state machine", ee);
+			}
+			return;
+		}
+		idle.offerFirst(stateMachine);
+		idleCount.incrementAndGet();
+	}
+
+	@Override
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public int getSize() {
+		return size.get();
+	}
+
+	@Override
+	public int getIdleCount() {
+		return idleCount.get();
+	}
+
+	@Override
+	public int getActiveCount() {
+		return borrowed.size();
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		StateMachine<S, E> stateMachine = null;
+		while ((stateMachine = idle.pollFirst()) != null) {
+			idleCount.decrementAndGet();
+			size.decrementAndGet();
+			stateMachine.stop();
+		}
+	}
+
+	/**
+	 * Reset a state machine back to its initial state. Machine and all its
+	 * regions are stopped, extended state, history and errors are cleared and
+	 * machine is started again which then executes its initial transition
+	 * same way as a fresh machine from a factory would do.
+	 *
+	 * @param stateMachine the state machine
+	 */
+	protected void resetStateMachine(StateMachine<S, E> stateMachine) {
+		final List<StateMachineAccess<S, E>> accesses = new ArrayList<StateMachineAccess<S, E>>();
+		stateMachine.getStateMachineAccessor().doWithAllRegions(new StateMachineFunction<StateMachineAccess<S, E>>() {
+
+			@Override
+			public void apply(StateMachineAccess<S, E> function) {
+				accesses.add(function);
+			}
+		});
+		stateMachine.stop();
+		for (StateMachineAccess<S, E> access : accesses) {
+			if (access instanceof AbstractStateMachine) {
+				AbstractStateMachine<S, E> machine = (AbstractStateMachine<S, E>) access;
+				machine.stop();
+				machine.setStateMachineError(null);
+				machine.getExtendedState().getVariables().clear();
+				PseudoState<S, E> history = machine.getHistoryState();
+				if (history instanceof HistoryPseudoState) {
+					((HistoryPseudoState<S, E>) history).setState(null);
+				}
+			}
+		}
+		stateMachine.start();
+	}
+
+	/**
+	 * Reset a state machine using a given {@link StateMachineContext}. Machine
+	 * is restored in place without going through its lifecycle if it
+	 * implements {@link StateMachineRestoreAccess}, otherwise it is stopped,
+	 * reset and started.
+	 *
+	 * @param stateMachine the state machine
+	 * @param stateMachineContext the state machine context
+	 */
+	protected void resetStateMachine(StateMachine<S, E> stateMachine, final StateMachineContext<S, E> stateMachineContext) {
+		StateMachineAccess<S, E> access = stateMachine.getStateMachineAccessor().withRegion();
+		if (access instanceof StateMachineRestoreAccess) {
+			((StateMachineRestoreAccess<S, E>) access).restoreStateMachine(stateMachineContext);
+			return;
+		}
+		stateMachine.stop();
+		stateMachine.getStateMachineAccessor().doWithAllRegions(new StateMachineFunction<StateMachineAccess<S, E>>() {
+
+			@Override
+			public void apply(StateMachineAccess<S, E> function) {
+				function.resetStateMachine(stateMachineContext);
+			}
+		});
+		stateMachine.start();
+	}
+
+	private StateMachine<S, E> create() {
+		while (true) {
+			int current = size.get();
+			if (current >= maxSize) {
+				throw new StateMachineException("State machine pool exhausted, max size is " + maxSize);
+			}
+			if (size.compareAndSet(current, current + 1)) {
+				break;
+			}
+		}
+		try {
+			StateMachine<S, E> stateMachine = stateMachineFactory.getStateMachine();
+			stateMachine.start();
+			return stateMachine;
+		} catch (RuntimeException e) {
+			size.decrementAndGet();
+			throw e;
+		}
+	}
+
+	private void discard(StateMachine<S, E> stateMachine) {
+		if (borrowed.remove(stateMachine)) {
+			size.decrementAndGet();
+			stateMachine.stop();
+		}
+	}
+}
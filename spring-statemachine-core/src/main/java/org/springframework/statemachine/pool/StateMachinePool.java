@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.pool;
+
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+
+/**
+ * {@code StateMachinePool} keeps a bounded set of {@link StateMachine}s
+ * which can be borrowed and returned. Machines are reset when returned
+ * into a pool so that a borrowed machine never sees state left behind
+ * by a previous user.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ */
+public interface StateMachinePool<S, E> {
+
+	/**
+	 * Borrow a {@link StateMachine} from a pool. Returned machine is
+	 * started and in its initial state.
+	 *
+	 * @return the state machine
+	 */
+	StateMachine<S, E> borrow();
+
+	/**
+	 * Borrow a {@link StateMachine} from a pool and reset it
+	 * using a given {@link StateMachineContext}.
+	 *
+	 * @param stateMachineContext the state machine context
+	 * @return the state machine
+	 */
+	StateMachine<S, E> borrow(StateMachineContext<S, E> stateMachineContext);
+
+	/**
+	 * Return a {@link StateMachine} back into a pool.
+	 *
+	 * @param stateMachine the state machine
+	 */
+	void release(StateMachine<S, E> stateMachine);
+
+	/**
+	 * Gets the maximum number of machines this pool will create.
+	 *
+	 * @return the max size
+	 */
+	int getMaxSize();
+
+	/**
+	 * Gets the number of machines currently created by this pool.
+	 *
+	 * @return the size
+	 */
+	int getSize();
+
+	/**
+	 * Gets the number of machines currently idling in a pool.
+	 *
+	 * @return the idle count
+	 */
+	int getIdleCount();
+
+	/**
+	 * Gets the number of machines currently borrowed from a pool.
+	 *
+	 * @return the active count
+	 */
+	int getActiveCount();
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineException;
+import org.springframework.statemachine.StateMachinePersist;
+import org.springframework.statemachine.access.StateMachineAccess;
+import org.springframework.statemachine.access.StateMachineFunction;
+import org.springframework.statemachine.access.StateMachineRestoreAccess;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.persist.DefaultStateMachinePersister;
+import org.springframework.statemachine.persist.StateMachinePersister;
+import org.springframework.util.Assert;
+
+/**
+ * Default implementation of a {@link StateMachineService}. Machines are
+ * created from a {@link StateMachineFactory} and restored from a
+ * {@link StateMachinePersist} using machine id as a context object.
+ * <p>
+ * Every acquire of a machine needs to be paired with a release. A machine
+ * is persisted when its last acquire is released but it's kept in memory
+ * until evicted. Machines which are not acquired are evicted in least
+ * recently released order when a maximum size is exceeded or when an optional
+ * maximum idle time is reached. Evicted machines are persisted and stopped.
+ * A machine which is acquired is never evicted. Creation and passivation
+ * of a machine happens under a lock striped by machine id so that concurrent
+ * acquires of a same id never create two machines and a machine is never
+ * read back before its passivation has been written.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ */
+public class DefaultStateMachineService<S, E> implements StateMachineService<S, E>, DisposableBean {
+
+	private static final Log log = LogFactory.getLog(DefaultStateMachineService.class);
+
+	private final StateMachineFactory<S, E> stateMachineFactory;
+	private final StateMachinePersist<S, E, String> stateMachinePersist;
+	private final StateMachinePersister<S, E, String> stateMachinePersister;
+	private final ConcurrentMap<String, MachineEntry<S, E>> machines = new ConcurrentHashMap<String, MachineEntry<S, E>>();
+	// released machines in least recently released order, guarded by itself
+	private final LinkedHashMap<String, MachineEntry<S, E>> released = new LinkedHashMap<String, MachineEntry<S, E>>(16, 0.75f, true);
+	private final Object[] locks;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private volatile long lastIdleCheck = System.currentTimeMillis();
+	private int maxSize = 1000;
+	private long maxIdleTime = 0;
+
+	/**
+	 * Instantiates a new default state machine service.
+	 *
+	 * @param stateMachineFactory the state machine factory
+	 * @param stateMachinePersist the state machine persist
+	 */
+	public DefaultStateMachineService(StateMachineFactory<S, E> stateMachineFactory,
+			StateMachinePersist<S, E, String> stateMachinePersist) {
+		this(stateMachineFactory, stateMachinePersist, 64);
+	}
+
+	/**
+	 * Instantiates a new default state machine service.
+	 *
+	 * @param stateMachineFactory the state machine factory
+	 * @param stateMachinePersist the state machine persist
+	 * @param lockStripes the number of lock stripes
+	 */
+	public DefaultStateMachineService(StateMachineFactory<S, E> stateMachineFactory,
+			StateMachinePersist<S, E, String> stateMachinePersist, int lockStripes) {
+		Assert.notNull(stateMachineFactory, "StateMachineFactory must be set");
+		Assert.notNull(stateMachinePersist, "StateMachinePersist must be set");
+		Assert.isTrue(lockStripes > 0, "Lock stripes must be positive");
+		this.stateMachineFactory = stateMachineFactory;
+		this.stateMachinePersist = stateMachinePersist;
+		this.stateMachinePersister = new DefaultStateMachinePersister<S, E, String>(stateMachinePersist);
+		this.locks = new Object[lockStripes];
+		for (int i = 0; i < lockStripes; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	@Override
+	public StateMachine<S, E> acquireStateMachine(String machineId) {
+		Assert.notNull(machineId, "Machine id must be set");
+		StateMachine<S, E> stateMachine = acquireCached(machineId);
+		if (stateMachine != null) {
+			hits.incrementAndGet();
+		} else {
+			synchronized (getLock(machineId)) {
+				stateMachine = acquireCached(machineId);
+				if (stateMachine != null) {
+					hits.incrementAndGet();
+				} else {
+					misses.incrementAndGet();
+					stateMachine = createStateMachine(machineId);
+					machines.put(machineId, new MachineEntry<S, E>(machineId, stateMachine));
+				}
+			}
+		}
+		evictIfNeeded();
+		return stateMachine;
+	}
+
+	@Override
+	public void releaseStateMachine(String machineId) {
+		Assert.notNull(machineId, "Machine id must be set");
+		synchronized (getLock(machineId)) {
+			MachineEntry<S, E> entry = machines.get(machineId);
+			Assert.state(entry != null && entry.acquires.get() > 0, "State machine " + machineId + " is not acquired");
+			if (entry.acquires.decrementAndGet() == 0) {
+				try {
+					persist(machineId, entry.stateMachine);
+				} finally {
+					markReleased(entry);
+				}
+			}
+		}
+		evictIfNeeded();
+	}
+
+	@Override
+	public int getSize() {
+		return machines.size();
+	}
+
+	@Override
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	@Override
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	@Override
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		for (String machineId : new ArrayList<String>(machines.keySet())) {
+			synchronized (getLock(machineId)) {
+				MachineEntry<S, E> entry = machines.remove(machineId);
+				synchronized (released) {
+					released.remove(machineId);
+				}
+				if (entry != null) {
+					try {
+						passivate(machineId, entry.stateMachine);
+					} catch (Exception e) {
+						log.warn("Unable to passivate state machine " + machineId, e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets the maximum number of machines kept in memory.
+	 *
+	 * @param maxSize the new max size
+	 */
+	public void setMaxSize(int maxSize) {
+		Assert.isTrue(maxSize > 0, "Max size must be positive");
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Sets the maximum time in milliseconds a machine can stay in memory
+	 * without being acquired. Zero or negative value disables idle eviction.
+	 *
+	 * @param maxIdleTime the new max idle time
+	 */
+	public void setMaxIdleTime(long maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	/**
+	 * Passivate released machines exceeding size or idle time bounds. Eviction
+	 * is triggered from acquire and release when bounds are exceeded, however
+	 * this method can also be called periodically to passivate idle machines
+	 * when service is not used.
+	 */
+	public void evict() {
+		long now = System.currentTimeMillis();
+		lastIdleCheck = now;
+		int overflow = machines.size() - maxSize;
+		List<MachineEntry<S, E>> candidates = new ArrayList<MachineEntry<S, E>>();
+		synchronized (released) {
+			// walk only as far as needed as released order is also idle order
+			for (MachineEntry<S, E> entry : released.values()) {
+				boolean idle = maxIdleTime > 0 && now - entry.lastAccess > maxIdleTime;
+				if (candidates.size() >= overflow && !idle) {
+					break;
+				}
+				candidates.add(entry);
+			}
+		}
+		for (MachineEntry<S, E> entry : candidates) {
+			evict(entry);
+		}
+	}
+
+	/**
+	 * Creates and restores a new state machine. Called under a lock for a
+	 * given machine id.
+	 *
+	 * @param machineId the machine id
+	 * @return the state machine
+	 */
+	protected StateMachine<S, E> createStateMachine(String machineId) {
+		StateMachine<S, E> stateMachine = stateMachineFactory.getStateMachine(machineId);
+		try {
+			final StateMachineContext<S, E> stateMachineContext = stateMachinePersist.read(machineId);
+			if (stateMachineContext != null) {
+				StateMachineAccess<S, E> access = stateMachine.getStateMachineAccessor().withRegion();
+				if (access instanceof StateMachineRestoreAccess) {
+					((StateMachineRestoreAccess<S, E>) access).restoreStateMachine(stateMachineContext);
+				} else {
+					stateMachine.stop();
+					stateMachine.getStateMachineAccessor().doWithAllRegions(new StateMachineFunction<StateMachineAccess<S, E>>() {
+
+						@Override
+						public void apply(StateMachineAccess<S, E> function) {
+							function.resetStateMachine(stateMachineContext);
+						}
+					});
+				}
+			}
+		} catch (Exception e) {
+			throw new StateMachineException("Unable to restore state machine " + machineId, e);
+		}
+		stateMachine.start();
+		return stateMachine;
+	}
+
+	private void evictIfNeeded() {
+		if (machines.size() > maxSize
+				|| (maxIdleTime > 0 && System.currentTimeMillis() - lastIdleCheck > maxIdleTime)) {
+			evict();
+		}
+	}
+
+	private void evict(MachineEntry<S, E> entry) {
+		String machineId = entry.machineId;
+		synchronized (getLock(machineId)) {
+			// entry may have been acquired or removed before we got the lock,
+			// marking it evicted makes concurrent acquires to create a new one
+			if (machines.get(machineId) != entry || !entry.acquires.compareAndSet(0, -1)) {
+				return;
+			}
+			machines.remove(machineId);
+			synchronized (released) {
+				released.remove(machineId);
+			}
+			evictions.incrementAndGet();
+			try {
+				passivate(machineId, entry.stateMachine);
+			} catch (Exception e) {
+				log.warn("Unable to passivate evicted state machine " + machineId, e);
+			}
+		}
+	}
+
+	private void persist(String machineId, StateMachine<S, E> stateMachine) {
+		try {
+			stateMachinePersister.persist(stateMachine, machineId);
+		} catch (Exception e) {
+			throw new StateMachineException("Unable to persist state machine " + machineId, e);
+		}
+	}
+
+	private void passivate(String machineId, StateMachine<S, E> stateMachine) {
+		try {
+			persist(machineId, stateMachine);
+		} finally {
+			stateMachine.stop();
+		}
+	}
+
+	private StateMachine<S, E> acquireCached(String machineId) {
+		MachineEntry<S, E> entry = machines.get(machineId);
+		if (entry == null) {
+			return null;
+		}
+		while (true) {
+			int acquires = entry.acquires.get();
+			if (acquires < 0) {
+				// evicted
+				return null;
+			}
+			if (entry.acquires.compareAndSet(acquires, acquires + 1)) {
+				if (acquires == 0) {
+					markAcquired(entry);
+				}
+				return entry.stateMachine;
+			}
+		}
+	}
+
+	private void markAcquired(MachineEntry<S, E> entry) {
+		synchronized (released) {
+			// a concurrent release may already have happened
+			if (entry.acquires.get() > 0) {
+				released.remove(entry.machineId);
+			}
+		}
+	}
+
+	private void markReleased(MachineEntry<S, E> entry) {
+		synchronized (released) {
+			// a concurrent acquire may already have happened
+			if (entry.acquires.get() == 0) {
+				entry.lastAccess = System.currentTimeMillis();
+				released.put(entry.machineId, entry);
+			}
+		}
+	}
+
+	private Object getLock(String machineId) {
+		int h = machineId.hashCode();
+		h ^= (h >>> 16);
+		return locks[(h & 0x7fffffff) % locks.length];
+	}
+
+	private static class MachineEntry<S, E> {
+
+		final String machineId;
+		final StateMachine<S, E> stateMachine;
+		// number of acquires not yet released, negative when evicted
+		final AtomicInteger acquires = new AtomicInteger(1);
+		// time of a last release, guarded by released map
+		long lastAccess;
+
+		MachineEntry(String machineId, StateMachine<S, E> stateMachine) {
+			this.machineId = machineId;
+			this.stateMachine = stateMachine;
+		}
+	}
+}
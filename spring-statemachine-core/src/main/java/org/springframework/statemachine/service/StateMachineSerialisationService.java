@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.service;
+
+import org.springframework.statemachine.StateMachineContext;
+
+/**
+ * Generic interface for a service serialising a {@link StateMachineContext}
+ * into a binary form and back. Implementations are expected to be thread
+ * safe so that a single instance can be shared by all persistence
+ * implementations.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ */
+public interface StateMachineSerialisationService<S, E> {
+
+	/**
+	 * Serialise a state machine context.
+	 *
+	 * @param context the state machine context
+	 * @return the serialised bytes
+	 */
+	byte[] serialiseStateMachineContext(StateMachineContext<S, E> context);
+
+	/**
+	 * Deserialise a state machine context. Returns {@code null} if
+	 * data is {@code null} or empty.
+	 *
+	 * @param data the serialised bytes
+	 * @return the state machine context
+	 */
+	StateMachineContext<S, E> deserialiseStateMachineContext(byte[] data);
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.service;
+
+import org.springframework.statemachine.StateMachine;
+
+/**
+ * {@code StateMachineService} is a registry of {@link StateMachine}s
+ * identified by a machine id. Machines are created and rehydrated on
+ * demand and may be passivated back into a persistent storage when no
+ * longer needed.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ */
+public interface StateMachineService<S, E> {
+
+	/**
+	 * Acquire a {@link StateMachine} with a given machine id. If machine is
+	 * not kept in memory it is created and restored from a persistent
+	 * storage. Returned machine is started and it is not passivated until
+	 * every acquire has been paired with a release.
+	 *
+	 * @param machineId the machine id
+	 * @return the state machine
+	 */
+	StateMachine<S, E> acquireStateMachine(String machineId);
+
+	/**
+	 * Release a {@link StateMachine} with a given machine id. When last
+	 * acquire of a machine is released machine is persisted and may then be
+	 * passivated and removed from this service.
+	 *
+	 * @param machineId the machine id
+	 */
+	void releaseStateMachine(String machineId);
+
+	/**
+	 * Gets the number of machines currently kept in memory.
+	 *
+	 * @return the size
+	 */
+	int getSize();
+
+	/**
+	 * Gets the number of acquires which found a machine in memory.
+	 *
+	 * @return the hit count
+	 */
+	long getHitCount();
+
+	/**
+	 * Gets the number of acquires which needed to create a machine.
+	 *
+	 * @return the miss count
+	 */
+	long getMissCount();
+
+	/**
+	 * Gets the number of machines passivated due to size or idle
+	 * time bounds.
+	 *
+	 * @return the eviction count
+	 */
+	long getEvictionCount();
+}
@@ -32,6 +32,7 @@ import org.springframework.statemachine.StateMachineContext;
 import org.springframework.statemachine.access.StateMachineAccess;
 import org.springframework.statemachine.access.StateMachineAccessor;
 import org.springframework.statemachine.access.StateMachineFunction;
+import org.springframework.statemachine.access.StateMachineRestoreAccess;
 import org.springframework.statemachine.listener.StateMachineListener;
 import org.springframework.statemachine.region.Region;
 import org.springframework.statemachine.state.AbstractState;
@@ -68,7 +69,7 @@ import java.util.UUID;
  * @param <S> the type of state
  * @param <E> the type of event
  */
-public abstract class AbstractStateMachine<S, E> extends StateMachineObjectSupport<S, E> implements StateMachine<S, E>, StateMachineAccess<S, E> {
+public abstract class AbstractStateMachine<S, E> extends StateMachineObjectSupport<S, E> implements StateMachine<S, E>, StateMachineRestoreAccess<S, E> {
 
 	private static final Log log = LogFactory.getLog(AbstractStateMachine.class);
 
@@ -98,9 +99,17 @@ public abstract class AbstractStateMachine<S, E> extends StateMachineObjectSuppo
 
 	private final List<Transition<S, E>> triggerlessTransitions = new ArrayList<Transition<S,E>>();
 
+	private final Map<State<S, E>, List<Transition<S, E>>> transitionsBySource = new HashMap<State<S, E>, List<Transition<S, E>>>();
+
 	private StateMachine<S, E> relay;
 
-	private StateMachineExecutor<S, E> stateMachineExecutor;
+	private volatile StateMachineExecutor<S, E> stateMachineExecutor;
+
+	private StateMachine<S, E> executorRelayStateMachine;
+
+	private boolean lazyInit = false;
+
+	private final List<StateMachineInterceptor<S, E>> pendingInterceptors = new ArrayList<StateMachineInterceptor<S, E>>();
 
 	private Boolean initialEnabled = null;
 
@@ -223,7 +232,7 @@ public abstract class AbstractStateMachine<S, E> extends StateMachineObjectSuppo
 			return false;
 		}
 		boolean accepted = acceptEvent(event);
-		stateMachineExecutor.execute();
+		getStateMachineExecutor().execute();
 		if (!accepted) {
 			notifyEventNotAccepted(buildStateContext(Stage.EVENT_NOT_ACCEPTED, event, null, getRelayStateMachine(), getState(), null));
 		}
@@ -259,6 +268,12 @@ public abstract class AbstractStateMachine<S, E> extends StateMachineObjectSuppo
 			} else {
 				triggerlessTransitions.add(transition);
 			}
+			List<Transition<S, E>> list = transitionsBySource.get(transition.getSource());
+			if (list == null) {
+				list = new ArrayList<Transition<S, E>>();
+				transitionsBySource.put(transition.getSource(), list);
+			}
+			list.add(transition);
 		}
 
 		for (State<S, E> state : states) {
@@ -278,37 +293,22 @@ public abstract class AbstractStateMachine<S, E> extends StateMachineObjectSuppo
 			}
 		}
 
-		DefaultStateMachineExecutor<S, E> executor = new DefaultStateMachineExecutor<S, E>(this, getRelayStateMachine(), transitions,
-				triggerToTransitionMap, triggerlessTransitions, initialTransition, initialEvent);
-		if (getBeanFactory() != null) {
-			executor.setBeanFactory(getBeanFactory());
-		}
-		if (getTaskExecutor() != null){
-			executor.setTaskExecutor(getTaskExecutor());
+		// executor is created with a relay known at this point
+		executorRelayStateMachine = getRelayStateMachine();
+		if (!lazyInit) {
+			stateMachineExecutor = buildStateMachineExecutor();
 		}
-		executor.afterPropertiesSet();
-		executor.setStateMachineExecutorTransit(new StateMachineExecutorTransit<S, E>() {
+	}
 
-			@Override
-			public void transit(Transition<S, E> t, StateContext<S, E> ctx, Message<E> message) {
-				// TODO: fix above stateContext as it's not used
-				notifyTransitionStart(buildStateContext(Stage.TRANSITION_START, message, t, getRelayStateMachine()));
-				notifyTransition(buildStateContext(Stage.TRANSITION, message, t, getRelayStateMachine()));
-				if (t.getTarget().getPseudoState() != null && t.getTarget().getPseudoState().getKind() == PseudoStateKind.JOIN) {
-					exitFromState(t.getSource(), message, t, getRelayStateMachine());
-				} else {
-					if (t.getKind() == TransitionKind.INITIAL) {
-						switchToState(t.getTarget(), message, t, getRelayStateMachine());
-						notifyStateMachineStarted(buildStateContext(Stage.STATEMACHINE_START, message, t, getRelayStateMachine()));
-					} else if (t.getKind() != TransitionKind.INTERNAL) {
-						switchToState(t.getTarget(), message, t, getRelayStateMachine());
-					}
-				}
-				// TODO: looks like events should be called here and anno processing earlier
-				notifyTransitionEnd(buildStateContext(Stage.TRANSITION_END, message, t, getRelayStateMachine()));
-			}
-		});
-		stateMachineExecutor = executor;
+	/**
+	 * Sets if this machine should be initialized lazily. If enabled, an
+	 * internal executor is not created until machine is started first time.
+	 * Useful for submachines and regions which may never be entered.
+	 *
+	 * @param lazyInit the new lazy init flag
+	 */
+	public void setLazyInit(boolean lazyInit) {
+		this.lazyInit = lazyInit;
 	}
 
 	@Override
@@ -332,8 +332,8 @@ public abstract class AbstractStateMachine<S, E> extends StateMachineObjectSuppo
 			if (log.isDebugEnabled()) {
 				log.debug("State already set, disabling initial");
 			}
-			stateMachineExecutor.setInitialEnabled(false);
-			stateMachineExecutor.start();
+			getStateMachineExecutor().setInitialEnabled(false);
+			getStateMachineExecutor().start();
 			// assume that state was set/reseted so we need to
 			// dispatch started event which would net getting
 			// dispatched via executor
@@ -347,19 +347,21 @@ public abstract class AbstractStateMachine<S, E> extends StateMachineObjectSuppo
 			if (log.isDebugEnabled()) {
 				log.debug("Initial disable asked, disabling initial");
 			}
-			stateMachineExecutor.setInitialEnabled(false);
+			getStateMachineExecutor().setInitialEnabled(false);
 		} else {
-			stateMachineExecutor.setForwardedInitialEvent(forwardedInitialEvent);
+			getStateMachineExecutor().setForwardedInitialEvent(forwardedInitialEvent);
 		}
 
 		// start fires first execution which should execute initial transition
-		stateMachineExecutor.start();
+		getStateMachineExecutor().start();
 	}
 
 	@Override
 	protected void doStop() {
 		synchronized (lock) {
-			stateMachineExecutor.stop();
+			if (stateMachineExecutor != null) {
+				stateMachineExecutor.stop();
+			}
 			notifyStateMachineStopped(buildStateContext(Stage.STATEMACHINE_STOP, null, null, this));
 			// stash current state before we null it so that
 			// we can still return where we 'were' when machine is stopped
@@ -499,7 +501,10 @@ public abstract class AbstractStateMachine<S, E> extends StateMachineObjectSuppo
 	@Override
 	protected void stateChangedInRelay() {
 		// TODO: temp tweak, see super
-		stateMachineExecutor.execute();
+		StateMachineExecutor<S, E> executor = stateMachineExecutor;
+		if (executor != null) {
+			executor.execute();
+		}
 	}
 
 	@Override
@@ -656,10 +661,197 @@ public abstract class AbstractStateMachine<S, E> extends StateMachineObjectSuppo
 		}
 	}
 
+	@Override
+	public void restoreStateMachine(StateMachineContext<S, E> stateMachineContext) {
+		if (log.isDebugEnabled()) {
+			log.debug("Request to restore state machine: stateMachine=[" + this + "] stateMachineContext=[" + stateMachineContext + "]");
+		}
+		restoreStateMachineInternal(stateMachineContext, null);
+	}
+
+	private synchronized void restoreStateMachineInternal(StateMachineContext<S, E> stateMachineContext, ExtendedState parentExtendedState) {
+		State<S, E> state = null;
+		if (stateMachineContext == null) {
+			state = initialState;
+		} else {
+			setId(stateMachineContext.getId());
+			state = findRestoreState(stateMachineContext.getState());
+			if (state == null && !stateMachineContext.getChilds().isEmpty()) {
+				// we're here because root machine only have regions
+				for (State<S, E> s : states) {
+					if (s.isOrthogonal()) {
+						state = s;
+						break;
+					}
+				}
+			}
+		}
+
+		if (state != null) {
+			State<S, E> previous = currentState;
+			if (previous != state) {
+				if (previous instanceof AbstractState) {
+					for (Trigger<S, E> trigger : ((AbstractState<S, E>) previous).getTriggers()) {
+						trigger.disarm();
+					}
+					if (previous.isSubmachineState()) {
+						((AbstractState<S, E>) previous).getSubmachine().stop();
+					} else if (previous.isOrthogonal()) {
+						for (Region<S, E> region : ((AbstractState<S, E>) previous).getRegions()) {
+							region.stop();
+						}
+					}
+				}
+				if (state instanceof AbstractState) {
+					for (Trigger<S, E> trigger : ((AbstractState<S, E>) state).getTriggers()) {
+						trigger.arm();
+					}
+				}
+			}
+			synchronized (lock) {
+				currentState = state;
+				lastState = state;
+			}
+			if (state.isSubmachineState()) {
+				StateMachine<S, E> submachine = ((AbstractState<S, E>) state).getSubmachine();
+				((AbstractStateMachine<S, E>) submachine).restoreStateMachineInternal(stateMachineContext, extendedState);
+				submachine.start();
+			} else if (state.isOrthogonal()) {
+				for (Region<S, E> region : ((AbstractState<S, E>) state).getRegions()) {
+					StateMachineContext<S, E> regionContext = null;
+					if (stateMachineContext != null) {
+						for (StateMachineContext<S, E> child : stateMachineContext.getChilds()) {
+							if (((AbstractStateMachine<S, E>) region).findRestoreState(child.getState()) != null) {
+								regionContext = child;
+								break;
+							}
+						}
+					}
+					((AbstractStateMachine<S, E>) region).restoreStateMachineInternal(regionContext, extendedState);
+					region.start();
+				}
+			}
+		}
+
+		// restore history for this machine and submachines
+		Map<S, S> historyStates = stateMachineContext != null ? stateMachineContext.getHistoryStates() : null;
+		if (history != null) {
+			S historyId = historyStates != null ? historyStates.get(null) : null;
+			((HistoryPseudoState<S, E>) history).setState(historyId != null ? findState(states, historyId) : null);
+		}
+		for (State<S, E> s : states) {
+			if (s.isSubmachineState()) {
+				StateMachine<S, E> submachine = ((AbstractState<S, E>) s).getSubmachine();
+				PseudoState<S, E> submachineHistory = ((AbstractStateMachine<S, E>) submachine).getHistoryState();
+				if (submachineHistory != null) {
+					S historyId = historyStates != null ? historyStates.get(s.getId()) : null;
+					((HistoryPseudoState<S, E>) submachineHistory).setState(
+							historyId != null ? findState(submachine.getStates(), historyId) : null);
+				}
+			}
+		}
+
+		// extended state is shared between regions so only copy
+		// variables if we're not using same instance as a parent.
+		// bulk operations don't notify extended state listeners.
+		if (extendedState != parentExtendedState) {
+			Map<Object, Object> variables = extendedState.getVariables();
+			if (stateMachineContext == null) {
+				variables.clear();
+			} else if (stateMachineContext.getExtendedState() != null
+					&& stateMachineContext.getExtendedState().getVariables() != variables) {
+				variables.clear();
+				variables.putAll(stateMachineContext.getExtendedState().getVariables());
+			}
+		}
+	}
+
+	private StateMachineExecutor<S, E> getStateMachineExecutor() {
+		StateMachineExecutor<S, E> executor = stateMachineExecutor;
+		if (executor == null) {
+			synchronized (lock) {
+				executor = stateMachineExecutor;
+				if (executor == null) {
+					executor = buildStateMachineExecutor();
+					stateMachineExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	private StateMachineExecutor<S, E> buildStateMachineExecutor() {
+		DefaultStateMachineExecutor<S, E> executor = new DefaultStateMachineExecutor<S, E>(this, executorRelayStateMachine, transitions,
+				triggerToTransitionMap, triggerlessTransitions, initialTransition, initialEvent);
+		if (getBeanFactory() != null) {
+			executor.setBeanFactory(getBeanFactory());
+		}
+		if (getTaskExecutor() != null){
+			executor.setTaskExecutor(getTaskExecutor());
+		}
+		executor.afterPropertiesSet();
+		executor.setStateMachineExecutorTransit(new StateMachineExecutorTransit<S, E>() {
+
+			@Override
+			public void transit(Transition<S, E> t, StateContext<S, E> ctx, Message<E> message) {
+				// TODO: fix above stateContext as it's not used
+				notifyTransitionStart(buildStateContext(Stage.TRANSITION_START, message, t, getRelayStateMachine()));
+				notifyTransition(buildStateContext(Stage.TRANSITION, message, t, getRelayStateMachine()));
+				if (t.getTarget().getPseudoState() != null && t.getTarget().getPseudoState().getKind() == PseudoStateKind.JOIN) {
+					exitFromState(t.getSource(), message, t, getRelayStateMachine());
+				} else {
+					if (t.getKind() == TransitionKind.INITIAL) {
+						switchToState(t.getTarget(), message, t, getRelayStateMachine());
+						notifyStateMachineStarted(buildStateContext(Stage.STATEMACHINE_START, message, t, getRelayStateMachine()));
+					} else if (t.getKind() != TransitionKind.INTERNAL) {
+						switchToState(t.getTarget(), message, t, getRelayStateMachine());
+					}
+				}
+				// TODO: looks like events should be called here and anno processing earlier
+				notifyTransitionEnd(buildStateContext(Stage.TRANSITION_END, message, t, getRelayStateMachine()));
+			}
+		});
+		for (StateMachineInterceptor<S, E> interceptor : pendingInterceptors) {
+			executor.addStateMachineInterceptor(interceptor);
+		}
+		pendingInterceptors.clear();
+		return executor;
+	}
+
+	private State<S, E> findRestoreState(S id) {
+		if (id == null) {
+			return null;
+		}
+		for (State<S, E> s : states) {
+			for (State<S, E> ss : s.getStates()) {
+				if (id.equals(ss.getId())) {
+					return s;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static <S, E> State<S, E> findState(Collection<State<S, E>> states, S id) {
+		for (State<S, E> s : states) {
+			if (id.equals(s.getId())) {
+				return s;
+			}
+		}
+		return null;
+	}
+
 	@Override
 	public void addStateMachineInterceptor(StateMachineInterceptor<S, E> interceptor) {
 		getStateMachineInterceptors().add(interceptor);
-		stateMachineExecutor.addStateMachineInterceptor(interceptor);
+		synchronized (lock) {
+			if (stateMachineExecutor != null) {
+				stateMachineExecutor.addStateMachineInterceptor(interceptor);
+			} else {
+				// replayed when executor is created
+				pendingInterceptors.add(interceptor);
+			}
+		}
 	}
 
 	@Override
@@ -684,7 +876,7 @@ public abstract class AbstractStateMachine<S, E> extends StateMachineObjectSuppo
 	protected synchronized boolean acceptEvent(Message<E> message) {
 		if ((currentState != null && currentState.shouldDefer(message))) {
 			log.info("Current state " + currentState + " deferred event " + message);
-			stateMachineExecutor.queueDeferredEvent(message);
+			getStateMachineExecutor().queueDeferredEvent(message);
 			return true;
 		}
 		if ((currentState != null && currentState.sendEvent(message))) {
@@ -701,7 +893,7 @@ public abstract class AbstractStateMachine<S, E> extends StateMachineObjectSuppo
 
 			if (StateMachineUtils.containsAtleastOne(source.getIds(), currentState.getIds())) {
 				if (trigger != null && trigger.evaluate(new DefaultTriggerContext<S, E>(message.getPayload()))) {
-					stateMachineExecutor.queueEvent(message);
+					getStateMachineExecutor().queueEvent(message);
 					return true;
 				}
 			}
@@ -710,7 +902,7 @@ public abstract class AbstractStateMachine<S, E> extends StateMachineObjectSuppo
 		// state was changed between original check and now
 		if ((currentState != null && currentState.shouldDefer(message))) {
 			log.info("Current state " + currentState + " deferred event " + message);
-			stateMachineExecutor.queueDeferredEvent(message);
+			getStateMachineExecutor().queueDeferredEvent(message);
 			return true;
 		}
 		return false;
@@ -766,7 +958,7 @@ public abstract class AbstractStateMachine<S, E> extends StateMachineObjectSuppo
 
 		callPostStateChangeInterceptors(state, message, transition, stateMachine);
 
-		stateMachineExecutor.execute();
+		getStateMachineExecutor().execute();
 		if (isComplete()) {
 			stop();
 		}
@@ -789,14 +981,14 @@ public abstract class AbstractStateMachine<S, E> extends StateMachineObjectSuppo
 	}
 
 	private void registerPseudoStateListener() {
-		for (State<S, E> state : states) {
-			PseudoState<S, E> p = state.getPseudoState();
+		for (final State<S, E> state : states) {
+			final PseudoState<S, E> p = state.getPseudoState();
 			if (p != null) {
 				p.addPseudoStateListener(new PseudoStateListener<S, E>() {
 					@Override
 					public void onContext(PseudoStateContext<S, E> context) {
 						PseudoState<S, E> pseudoState = context.getPseudoState();
-						State<S, E> toStateOrig = findStateWithPseudoState(pseudoState);
+						State<S, E> toStateOrig = pseudoState == p ? state : findStateWithPseudoState(pseudoState);
 						StateContext<S, E> stateContext = buildStateContext(Stage.STATE_EXIT, null, null, getRelayStateMachine());
 						State<S, E> toState = followLinkedPseudoStates(toStateOrig, stateContext);
 						// TODO: try to find matching transition based on direct link.
@@ -811,9 +1003,12 @@ public abstract class AbstractStateMachine<S, E> extends StateMachineObjectSuppo
 	}
 
 	private Transition<S, E> findTransition(State<S, E> from, State<S, E> to) {
-		for (Transition<S, E> transition : transitions) {
-			if (transition.getSource() == from && transition.getTarget() == to) {
-				return transition;
+		List<Transition<S, E>> list = transitionsBySource.get(from);
+		if (list != null) {
+			for (Transition<S, E> transition : list) {
+				if (transition.getSource() == from && transition.getTarget() == to) {
+					return transition;
+				}
 			}
 		}
 		return null;
@@ -17,7 +17,6 @@ package org.springframework.statemachine.support.tree;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -34,39 +33,42 @@ public class Tree<T> {
 
 	private final Node<T> root = new Node<T>(null);
 	private final Map<Object, Node<T>> map = new HashMap<Object, Node<T>>();
-	private final List<DataWrap<T>> notMapped = new ArrayList<DataWrap<T>>();
+	private final Map<Object, List<DataWrap<T>>> notMapped = new HashMap<Object, List<DataWrap<T>>>();
 
 	public Node<T> getRoot() {
 		return root;
 	}
 
 	public void add(T data, Object id, Object parent) {
-		notMapped.add(new DataWrap<T>(data, id, parent));
-		tryMapping();
-	}
-
-	private void tryMapping() {
-		int size = notMapped.size();
-		Iterator<DataWrap<T>> iter = notMapped.iterator();
-		while(iter.hasNext()) {
-			DataWrap<T> next = iter.next();
-			if (next.parent == null) {
-				Node<T> n = new Node<T>(next.data);
-				map.put(next.id, n);
-				root.getChildren().add(n);
-				iter.remove();
+		DataWrap<T> wrap = new DataWrap<T>(data, id, parent);
+		if (parent == null) {
+			map(wrap, root);
+		} else {
+			Node<T> node = map.get(parent);
+			if (node != null) {
+				map(wrap, node);
 			} else {
-				if (map.containsKey(next.parent)) {
-					Node<T> n = new Node<T>(next.data);
-					Node<T> node = map.get(next.parent);
-					map.put(next.id, n);
-					node.getChildren().add(n);
-					iter.remove();
+				// wait until parent gets added
+				List<DataWrap<T>> waiting = notMapped.get(parent);
+				if (waiting == null) {
+					waiting = new ArrayList<DataWrap<T>>();
+					notMapped.put(parent, waiting);
 				}
+				waiting.add(wrap);
 			}
 		}
-		if (notMapped.size() < size) {
-			tryMapping();
+	}
+
+	private void map(DataWrap<T> wrap, Node<T> parent) {
+		Node<T> n = new Node<T>(wrap.data);
+		map.put(wrap.id, n);
+		parent.getChildren().add(n);
+		// map children which were added before this node
+		List<DataWrap<T>> waiting = notMapped.remove(wrap.id);
+		if (waiting != null) {
+			for (DataWrap<T> child : waiting) {
+				map(child, n);
+			}
 		}
 	}
 
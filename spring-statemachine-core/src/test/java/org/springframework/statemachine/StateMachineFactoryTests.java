@@ -16,11 +16,20 @@
 package org.springframework.statemachine;
 
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.junit.Test;
 import org.springframework.context.SmartLifecycle;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
@@ -36,9 +45,14 @@ import org.springframework.statemachine.config.StateMachineFactory;
 import org.springframework.statemachine.config.builders.StateMachineConfigurationConfigurer;
 import org.springframework.statemachine.config.builders.StateMachineStateConfigurer;
 import org.springframework.statemachine.config.builders.StateMachineTransitionConfigurer;
+import org.springframework.statemachine.config.model.StateMachineModel;
+import org.springframework.statemachine.config.model.verifier.StateMachineModelVerifier;
+import org.springframework.statemachine.ensemble.InMemoryStateMachineEnsemble;
 
 public class StateMachineFactoryTests extends AbstractStateMachineTests {
 
+	private static final Log log = LogFactory.getLog(StateMachineFactoryTests.class);
+
 	@Override
 	protected AnnotationConfigApplicationContext buildContext() {
 		return new AnnotationConfigApplicationContext();
@@ -86,6 +100,225 @@ public class StateMachineFactoryTests extends AbstractStateMachineTests {
 		assertThat(((SmartLifecycle)machine).isRunning(), is(false));
 	}
 
+	@SuppressWarnings({ "unchecked" })
+	@Test
+	public void testModelVerifiedOnce() throws Exception {
+		context.register(Config6.class);
+		context.refresh();
+		ObjectStateMachineFactory<TestStates, TestEvents> stateMachineFactory =
+				context.getBean(StateMachineSystemConstants.DEFAULT_ID_STATEMACHINEFACTORY, ObjectStateMachineFactory.class);
+		CountingVerifier verifier = context.getBean(CountingVerifier.class);
+
+		stateMachineFactory.verifyStateMachineModel(null);
+		assertThat(verifier.count.get(), is(1));
+		for (int i = 0; i < 3; i++) {
+			StateMachine<TestStates,TestEvents> machine = stateMachineFactory.getStateMachine();
+			machine.start();
+			assertThat(machine.getState().getIds(), contains(TestStates.S1));
+		}
+		assertThat(verifier.count.get(), is(1));
+	}
+
+	@SuppressWarnings({ "unchecked" })
+	@Test
+	public void testMachinesFromReserve() throws Exception {
+		context.register(Config7.class);
+		context.refresh();
+		ObjectStateMachineFactory<TestStates, TestEvents> stateMachineFactory =
+				context.getBean(StateMachineSystemConstants.DEFAULT_ID_STATEMACHINEFACTORY, ObjectStateMachineFactory.class);
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		stateMachineFactory.setReserveTaskExecutor(new TaskExecutor() {
+
+			@Override
+			public void execute(Runnable task) {
+				tasks.add(task);
+			}
+		});
+		stateMachineFactory.setReserveSize(2);
+
+		// first request is built and fills a reserve
+		StateMachine<TestStates,TestEvents> machine1 = stateMachineFactory.getStateMachine("m1");
+		assertThat(((SmartLifecycle)machine1).isRunning(), is(true));
+		assertThat(tasks.size(), is(1));
+		tasks.remove(0).run();
+
+		StateMachine<TestStates,TestEvents> machine2 = stateMachineFactory.getStateMachine("m2");
+		assertThat(((SmartLifecycle)machine2).isRunning(), is(true));
+		assertThat(machine2.getId(), is("m2"));
+		assertThat(machine2.getState().getIds(), contains(TestStates.S1));
+		machine2.sendEvent(TestEvents.E1);
+		assertThat(machine2.getState().getIds(), contains(TestStates.S2));
+
+		StateMachine<TestStates,TestEvents> machine3 = stateMachineFactory.getStateMachine("m3");
+		assertThat(((SmartLifecycle)machine3).isRunning(), is(true));
+		assertThat(machine3.getId(), is("m3"));
+		assertThat(machine3.getState().getIds(), contains(TestStates.S1));
+		assertThat(machine3.getExtendedState(), not(sameInstance(machine2.getExtendedState())));
+		// reserve asked to replenish once
+		assertThat(tasks.size(), is(1));
+
+		// explicit uuid is never from a reserve
+		UUID uuid = UUID.randomUUID();
+		StateMachine<TestStates,TestEvents> machine4 = stateMachineFactory.getStateMachine(uuid);
+		assertThat(machine4.getUuid(), is(uuid));
+		assertThat(tasks.size(), is(1));
+	}
+
+	@SuppressWarnings({ "unchecked" })
+	@Test
+	public void testReserveRespectsAutoStartup() throws Exception {
+		context.register(Config1.class);
+		context.refresh();
+		ObjectStateMachineFactory<TestStates, TestEvents> stateMachineFactory =
+				context.getBean(StateMachineSystemConstants.DEFAULT_ID_STATEMACHINEFACTORY, ObjectStateMachineFactory.class);
+		stateMachineFactory.setReserveTaskExecutor(new SyncTaskExecutor());
+		stateMachineFactory.setReserveSize(2);
+
+		stateMachineFactory.getStateMachine("m1");
+		StateMachine<TestStates,TestEvents> machine2 = stateMachineFactory.getStateMachine("m2");
+		assertThat(((SmartLifecycle)machine2).isRunning(), is(false));
+		assertThat(machine2.getId(), is("m2"));
+		machine2.start();
+		assertThat(machine2.getState().getIds(), contains(TestStates.S1));
+	}
+
+	@SuppressWarnings({ "unchecked" })
+	@Test
+	public void testReserveNotFilledAfterDestroy() throws Exception {
+		context.register(Config7.class);
+		context.refresh();
+		ObjectStateMachineFactory<TestStates, TestEvents> stateMachineFactory =
+				context.getBean(StateMachineSystemConstants.DEFAULT_ID_STATEMACHINEFACTORY, ObjectStateMachineFactory.class);
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		stateMachineFactory.setReserveTaskExecutor(new TaskExecutor() {
+
+			@Override
+			public void execute(Runnable task) {
+				tasks.add(task);
+			}
+		});
+		stateMachineFactory.setReserveSize(2);
+		stateMachineFactory.getStateMachine();
+		assertThat(tasks.size(), is(1));
+		tasks.remove(0).run();
+		stateMachineFactory.getStateMachine();
+		assertThat(tasks.size(), is(1));
+
+		// pending replenish runs after destroy
+		stateMachineFactory.destroy();
+		tasks.remove(0).run();
+		assertThat(tasks.size(), is(0));
+
+		// no new reserve is created
+		StateMachine<TestStates,TestEvents> machine = stateMachineFactory.getStateMachine();
+		assertThat(((SmartLifecycle)machine).isRunning(), is(true));
+		assertThat(tasks.size(), is(0));
+	}
+
+	@SuppressWarnings({ "unchecked" })
+	@Test
+	public void testReserveNotFilledWithDistributedMachines() throws Exception {
+		context.register(Config8.class);
+		context.refresh();
+		ObjectStateMachineFactory<TestStates, TestEvents> stateMachineFactory =
+				context.getBean(StateMachineSystemConstants.DEFAULT_ID_STATEMACHINEFACTORY, ObjectStateMachineFactory.class);
+		CountingEnsemble ensemble = context.getBean(CountingEnsemble.class);
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		stateMachineFactory.setReserveTaskExecutor(new TaskExecutor() {
+
+			@Override
+			public void execute(Runnable task) {
+				tasks.add(task);
+			}
+		});
+		stateMachineFactory.setReserveSize(2);
+		stateMachineFactory.getStateMachine();
+		assertThat(ensemble.joins.get(), is(1));
+		assertThat(tasks.size(), is(1));
+
+		// nothing is built ahead of time to join an ensemble
+		tasks.remove(0).run();
+		assertThat(ensemble.joins.get(), is(1));
+		stateMachineFactory.getStateMachine();
+		assertThat(ensemble.joins.get(), is(2));
+		assertThat(tasks.size(), is(0));
+	}
+
+	@SuppressWarnings({ "unchecked" })
+	@Test
+	public void testReserveReplenishedInBackground() throws Exception {
+		context.register(Config7.class);
+		context.refresh();
+		ObjectStateMachineFactory<TestStates, TestEvents> stateMachineFactory =
+				context.getBean(StateMachineSystemConstants.DEFAULT_ID_STATEMACHINEFACTORY, ObjectStateMachineFactory.class);
+		final AtomicInteger replenished = new AtomicInteger();
+		stateMachineFactory.setReserveTaskExecutor(new TaskExecutor() {
+
+			@Override
+			public void execute(Runnable task) {
+				new Thread(() -> {
+					task.run();
+					replenished.incrementAndGet();
+				}).start();
+			}
+		});
+		stateMachineFactory.setReserveSize(4);
+
+		// first request triggers filling
+		stateMachineFactory.getStateMachine();
+		for (int i = 0; i < 10; i++) {
+			StateMachine<TestStates,TestEvents> machine = stateMachineFactory.getStateMachine();
+			assertThat(((SmartLifecycle)machine).isRunning(), is(true));
+			Thread.sleep(20);
+		}
+		assertThat(replenished.get(), greaterThan(0));
+		stateMachineFactory.destroy();
+	}
+
+	@SuppressWarnings({ "unchecked" })
+	@Test
+	public void testReserveSpikeLatency() throws Exception {
+		context.register(Config7.class);
+		context.refresh();
+		ObjectStateMachineFactory<TestStates, TestEvents> stateMachineFactory =
+				context.getBean(StateMachineSystemConstants.DEFAULT_ID_STATEMACHINEFACTORY, ObjectStateMachineFactory.class);
+		int count = 500;
+		// warm up
+		for (int i = 0; i < count; i++) {
+			stateMachineFactory.getStateMachine().start();
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			stateMachineFactory.getStateMachine().start();
+		}
+		long built = System.nanoTime() - start;
+
+		// fill a reserve up front and leave replenish tasks
+		// unexecuted to simulate a spike
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		stateMachineFactory.setReserveTaskExecutor(new TaskExecutor() {
+
+			@Override
+			public void execute(Runnable task) {
+				tasks.add(task);
+			}
+		});
+		stateMachineFactory.setReserveSize(count);
+		stateMachineFactory.getStateMachine();
+		tasks.remove(0).run();
+
+		start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			StateMachine<TestStates,TestEvents> machine = stateMachineFactory.getStateMachine();
+			assertThat(((SmartLifecycle)machine).isRunning(), is(true));
+			machine.start();
+		}
+		long reserved = System.nanoTime() - start;
+		log.info("Getting " + count + " started machines took " + built / 1000000 + "ms when built and "
+				+ reserved / 1000000 + "ms from a reserve");
+	}
+
 	@SuppressWarnings({ "unchecked" })
 	@Test
 	public void testCustomNamedFactory() {
@@ -255,4 +488,122 @@ public class StateMachineFactoryTests extends AbstractStateMachineTests {
 
 	}
 
+	@Configuration
+	@EnableStateMachineFactory
+	public static class Config6 extends EnumStateMachineConfigurerAdapter<TestStates, TestEvents> {
+
+		@Override
+		public void configure(StateMachineConfigurationConfigurer<TestStates, TestEvents> config) throws Exception {
+			config
+				.withVerifier()
+					.verifier(countingVerifier());
+		}
+
+		@Override
+		public void configure(StateMachineStateConfigurer<TestStates, TestEvents> states) throws Exception {
+			states
+				.withStates()
+					.initial(TestStates.S1)
+					.states(EnumSet.allOf(TestStates.class));
+		}
+
+		@Bean
+		public CountingVerifier countingVerifier() {
+			return new CountingVerifier();
+		}
+
+	}
+
+	@Configuration
+	@EnableStateMachineFactory
+	static class Config7 extends EnumStateMachineConfigurerAdapter<TestStates, TestEvents> {
+
+		@Override
+		public void configure(StateMachineConfigurationConfigurer<TestStates, TestEvents> config) throws Exception {
+			config
+				.withConfiguration()
+					.autoStartup(true)
+					.taskExecutor(new SyncTaskExecutor());
+		}
+
+		@Override
+		public void configure(StateMachineStateConfigurer<TestStates, TestEvents> states) throws Exception {
+			states
+				.withStates()
+					.initial(TestStates.S1)
+					.state(TestStates.S1)
+					.state(TestStates.S2);
+		}
+
+		@Override
+		public void configure(StateMachineTransitionConfigurer<TestStates, TestEvents> transitions) throws Exception {
+			transitions
+				.withExternal()
+					.source(TestStates.S1)
+					.target(TestStates.S2)
+					.event(TestEvents.E1);
+		}
+
+	}
+
+	@Configuration
+	@EnableStateMachineFactory
+	static class Config8 extends EnumStateMachineConfigurerAdapter<TestStates, TestEvents> {
+
+		@Override
+		public void configure(StateMachineConfigurationConfigurer<TestStates, TestEvents> config) throws Exception {
+			config
+				.withConfiguration()
+					.autoStartup(true)
+					.taskExecutor(new SyncTaskExecutor())
+					.and()
+				.withDistributed()
+					.ensemble(ensemble());
+		}
+
+		@Override
+		public void configure(StateMachineStateConfigurer<TestStates, TestEvents> states) throws Exception {
+			states
+				.withStates()
+					.initial(TestStates.S1)
+					.state(TestStates.S1)
+					.state(TestStates.S2);
+		}
+
+		@Override
+		public void configure(StateMachineTransitionConfigurer<TestStates, TestEvents> transitions) throws Exception {
+			transitions
+				.withExternal()
+					.source(TestStates.S1)
+					.target(TestStates.S2)
+					.event(TestEvents.E1);
+		}
+
+		@Bean
+		public CountingEnsemble ensemble() {
+			return new CountingEnsemble();
+		}
+	}
+
+	private static class CountingEnsemble extends InMemoryStateMachineEnsemble<TestStates, TestEvents> {
+
+		final AtomicInteger joins = new AtomicInteger();
+
+		@Override
+		public void join(StateMachine<TestStates, TestEvents> stateMachine) {
+			joins.incrementAndGet();
+			super.join(stateMachine);
+		}
+	}
+
+	private static class CountingVerifier implements StateMachineModelVerifier<TestStates, TestEvents> {
+
+		final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public void verify(StateMachineModel<TestStates, TestEvents> model) {
+			count.incrementAndGet();
+		}
+	}
+
 }
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.messaging.Message;
+import org.springframework.statemachine.AbstractStateMachineTests.TestEvents;
+import org.springframework.statemachine.AbstractStateMachineTests.TestStates;
+import org.springframework.statemachine.access.StateMachineAccess;
+import org.springframework.statemachine.access.StateMachineFunction;
+import org.springframework.statemachine.config.StateMachineBuilder;
+import org.springframework.statemachine.config.StateMachineBuilder.Builder;
+import org.springframework.statemachine.region.Region;
+import org.springframework.statemachine.state.AbstractState;
+import org.springframework.statemachine.state.State;
+import org.springframework.statemachine.support.StateMachineInterceptorAdapter;
+import org.springframework.statemachine.transition.Transition;
+
+/**
+ * Tests for lazily initialized submachines and regions.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public class StateMachineLazyInitTests {
+
+	private static final Log log = LogFactory.getLog(StateMachineLazyInitTests.class);
+
+	@Test
+	public void testSubmachineInitializedOnEntry() throws Exception {
+		StateMachine<TestStates, TestEvents> machine = buildMachine(true);
+		StateMachine<TestStates, TestEvents> submachine = getSubmachine(machine, TestStates.S2);
+		machine.start();
+
+		assertThat(machine.getState().getIds(), containsInAnyOrder(TestStates.S1));
+		assertThat(TestUtils.readField("stateMachineExecutor", machine), notNullValue());
+		assertThat(TestUtils.readField("stateMachineExecutor", submachine), nullValue());
+
+		machine.sendEvent(TestEvents.E1);
+		assertThat(machine.getState().getIds(), containsInAnyOrder(TestStates.S2, TestStates.S20));
+		assertThat(TestUtils.readField("stateMachineExecutor", submachine), notNullValue());
+		machine.sendEvent(TestEvents.E2);
+		assertThat(machine.getState().getIds(), containsInAnyOrder(TestStates.S2, TestStates.S21));
+	}
+
+	@Test
+	public void testRegionsInitializedOnEntry() throws Exception {
+		StateMachine<TestStates, TestEvents> machine = buildMachine(true);
+		machine.start();
+		for (Region<TestStates, TestEvents> region : getRegions(machine, TestStates.S3)) {
+			assertThat(TestUtils.readField("stateMachineExecutor", region), nullValue());
+		}
+
+		machine.sendEvent(TestEvents.E3);
+		assertThat(machine.getState().getIds(), containsInAnyOrder(TestStates.S3, TestStates.S30, TestStates.S111));
+		for (Region<TestStates, TestEvents> region : getRegions(machine, TestStates.S3)) {
+			assertThat(TestUtils.readField("stateMachineExecutor", region), notNullValue());
+		}
+		machine.sendEvent(TestEvents.E4);
+		assertThat(machine.getState().getIds(), containsInAnyOrder(TestStates.S3, TestStates.S31, TestStates.S111));
+	}
+
+	@Test
+	public void testInterceptorsAddedBeforeInit() throws Exception {
+		StateMachine<TestStates, TestEvents> machine = buildMachine(true);
+		final TestStateChangeInterceptor interceptor = new TestStateChangeInterceptor();
+		machine.getStateMachineAccessor().doWithAllRegions(new StateMachineFunction<StateMachineAccess<TestStates, TestEvents>>() {
+
+			@Override
+			public void apply(StateMachineAccess<TestStates, TestEvents> function) {
+				function.addStateMachineInterceptor(interceptor);
+			}
+		});
+		machine.start();
+		machine.sendEvent(TestEvents.E1);
+		machine.sendEvent(TestEvents.E2);
+		assertThat(machine.getState().getIds(), containsInAnyOrder(TestStates.S2, TestStates.S21));
+		assertThat(interceptor.states.contains(TestStates.S21), is(true));
+		assertThat(interceptor.transitions.contains(TestStates.S21), is(true));
+	}
+
+	@Test
+	public void testCreationTime() throws Exception {
+		int count = 200;
+		// warm up
+		buildMachines(false, count);
+		buildMachines(true, count);
+
+		long start = System.nanoTime();
+		buildMachines(false, count);
+		long eager = System.nanoTime() - start;
+		start = System.nanoTime();
+		buildMachines(true, count);
+		long lazy = System.nanoTime() - start;
+		log.info("Creating " + count + " machines took " + eager / 1000000 + "ms eagerly and " + lazy / 1000000
+				+ "ms lazily");
+	}
+
+	private static void buildMachines(boolean lazyInit, int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			assertThat(buildMachine(lazyInit), notNullValue());
+		}
+	}
+
+	private static StateMachine<TestStates, TestEvents> getSubmachine(StateMachine<TestStates, TestEvents> machine, TestStates id) {
+		for (State<TestStates, TestEvents> s : machine.getStates()) {
+			if (s.getId() == id) {
+				return ((AbstractState<TestStates, TestEvents>) s).getSubmachine();
+			}
+		}
+		return null;
+	}
+
+	private static List<Region<TestStates, TestEvents>> getRegions(StateMachine<TestStates, TestEvents> machine, TestStates id) {
+		List<Region<TestStates, TestEvents>> regions = new ArrayList<Region<TestStates, TestEvents>>();
+		for (State<TestStates, TestEvents> s : machine.getStates()) {
+			if (s.getId() == id) {
+				regions.addAll(((AbstractState<TestStates, TestEvents>) s).getRegions());
+			}
+		}
+		return regions;
+	}
+
+	private static StateMachine<TestStates, TestEvents> buildMachine(boolean lazyInit) throws Exception {
+		Builder<TestStates, TestEvents> builder = StateMachineBuilder.builder();
+
+		builder.configureConfiguration()
+			.withConfiguration()
+				.taskExecutor(new SyncTaskExecutor())
+				.lazyInit(lazyInit);
+
+		builder.configureStates()
+			.withStates()
+				.initial(TestStates.S1)
+				.state(TestStates.S2)
+				.state(TestStates.S3)
+				.and()
+				.withStates()
+					.parent(TestStates.S2)
+					.initial(TestStates.S20)
+					.state(TestStates.S21)
+					.and()
+				.withStates()
+					.parent(TestStates.S3)
+					.initial(TestStates.S30)
+					.state(TestStates.S31)
+					.and()
+				.withStates()
+					.parent(TestStates.S3)
+					.initial(TestStates.S111)
+					.state(TestStates.S112);
+
+		builder.configureTransitions()
+			.withExternal()
+				.source(TestStates.S1).target(TestStates.S2).event(TestEvents.E1)
+				.and()
+			.withExternal()
+				.source(TestStates.S20).target(TestStates.S21).event(TestEvents.E2)
+				.and()
+			.withExternal()
+				.source(TestStates.S1).target(TestStates.S3).event(TestEvents.E3)
+				.and()
+			.withExternal()
+				.source(TestStates.S30).target(TestStates.S31).event(TestEvents.E4);
+
+		return builder.build();
+	}
+
+	private static class TestStateChangeInterceptor extends StateMachineInterceptorAdapter<TestStates, TestEvents> {
+
+		final List<TestStates> states = new ArrayList<TestStates>();
+		final List<TestStates> transitions = new ArrayList<TestStates>();
+
+		@Override
+		public void preStateChange(State<TestStates, TestEvents> state, Message<TestEvents> message,
+				Transition<TestStates, TestEvents> transition, StateMachine<TestStates, TestEvents> stateMachine) {
+			states.add(state.getId());
+		}
+
+		@Override
+		public StateContext<TestStates, TestEvents> postTransition(StateContext<TestStates, TestEvents> stateContext) {
+			if (stateContext.getTarget() != null) {
+				transitions.add(stateContext.getTarget().getId());
+			}
+			return stateContext;
+		}
+	}
+
+}
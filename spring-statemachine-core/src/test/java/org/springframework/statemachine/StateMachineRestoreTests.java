@@ -0,0 +1,405 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.statemachine.access.StateMachineAccess;
+import org.springframework.statemachine.access.StateMachineFunction;
+import org.springframework.statemachine.access.StateMachineRestoreAccess;
+import org.springframework.statemachine.action.Action;
+import org.springframework.statemachine.config.EnableStateMachine;
+import org.springframework.statemachine.config.EnumStateMachineConfigurerAdapter;
+import org.springframework.statemachine.config.builders.StateMachineStateConfigurer;
+import org.springframework.statemachine.config.builders.StateMachineTransitionConfigurer;
+import org.springframework.statemachine.listener.StateMachineListenerAdapter;
+import org.springframework.statemachine.persist.DefaultStateMachinePersister;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+/**
+ * Tests for restoring a state machine in place using a
+ * {@link StateMachineContext}.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public class StateMachineRestoreTests extends AbstractStateMachineTests {
+
+	private static final Log log = LogFactory.getLog(StateMachineRestoreTests.class);
+
+	@Override
+	protected AnnotationConfigApplicationContext buildContext() {
+		return new AnnotationConfigApplicationContext();
+	}
+
+	@Test
+	public void testRestoreSubStatesWithoutActions() throws Exception {
+		context.register(Config1.class);
+		context.refresh();
+		@SuppressWarnings("unchecked")
+		StateMachine<States, Events> machine = context.getBean(StateMachineSystemConstants.DEFAULT_ID_STATEMACHINE, StateMachine.class);
+		CountingAction action = context.getBean(CountingAction.class);
+		CountingListener listener = new CountingListener();
+
+		machine.start();
+		assertThat(machine.getState().getIds(), containsInAnyOrder(States.S0, States.S1, States.S11));
+		machine.addStateListener(listener);
+		int actions = action.count.get();
+
+		Map<Object, Object> variables = new HashMap<Object, Object>();
+		variables.put("foo", 1);
+		ExtendedState extendedState = machine.getExtendedState();
+		DefaultStateMachineContext<States,Events> stateMachineContext = new DefaultStateMachineContext<States, Events>(
+				States.S212, null, null, new DefaultExtendedState(variables));
+		restore(machine, stateMachineContext);
+
+		assertThat(machine.getState().getIds(), containsInAnyOrder(States.S0, States.S2, States.S21, States.S212));
+		assertThat(machine.getExtendedState(), sameInstance(extendedState));
+		assertThat((Integer)machine.getExtendedState().getVariables().get("foo"), is(1));
+		assertThat(action.count.get(), is(actions));
+		assertThat(listener.stateChanged.get(), is(0));
+		assertThat(listener.stateMachineStopped.get(), is(1));
+
+		machine.sendEvent(Events.D);
+		assertThat(machine.getState().getIds(), containsInAnyOrder(States.S0, States.S2, States.S21, States.S211));
+		machine.sendEvent(Events.C);
+		assertThat(machine.getState().getIds(), containsInAnyOrder(States.S0, States.S1, States.S11));
+	}
+
+	@Test
+	public void testRestoreStoppedMachine() throws Exception {
+		context.register(Config1.class);
+		context.refresh();
+		@SuppressWarnings("unchecked")
+		StateMachine<States, Events> machine = context.getBean(StateMachineSystemConstants.DEFAULT_ID_STATEMACHINE, StateMachine.class);
+
+		DefaultStateMachineContext<States,Events> stateMachineContext = new DefaultStateMachineContext<States, Events>(
+				States.S12, null, null, null);
+		restore(machine, stateMachineContext);
+		machine.start();
+		assertThat(machine.getState().getIds(), containsInAnyOrder(States.S0, States.S1, States.S12));
+		machine.sendEvent(Events.I);
+		assertThat(machine.getState().getIds(), containsInAnyOrder(States.S0, States.S2, States.S21, States.S212));
+	}
+
+	@Test
+	public void testRestoreRegions() throws Exception {
+		context.register(Config2.class);
+		context.refresh();
+		@SuppressWarnings("unchecked")
+		StateMachine<TestStates, TestEvents> machine = context.getBean(StateMachineSystemConstants.DEFAULT_ID_STATEMACHINE, StateMachine.class);
+		machine.start();
+		assertThat(machine.getState().getIds(), containsInAnyOrder(TestStates.SI));
+
+		List<StateMachineContext<TestStates, TestEvents>> childs = new ArrayList<StateMachineContext<TestStates,TestEvents>>();
+		childs.add(new DefaultStateMachineContext<TestStates, TestEvents>(TestStates.S21, null, null, null));
+		childs.add(new DefaultStateMachineContext<TestStates, TestEvents>(TestStates.S31, null, null, null));
+		DefaultStateMachineContext<TestStates, TestEvents> stateMachineContext =
+				new DefaultStateMachineContext<TestStates, TestEvents>(childs, TestStates.S2, null, null, null);
+
+		restore(machine, stateMachineContext);
+		assertThat(machine.getState().getIds(), containsInAnyOrder(TestStates.S2, TestStates.S21, TestStates.S31));
+
+		childs = new ArrayList<StateMachineContext<TestStates,TestEvents>>();
+		childs.add(new DefaultStateMachineContext<TestStates, TestEvents>(TestStates.S20, null, null, null));
+		childs.add(new DefaultStateMachineContext<TestStates, TestEvents>(TestStates.S31, null, null, null));
+		stateMachineContext = new DefaultStateMachineContext<TestStates, TestEvents>(childs, TestStates.S2, null, null, null);
+
+		restore(machine, stateMachineContext);
+		assertThat(machine.getState().getIds(), containsInAnyOrder(TestStates.S2, TestStates.S20, TestStates.S31));
+		machine.sendEvent(TestEvents.E2);
+		assertThat(machine.getState().getIds(), containsInAnyOrder(TestStates.S2, TestStates.S21, TestStates.S31));
+	}
+
+	@Test
+	public void testRestoreWithNullContext() throws Exception {
+		context.register(Config1.class);
+		context.refresh();
+		@SuppressWarnings("unchecked")
+		StateMachine<States, Events> machine = context.getBean(StateMachineSystemConstants.DEFAULT_ID_STATEMACHINE, StateMachine.class);
+
+		machine.start();
+		machine.sendEvent(Events.I);
+		machine.sendEvent(Events.I);
+		assertThat(machine.getState().getIds(), containsInAnyOrder(States.S0, States.S2, States.S21, States.S212));
+		assertThat(machine.getExtendedState().getVariables().size(), is(1));
+
+		restore(machine, null);
+		assertThat(machine.getState().getIds(), containsInAnyOrder(States.S0, States.S1, States.S11));
+		assertThat(machine.getExtendedState().getVariables().get("foo"), nullValue());
+	}
+
+	@Test
+	public void testPersisterRestoreInPlace() throws Exception {
+		context.register(Config1.class);
+		context.refresh();
+		@SuppressWarnings("unchecked")
+		StateMachine<States, Events> machine = context.getBean(StateMachineSystemConstants.DEFAULT_ID_STATEMACHINE, StateMachine.class);
+		CountingAction action = context.getBean(CountingAction.class);
+		InMemoryStateMachinePersist persist = new InMemoryStateMachinePersist();
+		DefaultStateMachinePersister<States, Events, String> persister =
+				new DefaultStateMachinePersister<States, Events, String>(persist);
+		persister.setRestoreInPlace(true);
+
+		machine.start();
+		machine.sendEvent(Events.I);
+		assertThat(machine.getState().getIds(), containsInAnyOrder(States.S0, States.S1, States.S12));
+		persister.persist(machine, "xxx");
+
+		machine.sendEvent(Events.I);
+		assertThat(machine.getState().getIds(), containsInAnyOrder(States.S0, States.S2, States.S21, States.S212));
+		int actions = action.count.get();
+
+		persister.restore(machine, "xxx");
+		assertThat(machine.getState().getIds(), containsInAnyOrder(States.S0, States.S1, States.S12));
+		assertThat(action.count.get(), is(actions));
+	}
+
+	@Test
+	public void testRestoreThroughput() throws Exception {
+		context.register(Config1.class);
+		context.refresh();
+		@SuppressWarnings("unchecked")
+		StateMachine<States, Events> machine = context.getBean(StateMachineSystemConstants.DEFAULT_ID_STATEMACHINE, StateMachine.class);
+		machine.start();
+
+		final StateMachineContext<States, Events> context1 = new DefaultStateMachineContext<States, Events>(
+				States.S12, null, null, null);
+		final StateMachineContext<States, Events> context2 = new DefaultStateMachineContext<States, Events>(
+				States.S212, null, null, null);
+		int count = 2000;
+
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			final StateMachineContext<States, Events> stateMachineContext = (i % 2 == 0) ? context1 : context2;
+			machine.stop();
+			machine.getStateMachineAccessor().doWithAllRegions(new StateMachineFunction<StateMachineAccess<States,Events>>() {
+
+				@Override
+				public void apply(StateMachineAccess<States, Events> function) {
+					function.resetStateMachine(stateMachineContext);
+				}
+			});
+			machine.start();
+		}
+		long resetNanos = System.nanoTime() - start;
+		assertThat(machine.getState().getIds(), containsInAnyOrder(States.S0, States.S2, States.S21, States.S212));
+
+		start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			restore(machine, (i % 2 == 0) ? context1 : context2);
+		}
+		long restoreNanos = System.nanoTime() - start;
+		assertThat(machine.getState().getIds(), containsInAnyOrder(States.S0, States.S2, States.S21, States.S212));
+
+		log.info("Restores/sec with stop/reset/start " + (count * 1000000000L / Math.max(resetNanos, 1))
+				+ ", with in place restore " + (count * 1000000000L / Math.max(restoreNanos, 1)));
+	}
+
+	private static <S, E> void restore(StateMachine<S, E> machine, StateMachineContext<S, E> stateMachineContext) {
+		((StateMachineRestoreAccess<S, E>) machine.getStateMachineAccessor().withRegion()).restoreStateMachine(stateMachineContext);
+	}
+
+	@Configuration
+	@EnableStateMachine
+	static class Config1 extends EnumStateMachineConfigurerAdapter<States, Events> {
+
+		@Override
+		public void configure(StateMachineStateConfigurer<States, Events> states)
+				throws Exception {
+			states
+				.withStates()
+					.initial(States.S0)
+					.state(States.S0, countingAction(), countingAction())
+					.and()
+					.withStates()
+						.parent(States.S0)
+						.initial(States.S1)
+						.state(States.S1, countingAction(), countingAction())
+						.state(States.S2, countingAction(), countingAction())
+						.and()
+						.withStates()
+							.parent(States.S1)
+							.initial(States.S11)
+							.state(States.S11, countingAction(), countingAction())
+							.state(States.S12, countingAction(), countingAction())
+							.and()
+						.withStates()
+							.parent(States.S2)
+							.initial(States.S21)
+							.state(States.S21, countingAction(), countingAction())
+							.and()
+							.withStates()
+								.parent(States.S21)
+								.initial(States.S211)
+								.state(States.S211, countingAction(), countingAction())
+								.state(States.S212, countingAction(), countingAction());
+		}
+
+		@Override
+		public void configure(StateMachineTransitionConfigurer<States, Events> transitions)
+				throws Exception {
+			transitions
+				.withExternal()
+					.source(States.S1).target(States.S2).event(Events.C)
+					.and()
+				.withExternal()
+					.source(States.S2).target(States.S1).event(Events.C)
+					.and()
+				.withExternal()
+					.source(States.S212).target(States.S211).event(Events.D)
+					.and()
+				.withExternal()
+					.source(States.S11).target(States.S12).event(Events.I)
+					.action(fooAction())
+					.and()
+				.withExternal()
+					.source(States.S12).target(States.S212).event(Events.I);
+		}
+
+		@Bean
+		public CountingAction countingAction() {
+			return new CountingAction();
+		}
+
+		@Bean
+		public Action<States, Events> fooAction() {
+			return new Action<States, Events>() {
+
+				@Override
+				public void execute(StateContext<States, Events> context) {
+					context.getExtendedState().getVariables().put("foo", 0);
+				}
+			};
+		}
+
+	}
+
+	@Configuration
+	@EnableStateMachine
+	static class Config2 extends EnumStateMachineConfigurerAdapter<TestStates, TestEvents> {
+
+		@Override
+		public void configure(StateMachineStateConfigurer<TestStates, TestEvents> states) throws Exception {
+			states
+				.withStates()
+					.initial(TestStates.SI)
+					.state(TestStates.SI)
+					.state(TestStates.S2)
+					.end(TestStates.SF)
+					.and()
+					.withStates()
+						.parent(TestStates.S2)
+						.initial(TestStates.S20)
+						.state(TestStates.S20)
+						.state(TestStates.S21)
+						.and()
+					.withStates()
+						.parent(TestStates.S2)
+						.initial(TestStates.S30)
+						.state(TestStates.S30)
+						.state(TestStates.S31);
+		}
+
+		@Override
+		public void configure(StateMachineTransitionConfigurer<TestStates, TestEvents> transitions) throws Exception {
+			transitions
+				.withExternal()
+					.source(TestStates.SI)
+					.target(TestStates.S2)
+					.event(TestEvents.E1)
+					.and()
+				.withExternal()
+					.source(TestStates.S20)
+					.target(TestStates.S21)
+					.event(TestEvents.E2)
+					.and()
+				.withExternal()
+					.source(TestStates.S30)
+					.target(TestStates.S31)
+					.event(TestEvents.E3);
+		}
+
+	}
+
+	public static enum States {
+		S0, S1, S11, S12, S2, S21, S211, S212
+	}
+
+	public static enum Events {
+		C, D, I
+	}
+
+	private static class CountingAction implements Action<States, Events> {
+
+		final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public void execute(StateContext<States, Events> context) {
+			count.incrementAndGet();
+		}
+	}
+
+	private static class CountingListener extends StateMachineListenerAdapter<States, Events> {
+
+		final AtomicInteger stateChanged = new AtomicInteger();
+		final AtomicInteger stateMachineStopped = new AtomicInteger();
+
+		@Override
+		public void stateChanged(org.springframework.statemachine.state.State<States, Events> from,
+				org.springframework.statemachine.state.State<States, Events> to) {
+			stateChanged.incrementAndGet();
+		}
+
+		@Override
+		public void stateMachineStopped(StateMachine<States, Events> stateMachine) {
+			stateMachineStopped.incrementAndGet();
+		}
+	}
+
+	private static class InMemoryStateMachinePersist implements StateMachinePersist<States, Events, String> {
+
+		private final HashMap<String, StateMachineContext<States, Events>> contexts = new HashMap<String, StateMachineContext<States, Events>>();
+
+		@Override
+		public void write(StateMachineContext<States, Events> context, String contextObj) throws Exception {
+			contexts.put(contextObj, context);
+		}
+
+		@Override
+		public StateMachineContext<States, Events> read(String contextObj) throws Exception {
+			return contexts.get(contextObj);
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.config;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.config.StateMachineBuilder.Builder;
+import org.springframework.statemachine.config.configurers.StateConfigurer;
+
+/**
+ * Tests building machines from large generated models.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public class LargeModelTests {
+
+	private static final Log log = LogFactory.getLog(LargeModelTests.class);
+
+	@Test
+	public void testFlatModel() throws Exception {
+		StateMachine<String, String> machine = buildMachine(1000, 1000);
+		machine.start();
+		assertThat(machine.getState().getIds(), contains("S0"));
+		machine.sendEvent("E");
+		assertThat(machine.getState().getIds(), contains("S1"));
+		assertThat(machine.getStates().size(), is(1000));
+	}
+
+	@Test
+	public void testNestedModel() throws Exception {
+		StateMachine<String, String> machine = buildMachine(1000, 10);
+		machine.start();
+		// initial states are always a first child
+		assertThat(machine.getState().getIds(), contains("S0", "S1", "S11", "S111"));
+		machine.sendEvent("E");
+		assertThat(machine.getState().getIds(), contains("S0", "S1", "S11", "S112"));
+	}
+
+	@Test
+	public void testBuildTimes() throws Exception {
+		// warm up
+		buildMachine(1000, 10);
+		for (int size : new int[] { 100, 1000, 10000 }) {
+			long start = System.nanoTime();
+			buildMachine(size, size);
+			long flat = System.nanoTime() - start;
+			start = System.nanoTime();
+			buildMachine(size, 10);
+			long nested = System.nanoTime() - start;
+			log.info("Building machine with " + size + " states took " + flat / 1000000 + "ms flat and " + nested / 1000000
+					+ "ms nested");
+		}
+	}
+
+	/**
+	 * Builds a machine where state Si has a parent S((i-1)/fanOut) and a
+	 * first child of every parent is an initial state. Siblings are chained
+	 * with transitions using event E. With fan out of size, all states
+	 * are on a top level.
+	 */
+	private static StateMachine<String, String> buildMachine(int size, int fanOut) throws Exception {
+		Builder<String, String> builder = StateMachineBuilder.builder();
+		builder.configureConfiguration()
+			.withConfiguration()
+				.taskExecutor(new SyncTaskExecutor());
+
+		boolean flat = fanOut >= size;
+		List<List<String>> groups = new ArrayList<List<String>>();
+		List<String> parents = new ArrayList<String>();
+		if (flat) {
+			List<String> group = new ArrayList<String>();
+			for (int i = 0; i < size; i++) {
+				group.add("S" + i);
+			}
+			groups.add(group);
+			parents.add(null);
+		} else {
+			groups.add(new ArrayList<String>());
+			groups.get(0).add("S0");
+			parents.add(null);
+			for (int p = 0; p * fanOut + 1 < size; p++) {
+				List<String> group = new ArrayList<String>();
+				for (int i = p * fanOut + 1; i <= p * fanOut + fanOut && i < size; i++) {
+					group.add("S" + i);
+				}
+				groups.add(group);
+				parents.add("S" + p);
+			}
+		}
+
+		for (int i = 0; i < groups.size(); i++) {
+			StateConfigurer<String, String> states = builder.configureStates().withStates();
+			if (parents.get(i) != null) {
+				states.parent(parents.get(i));
+			}
+			states.initial(groups.get(i).get(0)).states(new LinkedHashSet<String>(groups.get(i)));
+		}
+
+		for (List<String> group : groups) {
+			for (int i = 0; i + 1 < group.size(); i++) {
+				builder.configureTransitions()
+					.withExternal()
+						.source(group.get(i)).target(group.get(i + 1)).event("E");
+			}
+		}
+		return builder.build();
+	}
+
+}
@@ -16,6 +16,9 @@
 package org.springframework.statemachine.config.model;
 
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 import java.util.ArrayList;
@@ -97,6 +100,73 @@ public class StateMachineModelFactoryTests extends AbstractStateMachineTests {
 		stateMachine.stop();
 	}
 
+	@Test
+	public void testCachingModelFactory() throws Exception {
+		context.register(Config1.class);
+		context.refresh();
+		TestStateMachineModelFactory modelFactory = new TestStateMachineModelFactory();
+		modelFactory.setBeanFactory(context);
+		CachingStateMachineModelFactory<String, String> cachingFactory =
+				new CachingStateMachineModelFactory<String, String>(modelFactory);
+
+		StateMachineModel<String, String> model1 = cachingFactory.build("m1");
+		assertThat(cachingFactory.build("m1"), sameInstance(model1));
+		assertThat(cachingFactory.build("m2"), not(sameInstance(model1)));
+		assertThat(cachingFactory.build(null), sameInstance(cachingFactory.build(null)));
+		assertThat(modelFactory.builds, is(3));
+
+		modelFactory.state1 = "SS1";
+		cachingFactory.invalidate("m1");
+		StateMachineModel<String, String> model2 = cachingFactory.build("m1");
+		assertThat(model2, not(sameInstance(model1)));
+		assertThat(model2.getStatesData().getStateData().iterator().next().getState(), is("SS1"));
+		assertThat(modelFactory.builds, is(4));
+
+		cachingFactory.invalidateAll();
+		cachingFactory.build("m1");
+		cachingFactory.build("m2");
+		assertThat(modelFactory.builds, is(6));
+	}
+
+	@Test
+	public void testCachingModelFactoryTimeToLive() throws Exception {
+		context.register(Config1.class);
+		context.refresh();
+		TestStateMachineModelFactory modelFactory = new TestStateMachineModelFactory();
+		modelFactory.setBeanFactory(context);
+		CachingStateMachineModelFactory<String, String> cachingFactory =
+				new CachingStateMachineModelFactory<String, String>(modelFactory);
+		cachingFactory.setTimeToLive(50);
+
+		StateMachineModel<String, String> model1 = cachingFactory.build("m1");
+		assertThat(cachingFactory.build("m1"), sameInstance(model1));
+		Thread.sleep(200);
+		assertThat(cachingFactory.build("m1"), not(sameInstance(model1)));
+		assertThat(modelFactory.builds, is(2));
+	}
+
+	@Test
+	public void testCachingModelFactoryWithStateMachineFactory() throws Exception {
+		context.register(Config1.class);
+		context.refresh();
+		TestStateMachineModelFactory modelFactory = new TestStateMachineModelFactory();
+		modelFactory.setBeanFactory(context);
+		CachingStateMachineModelFactory<String, String> cachingFactory =
+				new CachingStateMachineModelFactory<String, String>(modelFactory);
+		ObjectStateMachineFactory<String, String> factory = new ObjectStateMachineFactory<>(
+				new DefaultStateMachineModel<String, String>(new ConfigurationData<String, String>(), null, null), cachingFactory);
+
+		for (int i = 0; i < 3; i++) {
+			StateMachine<String,String> stateMachine = factory.getStateMachine("m1");
+			stateMachine.start();
+			assertThat(stateMachine.getState().getIds(), contains("S1"));
+			stateMachine.sendEvent("E1");
+			assertThat(stateMachine.getState().getIds(), contains("S2"));
+			stateMachine.stop();
+		}
+		assertThat(modelFactory.builds, is(1));
+	}
+
 	@Configuration
 	static class Config1 {
 		@Bean
@@ -167,9 +237,11 @@ public class StateMachineModelFactoryTests extends AbstractStateMachineTests {
 		String state1 = "S1";
 		String state2 = "S2";
 		String event1 = "E1";
+		int builds;
 
 		@Override
 		public StateMachineModel<String, String> build() {
+			builds++;
 
 			Action<String, String> action1 = beanFactory.getBean("action1", Action.class);
 			Collection<Action<String, String>> s2Actions = new ArrayList<>();
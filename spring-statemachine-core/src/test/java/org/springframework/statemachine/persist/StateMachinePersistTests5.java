@@ -0,0 +1,276 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.persist;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineContextRepository;
+import org.springframework.statemachine.config.StateMachineBuilder;
+import org.springframework.statemachine.config.StateMachineBuilder.Builder;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+/**
+ * Tests for persisting deltas of a state machine context.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public class StateMachinePersistTests5 {
+
+	@Test
+	public void testDeltasWithSnapshotInterval() throws Exception {
+		InMemoryDeltaPersist persist = new InMemoryDeltaPersist();
+		DefaultStateMachinePersister<String, String, String> persister = new DefaultStateMachinePersister<>(persist);
+		persister.setDeltaSnapshotInterval(2);
+
+		StateMachine<String, String> machine = buildMachine();
+		for (int i = 0; i < 100; i++) {
+			machine.getExtendedState().getVariables().put("key" + i, i);
+		}
+		persister.persist(machine, "xxx");
+		assertThat(persist.writes, contains("full:100"));
+
+		machine.sendEvent("E1");
+		machine.getExtendedState().getVariables().put("key0", -1);
+		persister.persist(machine, "xxx");
+		assertThat(persist.writes, contains("full:100", "delta:1"));
+		assertThat(persist.lastDelta.getState(), is("S2"));
+
+		machine.getExtendedState().getVariables().remove("key1");
+		persister.persist(machine, "xxx");
+		assertThat(persist.writes, contains("full:100", "delta:1", "delta:1", "full:99"));
+		assertThat(persist.lastDelta.getExtendedState().getVariables().get("key1"), is(StateMachineContextDeltas.REMOVED));
+
+		// different context object always gets a full context
+		persister.persist(machine, "yyy");
+		assertThat(persist.writes, contains("full:100", "delta:1", "delta:1", "full:99", "full:99"));
+
+		StateMachine<String, String> restored = persister.restore(buildMachine(), "xxx");
+		assertThat(restored.getState().getId(), is("S2"));
+		assertThat(restored.getExtendedState().getVariables().size(), is(99));
+		assertThat(restored.getExtendedState().getVariables().get("key0"), is((Object) (-1)));
+	}
+
+	@Test
+	public void testDeltaAfterRestore() throws Exception {
+		InMemoryDeltaPersist persist = new InMemoryDeltaPersist();
+		DefaultStateMachinePersister<String, String, String> persister = new DefaultStateMachinePersister<>(persist);
+		persister.setDeltaSnapshotInterval(10);
+
+		StateMachine<String, String> machine = buildMachine();
+		machine.getExtendedState().getVariables().put("foo", 1);
+		machine.getExtendedState().getVariables().put("bar", 1);
+		persister.persist(machine, "xxx");
+
+		machine = persister.restore(buildMachine(), "xxx");
+		machine.getExtendedState().getVariables().put("foo", 2);
+		persister.persist(machine, "xxx");
+		assertThat(persist.writes, contains("full:2", "delta:1"));
+
+		machine = persister.restore(buildMachine(), "xxx");
+		assertThat(machine.getExtendedState().getVariables().get("foo"), is((Object) 2));
+		assertThat(machine.getExtendedState().getVariables().get("bar"), is((Object) 1));
+	}
+
+	@Test
+	public void testFullContextAfterFailedWrite() throws Exception {
+		InMemoryDeltaPersist persist = new InMemoryDeltaPersist();
+		DefaultStateMachinePersister<String, String, String> persister = new DefaultStateMachinePersister<>(persist);
+		persister.setDeltaSnapshotInterval(10);
+
+		StateMachine<String, String> machine = buildMachine();
+		machine.getExtendedState().getVariables().put("foo", 1);
+		persister.persist(machine, "xxx");
+
+		persist.fail = true;
+		machine.getExtendedState().getVariables().put("foo", 2);
+		try {
+			persister.persist(machine, "xxx");
+		} catch (Exception e) {
+		}
+		persist.fail = false;
+		machine.getExtendedState().getVariables().put("bar", 1);
+		persister.persist(machine, "xxx");
+		assertThat(persist.writes, contains("full:1", "full:2"));
+	}
+
+	@Test
+	public void testMutableVariableModifiedInPlace() throws Exception {
+		InMemoryDeltaPersist persist = new InMemoryDeltaPersist();
+		DefaultStateMachinePersister<String, String, String> persister = new DefaultStateMachinePersister<>(persist);
+		persister.setDeltaSnapshotInterval(10);
+
+		StateMachine<String, String> machine = buildMachine();
+		List<String> list = new ArrayList<>();
+		machine.getExtendedState().getVariables().put("list", list);
+		machine.getExtendedState().getVariables().put("foo", 1);
+		persister.persist(machine, "xxx");
+
+		list.add("bar");
+		persister.persist(machine, "xxx");
+		assertThat(persist.writes, contains("full:2", "delta:1"));
+		assertThat(persist.lastDelta.getExtendedState().getVariables().get("list"), is((Object) list));
+
+		machine = persister.restore(buildMachine(), "xxx");
+		assertThat(machine.getExtendedState().getVariables().get("list"), is((Object) list));
+		assertThat(machine.getExtendedState().getVariables().get("foo"), is((Object) 1));
+	}
+
+	@Test
+	public void testDeltasDisabledByDefault() throws Exception {
+		InMemoryDeltaPersist persist = new InMemoryDeltaPersist();
+		DefaultStateMachinePersister<String, String, String> persister = new DefaultStateMachinePersister<>(persist);
+
+		StateMachine<String, String> machine = buildMachine();
+		machine.getExtendedState().getVariables().put("foo", 1);
+		persister.persist(machine, "xxx");
+		machine.getExtendedState().getVariables().put("foo", 2);
+		persister.persist(machine, "xxx");
+		assertThat(persist.writes, contains("full:1", "full:1"));
+	}
+
+	@Test
+	public void testRepositoryWithoutDeltaSupport() throws Exception {
+		InMemoryRepository repository = new InMemoryRepository();
+		RepositoryStateMachinePersist<String, String> persist = new RepositoryStateMachinePersist<>(repository);
+
+		Map<Object, Object> variables = new HashMap<>();
+		variables.put("foo", 1);
+		variables.put("bar", 1);
+		persist.write(new DefaultStateMachineContext<String, String>("S1", null, null, new DefaultExtendedState(variables)), "xxx");
+		variables = new HashMap<>();
+		variables.put("foo", StateMachineContextDeltas.REMOVED);
+		variables.put("bar", 2);
+		persist.writeDelta(new DefaultStateMachineContext<String, String>("S2", null, null, new DefaultExtendedState(variables)), "xxx");
+
+		StateMachineContext<String, String> context = persist.read("xxx");
+		assertThat(context.getState(), is("S2"));
+		assertThat(context.getExtendedState().getVariables().size(), is(1));
+		assertThat(context.getExtendedState().getVariables().get("bar"), is((Object) 2));
+	}
+
+	@Test
+	public void testFullContextsWithRepositoryWithoutDeltaSupport() throws Exception {
+		InMemoryRepository repository = new InMemoryRepository();
+		RepositoryStateMachinePersist<String, String> persist = new RepositoryStateMachinePersist<>(repository);
+		DefaultStateMachinePersister<String, String, String> persister = new DefaultStateMachinePersister<>(persist);
+		persister.setDeltaSnapshotInterval(10);
+
+		StateMachine<String, String> machine = buildMachine();
+		machine.getExtendedState().getVariables().put("foo", 1);
+		persister.persist(machine, "xxx");
+		machine.getExtendedState().getVariables().put("foo", 2);
+		persister.persist(machine, "xxx");
+
+		// full contexts are saved without reading a current one back
+		assertThat(persist.isDeltaSupported(), is(false));
+		assertThat(repository.saves, is(2));
+		assertThat(repository.reads, is(0));
+		assertThat(repository.contexts.get("xxx").getExtendedState().getVariables().get("foo"), is((Object) 2));
+	}
+
+	private static StateMachine<String, String> buildMachine() throws Exception {
+		Builder<String, String> builder = StateMachineBuilder.builder();
+		builder.configureConfiguration()
+			.withConfiguration()
+				.taskExecutor(new SyncTaskExecutor());
+		builder.configureStates()
+			.withStates()
+				.initial("S1")
+				.state("S2");
+		builder.configureTransitions()
+			.withExternal()
+				.source("S1").target("S2").event("E1");
+		StateMachine<String, String> machine = builder.build();
+		machine.start();
+		return machine;
+	}
+
+	private static class InMemoryDeltaPersist implements StateMachineDeltaPersist<String, String, String> {
+
+		final Map<String, StateMachineContext<String, String>> contexts = new HashMap<>();
+		final Map<String, List<StateMachineContext<String, String>>> deltas = new HashMap<>();
+		final List<String> writes = new ArrayList<>();
+		StateMachineContext<String, String> lastDelta;
+		boolean fail;
+
+		@Override
+		public void write(StateMachineContext<String, String> context, String contextOjb) throws Exception {
+			if (fail) {
+				throw new RuntimeException();
+			}
+			writes.add("full:" + context.getExtendedState().getVariables().size());
+			contexts.put(contextOjb, context);
+			deltas.remove(contextOjb);
+		}
+
+		@Override
+		public boolean isDeltaSupported() {
+			return true;
+		}
+
+		@Override
+		public int writeDelta(StateMachineContext<String, String> delta, String contextOjb) throws Exception {
+			if (fail) {
+				throw new RuntimeException();
+			}
+			writes.add("delta:" + delta.getExtendedState().getVariables().size());
+			lastDelta = delta;
+			if (!deltas.containsKey(contextOjb)) {
+				deltas.put(contextOjb, new ArrayList<StateMachineContext<String, String>>());
+			}
+			deltas.get(contextOjb).add(delta);
+			return deltas.get(contextOjb).size();
+		}
+
+		@Override
+		public StateMachineContext<String, String> read(String contextOjb) throws Exception {
+			return StateMachineContextDeltas.applyDeltas(contexts.get(contextOjb), deltas.get(contextOjb));
+		}
+	}
+
+	private static class InMemoryRepository
+			implements StateMachineContextRepository<String, String, StateMachineContext<String, String>> {
+
+		final Map<String, StateMachineContext<String, String>> contexts = new HashMap<>();
+		int saves;
+		int reads;
+
+		@Override
+		public void save(StateMachineContext<String, String> context, String id) {
+			saves++;
+			contexts.put(id, context);
+		}
+
+		@Override
+		public StateMachineContext<String, String> getContext(String id) {
+			reads++;
+			return contexts.get(id);
+		}
+	}
+}
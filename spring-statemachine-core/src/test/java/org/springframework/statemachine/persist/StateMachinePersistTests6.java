@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.persist;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineContextBulkRepository;
+import org.springframework.statemachine.StateMachineContextRepository;
+import org.springframework.statemachine.StateMachinePersist;
+import org.springframework.statemachine.config.StateMachineBuilder;
+import org.springframework.statemachine.config.StateMachineBuilder.Builder;
+
+/**
+ * Tests for bulk persist and restore of state machines.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public class StateMachinePersistTests6 {
+
+	@Test
+	public void testPersistAllAndRestoreAll() throws Exception {
+		InMemoryRepository repository = new InMemoryRepository();
+		StateMachineBulkPersister<String, String, String> persister = new DefaultStateMachinePersister<>(
+				new RepositoryStateMachinePersist<>(repository));
+
+		Map<String, StateMachine<String, String>> machines = new LinkedHashMap<>();
+		for (int i = 0; i < 10; i++) {
+			StateMachine<String, String> machine = buildMachine();
+			if (i % 2 == 0) {
+				machine.sendEvent("E1");
+			}
+			machine.getExtendedState().getVariables().put("index", i);
+			machines.put("id" + i, machine);
+		}
+		persister.persistAll(machines);
+		assertThat(repository.saveAllCount, is(1));
+		assertThat(repository.contexts.size(), is(10));
+
+		Map<String, StateMachine<String, String>> restored = new LinkedHashMap<>();
+		for (int i = 0; i < 11; i++) {
+			restored.put("id" + i, buildMachine());
+		}
+		persister.restoreAll(restored);
+		assertThat(repository.getContextsCount, is(1));
+		assertThat(repository.getContextCount, is(0));
+		for (int i = 0; i < 10; i++) {
+			StateMachine<String, String> machine = restored.get("id" + i);
+			assertThat(machine.getState().getId(), is(i % 2 == 0 ? "S2" : "S1"));
+			assertThat(machine.getExtendedState().get("index", Integer.class), is(i));
+		}
+		// machine without persisted context is reset
+		assertThat(restored.get("id10").getState().getId(), is("S1"));
+	}
+
+	@Test
+	public void testPersistAllWithoutBulkSupport() throws Exception {
+		final Map<String, StateMachineContext<String, String>> contexts = new HashMap<>();
+		StateMachineBulkPersister<String, String, String> persister = new DefaultStateMachinePersister<>(
+				new StateMachinePersist<String, String, String>() {
+
+					@Override
+					public void write(StateMachineContext<String, String> context, String contextOjb) throws Exception {
+						contexts.put(contextOjb, context);
+					}
+
+					@Override
+					public StateMachineContext<String, String> read(String contextOjb) throws Exception {
+						return contexts.get(contextOjb);
+					}
+				});
+
+		Map<String, StateMachine<String, String>> machines = new LinkedHashMap<>();
+		StateMachine<String, String> machine = buildMachine();
+		machine.sendEvent("E1");
+		machines.put("id1", machine);
+		persister.persistAll(machines);
+		assertThat(contexts.size(), is(1));
+
+		machines.put("id1", buildMachine());
+		persister.restoreAll(machines);
+		assertThat(machines.get("id1").getState().getId(), is("S2"));
+	}
+
+	@Test
+	public void testRepositoryWithoutBulkSupport() throws Exception {
+		final Map<String, StateMachineContext<String, String>> contexts = new HashMap<>();
+		StateMachineBulkPersister<String, String, String> persister = new DefaultStateMachinePersister<>(
+				new RepositoryStateMachinePersist<>(
+						new StateMachineContextRepository<String, String, StateMachineContext<String, String>>() {
+
+							@Override
+							public void save(StateMachineContext<String, String> context, String id) {
+								contexts.put(id, context);
+							}
+
+							@Override
+							public StateMachineContext<String, String> getContext(String id) {
+								return contexts.get(id);
+							}
+						}));
+
+		Map<String, StateMachine<String, String>> machines = new LinkedHashMap<>();
+		StateMachine<String, String> machine = buildMachine();
+		machine.sendEvent("E1");
+		machines.put("id1", machine);
+		machines.put("id2", buildMachine());
+		persister.persistAll(machines);
+		assertThat(contexts.size(), is(2));
+
+		machines.put("id1", buildMachine());
+		machines.put("id3", buildMachine());
+		persister.restoreAll(machines);
+		assertThat(machines.get("id1").getState().getId(), is("S2"));
+		assertThat(machines.get("id3").getState().getId(), is("S1"));
+	}
+
+	private static StateMachine<String, String> buildMachine() throws Exception {
+		Builder<String, String> builder = StateMachineBuilder.builder();
+		builder.configureConfiguration()
+			.withConfiguration()
+				.taskExecutor(new SyncTaskExecutor());
+		builder.configureStates()
+			.withStates()
+				.initial("S1")
+				.state("S2");
+		builder.configureTransitions()
+			.withExternal()
+				.source("S1").target("S2").event("E1");
+		StateMachine<String, String> machine = builder.build();
+		machine.start();
+		return machine;
+	}
+
+	private static class InMemoryRepository
+			implements StateMachineContextBulkRepository<String, String, StateMachineContext<String, String>> {
+
+		final Map<String, StateMachineContext<String, String>> contexts = new HashMap<>();
+		int getContextCount;
+		int saveAllCount;
+		int getContextsCount;
+
+		@Override
+		public void save(StateMachineContext<String, String> context, String id) {
+			contexts.put(id, context);
+		}
+
+		@Override
+		public StateMachineContext<String, String> getContext(String id) {
+			getContextCount++;
+			return contexts.get(id);
+		}
+
+		@Override
+		public void saveAll(Map<String, StateMachineContext<String, String>> contexts) {
+			saveAllCount++;
+			this.contexts.putAll(contexts);
+		}
+
+		@Override
+		public Map<String, StateMachineContext<String, String>> getContexts(Collection<String> ids) {
+			getContextsCount++;
+			Map<String, StateMachineContext<String, String>> found = new HashMap<>();
+			for (String id : ids) {
+				if (contexts.containsKey(id)) {
+					found.put(id, contexts.get(id));
+				}
+			}
+			return found;
+		}
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.persist;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachinePersist;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+/**
+ * Tests for {@link WriteBehindStateMachinePersist}.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public class StateMachinePersistTests7 {
+
+	@Test
+	public void testCoalescesWritesUntilFlush() throws Exception {
+		InMemoryPersist delegate = new InMemoryPersist();
+		WriteBehindStateMachinePersist<String, String, String> persist = new WriteBehindStateMachinePersist<>(delegate);
+
+		persist.write(context("S1"), "xxx");
+		persist.write(context("S2"), "xxx");
+		persist.write(context("S3"), "xxx");
+		persist.write(context("S1"), "yyy");
+		assertThat(persist.getBufferedCount(), is(2));
+		assertThat(delegate.writes.size(), is(0));
+
+		// reads see buffered contexts
+		assertThat(persist.read("xxx").getState(), is("S3"));
+		assertThat(persist.read("zzz"), nullValue());
+
+		persist.flush();
+		assertThat(persist.getBufferedCount(), is(0));
+		assertThat(delegate.writes.size(), is(2));
+		assertThat(delegate.contexts.get("xxx").getState(), is("S3"));
+		assertThat(delegate.contexts.get("yyy").getState(), is("S1"));
+		assertThat(persist.read("xxx").getState(), is("S3"));
+	}
+
+	@Test
+	public void testFlushOnBatchSize() throws Exception {
+		InMemoryPersist delegate = new InMemoryPersist();
+		delegate.latch = new CountDownLatch(3);
+		WriteBehindStateMachinePersist<String, String, String> persist = new WriteBehindStateMachinePersist<>(delegate);
+		persist.setBatchSize(3);
+		persist.setFlushInterval(60000);
+		persist.start();
+
+		persist.write(context("S1"), "id1");
+		persist.write(context("S1"), "id2");
+		assertThat(delegate.latch.await(200, TimeUnit.MILLISECONDS), is(false));
+		persist.write(context("S1"), "id3");
+		assertThat(delegate.latch.await(2, TimeUnit.SECONDS), is(true));
+		persist.stop();
+	}
+
+	@Test
+	public void testFlushOnBatchSizeWhenNotRunning() throws Exception {
+		InMemoryPersist delegate = new InMemoryPersist();
+		WriteBehindStateMachinePersist<String, String, String> persist = new WriteBehindStateMachinePersist<>(delegate);
+		persist.setBatchSize(3);
+
+		persist.write(context("S1"), "id1");
+		persist.write(context("S1"), "id2");
+		assertThat(delegate.writes.size(), is(0));
+		persist.write(context("S1"), "id3");
+		assertThat(delegate.writes.size(), is(3));
+		assertThat(persist.getBufferedCount(), is(0));
+
+		persist.start();
+		persist.stop();
+		persist.write(context("S2"), "id1");
+		persist.write(context("S2"), "id2");
+		persist.write(context("S2"), "id3");
+		assertThat(delegate.writes.size(), is(6));
+		assertThat(delegate.contexts.get("id3").getState(), is("S2"));
+	}
+
+	@Test
+	public void testFlushOnInterval() throws Exception {
+		InMemoryPersist delegate = new InMemoryPersist();
+		delegate.latch = new CountDownLatch(1);
+		WriteBehindStateMachinePersist<String, String, String> persist = new WriteBehindStateMachinePersist<>(delegate);
+		persist.setFlushInterval(100);
+		persist.start();
+
+		persist.write(context("S1"), "xxx");
+		assertThat(delegate.latch.await(2, TimeUnit.SECONDS), is(true));
+		assertThat(delegate.contexts.get("xxx"), notNullValue());
+		persist.stop();
+	}
+
+	@Test
+	public void testDrainOnStopAndDestroy() throws Exception {
+		InMemoryPersist delegate = new InMemoryPersist();
+		WriteBehindStateMachinePersist<String, String, String> persist = new WriteBehindStateMachinePersist<>(delegate);
+		persist.setFlushInterval(60000);
+		persist.start();
+		persist.write(context("S1"), "xxx");
+		persist.stop();
+		assertThat(delegate.contexts.get("xxx").getState(), is("S1"));
+
+		persist.write(context("S2"), "xxx");
+		persist.destroy();
+		assertThat(delegate.contexts.get("xxx").getState(), is("S2"));
+	}
+
+	@Test
+	public void testFailedFlushKeepsContexts() throws Exception {
+		InMemoryPersist delegate = new InMemoryPersist();
+		WriteBehindStateMachinePersist<String, String, String> persist = new WriteBehindStateMachinePersist<>(delegate);
+
+		persist.write(context("S1"), "xxx");
+		delegate.fail = true;
+		try {
+			persist.flush();
+		} catch (Exception e) {
+		}
+		assertThat(persist.getBufferedCount(), is(1));
+		assertThat(persist.read("xxx").getState(), is("S1"));
+
+		delegate.fail = false;
+		persist.flush();
+		assertThat(persist.getBufferedCount(), is(0));
+		assertThat(delegate.contexts.get("xxx").getState(), is("S1"));
+	}
+
+	@Test
+	public void testBulkDelegate() throws Exception {
+		InMemoryBulkPersist delegate = new InMemoryBulkPersist();
+		WriteBehindStateMachinePersist<String, String, String> persist = new WriteBehindStateMachinePersist<>(delegate);
+		persist.setBatchSize(4);
+
+		for (int i = 0; i < 10; i++) {
+			persist.write(context("S1"), "id" + i);
+		}
+		persist.flush();
+		assertThat(delegate.writes.size(), is(0));
+		assertThat(delegate.batches, is(Arrays.asList(4, 4, 2)));
+		assertThat(delegate.contexts.size(), is(10));
+
+		persist.write(context("S2"), "id0");
+		Map<String, StateMachineContext<String, String>> read = persist.readAll(Arrays.asList("id0", "id1", "id10"));
+		assertThat(read.size(), is(2));
+		assertThat(read.get("id0").getState(), is("S2"));
+		assertThat(read.get("id1").getState(), is("S1"));
+	}
+
+	@Test
+	public void testMaxBufferedCount() throws Exception {
+		InMemoryPersist delegate = new InMemoryPersist();
+		WriteBehindStateMachinePersist<String, String, String> persist = new WriteBehindStateMachinePersist<>(delegate);
+		persist.setMaxBufferedCount(2);
+
+		persist.write(context("S1"), "id1");
+		persist.write(context("S1"), "id2");
+		// replacing a buffered context doesn't need space
+		persist.write(context("S2"), "id2");
+		assertThat(delegate.writes.size(), is(0));
+		assertThat(persist.getBufferedCount(), is(2));
+
+		// full buffer is flushed in a writing thread
+		persist.write(context("S1"), "id3");
+		assertThat(delegate.writes.size(), is(2));
+		assertThat(persist.getBufferedCount(), is(1));
+
+		persist.write(context("S1"), "id4");
+		delegate.fail = true;
+		try {
+			persist.write(context("S1"), "id5");
+			fail("Expected write into a full buffer to fail");
+		} catch (RuntimeException e) {
+		}
+		assertThat(persist.getBufferedCount(), is(2));
+		assertThat(persist.read("id5"), nullValue());
+
+		delegate.fail = false;
+		persist.write(context("S1"), "id5");
+		assertThat(delegate.writes.size(), is(4));
+		assertThat(persist.getBufferedCount(), is(1));
+	}
+
+	private static StateMachineContext<String, String> context(String state) {
+		return new DefaultStateMachineContext<String, String>(state, null, null, null);
+	}
+
+	private static class InMemoryPersist implements StateMachinePersist<String, String, String> {
+
+		final Map<String, StateMachineContext<String, String>> contexts = new ConcurrentHashMap<>();
+		final List<String> writes = new ArrayList<>();
+		volatile CountDownLatch latch = new CountDownLatch(0);
+		volatile boolean fail;
+
+		@Override
+		public void write(StateMachineContext<String, String> context, String contextOjb) throws Exception {
+			if (fail) {
+				throw new RuntimeException();
+			}
+			writes.add(contextOjb);
+			contexts.put(contextOjb, context);
+			latch.countDown();
+		}
+
+		@Override
+		public StateMachineContext<String, String> read(String contextOjb) throws Exception {
+			return contexts.get(contextOjb);
+		}
+	}
+
+	private static class InMemoryBulkPersist extends InMemoryPersist
+			implements StateMachineBulkPersist<String, String, String> {
+
+		final List<Integer> batches = new ArrayList<>();
+
+		@Override
+		public void writeAll(Map<String, StateMachineContext<String, String>> contexts) throws Exception {
+			batches.add(contexts.size());
+			this.contexts.putAll(contexts);
+		}
+
+		@Override
+		public Map<String, StateMachineContext<String, String>> readAll(Collection<String> contextOjbs)
+				throws Exception {
+			Map<String, StateMachineContext<String, String>> found = new HashMap<>();
+			for (String contextOjb : contextOjbs) {
+				if (contexts.containsKey(contextOjb)) {
+					found.put(contextOjb, contexts.get(contextOjb));
+				}
+			}
+			return found;
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.persist;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineContextAsyncRepository;
+import org.springframework.statemachine.StateMachinePersist;
+import org.springframework.statemachine.config.StateMachineBuilder;
+import org.springframework.statemachine.config.StateMachineBuilder.Builder;
+import org.springframework.util.concurrent.ListenableFuture;
+
+/**
+ * Tests for asynchronous persist and restore of state machines.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public class StateMachinePersistTests8 {
+
+	private ThreadPoolTaskExecutor taskExecutor;
+
+	@Before
+	public void setup() {
+		taskExecutor = new ThreadPoolTaskExecutor();
+		taskExecutor.initialize();
+	}
+
+	@After
+	public void clean() {
+		taskExecutor.shutdown();
+	}
+
+	@Test
+	public void testPersistAsyncAndRestoreAsync() throws Exception {
+		AsyncInMemoryRepository repository = new AsyncInMemoryRepository();
+		StateMachineAsyncPersister<String, String, String> persister = new DefaultStateMachinePersister<>(
+				new RepositoryStateMachinePersist<>(repository));
+
+		StateMachine<String, String> machine = buildMachine();
+		machine.sendEvent("E1");
+		machine.getExtendedState().getVariables().put("foo", 1);
+		repository.latch = new CountDownLatch(1);
+		ListenableFuture<Void> persisted = persister.persistAsync(machine, "xxx");
+		// context is built before returning
+		machine.getExtendedState().getVariables().put("foo", 2);
+		assertThat(persisted.isDone(), is(false));
+		repository.latch.countDown();
+		persisted.get(2, TimeUnit.SECONDS);
+		assertThat(repository.saveAsyncCount, is(1));
+		assertThat(repository.contexts.get("xxx").getExtendedState().get("foo", Integer.class), is(1));
+
+		ListenableFuture<StateMachine<String, String>> restored = persister.restoreAsync(buildMachine(), "xxx");
+		StateMachine<String, String> restoredMachine = restored.get(2, TimeUnit.SECONDS);
+		assertThat(repository.getContextAsyncCount, is(1));
+		assertThat(restoredMachine.getState().getId(), is("S2"));
+		assertThat(restoredMachine.getExtendedState().get("foo", Integer.class), is(1));
+	}
+
+	@Test
+	public void testAsyncFailure() throws Exception {
+		AsyncInMemoryRepository repository = new AsyncInMemoryRepository();
+		repository.fail = true;
+		StateMachineAsyncPersister<String, String, String> persister = new DefaultStateMachinePersister<>(
+				new RepositoryStateMachinePersist<>(repository));
+
+		try {
+			persister.persistAsync(buildMachine(), "xxx").get(2, TimeUnit.SECONDS);
+			fail("Expected failure");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+		}
+		try {
+			persister.restoreAsync(buildMachine(), "xxx").get(2, TimeUnit.SECONDS);
+			fail("Expected failure");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+		}
+	}
+
+	@Test
+	public void testAsyncWithoutAsyncSupport() throws Exception {
+		final Map<String, StateMachineContext<String, String>> contexts = new ConcurrentHashMap<>();
+		StateMachineAsyncPersister<String, String, String> persister = new DefaultStateMachinePersister<>(
+				new StateMachinePersist<String, String, String>() {
+
+					@Override
+					public void write(StateMachineContext<String, String> context, String contextOjb) throws Exception {
+						contexts.put(contextOjb, context);
+					}
+
+					@Override
+					public StateMachineContext<String, String> read(String contextOjb) throws Exception {
+						return contexts.get(contextOjb);
+					}
+				});
+
+		StateMachine<String, String> machine = buildMachine();
+		machine.sendEvent("E1");
+		ListenableFuture<Void> persisted = persister.persistAsync(machine, "xxx");
+		assertThat(persisted.isDone(), is(true));
+		assertThat(persisted.get(), nullValue());
+		assertThat(contexts.size(), is(1));
+
+		ListenableFuture<StateMachine<String, String>> restored = persister.restoreAsync(buildMachine(), "xxx");
+		assertThat(restored.isDone(), is(true));
+		assertThat(restored.get().getState().getId(), is("S2"));
+	}
+
+	private static StateMachine<String, String> buildMachine() throws Exception {
+		Builder<String, String> builder = StateMachineBuilder.builder();
+		builder.configureConfiguration()
+			.withConfiguration()
+				.taskExecutor(new SyncTaskExecutor());
+		builder.configureStates()
+			.withStates()
+				.initial("S1")
+				.state("S2");
+		builder.configureTransitions()
+			.withExternal()
+				.source("S1").target("S2").event("E1");
+		StateMachine<String, String> machine = builder.build();
+		machine.start();
+		return machine;
+	}
+
+	private class AsyncInMemoryRepository
+			implements StateMachineContextAsyncRepository<String, String, StateMachineContext<String, String>> {
+
+		final Map<String, StateMachineContext<String, String>> contexts = new ConcurrentHashMap<>();
+		volatile CountDownLatch latch = new CountDownLatch(0);
+		volatile int saveAsyncCount;
+		volatile int getContextAsyncCount;
+		volatile boolean fail;
+
+		@Override
+		public void save(StateMachineContext<String, String> context, String id) {
+			if (fail) {
+				throw new IllegalStateException();
+			}
+			contexts.put(id, context);
+		}
+
+		@Override
+		public StateMachineContext<String, String> getContext(String id) {
+			if (fail) {
+				throw new IllegalStateException();
+			}
+			return contexts.get(id);
+		}
+
+		@Override
+		public ListenableFuture<Void> saveAsync(final StateMachineContext<String, String> context, final String id) {
+			saveAsyncCount++;
+			return taskExecutor.submitListenable(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					latch.await();
+					save(context, id);
+					return null;
+				}
+			});
+		}
+
+		@Override
+		public ListenableFuture<StateMachineContext<String, String>> getContextAsync(final String id) {
+			getContextAsyncCount++;
+			return taskExecutor.submitListenable(new Callable<StateMachineContext<String, String>>() {
+
+				@Override
+				public StateMachineContext<String, String> call() throws Exception {
+					return getContext(id);
+				}
+			});
+		}
+	}
+}
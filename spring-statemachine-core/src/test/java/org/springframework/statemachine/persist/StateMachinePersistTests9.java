@@ -0,0 +1,304 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.persist;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineContextBulkRepository;
+import org.springframework.statemachine.config.StateMachineBuilder;
+import org.springframework.statemachine.config.StateMachineBuilder.Builder;
+import org.springframework.statemachine.persist.CachingStateMachineContextRepository.EvictionPolicy;
+import org.springframework.statemachine.persist.CachingStateMachineContextRepository.VersionProvider;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+/**
+ * Tests for {@link CachingStateMachineContextRepository}.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public class StateMachinePersistTests9 {
+
+	@Test
+	public void testWriteThroughAndCachedRestore() throws Exception {
+		InMemoryRepository delegate = new InMemoryRepository();
+		CachingStateMachineContextRepository<String, String> repository = new CachingStateMachineContextRepository<>(
+				delegate, 10);
+		StateMachinePersister<String, String, String> persister = new DefaultStateMachinePersister<>(
+				new RepositoryStateMachinePersist<>(repository));
+
+		StateMachine<String, String> machine = buildMachine();
+		machine.sendEvent("E1");
+		machine.getExtendedState().getVariables().put("foo", 1);
+		persister.persist(machine, "xxx");
+		assertThat(delegate.saveCount, is(1));
+
+		StateMachine<String, String> restored = persister.restore(buildMachine(), "xxx");
+		assertThat(restored.getState().getId(), is("S2"));
+		assertThat(delegate.getCount, is(0));
+		assertThat(repository.getHitCount(), is(1L));
+
+		// restored machine must not modify a cached context
+		restored.getExtendedState().getVariables().put("foo", 2);
+		restored = persister.restore(buildMachine(), "xxx");
+		assertThat(restored.getExtendedState().get("foo", Integer.class), is(1));
+
+		persister.persist(machine, "xxx");
+		assertThat(delegate.saveCount, is(2));
+	}
+
+	@Test
+	public void testLruEviction() throws Exception {
+		InMemoryRepository delegate = new InMemoryRepository();
+		CachingStateMachineContextRepository<String, String> repository = new CachingStateMachineContextRepository<>(
+				delegate, 2);
+
+		repository.save(context("S1"), "id1");
+		repository.save(context("S1"), "id2");
+		repository.getContext("id1");
+		repository.save(context("S1"), "id3");
+		assertThat(repository.getSize(), is(2));
+
+		repository.getContext("id1");
+		repository.getContext("id3");
+		assertThat(delegate.getCount, is(0));
+		repository.getContext("id2");
+		assertThat(delegate.getCount, is(1));
+	}
+
+	@Test
+	public void testLfuEviction() throws Exception {
+		InMemoryRepository delegate = new InMemoryRepository();
+		CachingStateMachineContextRepository<String, String> repository = new CachingStateMachineContextRepository<>(
+				delegate, 2);
+		repository.setEvictionPolicy(EvictionPolicy.LFU);
+
+		repository.save(context("S1"), "id1");
+		repository.save(context("S1"), "id2");
+		repository.getContext("id1");
+		repository.getContext("id1");
+		repository.getContext("id2");
+		// id2 is used less frequently even if used more recently
+		repository.save(context("S1"), "id3");
+		repository.getContext("id1");
+		repository.getContext("id3");
+		assertThat(delegate.getCount, is(0));
+		repository.getContext("id2");
+		assertThat(delegate.getCount, is(1));
+
+		repository.invalidate("id3");
+		repository.save(context("S1"), "id4");
+		repository.save(context("S1"), "id5");
+		assertThat(repository.getSize(), is(2));
+	}
+
+	@Test
+	public void testVersionCheck() throws Exception {
+		InMemoryRepository delegate = new InMemoryRepository();
+		CachingStateMachineContextRepository<String, String> repository = new CachingStateMachineContextRepository<>(
+				delegate, 10);
+		final Map<String, Integer> versions = new HashMap<>();
+		repository.setVersionProvider(new VersionProvider() {
+
+			@Override
+			public Object getVersion(String id) {
+				return versions.get(id);
+			}
+		});
+
+		versions.put("xxx", 1);
+		repository.save(context("S1"), "xxx");
+		// version written by a save is not known
+		assertThat(repository.getSize(), is(0));
+		assertThat(repository.getContext("xxx").getState(), is("S1"));
+		assertThat(delegate.getCount, is(1));
+		assertThat(repository.getContext("xxx").getState(), is("S1"));
+		assertThat(delegate.getCount, is(1));
+
+		// other node writes into a store
+		delegate.contexts.put("xxx", context("S2"));
+		versions.put("xxx", 2);
+		assertThat(repository.getContext("xxx").getState(), is("S2"));
+		assertThat(delegate.getCount, is(2));
+		assertThat(repository.getContext("xxx").getState(), is("S2"));
+		assertThat(delegate.getCount, is(2));
+	}
+
+	@Test
+	public void testOverlappingWritesNotCached() throws Exception {
+		final InMemoryRepository delegate = new InMemoryRepository();
+		final CachingStateMachineContextRepository<String, String> repository = new CachingStateMachineContextRepository<>(
+				delegate, 10);
+
+		// other thread saves while a save is in progress and is written first
+		delegate.onSave = new Runnable() {
+
+			@Override
+			public void run() {
+				delegate.onSave = null;
+				repository.save(context("S2"), "xxx");
+			}
+		};
+		repository.save(context("S1"), "xxx");
+		assertThat(delegate.contexts.get("xxx").getState(), is("S1"));
+		assertThat(repository.getSize(), is(0));
+		assertThat(repository.getContext("xxx").getState(), is("S1"));
+		assertThat(repository.getSize(), is(1));
+
+		// other thread saves while a context is read
+		repository.invalidateAll();
+		delegate.onGet = new Runnable() {
+
+			@Override
+			public void run() {
+				delegate.onGet = null;
+				repository.save(context("S3"), "xxx");
+			}
+		};
+		assertThat(repository.getContext("xxx").getState(), is("S1"));
+		assertThat(repository.getContext("xxx").getState(), is("S3"));
+	}
+
+	@Test
+	public void testOverlappingWritesOfOtherIdsCached() throws Exception {
+		final InMemoryRepository delegate = new InMemoryRepository();
+		final CachingStateMachineContextRepository<String, String> repository = new CachingStateMachineContextRepository<>(
+				delegate, 1000);
+
+		// writes of other ids in progress don't invalidate each other
+		delegate.onSave = new Runnable() {
+
+			@Override
+			public void run() {
+				delegate.onSave = null;
+				for (int i = 0; i < 100; i++) {
+					repository.save(context("S2"), "id" + i);
+				}
+			}
+		};
+		repository.save(context("S1"), "xxx");
+		assertThat(repository.getSize(), is(101));
+		assertThat(repository.getContext("xxx").getState(), is("S1"));
+		assertThat(delegate.getCount, is(0));
+	}
+
+	@Test
+	public void testDeltaAndBulk() throws Exception {
+		InMemoryRepository delegate = new InMemoryRepository();
+		CachingStateMachineContextRepository<String, String> repository = new CachingStateMachineContextRepository<>(
+				delegate, 10);
+
+		Map<Object, Object> variables = new HashMap<>();
+		variables.put("foo", 1);
+		repository.save(new DefaultStateMachineContext<String, String>("S1", null, null,
+				new DefaultExtendedState(variables)), "xxx");
+		variables = new HashMap<>();
+		variables.put("foo", 2);
+		repository.saveDelta(new DefaultStateMachineContext<String, String>("S2", null, null,
+				new DefaultExtendedState(variables)), "xxx");
+		StateMachineContext<String, String> context = repository.getContext("xxx");
+		assertThat(context.getState(), is("S2"));
+		assertThat(context.getExtendedState().get("foo", Integer.class), is(2));
+		assertThat(delegate.contexts.get("xxx").getState(), is("S2"));
+
+		delegate.contexts.put("yyy", context("S1"));
+		Map<String, StateMachineContext<String, String>> contexts = repository.getContexts(Arrays.asList("xxx", "yyy", "zzz"));
+		assertThat(contexts.size(), is(2));
+		assertThat(delegate.getContextsCount, is(1));
+		contexts = repository.getContexts(Arrays.asList("xxx", "yyy"));
+		assertThat(contexts.size(), is(2));
+		assertThat(delegate.getContextsCount, is(1));
+	}
+
+	private static StateMachineContext<String, String> context(String state) {
+		return new DefaultStateMachineContext<String, String>(state, null, null, null);
+	}
+
+	private static StateMachine<String, String> buildMachine() throws Exception {
+		Builder<String, String> builder = StateMachineBuilder.builder();
+		builder.configureConfiguration()
+			.withConfiguration()
+				.taskExecutor(new SyncTaskExecutor());
+		builder.configureStates()
+			.withStates()
+				.initial("S1")
+				.state("S2");
+		builder.configureTransitions()
+			.withExternal()
+				.source("S1").target("S2").event("E1");
+		StateMachine<String, String> machine = builder.build();
+		machine.start();
+		return machine;
+	}
+
+	private static class InMemoryRepository
+			implements StateMachineContextBulkRepository<String, String, StateMachineContext<String, String>> {
+
+		final Map<String, StateMachineContext<String, String>> contexts = new HashMap<>();
+		int saveCount;
+		int getCount;
+		int getContextsCount;
+		Runnable onSave;
+		Runnable onGet;
+
+		@Override
+		public void save(StateMachineContext<String, String> context, String id) {
+			saveCount++;
+			if (onSave != null) {
+				onSave.run();
+			}
+			contexts.put(id, context);
+		}
+
+		@Override
+		public StateMachineContext<String, String> getContext(String id) {
+			getCount++;
+			StateMachineContext<String, String> context = contexts.get(id);
+			if (onGet != null) {
+				onGet.run();
+			}
+			return context;
+		}
+
+		@Override
+		public void saveAll(Map<String, StateMachineContext<String, String>> contexts) {
+			this.contexts.putAll(contexts);
+		}
+
+		@Override
+		public Map<String, StateMachineContext<String, String>> getContexts(Collection<String> ids) {
+			getContextsCount++;
+			Map<String, StateMachineContext<String, String>> found = new HashMap<>();
+			for (String id : ids) {
+				if (contexts.containsKey(id)) {
+					found.put(id, contexts.get(id));
+				}
+			}
+			return found;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.pool;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.springframework.context.Lifecycle;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.statemachine.AbstractStateMachineTests;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineException;
+import org.springframework.statemachine.StateMachineSystemConstants;
+import org.springframework.statemachine.config.EnableStateMachineFactory;
+import org.springframework.statemachine.config.EnumStateMachineConfigurerAdapter;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.config.builders.StateMachineStateConfigurer;
+import org.springframework.statemachine.config.builders.StateMachineTransitionConfigurer;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+public class DefaultStateMachinePoolTests extends AbstractStateMachineTests {
+
+	@Override
+	protected AnnotationConfigApplicationContext buildContext() {
+		return new AnnotationConfigApplicationContext();
+	}
+
+	@Test
+	public void testBorrowAndReleaseResetsToInitial() throws Exception {
+		context.register(BaseConfig.class, Config1.class);
+		context.refresh();
+		DefaultStateMachinePool<TestStates, TestEvents> pool = new DefaultStateMachinePool<TestStates, TestEvents>(
+				resolveFactory(), 2);
+
+		StateMachine<TestStates, TestEvents> machine1 = pool.borrow();
+		assertThat(machine1.getState().getIds(), containsInAnyOrder(TestStates.S1));
+		machine1.sendEvent(TestEvents.E1);
+		machine1.getExtendedState().getVariables().put("foo", "bar");
+		assertThat(machine1.getState().getIds(), containsInAnyOrder(TestStates.S2, TestStates.S20));
+		assertThat(pool.getSize(), is(1));
+		assertThat(pool.getActiveCount(), is(1));
+		assertThat(pool.getIdleCount(), is(0));
+
+		pool.release(machine1);
+		assertThat(pool.getActiveCount(), is(0));
+		assertThat(pool.getIdleCount(), is(1));
+
+		StateMachine<TestStates, TestEvents> machine2 = pool.borrow();
+		assertThat(machine2, sameInstance(machine1));
+		assertThat(machine2.getState().getIds(), containsInAnyOrder(TestStates.S1));
+		assertThat(machine2.getExtendedState().getVariables().get("foo"), nullValue());
+		machine2.sendEvent(TestEvents.E1);
+		assertThat(machine2.getState().getIds(), containsInAnyOrder(TestStates.S2, TestStates.S20));
+		machine2.sendEvent(TestEvents.E2);
+		assertThat(machine2.getState().getIds(), containsInAnyOrder(TestStates.S2, TestStates.S21));
+		pool.release(machine2);
+		pool.destroy();
+		assertThat(pool.getSize(), is(0));
+	}
+
+	@Test
+	public void testBorrowWithContext() throws Exception {
+		context.register(BaseConfig.class, Config1.class);
+		context.refresh();
+		DefaultStateMachinePool<TestStates, TestEvents> pool = new DefaultStateMachinePool<TestStates, TestEvents>(
+				resolveFactory(), 1);
+
+		DefaultExtendedState extendedState = new DefaultExtendedState();
+		extendedState.getVariables().put("foo", "bar");
+		StateMachine<TestStates, TestEvents> machine = pool.borrow(
+				new DefaultStateMachineContext<TestStates, TestEvents>(TestStates.S3, null, null, extendedState));
+		assertThat(machine.getState().getIds(), containsInAnyOrder(TestStates.S3));
+		assertThat(machine.getExtendedState().get("foo", String.class), is("bar"));
+		pool.release(machine);
+
+		machine = pool.borrow();
+		assertThat(machine.getState().getIds(), containsInAnyOrder(TestStates.S1));
+		assertThat(machine.getExtendedState().getVariables().get("foo"), nullValue());
+	}
+
+	@Test(expected = StateMachineException.class)
+	public void testPoolExhausted() throws Exception {
+		context.register(BaseConfig.class, Config1.class);
+		context.refresh();
+		DefaultStateMachinePool<TestStates, TestEvents> pool = new DefaultStateMachinePool<TestStates, TestEvents>(
+				resolveFactory(), 1);
+		assertThat(pool.borrow(), notNullValue());
+		pool.borrow();
+	}
+
+	@Test
+	public void testFailedResetStopsMachine() throws Exception {
+		context.register(BaseConfig.class, Config1.class);
+		context.refresh();
+		DefaultStateMachinePool<TestStates, TestEvents> pool = new DefaultStateMachinePool<TestStates, TestEvents>(
+				resolveFactory(), 1) {
+
+			@Override
+			protected void resetStateMachine(StateMachine<TestStates, TestEvents> stateMachine) {
+				throw new RuntimeException("reset failed");
+			}
+		};
+		StateMachine<TestStates, TestEvents> machine = pool.borrow();
+		assertThat(((Lifecycle) machine).isRunning(), is(true));
+		pool.release(machine);
+		assertThat(((Lifecycle) machine).isRunning(), is(false));
+		assertThat(pool.getSize(), is(0));
+		assertThat(pool.getIdleCount(), is(0));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testReleaseForeignMachine() throws Exception {
+		context.register(BaseConfig.class, Config1.class);
+		context.refresh();
+		DefaultStateMachinePool<TestStates, TestEvents> pool = new DefaultStateMachinePool<TestStates, TestEvents>(
+				resolveFactory(), 1);
+		pool.release(resolveFactory().getStateMachine());
+	}
+
+	@Test
+	public void testConcurrentBorrowStaysWithinMaxSize() throws Exception {
+		context.register(BaseConfig.class, Config1.class);
+		context.refresh();
+		final DefaultStateMachinePool<TestStates, TestEvents> pool = new DefaultStateMachinePool<TestStates, TestEvents>(
+				resolveFactory(), 4);
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < 4; i++) {
+			futures.add(executor.submit(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() throws Exception {
+					for (int j = 0; j < 100; j++) {
+						StateMachine<TestStates, TestEvents> machine = pool.borrow();
+						if (!machine.getState().getIds().contains(TestStates.S1)) {
+							return false;
+						}
+						machine.sendEvent(TestEvents.E1);
+						pool.release(machine);
+					}
+					return true;
+				}
+			}));
+		}
+		for (Future<Boolean> future : futures) {
+			assertThat(future.get(), is(true));
+		}
+		executor.shutdown();
+		assertThat(pool.getSize() <= 4, is(true));
+		assertThat(pool.getIdleCount(), is(pool.getSize()));
+		assertThat(pool.getActiveCount(), is(0));
+	}
+
+	@SuppressWarnings("unchecked")
+	private StateMachineFactory<TestStates, TestEvents> resolveFactory() {
+		return context.getBean(StateMachineSystemConstants.DEFAULT_ID_STATEMACHINEFACTORY, StateMachineFactory.class);
+	}
+
+	@Configuration
+	@EnableStateMachineFactory
+	static class Config1 extends EnumStateMachineConfigurerAdapter<TestStates, TestEvents> {
+
+		@Override
+		public void configure(StateMachineStateConfigurer<TestStates, TestEvents> states) throws Exception {
+			states
+				.withStates()
+					.initial(TestStates.S1)
+					.state(TestStates.S2)
+					.state(TestStates.S3)
+					.and()
+					.withStates()
+						.parent(TestStates.S2)
+						.initial(TestStates.S20)
+						.state(TestStates.S21);
+		}
+
+		@Override
+		public void configure(StateMachineTransitionConfigurer<TestStates, TestEvents> transitions) throws Exception {
+			transitions
+				.withExternal()
+					.source(TestStates.S1)
+					.target(TestStates.S2)
+					.event(TestEvents.E1)
+					.and()
+				.withExternal()
+					.source(TestStates.S20)
+					.target(TestStates.S21)
+					.event(TestEvents.E2)
+					.and()
+				.withExternal()
+					.source(TestStates.S2)
+					.target(TestStates.S3)
+					.event(TestEvents.E3);
+		}
+
+	}
+
+}
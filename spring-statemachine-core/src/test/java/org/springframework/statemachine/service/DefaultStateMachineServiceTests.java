@@ -0,0 +1,348 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.service;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.springframework.context.Lifecycle;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.statemachine.AbstractStateMachineTests;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachinePersist;
+import org.springframework.statemachine.StateMachineSystemConstants;
+import org.springframework.statemachine.config.EnableStateMachineFactory;
+import org.springframework.statemachine.config.EnumStateMachineConfigurerAdapter;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.config.builders.StateMachineStateConfigurer;
+import org.springframework.statemachine.config.builders.StateMachineTransitionConfigurer;
+
+public class DefaultStateMachineServiceTests extends AbstractStateMachineTests {
+
+	@Override
+	protected AnnotationConfigApplicationContext buildContext() {
+		return new AnnotationConfigApplicationContext();
+	}
+
+	@Test
+	public void testAcquireHitAndMiss() throws Exception {
+		context.register(BaseConfig.class, Config1.class);
+		context.refresh();
+		InMemoryStateMachinePersist persist = new InMemoryStateMachinePersist();
+		DefaultStateMachineService<TestStates, TestEvents> service =
+				new DefaultStateMachineService<TestStates, TestEvents>(resolveFactory(), persist);
+
+		StateMachine<TestStates, TestEvents> machine1 = service.acquireStateMachine("m1");
+		assertThat(machine1.getId(), is("m1"));
+		assertThat(machine1.getState().getIds(), containsInAnyOrder(TestStates.S1));
+		StateMachine<TestStates, TestEvents> machine2 = service.acquireStateMachine("m1");
+		assertThat(machine2, sameInstance(machine1));
+		assertThat(service.acquireStateMachine("m2"), not(sameInstance(machine1)));
+
+		assertThat(service.getSize(), is(2));
+		assertThat(service.getHitCount(), is(1l));
+		assertThat(service.getMissCount(), is(2l));
+		assertThat(service.getEvictionCount(), is(0l));
+	}
+
+	@Test
+	public void testReleaseAndRehydrate() throws Exception {
+		context.register(BaseConfig.class, Config1.class);
+		context.refresh();
+		InMemoryStateMachinePersist persist = new InMemoryStateMachinePersist();
+		DefaultStateMachineService<TestStates, TestEvents> service =
+				new DefaultStateMachineService<TestStates, TestEvents>(resolveFactory(), persist);
+
+		StateMachine<TestStates, TestEvents> machine = service.acquireStateMachine("m1");
+		machine.sendEvent(TestEvents.E1);
+		machine.sendEvent(TestEvents.E2);
+		machine.getExtendedState().getVariables().put("foo", "bar");
+		assertThat(machine.getState().getIds(), containsInAnyOrder(TestStates.S2, TestStates.S21));
+
+		service.releaseStateMachine("m1");
+		assertThat(service.getSize(), is(1));
+		assertThat(persist.contexts.get("m1"), notNullValue());
+		service.setMaxIdleTime(1);
+		Thread.sleep(50);
+		service.evict();
+		assertThat(service.getSize(), is(0));
+
+		StateMachine<TestStates, TestEvents> restored = service.acquireStateMachine("m1");
+		assertThat(restored, not(sameInstance(machine)));
+		assertThat(restored.getState().getIds(), containsInAnyOrder(TestStates.S2, TestStates.S21));
+		assertThat(restored.getExtendedState().get("foo", String.class), is("bar"));
+		restored.sendEvent(TestEvents.E3);
+		assertThat(restored.getState().getIds(), containsInAnyOrder(TestStates.S3));
+	}
+
+	@Test
+	public void testSizeEviction() throws Exception {
+		context.register(BaseConfig.class, Config1.class);
+		context.refresh();
+		InMemoryStateMachinePersist persist = new InMemoryStateMachinePersist();
+		DefaultStateMachineService<TestStates, TestEvents> service =
+				new DefaultStateMachineService<TestStates, TestEvents>(resolveFactory(), persist);
+		service.setMaxSize(2);
+
+		service.acquireStateMachine("m1").sendEvent(TestEvents.E1);
+		service.releaseStateMachine("m1");
+		service.acquireStateMachine("m2");
+		service.releaseStateMachine("m2");
+		// touch m1 so that m2 becomes least recently used
+		service.acquireStateMachine("m1");
+		service.releaseStateMachine("m1");
+		service.acquireStateMachine("m3");
+		service.releaseStateMachine("m3");
+
+		assertThat(service.getSize(), is(2));
+		assertThat(service.getEvictionCount(), is(1l));
+		assertThat(persist.contexts.get("m2"), notNullValue());
+		assertThat(service.acquireStateMachine("m1").getState().getIds(), containsInAnyOrder(TestStates.S2, TestStates.S20));
+		assertThat(service.getHitCount(), is(2l));
+	}
+
+	@Test
+	public void testIdleEviction() throws Exception {
+		context.register(BaseConfig.class, Config1.class);
+		context.refresh();
+		InMemoryStateMachinePersist persist = new InMemoryStateMachinePersist();
+		DefaultStateMachineService<TestStates, TestEvents> service =
+				new DefaultStateMachineService<TestStates, TestEvents>(resolveFactory(), persist);
+		service.setMaxIdleTime(50);
+
+		StateMachine<TestStates, TestEvents> machine = service.acquireStateMachine("m1");
+		machine.sendEvent(TestEvents.E1);
+		service.releaseStateMachine("m1");
+		Thread.sleep(200);
+		service.evict();
+
+		assertThat(service.getSize(), is(0));
+		assertThat(service.getEvictionCount(), is(1l));
+		assertThat(persist.contexts.get("m1").getState(), is(TestStates.S20));
+		assertThat(service.acquireStateMachine("m1").getState().getIds(), containsInAnyOrder(TestStates.S2, TestStates.S20));
+	}
+
+	@Test
+	public void testAcquiredNotEvicted() throws Exception {
+		context.register(BaseConfig.class, Config1.class);
+		context.refresh();
+		InMemoryStateMachinePersist persist = new InMemoryStateMachinePersist();
+		DefaultStateMachineService<TestStates, TestEvents> service =
+				new DefaultStateMachineService<TestStates, TestEvents>(resolveFactory(), persist);
+		service.setMaxSize(1);
+		service.setMaxIdleTime(50);
+
+		StateMachine<TestStates, TestEvents> machine1 = service.acquireStateMachine("m1");
+		StateMachine<TestStates, TestEvents> machine2 = service.acquireStateMachine("m2");
+		Thread.sleep(200);
+		service.evict();
+		// both are held so size may exceed its bound
+		assertThat(service.getSize(), is(2));
+		assertThat(service.getEvictionCount(), is(0l));
+		assertThat(((Lifecycle) machine1).isRunning(), is(true));
+
+		// acquired twice, still held after one release
+		assertThat(service.acquireStateMachine("m1"), sameInstance(machine1));
+		service.releaseStateMachine("m1");
+		service.evict();
+		assertThat(service.getSize(), is(2));
+
+		service.releaseStateMachine("m1");
+		service.evict();
+		assertThat(service.getSize(), is(1));
+		assertThat(service.getEvictionCount(), is(1l));
+		assertThat(((Lifecycle) machine1).isRunning(), is(false));
+		assertThat(((Lifecycle) machine2).isRunning(), is(true));
+		assertThat(service.acquireStateMachine("m1"), not(sameInstance(machine1)));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testReleaseNotAcquired() throws Exception {
+		context.register(BaseConfig.class, Config1.class);
+		context.refresh();
+		DefaultStateMachineService<TestStates, TestEvents> service =
+				new DefaultStateMachineService<TestStates, TestEvents>(resolveFactory(), new InMemoryStateMachinePersist());
+		service.releaseStateMachine("m1");
+	}
+
+	@Test
+	public void testDestroyPersistsAll() throws Exception {
+		context.register(BaseConfig.class, Config1.class);
+		context.refresh();
+		InMemoryStateMachinePersist persist = new InMemoryStateMachinePersist();
+		DefaultStateMachineService<TestStates, TestEvents> service =
+				new DefaultStateMachineService<TestStates, TestEvents>(resolveFactory(), persist);
+
+		service.acquireStateMachine("m1");
+		service.acquireStateMachine("m2");
+		service.destroy();
+		assertThat(service.getSize(), is(0));
+		assertThat(persist.contexts.size(), is(2));
+	}
+
+	@Test
+	public void testConcurrentAcquireCreatesOnce() throws Exception {
+		context.register(BaseConfig.class, Config1.class);
+		context.refresh();
+		InMemoryStateMachinePersist persist = new InMemoryStateMachinePersist();
+		final DefaultStateMachineService<TestStates, TestEvents> service =
+				new DefaultStateMachineService<TestStates, TestEvents>(resolveFactory(), persist);
+		int threads = 8;
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<StateMachine<TestStates, TestEvents>>> futures = new ArrayList<Future<StateMachine<TestStates, TestEvents>>>();
+		for (int i = 0; i < threads; i++) {
+			futures.add(executor.submit(new Callable<StateMachine<TestStates, TestEvents>>() {
+
+				@Override
+				public StateMachine<TestStates, TestEvents> call() throws Exception {
+					latch.await();
+					return service.acquireStateMachine("m1");
+				}
+			}));
+		}
+		latch.countDown();
+		StateMachine<TestStates, TestEvents> machine = futures.get(0).get();
+		for (Future<StateMachine<TestStates, TestEvents>> future : futures) {
+			assertThat(future.get(), sameInstance(machine));
+		}
+		executor.shutdown();
+		assertThat(persist.reads.get(), is(1));
+		assertThat(service.getMissCount(), is(1l));
+		assertThat(service.getHitCount(), is((long) threads - 1));
+	}
+
+	@Test
+	public void testConcurrentAcquireAndReleaseKeepsSizeBound() throws Exception {
+		context.register(BaseConfig.class, Config1.class);
+		context.refresh();
+		InMemoryStateMachinePersist persist = new InMemoryStateMachinePersist();
+		final DefaultStateMachineService<TestStates, TestEvents> service =
+				new DefaultStateMachineService<TestStates, TestEvents>(resolveFactory(), persist);
+		service.setMaxSize(10);
+		int threads = 8;
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		// threads share ids so acquires and releases of a same machine race
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < threads; i++) {
+			futures.add(executor.submit(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() throws Exception {
+					latch.await();
+					for (int j = 0; j < 500; j++) {
+						String machineId = "m" + (j % 40);
+						service.acquireStateMachine(machineId);
+						service.releaseStateMachine(machineId);
+					}
+					return true;
+				}
+			}));
+		}
+		latch.countDown();
+		for (Future<Boolean> future : futures) {
+			assertThat(future.get(), is(true));
+		}
+		executor.shutdown();
+		service.evict();
+		assertThat(service.getSize(), is(10));
+		assertThat(service.getHitCount() + service.getMissCount(), is(threads * 500l));
+	}
+
+	@SuppressWarnings("unchecked")
+	private StateMachineFactory<TestStates, TestEvents> resolveFactory() {
+		return context.getBean(StateMachineSystemConstants.DEFAULT_ID_STATEMACHINEFACTORY, StateMachineFactory.class);
+	}
+
+	private static class InMemoryStateMachinePersist implements StateMachinePersist<TestStates, TestEvents, String> {
+
+		final Map<String, StateMachineContext<TestStates, TestEvents>> contexts =
+				new ConcurrentHashMap<String, StateMachineContext<TestStates, TestEvents>>();
+		final AtomicInteger reads = new AtomicInteger();
+
+		@Override
+		public void write(StateMachineContext<TestStates, TestEvents> context, String contextObj) throws Exception {
+			contexts.put(contextObj, context);
+		}
+
+		@Override
+		public StateMachineContext<TestStates, TestEvents> read(String contextObj) throws Exception {
+			reads.incrementAndGet();
+			return contexts.get(contextObj);
+		}
+	}
+
+	@Configuration
+	@EnableStateMachineFactory
+	static class Config1 extends EnumStateMachineConfigurerAdapter<TestStates, TestEvents> {
+
+		@Override
+		public void configure(StateMachineStateConfigurer<TestStates, TestEvents> states) throws Exception {
+			states
+				.withStates()
+					.initial(TestStates.S1)
+					.state(TestStates.S2)
+					.state(TestStates.S3)
+					.and()
+					.withStates()
+						.parent(TestStates.S2)
+						.initial(TestStates.S20)
+						.state(TestStates.S21);
+		}
+
+		@Override
+		public void configure(StateMachineTransitionConfigurer<TestStates, TestEvents> transitions) throws Exception {
+			transitions
+				.withExternal()
+					.source(TestStates.S1)
+					.target(TestStates.S2)
+					.event(TestEvents.E1)
+					.and()
+				.withExternal()
+					.source(TestStates.S20)
+					.target(TestStates.S21)
+					.event(TestEvents.E2)
+					.and()
+				.withExternal()
+					.source(TestStates.S2)
+					.target(TestStates.S3)
+					.event(TestEvents.E3);
+		}
+
+	}
+
+}
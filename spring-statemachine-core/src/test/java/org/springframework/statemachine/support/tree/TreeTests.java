@@ -15,6 +15,12 @@
  */
 package org.springframework.statemachine.support.tree;
 
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.Test;
 import org.springframework.statemachine.support.tree.Tree.Node;
 
@@ -84,4 +90,25 @@ public class TreeTests {
 		}
 	}
 
+	@Test
+	public void testTreeChildrenBeforeParents() {
+		Tree<String> tree = new Tree<String>();
+		tree.add("S111", "S111", "S11");
+		tree.add("S11", "S11", "S1");
+		tree.add("S12", "S12", "S1");
+		tree.add("S2", "S2", null);
+		tree.add("S1", "S1", null);
+
+		List<String> data = new ArrayList<String>();
+		for (Node<String> node : new TreeTraverser<Node<String>>() {
+			@Override
+			public Iterable<Node<String>> children(Node<String> root) {
+				return root.getChildren();
+			}
+		}.postOrderTraversal(tree.getRoot())) {
+			data.add(node.getData());
+		}
+		assertThat(data, contains("S2", "S111", "S11", "S12", "S1", null));
+	}
+
 }
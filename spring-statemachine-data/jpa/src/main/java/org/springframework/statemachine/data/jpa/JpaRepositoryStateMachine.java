@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.data.jpa;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Version;
+
+/**
+ * JPA entity for serialized state machine contexts. A version is incremented
+ * on every update and is checked by versioned saves of a
+ * {@link JpaStateMachineContextRepository}.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+@Entity
+public class JpaRepositoryStateMachine {
+
+	@Id
+	private String machineId;
+
+	@Version
+	private Long version;
+
+	@Lob
+	private byte[] stateMachineContext;
+
+	/**
+	 * Instantiates a new jpa repository state machine.
+	 */
+	public JpaRepositoryStateMachine() {
+	}
+
+	/**
+	 * Instantiates a new jpa repository state machine.
+	 *
+	 * @param machineId the machine id
+	 * @param stateMachineContext the serialized state machine context
+	 */
+	public JpaRepositoryStateMachine(String machineId, byte[] stateMachineContext) {
+		this.machineId = machineId;
+		this.stateMachineContext = stateMachineContext;
+	}
+
+	public String getMachineId() {
+		return machineId;
+	}
+
+	public void setMachineId(String machineId) {
+		this.machineId = machineId;
+	}
+
+	public Long getVersion() {
+		return version;
+	}
+
+	public byte[] getStateMachineContext() {
+		return stateMachineContext;
+	}
+
+	public void setStateMachineContext(byte[] stateMachineContext) {
+		this.stateMachineContext = stateMachineContext;
+	}
+}
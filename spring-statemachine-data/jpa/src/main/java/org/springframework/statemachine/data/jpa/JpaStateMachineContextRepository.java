@@ -0,0 +1,235 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.data.jpa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineContextBulkRepository;
+import org.springframework.statemachine.StateMachineContextRepository;
+import org.springframework.statemachine.kryo.KryoStateMachineSerialisationService;
+import org.springframework.statemachine.persist.CachingStateMachineContextRepository;
+import org.springframework.statemachine.persist.CachingStateMachineContextRepository.VersionProvider;
+import org.springframework.statemachine.service.StateMachineSerialisationService;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link StateMachineContextRepository} backed by a {@link JpaStateMachineRepository}
+ * and kryo serialization.
+ * <p>
+ * Contexts are stored serialized in {@link JpaRepositoryStateMachine} entities.
+ * A save overwrites a stored context regardless of a version a caller read,
+ * thus a last save wins. Callers needing optimistic locking use
+ * {@link #save(StateMachineContext, String, Long)} with a version from
+ * {@link #getVersion(String)} which updates a context with a single update
+ * only if it still has that version. As this repository is a
+ * {@link VersionProvider}, it can also be used to validate contexts cached by
+ * a {@link CachingStateMachineContextRepository}.
+ * <p>
+ * Bulk operations are done in batches, each batch is loaded with a single
+ * query and saved within a single transaction so that updates and inserts
+ * can be sent to a database in JDBC batches. JDBC batching needs to be
+ * enabled in a JPA provider, for example with hibernate property
+ * {@code hibernate.jdbc.batch_size} set to a same value as a batch size
+ * of this repository.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ */
+public class JpaStateMachineContextRepository<S, E>
+		implements StateMachineContextBulkRepository<S, E, StateMachineContext<S, E>>, VersionProvider {
+
+	private static final int DEFAULT_BATCH_SIZE = 100;
+	private final JpaStateMachineRepository repository;
+	private final TransactionTemplate transactionTemplate;
+	private final StateMachineSerialisationService<S, E> serialisationService;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	/**
+	 * Instantiates a new jpa state machine context repository.
+	 *
+	 * @param repository the jpa state machine repository
+	 * @param transactionManager the transaction manager
+	 */
+	public JpaStateMachineContextRepository(JpaStateMachineRepository repository,
+			PlatformTransactionManager transactionManager) {
+		this(repository, transactionManager, new KryoStateMachineSerialisationService<S, E>());
+	}
+
+	/**
+	 * Instantiates a new jpa state machine context repository.
+	 *
+	 * @param repository the jpa state machine repository
+	 * @param transactionManager the transaction manager
+	 * @param serialisationService the state machine serialisation service
+	 */
+	public JpaStateMachineContextRepository(JpaStateMachineRepository repository,
+			PlatformTransactionManager transactionManager, StateMachineSerialisationService<S, E> serialisationService) {
+		Assert.notNull(repository, "JpaStateMachineRepository must be set");
+		Assert.notNull(transactionManager, "PlatformTransactionManager must be set");
+		Assert.notNull(serialisationService, "StateMachineSerialisationService must be set");
+		this.repository = repository;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		this.serialisationService = serialisationService;
+	}
+
+	/**
+	 * Sets the maximum number of contexts saved or loaded together by bulk
+	 * operations. Defaults to {@code 100}.
+	 *
+	 * @param batchSize the batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		Assert.isTrue(batchSize > 0, "Batch size must be positive");
+		this.batchSize = batchSize;
+	}
+
+	@Override
+	public void save(StateMachineContext<S, E> context, String id) {
+		Map<String, byte[]> batch = new HashMap<String, byte[]>();
+		batch.put(id, serialisationService.serialiseStateMachineContext(context));
+		saveBatch(batch);
+	}
+
+	/**
+	 * Save a context only if a stored context has an expected version. A new
+	 * context is saved with an expected version {@code null}. To not overwrite
+	 * a context saved by others, a version needs to be read before a context
+	 * it's based on.
+	 *
+	 * @param context the context
+	 * @param id the id
+	 * @param expectedVersion the expected version, {@code null} for a new context
+	 * @return the version of a saved context
+	 * @throws OptimisticLockingFailureException if a stored context doesn't have
+	 *         an expected version
+	 */
+	public Long save(StateMachineContext<S, E> context, final String id, final Long expectedVersion) {
+		final byte[] data = serialisationService.serialiseStateMachineContext(context);
+		try {
+			return transactionTemplate.execute(new TransactionCallback<Long>() {
+
+				@Override
+				public Long doInTransaction(TransactionStatus status) {
+					if (expectedVersion == null) {
+						if (repository.exists(id)) {
+							throw new OptimisticLockingFailureException("Context " + id + " already exists");
+						}
+						return repository.save(new JpaRepositoryStateMachine(id, data)).getVersion();
+					}
+					if (repository.updateStateMachineContext(id, data, expectedVersion) == 0) {
+						throw new OptimisticLockingFailureException(
+								"Context " + id + " doesn't exist with version " + expectedVersion);
+					}
+					return expectedVersion + 1;
+				}
+			});
+		} catch (DataIntegrityViolationException e) {
+			// concurrently inserted context
+			throw new OptimisticLockingFailureException("Context " + id + " already exists", e);
+		}
+	}
+
+	/**
+	 * Gets the version of a stored context.
+	 *
+	 * @param id the id
+	 * @return the version, {@code null} if a context doesn't exist
+	 */
+	@Override
+	public Long getVersion(String id) {
+		return repository.findVersion(id);
+	}
+
+	@Override
+	public StateMachineContext<S, E> getContext(String id) {
+		JpaRepositoryStateMachine stateMachine = repository.findOne(id);
+		return stateMachine != null ? deserialize(stateMachine) : null;
+	}
+
+	@Override
+	public void saveAll(Map<String, StateMachineContext<S, E>> contexts) {
+		Map<String, byte[]> batch = new HashMap<String, byte[]>();
+		for (Entry<String, StateMachineContext<S, E>> entry : contexts.entrySet()) {
+			batch.put(entry.getKey(), serialisationService.serialiseStateMachineContext(entry.getValue()));
+			if (batch.size() == batchSize) {
+				saveBatch(batch);
+				batch = new HashMap<String, byte[]>();
+			}
+		}
+		if (!batch.isEmpty()) {
+			saveBatch(batch);
+		}
+	}
+
+	@Override
+	public Map<String, StateMachineContext<S, E>> getContexts(Collection<String> ids) {
+		Map<String, StateMachineContext<S, E>> contexts = new LinkedHashMap<String, StateMachineContext<S, E>>();
+		List<String> batch = new ArrayList<String>(Math.min(ids.size(), batchSize));
+		Iterator<String> iterator = ids.iterator();
+		while (iterator.hasNext()) {
+			batch.add(iterator.next());
+			if (batch.size() == batchSize || !iterator.hasNext()) {
+				for (JpaRepositoryStateMachine stateMachine : repository.findAll(batch)) {
+					contexts.put(stateMachine.getMachineId(), deserialize(stateMachine));
+				}
+				batch.clear();
+			}
+		}
+		return contexts;
+	}
+
+	private void saveBatch(final Map<String, byte[]> batch) {
+		transactionTemplate.execute(new TransactionCallback<Object>() {
+
+			@Override
+			public Object doInTransaction(TransactionStatus status) {
+				// existing entities are managed within this transaction so
+				// that changes are flushed as updates without further selects,
+				// their versions are those loaded here, not those read by a caller
+				Map<String, byte[]> remaining = new HashMap<String, byte[]>(batch);
+				for (JpaRepositoryStateMachine stateMachine : repository.findAll(batch.keySet())) {
+					stateMachine.setStateMachineContext(remaining.remove(stateMachine.getMachineId()));
+				}
+				List<JpaRepositoryStateMachine> created = new ArrayList<JpaRepositoryStateMachine>(remaining.size());
+				for (Entry<String, byte[]> entry : remaining.entrySet()) {
+					created.add(new JpaRepositoryStateMachine(entry.getKey(), entry.getValue()));
+				}
+				repository.save(created);
+				return null;
+			}
+		});
+	}
+
+	private StateMachineContext<S, E> deserialize(JpaRepositoryStateMachine stateMachine) {
+		return serialisationService.deserialiseStateMachineContext(stateMachine.getStateMachineContext());
+	}
+}
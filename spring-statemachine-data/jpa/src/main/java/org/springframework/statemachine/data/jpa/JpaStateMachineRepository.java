@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.data.jpa;
+
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+
+/**
+ * A {@link CrudRepository} interface for JPA used for serialized state
+ * machine contexts.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public interface JpaStateMachineRepository extends CrudRepository<JpaRepositoryStateMachine, String> {
+
+	/**
+	 * Find a version of a serialized state machine context.
+	 *
+	 * @param machineId the machine id
+	 * @return the version, {@code null} if not found
+	 */
+	@Query("select m.version from JpaRepositoryStateMachine m where m.machineId = ?1")
+	Long findVersion(String machineId);
+
+	/**
+	 * Update a serialized state machine context if it still has an expected
+	 * version and increment a version with a single update.
+	 *
+	 * @param machineId the machine id
+	 * @param stateMachineContext the serialized state machine context
+	 * @param version the expected version
+	 * @return the number of updated entities
+	 */
+	@Modifying
+	@Query("update JpaRepositoryStateMachine m set m.stateMachineContext = ?2, m.version = m.version + 1 "
+			+ "where m.machineId = ?1 and m.version = ?3")
+	int updateStateMachineContext(String machineId, byte[] stateMachineContext, Long version);
+}
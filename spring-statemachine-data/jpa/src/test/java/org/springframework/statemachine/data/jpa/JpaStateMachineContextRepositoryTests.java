@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.data.jpa;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.Test;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.util.EnvironmentTestUtils;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+import org.springframework.transaction.PlatformTransactionManager;
+
+public class JpaStateMachineContextRepositoryTests extends AbstractJpaRepositoryTests {
+
+	@Override
+	protected AnnotationConfigApplicationContext buildContext() {
+		return new AnnotationConfigApplicationContext();
+	}
+
+	@Test
+	public void testSaveAndUpdate() {
+		context.register(Config.class);
+		context.refresh();
+		JpaStateMachineRepository stateMachineRepository = context.getBean(JpaStateMachineRepository.class);
+		JpaStateMachineContextRepository<String, String> repository = buildRepository();
+
+		assertThat(repository.getContext("machine1"), nullValue());
+		repository.save(buildContext("S1", 1), "machine1");
+		assertThat(stateMachineRepository.findOne("machine1").getVersion(), is(0L));
+		repository.save(buildContext("S2", 2), "machine1");
+		assertThat(stateMachineRepository.findOne("machine1").getVersion(), is(1L));
+
+		StateMachineContext<String, String> context = repository.getContext("machine1");
+		assertThat(context.getState(), is("S2"));
+		assertThat(context.getExtendedState().get("foo", Integer.class), is(2));
+		assertThat(stateMachineRepository.count(), is(1L));
+	}
+
+	@Test
+	public void testOptimisticLocking() {
+		context.register(Config.class);
+		context.refresh();
+		JpaStateMachineRepository stateMachineRepository = context.getBean(JpaStateMachineRepository.class);
+		JpaStateMachineContextRepository<String, String> repository = buildRepository();
+
+		repository.save(buildContext("S1", 1), "machine1");
+		JpaRepositoryStateMachine stale = stateMachineRepository.findOne("machine1");
+		repository.save(buildContext("S2", 2), "machine1");
+		try {
+			stateMachineRepository.save(stale);
+			fail("Expected optimistic locking failure");
+		} catch (OptimisticLockingFailureException e) {
+		}
+		assertThat(repository.getContext("machine1").getState(), is("S2"));
+	}
+
+	@Test
+	public void testVersionedSave() {
+		context.register(Config.class);
+		EnvironmentTestUtils.addEnvironment(context, "spring.jpa.properties.hibernate.generate_statistics:true");
+		context.refresh();
+		JpaStateMachineContextRepository<String, String> repository = buildRepository();
+		Statistics statistics = context.getBean(EntityManagerFactory.class).unwrap(SessionFactory.class).getStatistics();
+
+		assertThat(repository.getVersion("machine1"), nullValue());
+		assertThat(repository.save(buildContext("S1", 1), "machine1", null), is(0L));
+		try {
+			repository.save(buildContext("S1", 1), "machine1", null);
+			fail("Expected optimistic locking failure");
+		} catch (OptimisticLockingFailureException e) {
+		}
+
+		Long version = repository.getVersion("machine1");
+		assertThat(version, is(0L));
+		statistics.clear();
+		assertThat(repository.save(buildContext("S2", 2), "machine1", version), is(1L));
+		// a single update without a select
+		assertThat(statistics.getPrepareStatementCount(), is(1L));
+		try {
+			repository.save(buildContext("S3", 3), "machine1", version);
+			fail("Expected optimistic locking failure");
+		} catch (OptimisticLockingFailureException e) {
+		}
+		assertThat(repository.getContext("machine1").getState(), is("S2"));
+		assertThat(repository.getVersion("machine1"), is(1L));
+	}
+
+	@Test
+	public void testBulkSaveAndLoad() {
+		context.register(Config.class);
+		EnvironmentTestUtils.addEnvironment(context, "spring.jpa.properties.hibernate.jdbc.batch_size:100",
+				"spring.jpa.properties.hibernate.generate_statistics:true");
+		context.refresh();
+		JpaStateMachineContextRepository<String, String> repository = buildRepository();
+		Statistics statistics = context.getBean(EntityManagerFactory.class).unwrap(SessionFactory.class).getStatistics();
+
+		Map<String, StateMachineContext<String, String>> contexts = new LinkedHashMap<>();
+		for (int i = 0; i < 250; i++) {
+			contexts.put("machine" + i, buildContext("S1", i));
+		}
+		statistics.clear();
+		repository.saveAll(contexts);
+		assertThat(statistics.getEntityInsertCount(), is(250L));
+		// three batches, each with a select and batched inserts
+		assertThat(statistics.getPrepareStatementCount(), lessThan(10L));
+
+		for (int i = 0; i < 250; i += 2) {
+			contexts.put("machine" + i, buildContext("S2", i));
+		}
+		statistics.clear();
+		repository.saveAll(contexts);
+		// unchanged contexts are not updated
+		assertThat(statistics.getEntityUpdateCount(), is(125L));
+		assertThat(statistics.getPrepareStatementCount(), lessThan(10L));
+
+		List<String> ids = new ArrayList<>(contexts.keySet());
+		ids.add("machine250");
+		statistics.clear();
+		Map<String, StateMachineContext<String, String>> loaded = repository.getContexts(ids);
+		assertThat(statistics.getPrepareStatementCount(), is(3L));
+		assertThat(loaded.size(), is(250));
+		for (int i = 0; i < 250; i++) {
+			StateMachineContext<String, String> context = loaded.get("machine" + i);
+			assertThat(context.getState(), is(i % 2 == 0 ? "S2" : "S1"));
+			assertThat(context.getExtendedState().get("foo", Integer.class), is(i));
+		}
+	}
+
+	private JpaStateMachineContextRepository<String, String> buildRepository() {
+		return new JpaStateMachineContextRepository<String, String>(context.getBean(JpaStateMachineRepository.class),
+				context.getBean(PlatformTransactionManager.class));
+	}
+
+	private static StateMachineContext<String, String> buildContext(String state, int foo) {
+		DefaultExtendedState extendedState = new DefaultExtendedState();
+		extendedState.getVariables().put("foo", foo);
+		return new DefaultStateMachineContext<String, String>(state, null, null, extendedState);
+	}
+
+	@EnableAutoConfiguration
+	static class Config {
+	}
+}
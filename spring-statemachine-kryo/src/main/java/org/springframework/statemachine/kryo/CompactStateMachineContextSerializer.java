@@ -0,0 +1,247 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.kryo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Kryo {@link Serializer} for {@link StateMachineContext} writing a compact
+ * versioned format. Compared to {@link StateMachineContextSerializer}:
+ * <ul>
+ * <li>Data starts with a marker and a format version so that a format can
+ * evolve. Data without a marker is read with
+ * {@link StateMachineContextSerializer}. Marker is a first byte of a class
+ * id {@code 195} and thus classes registered into {@link Kryo} need to have
+ * ids below {@code 195} for data written without a marker to be read.</li>
+ * <li>If state or event type is known and is an enum, only an ordinal is
+ * written. Strings are written without a class. Other types are written
+ * with a class which is an id if registered into {@link Kryo}.</li>
+ * <li>Collections are written as varint sizes and entries instead of
+ * collection classes.</li>
+ * <li>Event headers {@link MessageHeaders#ID} and
+ * {@link MessageHeaders#TIMESTAMP} are not written. If a header whitelist
+ * is set, only those headers are written.</li>
+ * </ul>
+ * As enum ordinals are written, constants of state and event enums must
+ * not be reordered while persisted data exists. Extended state variables
+ * are read into a {@link ConcurrentHashMap} thus {@code null} keys or
+ * values are not supported.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ */
+public class CompactStateMachineContextSerializer<S, E> extends Serializer<StateMachineContext<S, E>> {
+
+	/** Marker written as a first byte of a compact format. */
+	public static final byte MARKER = (byte) 0xC5;
+
+	/** Current format version. */
+	public static final byte VERSION = 1;
+
+	private static final int NULL = 0;
+	private final Class<S> stateType;
+	private final Class<E> eventType;
+	private final Set<String> headerWhitelist;
+	private final StateMachineContextSerializer<S, E> legacySerializer = new StateMachineContextSerializer<S, E>();
+
+	/**
+	 * Instantiates a new compact state machine context serializer without
+	 * known state and event types.
+	 */
+	public CompactStateMachineContextSerializer() {
+		this(null, null, null);
+	}
+
+	/**
+	 * Instantiates a new compact state machine context serializer.
+	 *
+	 * @param stateType the state type, {@code null} if not known
+	 * @param eventType the event type, {@code null} if not known
+	 */
+	public CompactStateMachineContextSerializer(Class<S> stateType, Class<E> eventType) {
+		this(stateType, eventType, null);
+	}
+
+	/**
+	 * Instantiates a new compact state machine context serializer.
+	 *
+	 * @param stateType the state type, {@code null} if not known
+	 * @param eventType the event type, {@code null} if not known
+	 * @param headerWhitelist the event header names to write, {@code null} to write all
+	 */
+	public CompactStateMachineContextSerializer(Class<S> stateType, Class<E> eventType, Collection<String> headerWhitelist) {
+		this.stateType = stateType;
+		this.eventType = eventType;
+		this.headerWhitelist = headerWhitelist != null ? new HashSet<String>(headerWhitelist) : null;
+	}
+
+	@Override
+	public void write(Kryo kryo, Output output, StateMachineContext<S, E> context) {
+		output.writeByte(MARKER);
+		output.writeByte(VERSION);
+		writeContext(kryo, output, context);
+	}
+
+	@Override
+	public StateMachineContext<S, E> read(Kryo kryo, Input input, Class<StateMachineContext<S, E>> clazz) {
+		byte marker = input.readByte();
+		if (marker != MARKER) {
+			input.setPosition(input.position() - 1);
+			return legacySerializer.read(kryo, input, clazz);
+		}
+		byte version = input.readByte();
+		if (version != VERSION) {
+			throw new KryoException("Unsupported state machine context format version " + version);
+		}
+		return readContext(kryo, input);
+	}
+
+	private void writeContext(Kryo kryo, Output output, StateMachineContext<S, E> context) {
+		writeValue(kryo, output, context.getEvent(), eventType);
+		writeValue(kryo, output, context.getState(), stateType);
+		writeHeaders(kryo, output, context.getEventHeaders());
+		writeVariables(kryo, output,
+				context.getExtendedState() != null ? context.getExtendedState().getVariables() : null);
+		List<StateMachineContext<S, E>> childs = context.getChilds();
+		output.writeVarInt(childs != null ? childs.size() + 1 : NULL, true);
+		if (childs != null) {
+			for (StateMachineContext<S, E> child : childs) {
+				writeContext(kryo, output, child);
+			}
+		}
+	}
+
+	private StateMachineContext<S, E> readContext(Kryo kryo, Input input) {
+		E event = readValue(kryo, input, eventType);
+		S state = readValue(kryo, input, stateType);
+		Map<String, Object> eventHeaders = readHeaders(kryo, input);
+		Map<Object, Object> variables = readVariables(kryo, input);
+		int size = input.readVarInt(true);
+		List<StateMachineContext<S, E>> childs = null;
+		if (size != NULL) {
+			childs = new ArrayList<StateMachineContext<S, E>>(size - 1);
+			for (int i = 1; i < size; i++) {
+				childs.add(readContext(kryo, input));
+			}
+		}
+		return new DefaultStateMachineContext<S, E>(childs, state, event, eventHeaders, new DefaultExtendedState(variables));
+	}
+
+	private void writeValue(Kryo kryo, Output output, Object value, Class<?> type) {
+		if (type != null && type.isEnum()) {
+			output.writeVarInt(value != null ? ((Enum<?>) value).ordinal() + 1 : NULL, true);
+		} else if (type == String.class) {
+			output.writeString((String) value);
+		} else {
+			kryo.writeClassAndObject(output, value);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T readValue(Kryo kryo, Input input, Class<T> type) {
+		if (type != null && type.isEnum()) {
+			int ordinal = input.readVarInt(true);
+			return ordinal != NULL ? type.getEnumConstants()[ordinal - 1] : null;
+		} else if (type == String.class) {
+			return (T) input.readString();
+		} else {
+			return (T) kryo.readClassAndObject(input);
+		}
+	}
+
+	private void writeHeaders(Kryo kryo, Output output, Map<String, Object> headers) {
+		if (headers == null) {
+			output.writeVarInt(NULL, true);
+			return;
+		}
+		List<Entry<String, Object>> entries = new ArrayList<Entry<String, Object>>(headers.size());
+		for (Entry<String, Object> entry : headers.entrySet()) {
+			if (isHeaderWritten(entry.getKey())) {
+				entries.add(entry);
+			}
+		}
+		output.writeVarInt(entries.size() + 1, true);
+		for (Entry<String, Object> entry : entries) {
+			output.writeString(entry.getKey());
+			kryo.writeClassAndObject(output, entry.getValue());
+		}
+	}
+
+	private Map<String, Object> readHeaders(Kryo kryo, Input input) {
+		int size = input.readVarInt(true);
+		if (size == NULL) {
+			return null;
+		}
+		Map<String, Object> headers = new HashMap<String, Object>();
+		for (int i = 1; i < size; i++) {
+			String key = input.readString();
+			headers.put(key, kryo.readClassAndObject(input));
+		}
+		return headers;
+	}
+
+	private void writeVariables(Kryo kryo, Output output, Map<Object, Object> variables) {
+		if (variables == null) {
+			output.writeVarInt(NULL, true);
+			return;
+		}
+		// copy as a concurrent map may change while being written
+		List<Entry<Object, Object>> entries = new ArrayList<Entry<Object, Object>>(variables.entrySet());
+		output.writeVarInt(entries.size() + 1, true);
+		for (Entry<Object, Object> entry : entries) {
+			kryo.writeClassAndObject(output, entry.getKey());
+			kryo.writeClassAndObject(output, entry.getValue());
+		}
+	}
+
+	private Map<Object, Object> readVariables(Kryo kryo, Input input) {
+		int size = input.readVarInt(true);
+		Map<Object, Object> variables = new ConcurrentHashMap<Object, Object>();
+		for (int i = 1; i < size; i++) {
+			Object key = kryo.readClassAndObject(input);
+			variables.put(key, kryo.readClassAndObject(input));
+		}
+		return variables;
+	}
+
+	private boolean isHeaderWritten(String name) {
+		if (headerWhitelist != null) {
+			return headerWhitelist.contains(name);
+		}
+		return !MessageHeaders.ID.equals(name) && !MessageHeaders.TIMESTAMP.equals(name);
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.kryo;
+
+/**
+ * Codec compressing serialized state machine contexts with
+ * {@link KryoStateMachineSerialisationService}. Implementations need to
+ * be thread safe.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public interface CompressionCodec {
+
+	/**
+	 * Gets the codec id written in front of compressed data.
+	 *
+	 * @return the codec id
+	 */
+	byte getId();
+
+	/**
+	 * Compress a part of a given array.
+	 *
+	 * @param data the data
+	 * @param offset the offset of a first byte
+	 * @param length the number of bytes
+	 * @return the compressed data
+	 */
+	byte[] compress(byte[] data, int offset, int length);
+
+	/**
+	 * Decompress a part of a given array into a target array whose
+	 * length matches a length of uncompressed data.
+	 *
+	 * @param data the compressed data
+	 * @param offset the offset of a first byte
+	 * @param length the number of bytes
+	 * @param target the target array
+	 */
+	void decompress(byte[] data, int offset, int length, byte[] target);
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.kryo;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.springframework.util.Assert;
+
+import com.esotericsoftware.kryo.KryoException;
+
+/**
+ * {@link CompressionCodec} using a jdk {@link Deflater}. As deflaters
+ * and inflaters hold native memory, instances are kept in bounded pools
+ * similarly to kryo instances in {@link KryoStateMachineSerialisationService}.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public class DeflaterCompressionCodec implements CompressionCodec {
+
+	/** Codec id of this codec */
+	public static final byte ID = 1;
+	private final int level;
+	private final BlockingQueue<Deflater> deflaters;
+	private final BlockingQueue<Inflater> inflaters;
+
+	/**
+	 * Instantiates a new deflater compression codec with
+	 * {@link Deflater#BEST_SPEED} level.
+	 */
+	public DeflaterCompressionCodec() {
+		this(Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * Instantiates a new deflater compression codec with a pool size of
+	 * two times number of available processors.
+	 *
+	 * @param level the compression level
+	 */
+	public DeflaterCompressionCodec(int level) {
+		this(level, Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	/**
+	 * Instantiates a new deflater compression codec.
+	 *
+	 * @param level the compression level
+	 * @param poolSize the maximum number of pooled deflaters and inflaters
+	 */
+	public DeflaterCompressionCodec(int level, int poolSize) {
+		Assert.isTrue((level >= Deflater.BEST_SPEED && level <= Deflater.BEST_COMPRESSION)
+				|| level == Deflater.DEFAULT_COMPRESSION, "Invalid compression level " + level);
+		Assert.isTrue(poolSize > 0, "Pool size must be positive");
+		this.level = level;
+		this.deflaters = new ArrayBlockingQueue<Deflater>(poolSize);
+		this.inflaters = new ArrayBlockingQueue<Inflater>(poolSize);
+	}
+
+	@Override
+	public byte getId() {
+		return ID;
+	}
+
+	@Override
+	public byte[] compress(byte[] data, int offset, int length) {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(level);
+		}
+		try {
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			byte[] buffer = new byte[Math.max(length / 2, 64)];
+			int size = 0;
+			while (!deflater.finished()) {
+				if (size == buffer.length) {
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				}
+				size += deflater.deflate(buffer, size, buffer.length - size);
+			}
+			return Arrays.copyOf(buffer, size);
+		} finally {
+			deflater.reset();
+			if (!deflaters.offer(deflater)) {
+				deflater.end();
+			}
+		}
+	}
+
+	@Override
+	public void decompress(byte[] data, int offset, int length, byte[] target) {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		try {
+			inflater.setInput(data, offset, length);
+			int size = 0;
+			while (size < target.length) {
+				int inflated = inflater.inflate(target, size, target.length - size);
+				if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					throw new KryoException("Compressed data ended after " + size + " of " + target.length + " bytes");
+				}
+				size += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new KryoException("Invalid compressed data", e);
+		} finally {
+			inflater.reset();
+			if (!inflaters.offer(inflater)) {
+				inflater.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.kryo;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineException;
+import org.springframework.statemachine.persist.StateMachineContextDeltas;
+import org.springframework.statemachine.persist.StateMachineDeltaPersist;
+import org.springframework.statemachine.service.StateMachineSerialisationService;
+import org.springframework.util.Assert;
+
+/**
+ * {@link StateMachineDeltaPersist} appending contexts into a local journal
+ * file. Full contexts are written as snapshot records and deltas as delta
+ * records, so with a delta snapshot interval set in a persister every
+ * change of a machine is a small sequential write and a machine is read
+ * from its last snapshot with later deltas applied.
+ * <p>
+ * Records of concurrent writers are committed together, thus a single
+ * write and sync of a file is done for all records waiting when a previous
+ * commit completes. Records are checksummed and a partially written tail
+ * of a journal is truncated when a journal is opened, while a corrupt record
+ * followed by other records fails opening a journal instead of discarding
+ * records committed after it. An index of record
+ * positions is kept in memory and rebuilt by scanning a journal when
+ * opened. Records superseded by a later snapshot are removed by
+ * {@link #compact()}.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ */
+public class FileJournalStateMachinePersist<S, E> implements StateMachineDeltaPersist<S, E, String>, DisposableBean {
+
+	private static final Log log = LogFactory.getLog(FileJournalStateMachinePersist.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte SNAPSHOT = 1;
+	private static final byte DELTA = 2;
+	// record length and checksum
+	private static final int HEADER_SIZE = 8;
+	private final File file;
+	private final StateMachineSerialisationService<S, E> serialisationService;
+	private final Object commitLock = new Object();
+	private final ReadWriteLock channelLock = new ReentrantReadWriteLock();
+	private final List<Append> pending = new ArrayList<Append>();
+	private final Map<String, Records> index = new ConcurrentHashMap<String, Records>();
+	private FileChannel channel;
+	private long position;
+	private boolean syncOnCommit = true;
+
+	/**
+	 * Instantiates a new file journal state machine persist using kryo
+	 * serialization.
+	 *
+	 * @param file the journal file
+	 */
+	public FileJournalStateMachinePersist(File file) {
+		this(file, new KryoStateMachineSerialisationService<S, E>());
+	}
+
+	/**
+	 * Instantiates a new file journal state machine persist.
+	 *
+	 * @param file the journal file
+	 * @param serialisationService the state machine serialisation service
+	 */
+	public FileJournalStateMachinePersist(File file, StateMachineSerialisationService<S, E> serialisationService) {
+		Assert.notNull(file, "Journal file must be set");
+		Assert.notNull(serialisationService, "StateMachineSerialisationService must be set");
+		this.file = file;
+		this.serialisationService = serialisationService;
+		try {
+			open();
+		} catch (IOException e) {
+			throw new StateMachineException("Unable to open journal " + file, e);
+		}
+	}
+
+	/**
+	 * Sets if a journal file is synced to a storage device on every commit.
+	 * If disabled, committed records may be lost if an operating system
+	 * crashes. Defaults to {@code true}.
+	 *
+	 * @param syncOnCommit the sync on commit flag
+	 */
+	public void setSyncOnCommit(boolean syncOnCommit) {
+		this.syncOnCommit = syncOnCommit;
+	}
+
+	@Override
+	public void write(StateMachineContext<S, E> context, String contextOjb) throws Exception {
+		append(SNAPSHOT, contextOjb, context);
+	}
+
+	@Override
+	public boolean isDeltaSupported() {
+		return true;
+	}
+
+	@Override
+	public int writeDelta(StateMachineContext<S, E> delta, String contextOjb) throws Exception {
+		return append(DELTA, contextOjb, delta);
+	}
+
+	@Override
+	public StateMachineContext<S, E> read(String contextOjb) throws Exception {
+		channelLock.readLock().lock();
+		try {
+			Records records = index.get(contextOjb);
+			if (records == null) {
+				return null;
+			}
+			StateMachineContext<S, E> context = null;
+			List<StateMachineContext<S, E>> deltas = new ArrayList<StateMachineContext<S, E>>(records.deltas);
+			for (Long recordPosition : records.positions) {
+				ByteBuffer body = readBody(channel, recordPosition);
+				byte type = body.get();
+				short idLength = body.getShort();
+				body.position(body.position() + idLength);
+				byte[] data = new byte[body.remaining()];
+				body.get(data);
+				if (type == SNAPSHOT) {
+					context = serialisationService.deserialiseStateMachineContext(data);
+				} else {
+					deltas.add(serialisationService.deserialiseStateMachineContext(data));
+				}
+			}
+			return StateMachineContextDeltas.applyDeltas(context, deltas);
+		} finally {
+			channelLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Rewrites a journal so that it only contains a last snapshot and
+	 * following deltas of every machine.
+	 *
+	 * @throws IOException if journal could not be rewritten
+	 */
+	public void compact() throws IOException {
+		synchronized (commitLock) {
+			channelLock.writeLock().lock();
+			try {
+				File compactFile = new File(file.getPath() + ".compact");
+				Map<String, Records> compacted = new HashMap<String, Records>();
+				long compactPosition = 0;
+				FileChannel target = FileChannel.open(compactFile.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+				try {
+					for (Entry<String, Records> entry : index.entrySet()) {
+						List<Long> positions = new ArrayList<Long>(entry.getValue().positions.size());
+						for (Long recordPosition : entry.getValue().positions) {
+							long length = HEADER_SIZE + readHeader(channel, recordPosition).getInt();
+							long transferred = 0;
+							while (transferred < length) {
+								transferred += channel.transferTo(recordPosition + transferred, length - transferred,
+										target);
+							}
+							positions.add(compactPosition);
+							compactPosition += length;
+						}
+						compacted.put(entry.getKey(), new Records(positions, entry.getValue().deltas));
+					}
+					target.force(true);
+				} finally {
+					target.close();
+				}
+				channel.close();
+				Files.move(compactFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+				channel.position(compactPosition);
+				position = compactPosition;
+				index.clear();
+				index.putAll(compacted);
+			} finally {
+				channelLock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Gets the size of a journal file in bytes.
+	 *
+	 * @return the journal size
+	 */
+	public long getSize() {
+		synchronized (commitLock) {
+			return position;
+		}
+	}
+
+	/**
+	 * Closes a journal file.
+	 *
+	 * @throws IOException if journal could not be closed
+	 */
+	public void close() throws IOException {
+		synchronized (commitLock) {
+			channel.close();
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		close();
+	}
+
+	private int append(byte type, String id, StateMachineContext<S, E> context) throws IOException {
+		Append append = new Append(type, id, encode(type, id, serialisationService.serialiseStateMachineContext(context)));
+		synchronized (pending) {
+			pending.add(append);
+		}
+		synchronized (commitLock) {
+			// other writer may already have committed this record
+			if (!append.done) {
+				commit();
+			}
+			if (append.error != null) {
+				throw append.error;
+			}
+			return append.deltas;
+		}
+	}
+
+	private void commit() {
+		List<Append> batch;
+		synchronized (pending) {
+			batch = new ArrayList<Append>(pending);
+			pending.clear();
+		}
+		ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+		long length = 0;
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = batch.get(i).record;
+			length += buffers[i].remaining();
+		}
+		long start = position;
+		try {
+			long written = 0;
+			while (written < length) {
+				written += channel.write(buffers);
+			}
+			if (syncOnCommit) {
+				channel.force(false);
+			}
+			for (Append append : batch) {
+				append.deltas = index(append.type, append.id, position);
+				position += append.record.capacity();
+				append.done = true;
+			}
+		} catch (IOException e) {
+			try {
+				// don't leave partially written records in a journal
+				channel.truncate(start);
+				channel.position(start);
+			} catch (IOException e1) {
+				log.error("Unable to truncate journal " + file + " after a failed commit", e1);
+			}
+			for (Append append : batch) {
+				append.error = e;
+				append.done = true;
+			}
+		}
+	}
+
+	private int index(byte type, String id, long recordPosition) {
+		Records records = index.get(id);
+		Records updated;
+		if (type == SNAPSHOT || records == null) {
+			updated = new Records(Collections.singletonList(recordPosition), type == SNAPSHOT ? 0 : 1);
+		} else {
+			List<Long> positions = new ArrayList<Long>(records.positions);
+			positions.add(recordPosition);
+			updated = new Records(positions, records.deltas + 1);
+		}
+		index.put(id, updated);
+		return updated.deltas;
+	}
+
+	private void open() throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		long size = channel.size();
+		position = 0;
+		while (position < size) {
+			try {
+				ByteBuffer body = readBody(channel, position);
+				byte type = body.get();
+				byte[] id = new byte[body.getShort()];
+				body.get(id);
+				index(type, new String(id, UTF8), position);
+				position += HEADER_SIZE + body.capacity();
+			} catch (EOFException e) {
+				truncate();
+				break;
+			} catch (CorruptRecordException e) {
+				// record can be bounded only by a valid length
+				long end = e.end < 0 ? position : e.end;
+				if (end < size && !isZeroFilled(channel, end)) {
+					channel.close();
+					throw new IOException("Corrupt record in journal " + file + " followed by other records", e);
+				}
+				truncate();
+				break;
+			}
+		}
+		channel.position(position);
+	}
+
+	private void truncate() throws IOException {
+		log.warn("Truncating journal " + file + " at position " + position + " after an incomplete record");
+		channel.truncate(position);
+	}
+
+	private static ByteBuffer encode(byte type, String id, byte[] data) {
+		byte[] idBytes = id.getBytes(UTF8);
+		Assert.isTrue(idBytes.length <= Short.MAX_VALUE, "Context object too long");
+		int bodyLength = 1 + 2 + idBytes.length + data.length;
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bodyLength);
+		record.putInt(bodyLength);
+		record.putInt(0);
+		record.put(type);
+		record.putShort((short) idBytes.length);
+		record.put(idBytes);
+		record.put(data);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), HEADER_SIZE, bodyLength);
+		record.putInt(4, (int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	private static ByteBuffer readHeader(FileChannel channel, long recordPosition) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, header, recordPosition);
+		header.flip();
+		return header;
+	}
+
+	private static ByteBuffer readBody(FileChannel channel, long recordPosition) throws IOException {
+		ByteBuffer header = readHeader(channel, recordPosition);
+		int length = header.getInt();
+		int checksum = header.getInt();
+		if (length <= 0) {
+			throw new CorruptRecordException("Invalid length of record at position " + recordPosition, -1);
+		}
+		long end = recordPosition + HEADER_SIZE + length;
+		if (end > channel.size()) {
+			throw new CorruptRecordException("Incomplete record at position " + recordPosition, end);
+		}
+		ByteBuffer body = ByteBuffer.allocate(length);
+		readFully(channel, body, recordPosition + HEADER_SIZE);
+		CRC32 crc = new CRC32();
+		crc.update(body.array(), 0, length);
+		if ((int) crc.getValue() != checksum) {
+			throw new CorruptRecordException("Checksum mismatch of record at position " + recordPosition, end);
+		}
+		body.flip();
+		return body;
+	}
+
+	private static boolean isZeroFilled(FileChannel channel, long position) throws IOException {
+		// file system may have extended a file without data after a crash
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		long size = channel.size();
+		while (position < size) {
+			buffer.clear();
+			if (buffer.remaining() > size - position) {
+				buffer.limit((int) (size - position));
+			}
+			readFully(channel, buffer, position);
+			for (int i = 0; i < buffer.limit(); i++) {
+				if (buffer.get(i) != 0) {
+					return false;
+				}
+			}
+			position += buffer.limit();
+		}
+		return true;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("Unexpected end of journal at position " + position);
+			}
+		}
+	}
+
+	/**
+	 * Positions of a last snapshot and following deltas of a machine.
+	 */
+	private static class Records {
+
+		final List<Long> positions;
+		final int deltas;
+
+		Records(List<Long> positions, int deltas) {
+			this.positions = positions;
+			this.deltas = deltas;
+		}
+	}
+
+	/**
+	 * Encoded record waiting to be committed.
+	 */
+	private static class Append {
+
+		final byte type;
+		final String id;
+		final ByteBuffer record;
+		boolean done;
+		int deltas;
+		IOException error;
+
+		Append(byte type, String id, ByteBuffer record) {
+			this.type = type;
+			this.id = id;
+			this.record = record;
+		}
+	}
+
+	/**
+	 * Thrown when a record is incomplete or doesn't match its checksum.
+	 */
+	@SuppressWarnings("serial")
+	private static class CorruptRecordException extends IOException {
+
+		// position after a record, negative if not known
+		final long end;
+
+		CorruptRecordException(String message, long end) {
+			super(message);
+			this.end = end;
+		}
+	}
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.kryo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.service.StateMachineSerialisationService;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+import org.springframework.util.Assert;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * {@link StateMachineSerialisationService} using kryo. As {@link Kryo} is
+ * not thread safe, instances are kept in a bounded pool together with
+ * reusable input and output buffers instead of using thread locals.
+ * Instances are created on demand if pool is empty and dropped if pool
+ * is full when returned, so number of threads using this service is not
+ * limited by a pool size.
+ * <p>
+ * Common types can be registered with fixed class ids so that a class name
+ * doesn't need to get written for these, see
+ * {@link #setRegisterClassIds(boolean)}. This is disabled by default as
+ * older versions are not able to read data written with registered ids.
+ * <p>
+ * Contexts can be compressed by setting a {@link CompressionCodec}. A
+ * compressed context is prefixed with a marker byte which doesn't start
+ * a raw kryo output followed by a codec id, while contexts smaller than
+ * a compression threshold or not getting smaller when compressed are
+ * stored raw without a prefix. Thus data written without a codec is
+ * readable with a codec set, while reading compressed contexts needs
+ * a same codec.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ */
+public class KryoStateMachineSerialisationService<S, E> implements StateMachineSerialisationService<S, E> {
+
+	private static final int DEFAULT_BUFFER_SIZE = 1024;
+	private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+	private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+	// differs from a marker of a compact format and class ids below 195 starting raw contexts
+	private static final byte COMPRESSED_MARKER = (byte) 0xC6;
+	// marker, codec id, uncompressed length and compressed length
+	private static final int COMPRESSED_HEADER_SIZE = 10;
+	private static final int MAX_DECOMPRESSED_LENGTH = 64 * 1024 * 1024;
+	private final BlockingQueue<KryoHolder> pool;
+	private final Serializer<StateMachineContext<S, E>> contextSerializer;
+	private CompressionCodec compressionCodec;
+	private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+	private boolean registerClassIds = false;
+
+	/**
+	 * Instantiates a new kryo state machine serialisation service with
+	 * a pool size of two times number of available processors.
+	 */
+	public KryoStateMachineSerialisationService() {
+		this(Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	/**
+	 * Instantiates a new kryo state machine serialisation service.
+	 *
+	 * @param poolSize the maximum number of pooled kryo instances
+	 */
+	public KryoStateMachineSerialisationService(int poolSize) {
+		this(poolSize, null);
+	}
+
+	/**
+	 * Instantiates a new kryo state machine serialisation service using
+	 * a given serializer for contexts, i.e. a
+	 * {@link CompactStateMachineContextSerializer}. Serializer is shared by
+	 * all pooled kryo instances and thus needs to be thread safe.
+	 *
+	 * @param poolSize the maximum number of pooled kryo instances
+	 * @param contextSerializer the context serializer, {@code null} to use {@link StateMachineContextSerializer}
+	 */
+	public KryoStateMachineSerialisationService(int poolSize, Serializer<StateMachineContext<S, E>> contextSerializer) {
+		Assert.isTrue(poolSize > 0, "Pool size must be positive");
+		this.pool = new ArrayBlockingQueue<KryoHolder>(poolSize);
+		this.contextSerializer = contextSerializer;
+	}
+
+	/**
+	 * Sets the compression codec for contexts, i.e. a
+	 * {@link DeflaterCompressionCodec}. Defaults to {@code null} meaning
+	 * contexts are not compressed.
+	 *
+	 * @param compressionCodec the compression codec
+	 */
+	public void setCompressionCodec(CompressionCodec compressionCodec) {
+		this.compressionCodec = compressionCodec;
+	}
+
+	/**
+	 * Sets the size in bytes of a serialized context below which context
+	 * is not compressed. Defaults to {@code 1024}.
+	 *
+	 * @param compressionThreshold the compression threshold
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		Assert.isTrue(compressionThreshold >= 0, "Compression threshold must not be negative");
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Sets if common types are registered with fixed class ids instead of
+	 * writing their class names. Data written with class names can always
+	 * be read, however data written with class ids can't be read by older
+	 * versions or by services not having this enabled. Should be enabled
+	 * only after every service reading a same data has been upgraded and
+	 * needs to be set before service is used. Defaults to {@code false}.
+	 *
+	 * @param registerClassIds the flag to register class ids
+	 */
+	public void setRegisterClassIds(boolean registerClassIds) {
+		this.registerClassIds = registerClassIds;
+	}
+
+	@Override
+	public byte[] serialiseStateMachineContext(StateMachineContext<S, E> context) {
+		KryoHolder holder = borrow();
+		try {
+			doSerialise(holder, context);
+			if (compressionCodec != null) {
+				return encode(holder.output.getBuffer(), holder.output.position());
+			}
+			return holder.output.toBytes();
+		} finally {
+			release(holder);
+		}
+	}
+
+	/**
+	 * Serialise a state machine context into a given buffer starting from
+	 * its current position. Position of a buffer is advanced by a number
+	 * of written bytes.
+	 *
+	 * @param context the state machine context
+	 * @param buffer the buffer
+	 * @return the number of written bytes
+	 * @throws java.nio.BufferOverflowException if buffer doesn't have enough space
+	 */
+	public int serialiseStateMachineContext(StateMachineContext<S, E> context, ByteBuffer buffer) {
+		KryoHolder holder = borrow();
+		try {
+			doSerialise(holder, context);
+			if (compressionCodec != null) {
+				byte[] data = encode(holder.output.getBuffer(), holder.output.position());
+				buffer.put(data);
+				return data.length;
+			}
+			int length = holder.output.position();
+			buffer.put(holder.output.getBuffer(), 0, length);
+			return length;
+		} finally {
+			release(holder);
+		}
+	}
+
+	@Override
+	public StateMachineContext<S, E> deserialiseStateMachineContext(byte[] data) {
+		if (data == null || data.length == 0) {
+			return null;
+		}
+		return deserialiseStateMachineContext(data, 0, data.length);
+	}
+
+	/**
+	 * Deserialise a state machine context from a given buffer starting from
+	 * its current position. Position of a buffer is advanced by a number of
+	 * read bytes. Direct buffers, i.e. memory mapped files, are read without
+	 * copying its content into a heap.
+	 *
+	 * @param buffer the buffer
+	 * @return the state machine context
+	 */
+	@SuppressWarnings("unchecked")
+	public StateMachineContext<S, E> deserialiseStateMachineContext(ByteBuffer buffer) {
+		if (buffer == null || !buffer.hasRemaining()) {
+			return null;
+		}
+		if (buffer.get(buffer.position()) == COMPRESSED_MARKER) {
+			buffer.get();
+			return decode(buffer);
+		}
+		if (buffer.hasArray()) {
+			KryoHolder holder = borrow();
+			try {
+				StateMachineContext<S, E> context = doDeserialise(holder, buffer.array(),
+						buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				buffer.position(buffer.position() + holder.read);
+				return context;
+			} finally {
+				release(holder);
+			}
+		}
+		KryoHolder holder = borrow();
+		holder.bufferInput.setBuffer(buffer);
+		try {
+			StateMachineContext<S, E> context = holder.kryo.readObject(holder.bufferInput, StateMachineContext.class);
+			buffer.position(holder.bufferInput.position());
+			return context;
+		} finally {
+			holder.bufferInput.setBuffer(holder.emptyByteBuffer);
+			release(holder);
+		}
+	}
+
+	/**
+	 * Deserialise a state machine context from a part of a given array.
+	 *
+	 * @param data the data
+	 * @param offset the offset of a first byte
+	 * @param length the number of bytes
+	 * @return the state machine context
+	 */
+	public StateMachineContext<S, E> deserialiseStateMachineContext(byte[] data, int offset, int length) {
+		if (length > 0 && data[offset] == COMPRESSED_MARKER) {
+			return deserialiseStateMachineContext(ByteBuffer.wrap(data, offset, length));
+		}
+		KryoHolder holder = borrow();
+		try {
+			return doDeserialise(holder, data, offset, length);
+		} finally {
+			release(holder);
+		}
+	}
+
+	/**
+	 * Serialise an arbitrary object, i.e. a part of a state machine context,
+	 * using same kryo configuration as with contexts.
+	 *
+	 * @param object the object, may be {@code null}
+	 * @return the serialised bytes
+	 */
+	public byte[] serialiseObject(Object object) {
+		KryoHolder holder = borrow();
+		try {
+			holder.output.clear();
+			holder.kryo.writeClassAndObject(holder.output, object);
+			return holder.output.toBytes();
+		} finally {
+			release(holder);
+		}
+	}
+
+	/**
+	 * Deserialise an object serialised with {@link #serialiseObject(Object)}.
+	 * Returns {@code null} if data is {@code null} or empty.
+	 *
+	 * @param data the serialised bytes
+	 * @return the object
+	 */
+	public Object deserialiseObject(byte[] data) {
+		if (data == null || data.length == 0) {
+			return null;
+		}
+		KryoHolder holder = borrow();
+		holder.input.setBuffer(data);
+		try {
+			return holder.kryo.readClassAndObject(holder.input);
+		} finally {
+			holder.input.setBuffer(holder.emptyBuffer);
+			release(holder);
+		}
+	}
+
+	/**
+	 * Configure a new {@link Kryo} instance. Subclasses may override this
+	 * method to register additional serializers and classes but should call
+	 * super method first. Registrations need to be same for all services
+	 * reading and writing a same data. Registered class ids need to be
+	 * below {@code 195} so that raw contexts are not mistaken for
+	 * compressed or compact ones.
+	 *
+	 * @param kryo the kryo instance
+	 */
+	@SuppressWarnings("rawtypes")
+	protected void configureKryoInstance(Kryo kryo) {
+		kryo.addDefaultSerializer(StateMachineContext.class,
+				contextSerializer != null ? contextSerializer : new StateMachineContextSerializer());
+		kryo.addDefaultSerializer(MessageHeaders.class, new MessageHeadersSerializer());
+		kryo.addDefaultSerializer(UUID.class, new UUIDSerializer());
+		if (!registerClassIds) {
+			return;
+		}
+		// ids below 100 are left for kryo and its default registrations
+		kryo.register(DefaultStateMachineContext.class, 100);
+		kryo.register(MessageHeaders.class, 101);
+		kryo.register(UUID.class, 102);
+		kryo.register(HashMap.class, 103);
+		kryo.register(LinkedHashMap.class, 104);
+		kryo.register(ArrayList.class, 105);
+	}
+
+	private void doSerialise(KryoHolder holder, StateMachineContext<S, E> context) {
+		holder.output.clear();
+		holder.kryo.writeObject(holder.output, context);
+	}
+
+	@SuppressWarnings("unchecked")
+	private StateMachineContext<S, E> doDeserialise(KryoHolder holder, byte[] data, int offset, int length) {
+		holder.input.setBuffer(data, offset, length);
+		try {
+			StateMachineContext<S, E> context = holder.kryo.readObject(holder.input, StateMachineContext.class);
+			holder.read = holder.input.position() - offset;
+			return context;
+		} finally {
+			// don't keep a reference to a callers data
+			holder.input.setBuffer(holder.emptyBuffer);
+		}
+	}
+
+	private byte[] encode(byte[] data, int length) {
+		if (length >= compressionThreshold) {
+			byte[] compressed = compressionCodec.compress(data, 0, length);
+			if (compressed.length + COMPRESSED_HEADER_SIZE < length) {
+				ByteBuffer encoded = ByteBuffer.allocate(compressed.length + COMPRESSED_HEADER_SIZE);
+				encoded.put(COMPRESSED_MARKER);
+				encoded.put(compressionCodec.getId());
+				encoded.putInt(length);
+				encoded.putInt(compressed.length);
+				encoded.put(compressed);
+				return encoded.array();
+			}
+		}
+		return Arrays.copyOf(data, length);
+	}
+
+	private StateMachineContext<S, E> decode(ByteBuffer buffer) {
+		byte codec = buffer.get();
+		if (compressionCodec == null || codec != compressionCodec.getId()) {
+			throw new KryoException("Unsupported compression codec " + codec);
+		}
+		int length = buffer.getInt();
+		int compressedLength = buffer.getInt();
+		if (length <= 0 || length > MAX_DECOMPRESSED_LENGTH || compressedLength <= 0
+				|| compressedLength > buffer.remaining()) {
+			throw new KryoException("Invalid lengths " + length + " and " + compressedLength + " of compressed context");
+		}
+		byte[] data = new byte[length];
+		if (buffer.hasArray()) {
+			compressionCodec.decompress(buffer.array(), buffer.arrayOffset() + buffer.position(), compressedLength, data);
+			buffer.position(buffer.position() + compressedLength);
+		} else {
+			byte[] compressed = new byte[compressedLength];
+			buffer.get(compressed);
+			compressionCodec.decompress(compressed, 0, compressedLength, data);
+		}
+		KryoHolder holder = borrow();
+		try {
+			return doDeserialise(holder, data, 0, length);
+		} finally {
+			release(holder);
+		}
+	}
+
+	private KryoHolder borrow() {
+		KryoHolder holder = pool.poll();
+		if (holder == null) {
+			Kryo kryo = new Kryo();
+			configureKryoInstance(kryo);
+			holder = new KryoHolder(kryo);
+		}
+		return holder;
+	}
+
+	private void release(KryoHolder holder) {
+		// don't retain buffers grown by an exceptionally large context
+		if (holder.output.getBuffer().length > MAX_RETAINED_BUFFER_SIZE) {
+			holder.output.setBuffer(new byte[DEFAULT_BUFFER_SIZE], -1);
+		}
+		pool.offer(holder);
+	}
+
+	private static class KryoHolder {
+
+		final Kryo kryo;
+		final Output output = new Output(DEFAULT_BUFFER_SIZE, -1);
+		final Input input = new Input();
+		final ByteBufferInput bufferInput = new ByteBufferInput();
+		final byte[] emptyBuffer = new byte[0];
+		final ByteBuffer emptyByteBuffer = ByteBuffer.allocate(0);
+		int read;
+
+		KryoHolder(Kryo kryo) {
+			this.kryo = kryo;
+		}
+	}
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.kryo;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineContextBulkRepository;
+import org.springframework.statemachine.StateMachineContextRepository;
+import org.springframework.statemachine.StateMachineException;
+import org.springframework.statemachine.support.LifecycleObjectSupport;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link StateMachineContextRepository} storing kryo serialized contexts
+ * in memory mapped segment files within a local directory.
+ * <p>
+ * Segments are log structured, a saved context is always appended into
+ * an active segment and an in-memory index maps an id to a location of
+ * its latest record. Contexts are deserialized directly from a mapped
+ * segment without copying a record. Index is rebuilt on startup by
+ * scanning segments in order, records are checksummed and an incomplete
+ * last record of a segment is discarded. A corrupt record followed by
+ * other records fails recovery instead of hiding records after it.
+ * <p>
+ * Records are written into an operating system page cache and thus survive
+ * a crash of a process. Surviving a crash of an operating system requires
+ * {@link #setSyncOnSave(boolean)}. Segments whose ratio of superseded
+ * records exceeds a compaction threshold are compacted periodically by
+ * copying live records into an active segment. Index keeps an entry for
+ * every id in a heap which needs to be considered with large numbers
+ * of contexts.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ */
+public class MappedFileStateMachineContextRepository<S, E> extends LifecycleObjectSupport
+		implements StateMachineContextBulkRepository<S, E, StateMachineContext<S, E>> {
+
+	private static final Log log = LogFactory.getLog(MappedFileStateMachineContextRepository.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+	private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	// record length and checksum
+	private static final int HEADER_SIZE = 8;
+	private final File directory;
+	private final int segmentSize;
+	private final KryoStateMachineSerialisationService<S, E> serialisationService;
+	private final Map<String, Long> index = new ConcurrentHashMap<String, Long>();
+	private final Map<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+	private final Object writeLock = new Object();
+	private Segment active;
+	private boolean syncOnSave = false;
+	private double compactionThreshold = 0.5;
+	private long compactionInterval = 60000;
+	private ThreadPoolTaskScheduler internalScheduler;
+	private ScheduledFuture<?> scheduledCompaction;
+
+	/**
+	 * Instantiates a new mapped file state machine context repository
+	 * with 64MB segments.
+	 *
+	 * @param directory the directory for segment files
+	 */
+	public MappedFileStateMachineContextRepository(File directory) {
+		this(directory, DEFAULT_SEGMENT_SIZE, new KryoStateMachineSerialisationService<S, E>());
+	}
+
+	/**
+	 * Instantiates a new mapped file state machine context repository.
+	 *
+	 * @param directory the directory for segment files
+	 * @param segmentSize the segment size in bytes
+	 * @param serialisationService the kryo state machine serialisation service
+	 */
+	public MappedFileStateMachineContextRepository(File directory, int segmentSize,
+			KryoStateMachineSerialisationService<S, E> serialisationService) {
+		Assert.notNull(directory, "Directory must be set");
+		Assert.isTrue(segmentSize > HEADER_SIZE, "Segment size too small");
+		Assert.notNull(serialisationService, "KryoStateMachineSerialisationService must be set");
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.serialisationService = serialisationService;
+		setAutoStartup(true);
+		try {
+			recover();
+		} catch (IOException e) {
+			throw new StateMachineException("Unable to open segments in " + directory, e);
+		}
+	}
+
+	/**
+	 * Sets if a segment is synced to a storage device on every save.
+	 * Defaults to {@code false}.
+	 *
+	 * @param syncOnSave the sync on save flag
+	 */
+	public void setSyncOnSave(boolean syncOnSave) {
+		this.syncOnSave = syncOnSave;
+	}
+
+	/**
+	 * Sets the ratio of superseded records in a segment at which a segment
+	 * is compacted. Defaults to {@code 0.5}.
+	 *
+	 * @param compactionThreshold the compaction threshold
+	 */
+	public void setCompactionThreshold(double compactionThreshold) {
+		Assert.isTrue(compactionThreshold > 0 && compactionThreshold <= 1, "Compaction threshold must be within (0, 1]");
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * Sets the interval in milliseconds of background compaction. Defaults
+	 * to {@code 60000}.
+	 *
+	 * @param compactionInterval the compaction interval
+	 */
+	public void setCompactionInterval(long compactionInterval) {
+		Assert.isTrue(compactionInterval > 0, "Compaction interval must be positive");
+		this.compactionInterval = compactionInterval;
+	}
+
+	@Override
+	public void save(StateMachineContext<S, E> context, String id) {
+		byte[] record = encode(id, serialisationService.serialiseStateMachineContext(context));
+		synchronized (writeLock) {
+			append(id, record);
+			sync();
+		}
+	}
+
+	@Override
+	public StateMachineContext<S, E> getContext(String id) {
+		while (true) {
+			Long location = index.get(id);
+			if (location == null) {
+				return null;
+			}
+			Segment segment = segments.get(segmentNumber(location));
+			if (segment == null) {
+				// segment compacted after a location was read
+				continue;
+			}
+			ByteBuffer buffer = segment.buffer.duplicate();
+			int offset = segmentOffset(location);
+			int length = buffer.getInt(offset);
+			int idLength = buffer.getShort(offset + HEADER_SIZE);
+			buffer.limit(offset + HEADER_SIZE + length);
+			buffer.position(offset + HEADER_SIZE + 2 + idLength);
+			return serialisationService.deserialiseStateMachineContext(buffer);
+		}
+	}
+
+	@Override
+	public void saveAll(Map<String, StateMachineContext<S, E>> contexts) {
+		Map<String, byte[]> records = new LinkedHashMap<String, byte[]>(contexts.size());
+		for (Entry<String, StateMachineContext<S, E>> entry : contexts.entrySet()) {
+			records.put(entry.getKey(), encode(entry.getKey(),
+					serialisationService.serialiseStateMachineContext(entry.getValue())));
+		}
+		synchronized (writeLock) {
+			for (Entry<String, byte[]> entry : records.entrySet()) {
+				append(entry.getKey(), entry.getValue());
+			}
+			sync();
+		}
+	}
+
+	@Override
+	public Map<String, StateMachineContext<S, E>> getContexts(Collection<String> ids) {
+		Map<String, StateMachineContext<S, E>> contexts = new LinkedHashMap<String, StateMachineContext<S, E>>();
+		for (String id : ids) {
+			StateMachineContext<S, E> context = getContext(id);
+			if (context != null) {
+				contexts.put(id, context);
+			}
+		}
+		return contexts;
+	}
+
+	/**
+	 * Compacts segments whose ratio of superseded records exceeds
+	 * a compaction threshold.
+	 *
+	 * @return the number of compacted segments
+	 */
+	public int compact() {
+		int compacted = 0;
+		List<Segment> candidates = new ArrayList<Segment>(segments.values());
+		for (Segment segment : candidates) {
+			synchronized (writeLock) {
+				if (segment == active || segment.size == 0
+						|| 1 - (double) segment.liveBytes / segment.size < compactionThreshold) {
+					continue;
+				}
+				compact(segment);
+				compacted++;
+			}
+		}
+		return compacted;
+	}
+
+	/**
+	 * Gets the number of stored contexts.
+	 *
+	 * @return the number of stored contexts
+	 */
+	public int getSize() {
+		return index.size();
+	}
+
+	/**
+	 * Gets the number of segment files.
+	 *
+	 * @return the number of segment files
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	@Override
+	protected void doStart() {
+		TaskScheduler scheduler = getTaskScheduler();
+		if (scheduler == null) {
+			internalScheduler = new ThreadPoolTaskScheduler();
+			internalScheduler.setThreadNamePrefix("statemachine-compaction-");
+			internalScheduler.setDaemon(true);
+			internalScheduler.initialize();
+			scheduler = internalScheduler;
+		}
+		scheduledCompaction = scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					compact();
+				} catch (Exception e) {
+					log.warn("Compaction of segments in " + directory + " failed", e);
+				}
+			}
+		}, compactionInterval);
+	}
+
+	@Override
+	protected void doStop() {
+		if (scheduledCompaction != null) {
+			scheduledCompaction.cancel(false);
+			scheduledCompaction = null;
+		}
+		if (internalScheduler != null) {
+			internalScheduler.shutdown();
+			internalScheduler = null;
+		}
+	}
+
+	@Override
+	protected void doDestroy() {
+		stop();
+		synchronized (writeLock) {
+			for (Segment segment : segments.values()) {
+				segment.buffer.force();
+			}
+		}
+	}
+
+	private void append(String id, byte[] record) {
+		Assert.isTrue(record.length <= segmentSize, "Context of " + id + " doesn't fit into a segment");
+		if (active.size + record.length > segmentSize) {
+			// a previous segment is synced when rolled over
+			active.buffer.force();
+			active = createSegment(active.number + 1);
+		}
+		int offset = active.size;
+		ByteBuffer buffer = active.buffer.duplicate();
+		// write length last so that an incomplete record is never seen as written
+		buffer.position(offset + 4);
+		buffer.put(record, 4, record.length - 4);
+		buffer.putInt(offset, record.length - HEADER_SIZE);
+		active.size += record.length;
+		active.liveBytes += record.length;
+		supersede(index.put(id, location(active.number, offset)));
+	}
+
+	private void supersede(Long location) {
+		if (location != null) {
+			Segment segment = segments.get(segmentNumber(location));
+			segment.liveBytes -= HEADER_SIZE + segment.buffer.getInt(segmentOffset(location));
+		}
+	}
+
+	private void sync() {
+		if (syncOnSave) {
+			active.buffer.force();
+		}
+	}
+
+	private void compact(Segment segment) {
+		int offset = 0;
+		while (offset < segment.size) {
+			int length = HEADER_SIZE + segment.buffer.getInt(offset);
+			String id = readId(segment.buffer, offset);
+			Long location = index.get(id);
+			if (location != null && location == location(segment.number, offset)) {
+				byte[] record = new byte[length];
+				ByteBuffer buffer = segment.buffer.duplicate();
+				buffer.position(offset);
+				buffer.get(record);
+				append(id, record);
+			}
+			offset += length;
+		}
+		// copied records need to be durable before a segment is removed
+		active.buffer.force();
+		segments.remove(segment.number);
+		if (!segment.file.delete()) {
+			log.warn("Unable to delete compacted segment " + segment.file);
+		}
+	}
+
+	private void recover() throws IOException {
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Unable to create directory " + directory);
+		}
+		File[] files = directory.listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		int[] numbers = new int[files.length];
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			numbers[i] = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		}
+		Arrays.sort(numbers);
+		for (int number : numbers) {
+			Segment segment = mapSegment(number);
+			segments.put(number, segment);
+			scan(segment);
+			active = segment;
+		}
+		if (active == null) {
+			active = createSegment(0);
+		}
+	}
+
+	private void scan(Segment segment) throws IOException {
+		MappedByteBuffer buffer = segment.buffer;
+		int offset = 0;
+		while (offset + HEADER_SIZE <= segmentSize) {
+			int length = buffer.getInt(offset);
+			if (length == 0) {
+				if (!isZeroFilled(buffer, offset)) {
+					throw new IOException("Corrupt record in " + segment.file + " at offset " + offset);
+				}
+				break;
+			}
+			boolean bounded = length > 0 && offset + HEADER_SIZE + length <= segmentSize;
+			if (!bounded || !isValid(buffer, offset, length)) {
+				// only a last record can be incomplete as length is written last
+				if (!isZeroFilled(buffer, bounded ? offset + HEADER_SIZE + length : offset + HEADER_SIZE)) {
+					throw new IOException("Corrupt record in " + segment.file + " at offset " + offset
+							+ " followed by other records");
+				}
+				log.warn("Ignoring incomplete record in " + segment.file + " at offset " + offset);
+				// clear so that following appends are not mixed with a broken record
+				ByteBuffer clear = buffer.duplicate();
+				clear.position(offset);
+				clear.put(new byte[Math.min(segmentSize - offset, HEADER_SIZE + Math.max(length, 0))]);
+				break;
+			}
+			segment.size = offset + HEADER_SIZE + length;
+			segment.liveBytes += HEADER_SIZE + length;
+			supersede(index.put(readId(buffer, offset), location(segment.number, offset)));
+			offset = segment.size;
+		}
+	}
+
+	private Segment createSegment(int number) {
+		try {
+			Segment segment = mapSegment(number);
+			segments.put(number, segment);
+			return segment;
+		} catch (IOException e) {
+			throw new StateMachineException("Unable to create segment " + number + " in " + directory, e);
+		}
+	}
+
+	private Segment mapSegment(int number) throws IOException {
+		File file = new File(directory, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(segmentSize);
+			// mapping stays valid after a channel is closed
+			return new Segment(number, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static byte[] encode(String id, byte[] data) {
+		byte[] idBytes = id.getBytes(UTF8);
+		Assert.isTrue(idBytes.length <= Short.MAX_VALUE, "Id too long");
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + 2 + idBytes.length + data.length);
+		record.putInt(record.capacity() - HEADER_SIZE);
+		record.putInt(0);
+		record.putShort((short) idBytes.length);
+		record.put(idBytes);
+		record.put(data);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), HEADER_SIZE, record.capacity() - HEADER_SIZE);
+		record.putInt(4, (int) crc.getValue());
+		return record.array();
+	}
+
+	private static boolean isValid(ByteBuffer buffer, int offset, int length) {
+		byte[] body = new byte[length];
+		ByteBuffer duplicate = buffer.duplicate();
+		duplicate.position(offset + HEADER_SIZE);
+		duplicate.get(body);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		return (int) crc.getValue() == buffer.getInt(offset + 4);
+	}
+
+	private static boolean isZeroFilled(ByteBuffer buffer, int offset) {
+		for (int i = offset; i < buffer.capacity(); i++) {
+			if (buffer.get(i) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String readId(ByteBuffer buffer, int offset) {
+		byte[] id = new byte[buffer.getShort(offset + HEADER_SIZE)];
+		ByteBuffer duplicate = buffer.duplicate();
+		duplicate.position(offset + HEADER_SIZE + 2);
+		duplicate.get(id);
+		return new String(id, UTF8);
+	}
+
+	private static long location(int segment, int offset) {
+		return ((long) segment << 32) | (offset & 0xffffffffL);
+	}
+
+	private static int segmentNumber(long location) {
+		return (int) (location >>> 32);
+	}
+
+	private static int segmentOffset(long location) {
+		return (int) location;
+	}
+
+	/**
+	 * Memory mapped segment file. Size and live bytes are guarded by
+	 * a write lock.
+	 */
+	private static class Segment {
+
+		final int number;
+		final File file;
+		final MappedByteBuffer buffer;
+		int size;
+		long liveBytes;
+
+		Segment(int number, File file, MappedByteBuffer buffer) {
+			this.number = number;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.kryo;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+
+public class CompactStateMachineContextSerializerTests {
+
+	private static final Log log = LogFactory.getLog(CompactStateMachineContextSerializerTests.class);
+
+	@Test
+	public void testEnumsWithChilds() {
+		KryoStateMachineSerialisationService<States, Events> service = new KryoStateMachineSerialisationService<States, Events>(1,
+				new CompactStateMachineContextSerializer<States, Events>(States.class, Events.class));
+
+		StateMachineContext<States, Events> contextIn = service.deserialiseStateMachineContext(
+				service.serialiseStateMachineContext(buildContext()));
+
+		assertThat(contextIn.getState(), is(States.S1));
+		assertThat(contextIn.getEvent(), is(Events.E1));
+		assertThat(contextIn.getEventHeaders().keySet(), containsInAnyOrder("foo"));
+		assertThat(contextIn.getExtendedState().get("count", Integer.class), is(1));
+		assertThat(contextIn.getChilds().size(), is(2));
+		assertThat(contextIn.getChilds().get(0).getState(), is(States.S11));
+		assertThat(contextIn.getChilds().get(0).getEvent(), nullValue());
+		assertThat(contextIn.getChilds().get(1).getState(), is(States.S12));
+	}
+
+	@Test
+	public void testUnknownTypesAndHeaderWhitelist() {
+		KryoStateMachineSerialisationService<String, String> service = new KryoStateMachineSerialisationService<String, String>(1,
+				new CompactStateMachineContextSerializer<String, String>(null, null, Arrays.asList("bar")));
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put("foo", "jee");
+		headers.put("bar", 2);
+		StateMachineContext<String, String> contextOut =
+				new DefaultStateMachineContext<String, String>("S1", "E1", headers, new DefaultExtendedState());
+
+		StateMachineContext<String, String> contextIn = service.deserialiseStateMachineContext(
+				service.serialiseStateMachineContext(contextOut));
+
+		assertThat(contextIn.getState(), is("S1"));
+		assertThat(contextIn.getEvent(), is("E1"));
+		assertThat(contextIn.getEventHeaders().keySet(), containsInAnyOrder("bar"));
+		assertThat(contextIn.getEventHeaders().get("bar"), is((Object) 2));
+		assertThat(contextIn.getChilds().size(), is(0));
+	}
+
+	@Test
+	public void testReadsLegacyFormat() {
+		KryoStateMachineSerialisationService<States, Events> legacy = new KryoStateMachineSerialisationService<States, Events>(1);
+		KryoStateMachineSerialisationService<States, Events> compact = new KryoStateMachineSerialisationService<States, Events>(1,
+				new CompactStateMachineContextSerializer<States, Events>(States.class, Events.class));
+
+		StateMachineContext<States, Events> contextIn = compact.deserialiseStateMachineContext(
+				legacy.serialiseStateMachineContext(buildContext()));
+
+		assertThat(contextIn.getState(), is(States.S1));
+		assertThat(contextIn.getEvent(), is(Events.E1));
+		assertThat(contextIn.getChilds().get(1).getState(), is(States.S12));
+	}
+
+	@Test
+	public void testReadsLegacyFormatWithHighestSafeClassId() {
+		KryoStateMachineSerialisationService<States, Events> legacy = buildEventIdService(null, 194);
+		KryoStateMachineSerialisationService<States, Events> compact = buildEventIdService(
+				new CompactStateMachineContextSerializer<States, Events>(States.class, Events.class), 194);
+
+		// serializer sees data after a reference marker written by kryo
+		byte[] data = legacy.serialiseStateMachineContext(buildContext());
+		assertThat(data[1], not(CompactStateMachineContextSerializer.MARKER));
+		StateMachineContext<States, Events> contextIn = compact.deserialiseStateMachineContext(data);
+		assertThat(contextIn.getState(), is(States.S1));
+		assertThat(contextIn.getEvent(), is(Events.E1));
+
+		// next id would start legacy data with a marker
+		data = buildEventIdService(null, 195).serialiseStateMachineContext(buildContext());
+		assertThat(data[1], is(CompactStateMachineContextSerializer.MARKER));
+	}
+
+	@Test(expected = KryoException.class)
+	public void testUnsupportedVersion() {
+		KryoStateMachineSerialisationService<States, Events> service = new KryoStateMachineSerialisationService<States, Events>(1,
+				new CompactStateMachineContextSerializer<States, Events>(States.class, Events.class));
+		byte[] data = service.serialiseStateMachineContext(buildContext());
+		data[1] = CompactStateMachineContextSerializer.VERSION + 1;
+		service.deserialiseStateMachineContext(data);
+	}
+
+	@Test
+	public void testSizeAndThroughput() {
+		KryoStateMachineSerialisationService<States, Events> legacy = new KryoStateMachineSerialisationService<States, Events>(1);
+		KryoStateMachineSerialisationService<States, Events> compact = new KryoStateMachineSerialisationService<States, Events>(1,
+				new CompactStateMachineContextSerializer<States, Events>(States.class, Events.class));
+		StateMachineContext<States, Events> context = buildContext();
+
+		int legacySize = legacy.serialiseStateMachineContext(context).length;
+		int compactSize = compact.serialiseStateMachineContext(context).length;
+		assertThat(compactSize, lessThan(legacySize));
+
+		int count = 20000;
+		// warm up
+		roundtrip(legacy, context, count);
+		roundtrip(compact, context, count);
+		long legacyTime = roundtrip(legacy, context, count);
+		long compactTime = roundtrip(compact, context, count);
+		log.info("Context size " + legacySize + " bytes with legacy format and " + compactSize + " bytes with compact format");
+		log.info("Roundtrips/sec " + count * 1000000000L / legacyTime + " with legacy format and "
+				+ count * 1000000000L / compactTime + " with compact format");
+	}
+
+	private static KryoStateMachineSerialisationService<States, Events> buildEventIdService(
+			CompactStateMachineContextSerializer<States, Events> serializer, final int eventClassId) {
+		return new KryoStateMachineSerialisationService<States, Events>(1, serializer) {
+
+			@Override
+			protected void configureKryoInstance(Kryo kryo) {
+				super.configureKryoInstance(kryo);
+				kryo.register(Events.class, eventClassId);
+			}
+		};
+	}
+
+	private static long roundtrip(KryoStateMachineSerialisationService<States, Events> service,
+			StateMachineContext<States, Events> context, int count) {
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			service.deserialiseStateMachineContext(service.serialiseStateMachineContext(context));
+		}
+		return Math.max(System.nanoTime() - start, 1);
+	}
+
+	private static StateMachineContext<States, Events> buildContext() {
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put("foo", "jee");
+		MessageHeaders messageHeaders = new MessageHeaders(headers);
+		DefaultExtendedState extendedState = new DefaultExtendedState();
+		extendedState.getVariables().put("count", 1);
+		List<StateMachineContext<States, Events>> childs = new ArrayList<StateMachineContext<States, Events>>();
+		childs.add(new DefaultStateMachineContext<States, Events>(States.S11, null, null, new DefaultExtendedState()));
+		childs.add(new DefaultStateMachineContext<States, Events>(States.S12, null, null, new DefaultExtendedState()));
+		return new DefaultStateMachineContext<States, Events>(childs, States.S1, Events.E1, messageHeaders, extendedState);
+	}
+
+	private enum States {
+		S1, S11, S12
+	}
+
+	private enum Events {
+		E1
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.kryo;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+import com.esotericsoftware.kryo.KryoException;
+
+/**
+ * Tests for {@link DeflaterCompressionCodec} with {@link KryoStateMachineSerialisationService}.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public class DeflaterCompressionCodecTests {
+
+	private static final Log log = LogFactory.getLog(DeflaterCompressionCodecTests.class);
+
+	@Test
+	public void testCompressedRoundtrip() {
+		KryoStateMachineSerialisationService<String, String> plain = new KryoStateMachineSerialisationService<>(1);
+		KryoStateMachineSerialisationService<String, String> service = buildService(Deflater.BEST_SPEED);
+		StateMachineContext<String, String> context = buildContext(1000);
+
+		byte[] data = service.serialiseStateMachineContext(context);
+		assertThat(data[1], is(DeflaterCompressionCodec.ID));
+		assertThat(data.length, lessThan(plain.serialiseStateMachineContext(context).length / 4));
+		assertContext(service.deserialiseStateMachineContext(data), 1000);
+
+		// direct buffers and a part of an array
+		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + 10);
+		buffer.position(5);
+		buffer.put(data);
+		buffer.flip();
+		buffer.position(5);
+		assertContext(service.deserialiseStateMachineContext(buffer), 1000);
+		assertThat(buffer.position(), is(data.length + 5));
+		byte[] padded = new byte[data.length + 3];
+		System.arraycopy(data, 0, padded, 2, data.length);
+		assertContext(service.deserialiseStateMachineContext(padded, 2, data.length), 1000);
+	}
+
+	@Test
+	public void testSmallContextStoredRaw() {
+		KryoStateMachineSerialisationService<String, String> plain = new KryoStateMachineSerialisationService<>(1);
+		KryoStateMachineSerialisationService<String, String> service = buildService(Deflater.BEST_SPEED);
+		StateMachineContext<String, String> context = buildContext(1);
+
+		byte[] data = service.serialiseStateMachineContext(context);
+		// raw contexts are not prefixed
+		assertThat(data, is(plain.serialiseStateMachineContext(context)));
+		assertContext(service.deserialiseStateMachineContext(data), 1);
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+		service.serialiseStateMachineContext(context, buffer);
+		buffer.flip();
+		assertContext(service.deserialiseStateMachineContext(buffer), 1);
+	}
+
+	@Test
+	public void testDataWrittenWithoutCodecReadable() {
+		KryoStateMachineSerialisationService<String, String> plain = new KryoStateMachineSerialisationService<>(1);
+		KryoStateMachineSerialisationService<String, String> service = buildService(Deflater.BEST_SPEED);
+		KryoStateMachineSerialisationService<String, String> compact = new KryoStateMachineSerialisationService<>(1,
+				new CompactStateMachineContextSerializer<String, String>());
+		compact.setCompressionCodec(new DeflaterCompressionCodec(Deflater.BEST_SPEED));
+
+		assertContext(service.deserialiseStateMachineContext(plain.serialiseStateMachineContext(buildContext(1000))), 1000);
+		assertContext(compact.deserialiseStateMachineContext(plain.serialiseStateMachineContext(buildContext(1))), 1);
+		assertContext(compact.deserialiseStateMachineContext(compact.serialiseStateMachineContext(buildContext(1))), 1);
+	}
+
+	@Test(expected = KryoException.class)
+	public void testUnknownCodec() {
+		KryoStateMachineSerialisationService<String, String> service = buildService(Deflater.BEST_SPEED);
+		byte[] data = service.serialiseStateMachineContext(buildContext(1000));
+		data[1] = 2;
+		service.deserialiseStateMachineContext(data);
+	}
+
+	@Test(expected = KryoException.class)
+	public void testCompressedWithoutCodec() {
+		KryoStateMachineSerialisationService<String, String> plain = new KryoStateMachineSerialisationService<>(1);
+		KryoStateMachineSerialisationService<String, String> service = buildService(Deflater.BEST_SPEED);
+		plain.deserialiseStateMachineContext(service.serialiseStateMachineContext(buildContext(1000)));
+	}
+
+	@Test(expected = KryoException.class)
+	public void testTooLargeLengthRejected() {
+		KryoStateMachineSerialisationService<String, String> service = buildService(Deflater.BEST_SPEED);
+		byte[] data = service.serialiseStateMachineContext(buildContext(1000));
+		ByteBuffer.wrap(data).putInt(2, Integer.MAX_VALUE);
+		service.deserialiseStateMachineContext(data);
+	}
+
+	@Test
+	public void testSizeAndThroughput() {
+		KryoStateMachineSerialisationService<String, String> plain = new KryoStateMachineSerialisationService<>(1);
+		KryoStateMachineSerialisationService<String, String> fast = buildService(Deflater.BEST_SPEED);
+		KryoStateMachineSerialisationService<String, String> best = buildService(Deflater.BEST_COMPRESSION);
+		StateMachineContext<String, String> context = buildContext(5000);
+
+		int plainSize = plain.serialiseStateMachineContext(context).length;
+		int fastSize = fast.serialiseStateMachineContext(context).length;
+		int bestSize = best.serialiseStateMachineContext(context).length;
+		assertThat(fastSize, lessThan(plainSize));
+		assertThat(bestSize, lessThan(plainSize));
+
+		int count = 500;
+		// warm up
+		roundtrip(plain, context, count);
+		roundtrip(fast, context, count);
+		roundtrip(best, context, count);
+		long plainTime = roundtrip(plain, context, count);
+		long fastTime = roundtrip(fast, context, count);
+		long bestTime = roundtrip(best, context, count);
+		log.info("Context size " + plainSize + " bytes uncompressed, " + fastSize + " bytes with best speed and "
+				+ bestSize + " bytes with best compression");
+		log.info("Roundtrips/sec " + count * 1000000000L / plainTime + " uncompressed, " + count * 1000000000L / fastTime
+				+ " with best speed and " + count * 1000000000L / bestTime + " with best compression");
+	}
+
+	private static long roundtrip(KryoStateMachineSerialisationService<String, String> service,
+			StateMachineContext<String, String> context, int count) {
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			service.deserialiseStateMachineContext(service.serialiseStateMachineContext(context));
+		}
+		return Math.max(System.nanoTime() - start, 1);
+	}
+
+	private static KryoStateMachineSerialisationService<String, String> buildService(int level) {
+		KryoStateMachineSerialisationService<String, String> service = new KryoStateMachineSerialisationService<>(1);
+		service.setCompressionCodec(new DeflaterCompressionCodec(level));
+		return service;
+	}
+
+	private static void assertContext(StateMachineContext<String, String> context, int lines) {
+		assertThat(context.getState(), is("S1"));
+		@SuppressWarnings("unchecked")
+		List<String> items = context.getExtendedState().get("items", List.class);
+		assertThat(items.size(), is(lines));
+		assertThat(items.get(lines - 1), is("line item " + (lines - 1)));
+	}
+
+	private static StateMachineContext<String, String> buildContext(int lines) {
+		List<String> items = new ArrayList<>();
+		for (int i = 0; i < lines; i++) {
+			items.add("line item " + i);
+		}
+		DefaultExtendedState extendedState = new DefaultExtendedState();
+		extendedState.getVariables().put("items", items);
+		return new DefaultStateMachineContext<String, String>("S1", null, null, extendedState);
+	}
+}
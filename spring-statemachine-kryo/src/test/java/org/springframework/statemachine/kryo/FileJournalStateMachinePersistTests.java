@@ -0,0 +1,248 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.kryo;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineException;
+import org.springframework.statemachine.config.StateMachineBuilder;
+import org.springframework.statemachine.config.StateMachineBuilder.Builder;
+import org.springframework.statemachine.persist.DefaultStateMachinePersister;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+/**
+ * Tests for {@link FileJournalStateMachinePersist}.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public class FileJournalStateMachinePersistTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSnapshotsAndDeltas() throws Exception {
+		File file = folder.newFile();
+		FileJournalStateMachinePersist<String, String> persist = new FileJournalStateMachinePersist<>(file);
+		DefaultStateMachinePersister<String, String, String> persister = new DefaultStateMachinePersister<>(persist);
+		persister.setDeltaSnapshotInterval(3);
+
+		StateMachine<String, String> machine = buildMachine();
+		for (int i = 0; i < 100; i++) {
+			machine.getExtendedState().getVariables().put("key" + i, i);
+		}
+		persister.persist(machine, "xxx");
+		long snapshotSize = persist.getSize();
+		machine.sendEvent("E1");
+		machine.getExtendedState().getVariables().put("key0", -1);
+		persister.persist(machine, "xxx");
+		// delta is much smaller than a full context
+		assertThat(persist.getSize() - snapshotSize, lessThan(snapshotSize / 4));
+		machine.getExtendedState().getVariables().remove("key1");
+		persister.persist(machine, "xxx");
+
+		StateMachine<String, String> restored = persister.restore(buildMachine(), "xxx");
+		assertThat(restored.getState().getId(), is("S2"));
+		assertThat(restored.getExtendedState().getVariables().size(), is(99));
+		assertThat(restored.getExtendedState().get("key0", Integer.class), is(-1));
+		assertThat(persist.read("yyy"), nullValue());
+		persist.close();
+
+		// index is rebuilt when reopened
+		persist = new FileJournalStateMachinePersist<>(file);
+		StateMachineContext<String, String> context = persist.read("xxx");
+		assertThat(context.getState(), is("S2"));
+		assertThat(context.getExtendedState().getVariables().size(), is(99));
+		persist.close();
+	}
+
+	@Test
+	public void testIncompleteRecordTruncated() throws Exception {
+		File file = folder.newFile();
+		FileJournalStateMachinePersist<String, String> persist = new FileJournalStateMachinePersist<>(file);
+		persist.write(buildContext("S1", 1), "xxx");
+		persist.writeDelta(buildContext("S2", 2), "xxx");
+		long size = persist.getSize();
+		persist.close();
+
+		// simulate a crash in a middle of a write
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+		out.close();
+
+		persist = new FileJournalStateMachinePersist<>(file);
+		assertThat(persist.getSize(), is(size));
+		assertThat(file.length(), is(size));
+		assertThat(persist.read("xxx").getState(), is("S2"));
+		persist.writeDelta(buildContext("S3", 3), "xxx");
+		persist.close();
+
+		persist = new FileJournalStateMachinePersist<>(file);
+		StateMachineContext<String, String> context = persist.read("xxx");
+		assertThat(context.getState(), is("S3"));
+		assertThat(context.getExtendedState().get("foo", Integer.class), is(3));
+		persist.close();
+	}
+
+	@Test
+	public void testCorruptRecordFollowedByRecordsFails() throws Exception {
+		File file = folder.newFile();
+		FileJournalStateMachinePersist<String, String> persist = new FileJournalStateMachinePersist<>(file);
+		persist.write(buildContext("S1", 1), "xxx");
+		long size = persist.getSize();
+		persist.writeDelta(buildContext("S2", 2), "xxx");
+		persist.write(buildContext("S1", 1), "yyy");
+		persist.close();
+		long length = file.length();
+
+		// flip a byte in a middle of a second record
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(size + 12);
+		int b = raf.read();
+		raf.seek(size + 12);
+		raf.write(b ^ 0xff);
+		raf.close();
+
+		try {
+			new FileJournalStateMachinePersist<>(file);
+			fail("Expected corrupt journal to fail");
+		} catch (StateMachineException e) {
+		}
+		// records after a corrupt one are not truncated
+		assertThat(file.length(), is(length));
+	}
+
+	@Test
+	public void testCorruptLastRecordTruncated() throws Exception {
+		File file = folder.newFile();
+		FileJournalStateMachinePersist<String, String> persist = new FileJournalStateMachinePersist<>(file);
+		persist.write(buildContext("S1", 1), "xxx");
+		long size = persist.getSize();
+		persist.writeDelta(buildContext("S2", 2), "xxx");
+		persist.close();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(file.length() - 1);
+		int b = raf.read();
+		raf.seek(file.length() - 1);
+		raf.write(b ^ 0xff);
+		// zeros a file system may leave after a crash
+		raf.seek(file.length());
+		raf.write(new byte[100]);
+		raf.close();
+
+		persist = new FileJournalStateMachinePersist<>(file);
+		assertThat(file.length(), is(size));
+		assertThat(persist.read("xxx").getState(), is("S1"));
+		persist.close();
+	}
+
+	@Test
+	public void testConcurrentWriters() throws Exception {
+		File file = folder.newFile();
+		final FileJournalStateMachinePersist<String, String> persist = new FileJournalStateMachinePersist<>(file);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			final String id = "machine" + t;
+			futures.add(executor.submit(() -> {
+				persist.write(buildContext("S0", 0), id);
+				for (int i = 1; i < 50; i++) {
+					persist.writeDelta(buildContext("S" + i, i), id);
+				}
+				return null;
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		for (int t = 0; t < 8; t++) {
+			StateMachineContext<String, String> context = persist.read("machine" + t);
+			assertThat(context.getState(), is("S49"));
+			assertThat(context.getExtendedState().get("foo", Integer.class), is(49));
+		}
+		persist.close();
+	}
+
+	@Test
+	public void testCompact() throws Exception {
+		File file = folder.newFile();
+		FileJournalStateMachinePersist<String, String> persist = new FileJournalStateMachinePersist<>(file);
+		for (int i = 0; i < 20; i++) {
+			persist.write(buildContext("S" + i, i), "xxx");
+			persist.write(buildContext("S" + i, i), "yyy");
+		}
+		persist.writeDelta(buildContext("S20", 20), "yyy");
+		long size = persist.getSize();
+		persist.compact();
+		assertThat(persist.getSize(), lessThan(size / 5));
+		assertThat(file.length(), is(persist.getSize()));
+		assertThat(persist.read("xxx").getState(), is("S19"));
+		assertThat(persist.read("yyy").getState(), is("S20"));
+
+		assertThat(persist.writeDelta(buildContext("S21", 21), "yyy"), is(2));
+		persist.close();
+		persist = new FileJournalStateMachinePersist<>(file);
+		assertThat(persist.read("xxx").getState(), is("S19"));
+		assertThat(persist.read("yyy").getState(), is("S21"));
+		persist.close();
+	}
+
+	private static StateMachineContext<String, String> buildContext(String state, int foo) {
+		DefaultExtendedState extendedState = new DefaultExtendedState();
+		extendedState.getVariables().put("foo", foo);
+		return new DefaultStateMachineContext<String, String>(state, null, null, extendedState);
+	}
+
+	private static StateMachine<String, String> buildMachine() throws Exception {
+		Builder<String, String> builder = StateMachineBuilder.builder();
+		builder.configureConfiguration()
+			.withConfiguration()
+				.taskExecutor(new SyncTaskExecutor());
+		builder.configureStates()
+			.withStates()
+				.initial("S1")
+				.state("S2");
+		builder.configureTransitions()
+			.withExternal()
+				.source("S1").target("S2").event("E1");
+		StateMachine<String, String> machine = builder.build();
+		machine.start();
+		return machine;
+	}
+}
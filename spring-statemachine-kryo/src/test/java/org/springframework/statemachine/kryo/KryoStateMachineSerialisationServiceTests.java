@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.kryo;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+
+/**
+ * Tests for {@link KryoStateMachineSerialisationService}.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public class KryoStateMachineSerialisationServiceTests {
+
+	@Test
+	public void testDefaultReadableWithoutRegisteredClasses() {
+		KryoStateMachineSerialisationService<String, String> service = new KryoStateMachineSerialisationService<>(1);
+		byte[] data = service.serialiseStateMachineContext(buildContext());
+
+		// read like older versions did, with class names
+		assertContext(buildOldKryo().readObject(new Input(data), StateMachineContext.class));
+		assertContext(service.deserialiseStateMachineContext(data));
+	}
+
+	@Test
+	public void testRegisteredClassIds() {
+		KryoStateMachineSerialisationService<String, String> plain = new KryoStateMachineSerialisationService<>(1);
+		KryoStateMachineSerialisationService<String, String> service = new KryoStateMachineSerialisationService<>(1);
+		service.setRegisterClassIds(true);
+
+		byte[] data = service.serialiseStateMachineContext(buildContext());
+		byte[] plainData = plain.serialiseStateMachineContext(buildContext());
+		assertThat(data.length, lessThan(plainData.length));
+		assertContext(service.deserialiseStateMachineContext(data));
+		// data written before ids were enabled can still be read
+		assertContext(service.deserialiseStateMachineContext(plainData));
+	}
+
+	private static Kryo buildOldKryo() {
+		Kryo kryo = new Kryo();
+		kryo.addDefaultSerializer(StateMachineContext.class, new StateMachineContextSerializer<String, String>());
+		kryo.addDefaultSerializer(MessageHeaders.class, new MessageHeadersSerializer());
+		kryo.addDefaultSerializer(UUID.class, new UUIDSerializer());
+		return kryo;
+	}
+
+	private static StateMachineContext<String, String> buildContext() {
+		DefaultExtendedState extendedState = new DefaultExtendedState();
+		extendedState.getVariables().put("foo", 1);
+		extendedState.getVariables().put("bar", new ArrayList<String>());
+		List<StateMachineContext<String, String>> childs = new ArrayList<StateMachineContext<String, String>>();
+		childs.add(new DefaultStateMachineContext<String, String>("S11", null, null, new DefaultExtendedState()));
+		return new DefaultStateMachineContext<String, String>(childs, "S1", "E1", new HashMap<String, Object>(),
+				extendedState);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void assertContext(StateMachineContext<?, ?> context) {
+		assertThat((String) context.getState(), is("S1"));
+		assertThat((String) context.getEvent(), is("E1"));
+		assertThat(context.getExtendedState().getVariables().get("foo"), is((Object) 1));
+		assertThat(((List<String>) context.getExtendedState().getVariables().get("bar")).size(), is(0));
+		assertThat((String) context.getChilds().get(0).getState(), is("S11"));
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.kryo;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineException;
+import org.springframework.statemachine.config.StateMachineBuilder;
+import org.springframework.statemachine.config.StateMachineBuilder.Builder;
+import org.springframework.statemachine.persist.DefaultStateMachinePersister;
+import org.springframework.statemachine.persist.RepositoryStateMachinePersist;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+/**
+ * Tests for {@link MappedFileStateMachineContextRepository}.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public class MappedFileStateMachineContextRepositoryTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testPersistAndRestore() throws Exception {
+		File directory = folder.newFolder();
+		MappedFileStateMachineContextRepository<String, String> repository = buildRepository(directory);
+		DefaultStateMachinePersister<String, String, String> persister = new DefaultStateMachinePersister<>(
+				new RepositoryStateMachinePersist<>(repository));
+
+		StateMachine<String, String> machine = buildMachine();
+		machine.sendEvent("E1");
+		machine.getExtendedState().getVariables().put("foo", 1);
+		persister.persist(machine, "xxx");
+		StateMachine<String, String> restored = persister.restore(buildMachine(), "xxx");
+		assertThat(restored.getState().getId(), is("S2"));
+		assertThat(restored.getExtendedState().get("foo", Integer.class), is(1));
+		assertThat(repository.getContext("yyy"), nullValue());
+		repository.destroy();
+
+		// index is rebuilt when reopened
+		repository = buildRepository(directory);
+		assertThat(repository.getSize(), is(1));
+		assertThat(repository.getContext("xxx").getState(), is("S2"));
+		repository.destroy();
+	}
+
+	@Test
+	public void testSegmentRollAndBulk() throws Exception {
+		File directory = folder.newFolder();
+		MappedFileStateMachineContextRepository<String, String> repository = buildRepository(directory);
+		Map<String, StateMachineContext<String, String>> contexts = new LinkedHashMap<>();
+		for (int i = 0; i < 200; i++) {
+			contexts.put("machine" + i, buildContext("S1", i));
+		}
+		repository.saveAll(contexts);
+		assertThat(repository.getSegmentCount() > 1, is(true));
+		repository.save(buildContext("S2", 0), "machine0");
+
+		Map<String, StateMachineContext<String, String>> loaded = repository
+				.getContexts(Arrays.asList("machine0", "machine199", "machine200"));
+		assertThat(loaded.size(), is(2));
+		assertThat(loaded.get("machine0").getState(), is("S2"));
+		assertThat(loaded.get("machine199").getExtendedState().get("foo", Integer.class), is(199));
+		repository.destroy();
+
+		repository = buildRepository(directory);
+		assertThat(repository.getSize(), is(200));
+		assertThat(repository.getContext("machine0").getState(), is("S2"));
+		assertThat(repository.getContext("machine100").getExtendedState().get("foo", Integer.class), is(100));
+		repository.destroy();
+	}
+
+	@Test
+	public void testIncompleteRecordIgnored() throws Exception {
+		File directory = folder.newFolder();
+		MappedFileStateMachineContextRepository<String, String> repository = buildRepository(directory);
+		repository.save(buildContext("S1", 1), "xxx");
+		repository.save(buildContext("S2", 2), "xxx");
+		repository.destroy();
+
+		// simulate a crash in a middle of a write by breaking a last record
+		File segment = new File(directory, "segment-0.dat");
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		raf.getChannel().read(buffer, 0);
+		int length = buffer.getInt(0);
+		raf.seek(8 + length + 8 + 4);
+		raf.write(new byte[] { 1, 2, 3 });
+		raf.close();
+
+		repository = buildRepository(directory);
+		assertThat(repository.getContext("xxx").getState(), is("S1"));
+		repository.save(buildContext("S3", 3), "xxx");
+		repository.destroy();
+
+		repository = buildRepository(directory);
+		StateMachineContext<String, String> context = repository.getContext("xxx");
+		assertThat(context.getState(), is("S3"));
+		assertThat(context.getExtendedState().get("foo", Integer.class), is(3));
+		repository.destroy();
+	}
+
+	@Test
+	public void testCorruptRecordFollowedByRecordsFails() throws Exception {
+		File directory = folder.newFolder();
+		MappedFileStateMachineContextRepository<String, String> repository = buildRepository(directory);
+		repository.save(buildContext("S1", 1), "xxx");
+		repository.save(buildContext("S2", 2), "xxx");
+		repository.save(buildContext("S1", 1), "yyy");
+		repository.destroy();
+
+		// break a record in a middle of a segment
+		File segment = new File(directory, "segment-0.dat");
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		raf.getChannel().read(buffer, 0);
+		int length = buffer.getInt(0);
+		raf.seek(8 + length + 8 + 4);
+		raf.write(new byte[] { 1, 2, 3 });
+		raf.close();
+
+		try {
+			buildRepository(directory);
+			fail("Expected corrupt segment to fail");
+		} catch (StateMachineException e) {
+		}
+	}
+
+	@Test
+	public void testCompact() throws Exception {
+		File directory = folder.newFolder();
+		MappedFileStateMachineContextRepository<String, String> repository = buildRepository(directory);
+		for (int i = 0; i < 100; i++) {
+			repository.save(buildContext("S" + i, i), "xxx");
+			repository.save(buildContext("S" + i, i), "yyy");
+		}
+		int segments = repository.getSegmentCount();
+		assertThat(segments > 2, is(true));
+		assertThat(repository.compact(), is(segments - 1));
+		assertThat(repository.getSegmentCount() < 3, is(true));
+		assertThat(directory.list().length, is(repository.getSegmentCount()));
+		assertThat(repository.getContext("xxx").getState(), is("S99"));
+		assertThat(repository.getContext("yyy").getState(), is("S99"));
+		repository.destroy();
+
+		repository = buildRepository(directory);
+		assertThat(repository.getSize(), is(2));
+		assertThat(repository.getContext("xxx").getState(), is("S99"));
+		assertThat(repository.getContext("yyy").getExtendedState().get("foo", Integer.class), is(99));
+		repository.destroy();
+	}
+
+	private static MappedFileStateMachineContextRepository<String, String> buildRepository(File directory) {
+		return new MappedFileStateMachineContextRepository<String, String>(directory, 1024,
+				new KryoStateMachineSerialisationService<String, String>());
+	}
+
+	private static StateMachineContext<String, String> buildContext(String state, int foo) {
+		DefaultExtendedState extendedState = new DefaultExtendedState();
+		extendedState.getVariables().put("foo", foo);
+		return new DefaultStateMachineContext<String, String>(state, null, null, extendedState);
+	}
+
+	private static StateMachine<String, String> buildMachine() throws Exception {
+		Builder<String, String> builder = StateMachineBuilder.builder();
+		builder.configureConfiguration()
+			.withConfiguration()
+				.taskExecutor(new SyncTaskExecutor());
+		builder.configureStates()
+			.withStates()
+				.initial("S1")
+				.state("S2");
+		builder.configureTransitions()
+			.withExternal()
+				.source("S1").target("S2").event("E1");
+		StateMachine<String, String> machine = builder.build();
+		machine.start();
+		return machine;
+	}
+}
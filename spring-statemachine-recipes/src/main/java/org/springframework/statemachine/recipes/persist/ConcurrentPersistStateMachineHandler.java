@@ -0,0 +1,210 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.recipes.persist;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.messaging.Message;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.access.StateMachineAccess;
+import org.springframework.statemachine.access.StateMachineFunction;
+import org.springframework.statemachine.access.StateMachineRestoreAccess;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.listener.AbstractCompositeListener;
+import org.springframework.statemachine.recipes.persist.PersistStateMachineHandler.PersistStateChangeListener;
+import org.springframework.statemachine.state.State;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+import org.springframework.statemachine.support.LifecycleObjectSupport;
+import org.springframework.statemachine.support.StateMachineInterceptorAdapter;
+import org.springframework.statemachine.transition.Transition;
+import org.springframework.util.Assert;
+
+/**
+ * {@code ConcurrentPersistStateMachineHandler} is a recipe which can be used
+ * to handle a state change of an arbitrary entity in a persistent storage
+ * from multiple threads. Contrary to {@link PersistStateMachineHandler} which
+ * serializes all entities through one machine, entity identifiers are
+ * sharded over a set of state machines and each shard is guarded by its own
+ * lock. Events for a same entity always land on a same shard and are
+ * processed in order of arrival, while different shards are processed
+ * concurrently.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public class ConcurrentPersistStateMachineHandler extends LifecycleObjectSupport {
+
+	private final List<StateMachine<String, String>> stateMachines;
+	private final ReentrantLock[] locks;
+	private final PersistingStateChangeInterceptor interceptor = new PersistingStateChangeInterceptor();
+	private final CompositePersistStateChangeListener listeners = new CompositePersistStateChangeListener();
+	private boolean restoreInPlace = false;
+
+	/**
+	 * Instantiates a new concurrent persist state machine handler.
+	 *
+	 * @param stateMachines the state machines used as shards
+	 */
+	public ConcurrentPersistStateMachineHandler(List<StateMachine<String, String>> stateMachines) {
+		Assert.notEmpty(stateMachines, "State machines must be set");
+		this.stateMachines = new ArrayList<StateMachine<String, String>>(stateMachines);
+		this.locks = new ReentrantLock[this.stateMachines.size()];
+		for (int i = 0; i < locks.length; i++) {
+			// fair lock to keep arrival order for a same entity
+			locks[i] = new ReentrantLock(true);
+		}
+	}
+
+	/**
+	 * Instantiates a new concurrent persist state machine handler creating
+	 * its shards from a {@link StateMachineFactory}.
+	 *
+	 * @param stateMachineFactory the state machine factory
+	 * @param shards the number of shards
+	 */
+	public ConcurrentPersistStateMachineHandler(StateMachineFactory<String, String> stateMachineFactory, int shards) {
+		this(buildStateMachines(stateMachineFactory, shards));
+	}
+
+	/**
+	 * Sets if a state should be restored in place. If enabled, a shard
+	 * machine is not stopped and reseted for every handled event and state
+	 * is rehydrated without executing entry or exit actions nor notifying
+	 * listeners about a start and a stop of a machine. Defaults to
+	 * {@code false}.
+	 *
+	 * @param restoreInPlace the new restore in place flag
+	 * @see PersistStateMachineHandler#setRestoreInPlace(boolean)
+	 */
+	public void setRestoreInPlace(boolean restoreInPlace) {
+		this.restoreInPlace = restoreInPlace;
+	}
+
+	@Override
+	protected void onInit() throws Exception {
+		for (StateMachine<String, String> stateMachine : stateMachines) {
+			stateMachine.getStateMachineAccessor().doWithAllRegions(new StateMachineFunction<StateMachineAccess<String,String>>() {
+
+				@Override
+				public void apply(StateMachineAccess<String, String> function) {
+					function.addStateMachineInterceptor(interceptor);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Handle event with entity.
+	 *
+	 * @param event the event
+	 * @param state the state
+	 * @param entityId the entity identifier used to choose a shard
+	 * @return true if event was accepted
+	 */
+	public boolean handleEventWithState(Message<String> event, String state, Object entityId) {
+		Assert.notNull(entityId, "Entity id must be set");
+		int shard = getShard(entityId);
+		ReentrantLock lock = locks[shard];
+		lock.lock();
+		try {
+			StateMachine<String, String> stateMachine = stateMachines.get(shard);
+			StateMachineAccess<String, String> access = stateMachine.getStateMachineAccessor().withRegion();
+			if (restoreInPlace && access instanceof StateMachineRestoreAccess) {
+				((StateMachineRestoreAccess<String, String>) access)
+						.restoreStateMachine(new DefaultStateMachineContext<String, String>(state, null, null, null));
+			} else {
+				stateMachine.stop();
+				for (StateMachineAccess<String, String> a : stateMachine.getStateMachineAccessor().withAllRegions()) {
+					a.resetStateMachine(new DefaultStateMachineContext<String, String>(state, null, null, null));
+				}
+			}
+			stateMachine.start();
+			return stateMachine.sendEvent(event);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds the persist state change listener. Listener may be called
+	 * concurrently from different shards.
+	 *
+	 * @param listener the listener
+	 */
+	public void addPersistStateChangeListener(PersistStateChangeListener listener) {
+		listeners.register(listener);
+	}
+
+	/**
+	 * Gets the number of shards.
+	 *
+	 * @return the number of shards
+	 */
+	public int getShards() {
+		return stateMachines.size();
+	}
+
+	/**
+	 * Gets a shard index for an entity identifier.
+	 *
+	 * @param entityId the entity identifier
+	 * @return the shard index
+	 */
+	protected int getShard(Object entityId) {
+		int h = entityId.hashCode();
+		// spread bits as poor hash codes would otherwise
+		// end up on a few shards
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % stateMachines.size();
+	}
+
+	private static List<StateMachine<String, String>> buildStateMachines(StateMachineFactory<String, String> stateMachineFactory,
+			int shards) {
+		Assert.notNull(stateMachineFactory, "State machine factory must be set");
+		Assert.isTrue(shards > 0, "Shards must be positive");
+		List<StateMachine<String, String>> stateMachines = new ArrayList<StateMachine<String, String>>(shards);
+		for (int i = 0; i < shards; i++) {
+			stateMachines.add(stateMachineFactory.getStateMachine());
+		}
+		return stateMachines;
+	}
+
+	private class PersistingStateChangeInterceptor extends StateMachineInterceptorAdapter<String, String> {
+
+		@Override
+		public void preStateChange(State<String, String> state, Message<String> message,
+				Transition<String, String> transition, StateMachine<String, String> stateMachine) {
+			listeners.onPersist(state, message, transition, stateMachine);
+		}
+	}
+
+	private class CompositePersistStateChangeListener extends AbstractCompositeListener<PersistStateChangeListener> implements
+		PersistStateChangeListener {
+
+		@Override
+		public void onPersist(State<String, String> state, Message<String> message,
+				Transition<String, String> transition, StateMachine<String, String> stateMachine) {
+			for (Iterator<PersistStateChangeListener> iterator = getListeners().reverse(); iterator.hasNext();) {
+				PersistStateChangeListener listener = iterator.next();
+				listener.onPersist(state, message, transition, stateMachine);
+			}
+		}
+	}
+
+}
@@ -22,6 +22,7 @@ import org.springframework.messaging.Message;
 import org.springframework.statemachine.StateMachine;
 import org.springframework.statemachine.access.StateMachineAccess;
 import org.springframework.statemachine.access.StateMachineFunction;
+import org.springframework.statemachine.access.StateMachineRestoreAccess;
 import org.springframework.statemachine.listener.AbstractCompositeListener;
 import org.springframework.statemachine.state.State;
 import org.springframework.statemachine.support.DefaultStateMachineContext;
@@ -42,6 +43,7 @@ public class PersistStateMachineHandler extends LifecycleObjectSupport {
 	private final StateMachine<String, String> stateMachine;
 	private final PersistingStateChangeInterceptor interceptor = new PersistingStateChangeInterceptor();
 	private final CompositePersistStateChangeListener listeners = new CompositePersistStateChangeListener();
+	private boolean restoreInPlace = false;
 
 	/**
 	 * Instantiates a new persist state machine handler.
@@ -53,6 +55,19 @@ public class PersistStateMachineHandler extends LifecycleObjectSupport {
 		this.stateMachine = stateMachine;
 	}
 
+	/**
+	 * Sets if a state should be restored in place. If enabled, a machine
+	 * is not stopped and reseted for every handled event and state is
+	 * rehydrated without executing entry or exit actions nor notifying
+	 * listeners about a start and a stop of a machine. Defaults to
+	 * {@code false}.
+	 *
+	 * @param restoreInPlace the new restore in place flag
+	 */
+	public void setRestoreInPlace(boolean restoreInPlace) {
+		this.restoreInPlace = restoreInPlace;
+	}
+
 	@Override
 	protected void onInit() throws Exception {
 		stateMachine.getStateMachineAccessor().doWithAllRegions(new StateMachineFunction<StateMachineAccess<String,String>>() {
@@ -72,10 +87,16 @@ public class PersistStateMachineHandler extends LifecycleObjectSupport {
 	 * @return true if event was accepted
 	 */
 	public boolean handleEventWithState(Message<String> event, String state) {
-		stateMachine.stop();
-		List<StateMachineAccess<String, String>> withAllRegions = stateMachine.getStateMachineAccessor().withAllRegions();
-		for (StateMachineAccess<String, String> a : withAllRegions) {
-			a.resetStateMachine(new DefaultStateMachineContext<String, String>(state, null, null, null));
+		StateMachineAccess<String, String> access = stateMachine.getStateMachineAccessor().withRegion();
+		if (restoreInPlace && access instanceof StateMachineRestoreAccess) {
+			((StateMachineRestoreAccess<String, String>) access)
+					.restoreStateMachine(new DefaultStateMachineContext<String, String>(state, null, null, null));
+		} else {
+			stateMachine.stop();
+			List<StateMachineAccess<String, String>> withAllRegions = stateMachine.getStateMachineAccessor().withAllRegions();
+			for (StateMachineAccess<String, String> a : withAllRegions) {
+				a.resetStateMachine(new DefaultStateMachineContext<String, String>(state, null, null, null));
+			}
 		}
 		stateMachine.start();
 		return stateMachine.sendEvent(event);
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.recipes;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.config.StateMachineBuilder;
+import org.springframework.statemachine.recipes.persist.ConcurrentPersistStateMachineHandler;
+import org.springframework.statemachine.recipes.persist.PersistStateMachineHandler.PersistStateChangeListener;
+import org.springframework.statemachine.state.State;
+import org.springframework.statemachine.transition.Transition;
+
+public class ConcurrentPersistStateMachineHandlerTests {
+
+	private static final Log log = LogFactory.getLog(ConcurrentPersistStateMachineHandlerTests.class);
+
+	@Test
+	public void testAcceptedStateChangeViaPersist() throws Exception {
+		ConcurrentPersistStateMachineHandler handler = buildHandler(2);
+		TestPersistStateChangeListener listener = new TestPersistStateChangeListener();
+		handler.addPersistStateChangeListener(listener);
+
+		assertThat(handler.handleEventWithState(buildEvent("E2", 1), "S1", 1), is(true));
+		assertThat(handler.handleEventWithState(buildEvent("E2", 2), "S2", 2), is(false));
+		assertThat(listener.states.get(1), contains("S2"));
+		assertThat(listener.states.containsKey(2), is(false));
+	}
+
+	@Test
+	public void testAcceptedStateChangeViaPersistInPlace() throws Exception {
+		ConcurrentPersistStateMachineHandler handler = buildHandler(2, true);
+		TestPersistStateChangeListener listener = new TestPersistStateChangeListener();
+		handler.addPersistStateChangeListener(listener);
+
+		assertThat(handler.handleEventWithState(buildEvent("E2", 1), "S1", 1), is(true));
+		assertThat(handler.handleEventWithState(buildEvent("E2", 2), "S2", 2), is(false));
+		assertThat(listener.states.get(1), contains("S2"));
+		assertThat(listener.states.containsKey(2), is(false));
+	}
+
+	@Test
+	public void testConcurrentEntitiesSharingShards() throws Exception {
+		final ConcurrentPersistStateMachineHandler handler = buildHandler(4);
+		final TestPersistStateChangeListener listener = new TestPersistStateChangeListener();
+		handler.addPersistStateChangeListener(listener);
+		int threads = 8;
+		final int entities = 200;
+
+		// every thread owns its entities and walks them through
+		// all events while other threads use the same shards
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			futures.add(executor.submit(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() throws Exception {
+					boolean accepted = true;
+					for (String event : new String[] { "E1", "E2", "E3" }) {
+						for (int i = 0; i < entities; i++) {
+							int entity = thread * entities + i;
+							String state = listener.current.containsKey(entity) ? listener.current.get(entity) : "SI";
+							accepted &= handler.handleEventWithState(buildEvent(event, entity), state, entity);
+						}
+					}
+					return accepted;
+				}
+			}));
+		}
+		for (Future<Boolean> future : futures) {
+			assertThat(future.get(), is(true));
+		}
+		executor.shutdown();
+
+		for (int i = 0; i < threads * entities; i++) {
+			assertThat(listener.states.get(i), contains("S1", "S2", "S3"));
+			assertThat(listener.current.get(i), is("S3"));
+		}
+	}
+
+	@Test
+	public void testThroughput() throws Exception {
+		int shards = Math.max(4, Runtime.getRuntime().availableProcessors());
+		final ConcurrentPersistStateMachineHandler handler = buildHandler(shards, true);
+		final TestPersistStateChangeListener listener = new TestPersistStateChangeListener();
+		listener.record = false;
+		handler.addPersistStateChangeListener(listener);
+
+		long single = runThroughput(handler, listener, 1, 20000);
+		long multi = runThroughput(handler, listener, shards, 20000);
+		log.info("Events/sec with 1 thread " + single + ", with " + shards + " threads " + multi);
+	}
+
+	private long runThroughput(final ConcurrentPersistStateMachineHandler handler, final TestPersistStateChangeListener listener,
+			int threads, final int count) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			tasks.add(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() throws Exception {
+					for (int i = 0; i < count; i++) {
+						int entity = thread * count + i;
+						handler.handleEventWithState(buildEvent("E2", entity), "S1", entity);
+					}
+					return true;
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Future<Boolean> future : executor.invokeAll(tasks)) {
+			assertThat(future.get(), is(true));
+		}
+		long nanos = System.nanoTime() - start;
+		executor.shutdown();
+		return (long) threads * count * 1000000000L / Math.max(nanos, 1);
+	}
+
+	private static Message<String> buildEvent(String event, int entity) {
+		return MessageBuilder.withPayload(event).setHeader("entity", entity).build();
+	}
+
+	private static ConcurrentPersistStateMachineHandler buildHandler(int shards) throws Exception {
+		return buildHandler(shards, false);
+	}
+
+	private static ConcurrentPersistStateMachineHandler buildHandler(int shards, boolean restoreInPlace) throws Exception {
+		List<StateMachine<String, String>> stateMachines = new ArrayList<StateMachine<String, String>>();
+		for (int i = 0; i < shards; i++) {
+			stateMachines.add(buildTestStateMachine());
+		}
+		ConcurrentPersistStateMachineHandler handler = new ConcurrentPersistStateMachineHandler(stateMachines);
+		handler.setRestoreInPlace(restoreInPlace);
+		handler.afterPropertiesSet();
+		handler.start();
+		return handler;
+	}
+
+	private static class TestPersistStateChangeListener implements PersistStateChangeListener {
+
+		final Map<Integer, List<String>> states = new ConcurrentHashMap<Integer, List<String>>();
+		final Map<Integer, String> current = new ConcurrentHashMap<Integer, String>();
+		volatile boolean record = true;
+
+		@Override
+		public void onPersist(State<String, String> state, Message<String> message,
+				Transition<String, String> transition, StateMachine<String, String> stateMachine) {
+			if (!record) {
+				return;
+			}
+			Integer entity = message.getHeaders().get("entity", Integer.class);
+			List<String> list = states.get(entity);
+			if (list == null) {
+				list = Collections.synchronizedList(new ArrayList<String>());
+				states.put(entity, list);
+			}
+			list.add(state.getId());
+			current.put(entity, state.getId());
+		}
+
+	}
+
+	private static StateMachine<String, String> buildTestStateMachine()
+			throws Exception {
+		StateMachineBuilder.Builder<String, String> builder = StateMachineBuilder.builder();
+
+		builder.configureConfiguration()
+			.withConfiguration()
+				.taskExecutor(new SyncTaskExecutor())
+				.autoStartup(true);
+
+		builder.configureStates()
+				.withStates()
+					.initial("SI")
+					.state("S1")
+					.state("S2")
+					.state("S3");
+
+		builder.configureTransitions()
+				.withExternal()
+					.source("SI").target("S1").event("E1")
+					.and()
+				.withExternal()
+					.source("S1").target("S2").event("E2")
+					.and()
+				.withExternal()
+					.source("S2").target("S3").event("E3");
+
+		return builder.build();
+	}
+
+}
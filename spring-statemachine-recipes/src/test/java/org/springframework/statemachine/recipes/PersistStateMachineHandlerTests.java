@@ -71,6 +71,25 @@ public class PersistStateMachineHandlerTests {
 		assertThat(stateMachine.getState().getIds(), containsInAnyOrder("S1"));
 	}
 
+	@Test
+	public void testAcceptedStateChangeViaPersistInPlace() throws Exception {
+		StateMachine<String,String> stateMachine = buildTestStateMachine();
+
+		PersistStateMachineHandler handler = new PersistStateMachineHandler(stateMachine);
+		handler.setRestoreInPlace(true);
+		handler.afterPropertiesSet();
+		handler.start();
+
+		TestPersistStateChangeListener listener = new TestPersistStateChangeListener();
+		handler.addPersistStateChangeListener(listener);
+
+		Message<String> event = MessageBuilder.withPayload("E2").build();
+		boolean accepted = handler.handleEventWithState(event, "S1");
+		assertThat(accepted, is(true));
+		assertThat(listener.latch.await(1, TimeUnit.SECONDS), is(true));
+		assertThat(stateMachine.getState().getIds(), containsInAnyOrder("S2"));
+	}
+
 	private static class TestPersistStateChangeListener implements PersistStateChangeListener {
 
 		CountDownLatch latch = new CountDownLatch(1);
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.redis;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.statemachine.ExtendedState;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineContextBulkRepository;
+import org.springframework.statemachine.StateMachineContextDeltaRepository;
+import org.springframework.statemachine.StateMachineContextRepository;
+import org.springframework.statemachine.kryo.KryoStateMachineSerialisationService;
+import org.springframework.statemachine.persist.StateMachineContextDeltas;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link StateMachineContextRepository} backed by a redis and kryo
+ * serialization which keeps a context in a redis hash. State, event, event
+ * headers, child contexts, history states and machine id are kept in their
+ * own fields and every extended state variable is kept in a field named by
+ * a serialized variable key.
+ * <p>
+ * Saving a delta only sets fields of a state and changed variables and
+ * deletes fields of removed variables, thus deltas never need to get
+ * compacted with a full context. A delta is applied by a script only if
+ * a context still exists, otherwise it's not saved and
+ * {@link #saveDelta(StateMachineContext, String)} returns
+ * {@link Integer#MAX_VALUE} for a full context to get saved instead of
+ * a partial hash. If a time to live is set, it's refreshed
+ * whenever a context is saved or read. As variable fields are named by
+ * serialized keys, variable keys need to serialize into same bytes every
+ * time, which is a case with strings, numbers and enums.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ */
+public class RedisHashStateMachineContextRepository<S, E>
+		implements StateMachineContextDeltaRepository<S, E, StateMachineContext<S, E>>,
+		StateMachineContextBulkRepository<S, E, StateMachineContext<S, E>> {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] FIELD_STATE = "state".getBytes(UTF8);
+	private static final byte[] FIELD_EVENT = "event".getBytes(UTF8);
+	private static final byte[] FIELD_HEADERS = "headers".getBytes(UTF8);
+	private static final byte[] FIELD_CHILDS = "childs".getBytes(UTF8);
+	private static final byte[] FIELD_HISTORY = "history".getBytes(UTF8);
+	private static final byte[] FIELD_ID = "id".getBytes(UTF8);
+	private static final byte[] VARIABLE_PREFIX = "var:".getBytes(UTF8);
+	private static final int DEFAULT_BATCH_SIZE = 1000;
+	private static final byte[] SAVE_DELTA_SCRIPT = (
+			"if redis.call('exists', KEYS[1]) == 0 then return 0 end\n"
+			+ "local last = 2 + tonumber(ARGV[2]) * 2\n"
+			+ "for i = 3, last, 2 do redis.call('hset', KEYS[1], ARGV[i], ARGV[i + 1]) end\n"
+			+ "for i = last + 1, #ARGV do redis.call('hdel', KEYS[1], ARGV[i]) end\n"
+			+ "if tonumber(ARGV[1]) > 0 then redis.call('pexpire', KEYS[1], ARGV[1]) end\n"
+			+ "return 1").getBytes(UTF8);
+	private final RedisOperations<String, byte[]> redisOperations;
+	private final KryoStateMachineSerialisationService<S, E> serialisationService;
+	private long timeToLive = -1;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	/**
+	 * Instantiates a new redis hash state machine context repository.
+	 *
+	 * @param redisConnectionFactory the redis connection factory
+	 */
+	public RedisHashStateMachineContextRepository(RedisConnectionFactory redisConnectionFactory) {
+		this(redisConnectionFactory, new KryoStateMachineSerialisationService<S, E>());
+	}
+
+	/**
+	 * Instantiates a new redis hash state machine context repository.
+	 *
+	 * @param redisConnectionFactory the redis connection factory
+	 * @param serialisationService the kryo state machine serialisation service
+	 */
+	public RedisHashStateMachineContextRepository(RedisConnectionFactory redisConnectionFactory,
+			KryoStateMachineSerialisationService<S, E> serialisationService) {
+		Assert.notNull(serialisationService, "KryoStateMachineSerialisationService must be set");
+		RedisTemplate<String, byte[]> template = new RedisTemplate<String, byte[]>();
+		template.setConnectionFactory(redisConnectionFactory);
+		template.afterPropertiesSet();
+		this.redisOperations = template;
+		this.serialisationService = serialisationService;
+	}
+
+	/**
+	 * Sets the time to live of a context which is refreshed whenever
+	 * a context is saved or read. Defaults to no expiration.
+	 *
+	 * @param timeToLive the time to live, non-positive for no expiration
+	 * @param unit the time unit
+	 */
+	public void setTimeToLive(long timeToLive, TimeUnit unit) {
+		this.timeToLive = timeToLive > 0 ? unit.toMillis(timeToLive) : -1;
+	}
+
+	/**
+	 * Sets the maximum number of contexts pipelined together by bulk
+	 * operations. Defaults to {@code 1000}.
+	 *
+	 * @param batchSize the batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		Assert.isTrue(batchSize > 0, "Batch size must be positive");
+		this.batchSize = batchSize;
+	}
+
+	@Override
+	public void save(StateMachineContext<S, E> context, String id) {
+		Map<String, StateMachineContext<S, E>> contexts = new HashMap<String, StateMachineContext<S, E>>(1);
+		contexts.put(id, context);
+		saveAll(contexts);
+	}
+
+	@Override
+	public boolean isDeltaSupported() {
+		return true;
+	}
+
+	@Override
+	public int saveDelta(StateMachineContext<S, E> delta, String id) {
+		final byte[] key = toKey(id);
+		final Map<byte[], byte[]> fields = buildStateFields(delta);
+		final List<byte[]> removed = new ArrayList<byte[]>();
+		ExtendedState extendedState = delta.getExtendedState();
+		if (extendedState != null && extendedState.getVariables() != null) {
+			for (Entry<Object, Object> entry : extendedState.getVariables().entrySet()) {
+				if (entry.getValue() == StateMachineContextDeltas.REMOVED) {
+					removed.add(toVariableField(entry.getKey()));
+				} else {
+					fields.put(toVariableField(entry.getKey()), serialisationService.serialiseObject(entry.getValue()));
+				}
+			}
+		}
+		// script arguments are a time to live, a number of set fields, set
+		// fields with their values and removed fields.
+		final byte[][] keysAndArgs = new byte[3 + fields.size() * 2 + removed.size()][];
+		int i = 0;
+		keysAndArgs[i++] = key;
+		keysAndArgs[i++] = Long.toString(timeToLive).getBytes(UTF8);
+		keysAndArgs[i++] = Integer.toString(fields.size()).getBytes(UTF8);
+		for (Entry<byte[], byte[]> entry : fields.entrySet()) {
+			keysAndArgs[i++] = entry.getKey();
+			keysAndArgs[i++] = entry.getValue();
+		}
+		for (byte[] field : removed) {
+			keysAndArgs[i++] = field;
+		}
+		Long saved = redisOperations.execute(new RedisCallback<Long>() {
+
+			@Override
+			public Long doInRedis(RedisConnection connection) throws DataAccessException {
+				return connection.eval(SAVE_DELTA_SCRIPT, ReturnType.INTEGER, 1, keysAndArgs);
+			}
+		});
+		// deltas are applied in place, but if a context has expired or was
+		// deleted there's nothing to apply to and a full context is needed.
+		return saved != null && saved > 0 ? 0 : Integer.MAX_VALUE;
+	}
+
+	@Override
+	public StateMachineContext<S, E> getContext(String id) {
+		return getContexts(Arrays.asList(id)).get(id);
+	}
+
+	@Override
+	public void saveAll(Map<String, StateMachineContext<S, E>> contexts) {
+		final Map<byte[], Map<byte[], byte[]>> batch = new LinkedHashMap<byte[], Map<byte[], byte[]>>();
+		Iterator<Entry<String, StateMachineContext<S, E>>> iterator = contexts.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Entry<String, StateMachineContext<S, E>> entry = iterator.next();
+			batch.put(toKey(entry.getKey()), buildFields(entry.getValue()));
+			if (batch.size() == batchSize || !iterator.hasNext()) {
+				redisOperations.execute(new RedisCallback<Object>() {
+
+					@Override
+					public Object doInRedis(RedisConnection connection) throws DataAccessException {
+						connection.openPipeline();
+						for (Entry<byte[], Map<byte[], byte[]>> e : batch.entrySet()) {
+							connection.multi();
+							connection.del(e.getKey());
+							connection.hMSet(e.getKey(), e.getValue());
+							if (timeToLive > 0) {
+								connection.pExpire(e.getKey(), timeToLive);
+							}
+							connection.exec();
+						}
+						connection.closePipeline();
+						return null;
+					}
+				});
+				batch.clear();
+			}
+		}
+	}
+
+	@Override
+	public Map<String, StateMachineContext<S, E>> getContexts(Collection<String> ids) {
+		Map<String, StateMachineContext<S, E>> contexts = new LinkedHashMap<String, StateMachineContext<S, E>>();
+		final List<String> batch = new ArrayList<String>(Math.min(ids.size(), batchSize));
+		Iterator<String> iterator = ids.iterator();
+		while (iterator.hasNext()) {
+			batch.add(iterator.next());
+			if (batch.size() == batchSize || !iterator.hasNext()) {
+				List<Object> results = redisOperations.execute(new RedisCallback<List<Object>>() {
+
+					@Override
+					public List<Object> doInRedis(RedisConnection connection) throws DataAccessException {
+						connection.openPipeline();
+						for (String id : batch) {
+							byte[] key = toKey(id);
+							connection.hGetAll(key);
+							if (timeToLive > 0) {
+								connection.pExpire(key, timeToLive);
+							}
+						}
+						return connection.closePipeline();
+					}
+				});
+				int step = timeToLive > 0 ? 2 : 1;
+				for (int i = 0; i < batch.size(); i++) {
+					@SuppressWarnings("unchecked")
+					StateMachineContext<S, E> context = buildContext((Map<byte[], byte[]>) results.get(i * step));
+					if (context != null) {
+						contexts.put(batch.get(i), context);
+					}
+				}
+				batch.clear();
+			}
+		}
+		return contexts;
+	}
+
+	private Map<byte[], byte[]> buildStateFields(StateMachineContext<S, E> context) {
+		Map<byte[], byte[]> fields = new HashMap<byte[], byte[]>();
+		fields.put(FIELD_STATE, serialisationService.serialiseObject(context.getState()));
+		fields.put(FIELD_EVENT, serialisationService.serialiseObject(context.getEvent()));
+		fields.put(FIELD_HEADERS, serialisationService.serialiseObject(context.getEventHeaders()));
+		fields.put(FIELD_CHILDS, serialisationService.serialiseObject(context.getChilds()));
+		fields.put(FIELD_HISTORY, serialisationService.serialiseObject(context.getHistoryStates()));
+		fields.put(FIELD_ID, serialisationService.serialiseObject(context.getId()));
+		return fields;
+	}
+
+	private Map<byte[], byte[]> buildFields(StateMachineContext<S, E> context) {
+		Map<byte[], byte[]> fields = buildStateFields(context);
+		ExtendedState extendedState = context.getExtendedState();
+		if (extendedState != null && extendedState.getVariables() != null) {
+			for (Entry<Object, Object> entry : extendedState.getVariables().entrySet()) {
+				fields.put(toVariableField(entry.getKey()), serialisationService.serialiseObject(entry.getValue()));
+			}
+		}
+		return fields;
+	}
+
+	@SuppressWarnings("unchecked")
+	private StateMachineContext<S, E> buildContext(Map<byte[], byte[]> fields) {
+		if (fields == null || fields.isEmpty()) {
+			return null;
+		}
+		S state = null;
+		E event = null;
+		Map<String, Object> eventHeaders = null;
+		List<StateMachineContext<S, E>> childs = null;
+		Map<S, S> historyStates = null;
+		String id = null;
+		ExtendedState extendedState = new DefaultExtendedState();
+		for (Entry<byte[], byte[]> entry : fields.entrySet()) {
+			byte[] field = entry.getKey();
+			Object value = serialisationService.deserialiseObject(entry.getValue());
+			if (isVariableField(field)) {
+				Object key = serialisationService.deserialiseObject(
+						Arrays.copyOfRange(field, VARIABLE_PREFIX.length, field.length));
+				extendedState.getVariables().put(key, value);
+			} else if (Arrays.equals(field, FIELD_STATE)) {
+				state = (S) value;
+			} else if (Arrays.equals(field, FIELD_EVENT)) {
+				event = (E) value;
+			} else if (Arrays.equals(field, FIELD_HEADERS)) {
+				eventHeaders = (Map<String, Object>) value;
+			} else if (Arrays.equals(field, FIELD_CHILDS)) {
+				childs = (List<StateMachineContext<S, E>>) value;
+			} else if (Arrays.equals(field, FIELD_HISTORY)) {
+				historyStates = (Map<S, S>) value;
+			} else if (Arrays.equals(field, FIELD_ID)) {
+				id = (String) value;
+			}
+		}
+		return new DefaultStateMachineContext<S, E>(childs, state, event, eventHeaders, extendedState, historyStates, id);
+	}
+
+	private byte[] toVariableField(Object key) {
+		byte[] data = serialisationService.serialiseObject(key);
+		byte[] field = new byte[VARIABLE_PREFIX.length + data.length];
+		System.arraycopy(VARIABLE_PREFIX, 0, field, 0, VARIABLE_PREFIX.length);
+		System.arraycopy(data, 0, field, VARIABLE_PREFIX.length, data.length);
+		return field;
+	}
+
+	private static boolean isVariableField(byte[] field) {
+		if (field.length < VARIABLE_PREFIX.length) {
+			return false;
+		}
+		for (int i = 0; i < VARIABLE_PREFIX.length; i++) {
+			if (field[i] != VARIABLE_PREFIX[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] toKey(String id) {
+		return id.getBytes(UTF8);
+	}
+
+}
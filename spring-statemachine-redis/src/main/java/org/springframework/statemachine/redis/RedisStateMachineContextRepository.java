@@ -15,49 +15,87 @@
  */
 package org.springframework.statemachine.redis;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.core.task.AsyncListenableTaskExecutor;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
-import org.springframework.messaging.MessageHeaders;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineContextAsyncRepository;
+import org.springframework.statemachine.StateMachineContextBulkRepository;
+import org.springframework.statemachine.StateMachineContextDeltaRepository;
 import org.springframework.statemachine.StateMachineContextRepository;
-import org.springframework.statemachine.kryo.MessageHeadersSerializer;
-import org.springframework.statemachine.kryo.StateMachineContextSerializer;
-import org.springframework.statemachine.kryo.UUIDSerializer;
-
-import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.io.Input;
-import com.esotericsoftware.kryo.io.Output;
+import org.springframework.statemachine.kryo.KryoStateMachineSerialisationService;
+import org.springframework.statemachine.persist.StateMachineContextDeltas;
+import org.springframework.statemachine.service.StateMachineSerialisationService;
+import org.springframework.util.Assert;
+import org.springframework.util.concurrent.ListenableFuture;
 
 /**
  * A {@link StateMachineContextRepository} backed by a redis and kryo serialization.
+ * <p>
+ * Context is kept in a key with a given id and saved with a single
+ * {@code SET}. If deltas are enabled, deltas are appended into a list in a
+ * key {@code {id}:deltas} whose hash tag places it in a same slot with a
+ * context key, and saving a full context removes deltas within a same
+ * transaction. As transactions and pipelines are not supported by a
+ * clustered connection, deltas need a non-clustered redis. Without deltas
+ * enabled a list is never written or read and
+ * {@link #saveDelta(StateMachineContext, String)} applies a delta to a
+ * saved context, thus callers should write full contexts instead.
+ * <p>
+ * Bulk operations are done in batches so that a batch of contexts is saved
+ * or read with a single round trip to a redis. Without deltas a batch is
+ * written with {@code MSET} and read with {@code MGET}. With deltas a batch
+ * is pipelined and contexts are saved in their own transactions as keys of
+ * different contexts may be in different slots.
+ * <p>
+ * Asynchronous operations are executed with a {@link AsyncListenableTaskExecutor}
+ * as a redis client used by {@link RedisConnectionFactory} is blocking. Context
+ * is serialized by a calling thread. Default executor is created on a first
+ * asynchronous operation, uses a pool of daemon threads whose size should
+ * match a size of a redis connection pool and is shut down when this
+ * repository is destroyed.
+ * <p>
+ * Large contexts can be compressed by passing a {@link KryoStateMachineSerialisationService}
+ * with a {@link org.springframework.statemachine.kryo.CompressionCodec}.
  *
  * @author Janne Valkealahti
  *
  * @param <S> the type of state
  * @param <E> the type of event
  */
-public class RedisStateMachineContextRepository<S, E> implements StateMachineContextRepository<S, E, StateMachineContext<S, E>> {
-
-	private static final ThreadLocal<Kryo> kryoThreadLocal = new ThreadLocal<Kryo>() {
-
-		@SuppressWarnings("rawtypes")
-		@Override
-		protected Kryo initialValue() {
-			Kryo kryo = new Kryo();
-			kryo.addDefaultSerializer(StateMachineContext.class, new StateMachineContextSerializer());
-			kryo.addDefaultSerializer(MessageHeaders.class, new MessageHeadersSerializer());
-			kryo.addDefaultSerializer(UUID.class, new UUIDSerializer());
-			return kryo;
-		}
-	};
+public class RedisStateMachineContextRepository<S, E> implements StateMachineContextDeltaRepository<S, E, StateMachineContext<S, E>>,
+		StateMachineContextBulkRepository<S, E, StateMachineContext<S, E>>,
+		StateMachineContextAsyncRepository<S, E, StateMachineContext<S, E>>, DisposableBean {
 
+	private static final String DELTAS_SUFFIX = ":deltas";
+	private static final int DEFAULT_BATCH_SIZE = 1000;
+	private static final int DEFAULT_ASYNC_POOL_SIZE = 8;
 	private final RedisOperations<String,byte[]> redisOperations;
+	private final StateMachineSerialisationService<S, E> serialisationService;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private boolean deltasEnabled = false;
+	private volatile AsyncListenableTaskExecutor taskExecutor;
+	private ThreadPoolTaskExecutor defaultTaskExecutor;
 
 	/**
 	 * Instantiates a new redis state machine context repository.
@@ -65,17 +103,250 @@ public class RedisStateMachineContextRepository<S, E> implements StateMachineCon
 	 * @param redisConnectionFactory the redis connection factory
 	 */
 	public RedisStateMachineContextRepository(RedisConnectionFactory redisConnectionFactory) {
-		redisOperations = createDefaultTemplate(redisConnectionFactory);
+		this(redisConnectionFactory, new KryoStateMachineSerialisationService<S, E>());
+	}
+
+	/**
+	 * Instantiates a new redis state machine context repository.
+	 *
+	 * @param redisConnectionFactory the redis connection factory
+	 * @param serialisationService the state machine serialisation service
+	 */
+	public RedisStateMachineContextRepository(RedisConnectionFactory redisConnectionFactory,
+			StateMachineSerialisationService<S, E> serialisationService) {
+		Assert.notNull(serialisationService, "StateMachineSerialisationService must be set");
+		this.redisOperations = createDefaultTemplate(redisConnectionFactory);
+		this.serialisationService = serialisationService;
+	}
+
+	/**
+	 * Sets the maximum number of contexts pipelined together by bulk
+	 * operations. Defaults to {@code 1000}.
+	 *
+	 * @param batchSize the batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		Assert.isTrue(batchSize > 0, "Batch size must be positive");
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets if deltas are stored as is in a separate list instead of applying
+	 * those to a saved context. Reading a context then needs an additional
+	 * read of a list. Defaults to {@code false}.
+	 *
+	 * @param deltasEnabled the flag to enable deltas
+	 */
+	public void setDeltasEnabled(boolean deltasEnabled) {
+		this.deltasEnabled = deltasEnabled;
+	}
+
+	/**
+	 * Sets the task executor used for asynchronous operations. Lifecycle
+	 * of a given executor is not managed by this repository.
+	 *
+	 * @param taskExecutor the task executor
+	 */
+	public synchronized void setTaskExecutor(AsyncListenableTaskExecutor taskExecutor) {
+		Assert.notNull(taskExecutor, "AsyncListenableTaskExecutor must be set");
+		this.taskExecutor = taskExecutor;
+		shutdownDefaultTaskExecutor();
+	}
+
+	@Override
+	public synchronized void destroy() {
+		shutdownDefaultTaskExecutor();
 	}
 
 	@Override
 	public void save(StateMachineContext<S, E> context, String id) {
-		redisOperations.opsForValue().set(id, serialize(context));
+		save(serialize(context), id);
+	}
+
+	@Override
+	public boolean isDeltaSupported() {
+		return deltasEnabled;
+	}
+
+	@Override
+	public int saveDelta(StateMachineContext<S, E> delta, String id) {
+		if (!deltasEnabled) {
+			save(StateMachineContextDeltas.applyDeltas(getContext(id), Collections.singletonList(delta)), id);
+			return 0;
+		}
+		return redisOperations.opsForList().rightPush(deltasKey(id), serialize(delta)).intValue();
 	}
 
 	@Override
 	public StateMachineContext<S, E> getContext(String id) {
-		return deserialize(redisOperations.opsForValue().get(id));
+		if (!deltasEnabled) {
+			return deserialize(redisOperations.opsForValue().get(id));
+		}
+		return toContext(redisOperations.opsForValue().get(id), redisOperations.opsForList().range(deltasKey(id), 0, -1));
+	}
+
+	@Override
+	public ListenableFuture<Void> saveAsync(StateMachineContext<S, E> context, final String id) {
+		final byte[] data = serialize(context);
+		return getTaskExecutor().submitListenable(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				save(data, id);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public ListenableFuture<StateMachineContext<S, E>> getContextAsync(final String id) {
+		return getTaskExecutor().submitListenable(new Callable<StateMachineContext<S, E>>() {
+
+			@Override
+			public StateMachineContext<S, E> call() throws Exception {
+				return getContext(id);
+			}
+		});
+	}
+
+	@Override
+	public void saveAll(Map<String, StateMachineContext<S, E>> contexts) {
+		Map<String, byte[]> batch = new HashMap<String, byte[]>();
+		for (Entry<String, StateMachineContext<S, E>> entry : contexts.entrySet()) {
+			batch.put(entry.getKey(), serialize(entry.getValue()));
+			if (batch.size() == batchSize) {
+				saveBatch(batch);
+				batch = new HashMap<String, byte[]>();
+			}
+		}
+		if (!batch.isEmpty()) {
+			saveBatch(batch);
+		}
+	}
+
+	@Override
+	public Map<String, StateMachineContext<S, E>> getContexts(Collection<String> ids) {
+		Map<String, StateMachineContext<S, E>> contexts = new LinkedHashMap<String, StateMachineContext<S, E>>();
+		List<String> batch = new ArrayList<String>(Math.min(ids.size(), batchSize));
+		Iterator<String> iterator = ids.iterator();
+		while (iterator.hasNext()) {
+			batch.add(iterator.next());
+			if (batch.size() == batchSize || !iterator.hasNext()) {
+				getBatch(batch, contexts);
+				batch.clear();
+			}
+		}
+		return contexts;
+	}
+
+	private void save(final byte[] data, final String id) {
+		if (!deltasEnabled) {
+			redisOperations.opsForValue().set(id, data);
+			return;
+		}
+		redisOperations.execute(new SessionCallback<Object>() {
+
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			@Override
+			public Object execute(RedisOperations operations) throws DataAccessException {
+				operations.multi();
+				operations.opsForValue().set(id, data);
+				operations.delete(deltasKey(id));
+				return operations.exec();
+			}
+		});
+	}
+
+	private void saveBatch(final Map<String, byte[]> batch) {
+		redisOperations.execute(new RedisCallback<Object>() {
+
+			@Override
+			public Object doInRedis(RedisConnection connection) throws DataAccessException {
+				if (!deltasEnabled) {
+					Map<byte[], byte[]> tuples = new HashMap<byte[], byte[]>(batch.size());
+					for (Entry<String, byte[]> entry : batch.entrySet()) {
+						tuples.put(rawKey(entry.getKey()), rawValue(entry.getValue()));
+					}
+					connection.mSet(tuples);
+					return null;
+				}
+				// transaction per id as keys of different ids may be in
+				// different slots
+				connection.openPipeline();
+				for (Entry<String, byte[]> entry : batch.entrySet()) {
+					connection.multi();
+					connection.set(rawKey(entry.getKey()), rawValue(entry.getValue()));
+					connection.del(rawKey(deltasKey(entry.getKey())));
+					connection.exec();
+				}
+				connection.closePipeline();
+				return null;
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private void getBatch(final List<String> batch, Map<String, StateMachineContext<S, E>> contexts) {
+		if (!deltasEnabled) {
+			List<byte[]> results = redisOperations.opsForValue().multiGet(batch);
+			for (int i = 0; i < batch.size(); i++) {
+				StateMachineContext<S, E> context = deserialize(results.get(i));
+				if (context != null) {
+					contexts.put(batch.get(i), context);
+				}
+			}
+			return;
+		}
+		List<Object> results = redisOperations.executePipelined(new SessionCallback<Object>() {
+
+			@SuppressWarnings("rawtypes")
+			@Override
+			public Object execute(RedisOperations operations) throws DataAccessException {
+				for (String id : batch) {
+					operations.opsForValue().get(id);
+					operations.opsForList().range(deltasKey(id), 0, -1);
+				}
+				return null;
+			}
+		});
+		for (int i = 0; i < batch.size(); i++) {
+			StateMachineContext<S, E> context = toContext((byte[]) results.get(i * 2),
+					(List<byte[]>) results.get(i * 2 + 1));
+			if (context != null) {
+				contexts.put(batch.get(i), context);
+			}
+		}
+	}
+
+	private StateMachineContext<S, E> toContext(byte[] data, List<byte[]> deltaData) {
+		StateMachineContext<S, E> context = deserialize(data);
+		if (deltaData == null || deltaData.isEmpty()) {
+			return context;
+		}
+		List<StateMachineContext<S, E>> deltas = new ArrayList<StateMachineContext<S, E>>(deltaData.size());
+		for (byte[] d : deltaData) {
+			deltas.add(deserialize(d));
+		}
+		return StateMachineContextDeltas.applyDeltas(context, deltas);
+	}
+
+	@SuppressWarnings("unchecked")
+	private byte[] rawKey(String key) {
+		return ((RedisSerializer<String>) redisOperations.getKeySerializer()).serialize(key);
+	}
+
+	@SuppressWarnings("unchecked")
+	private byte[] rawValue(byte[] value) {
+		return ((RedisSerializer<byte[]>) redisOperations.getValueSerializer()).serialize(value);
+	}
+
+	private static String deltasKey(String id) {
+		// use existing hash tag of an id or make whole id a hash tag
+		int start = id.indexOf('{');
+		if (start >= 0 && id.indexOf('}', start + 1) > start + 1) {
+			return id + DELTAS_SUFFIX;
+		}
+		return "{" + id + "}" + DELTAS_SUFFIX;
 	}
 
 	private static RedisTemplate<String,byte[]> createDefaultTemplate(RedisConnectionFactory connectionFactory) {
@@ -87,24 +358,40 @@ public class RedisStateMachineContextRepository<S, E> implements StateMachineCon
 		return template;
 	}
 
+	private AsyncListenableTaskExecutor getTaskExecutor() {
+		AsyncListenableTaskExecutor executor = taskExecutor;
+		return executor != null ? executor : createDefaultTaskExecutor();
+	}
+
+	private synchronized AsyncListenableTaskExecutor createDefaultTaskExecutor() {
+		if (taskExecutor == null) {
+			defaultTaskExecutor = new ThreadPoolTaskExecutor();
+			defaultTaskExecutor.setCorePoolSize(DEFAULT_ASYNC_POOL_SIZE);
+			defaultTaskExecutor.setMaxPoolSize(DEFAULT_ASYNC_POOL_SIZE);
+			defaultTaskExecutor.setThreadNamePrefix("statemachine-redis-");
+			defaultTaskExecutor.setDaemon(true);
+			defaultTaskExecutor.initialize();
+			taskExecutor = defaultTaskExecutor;
+		}
+		return taskExecutor;
+	}
+
+	private void shutdownDefaultTaskExecutor() {
+		if (defaultTaskExecutor != null) {
+			if (taskExecutor == defaultTaskExecutor) {
+				taskExecutor = null;
+			}
+			defaultTaskExecutor.shutdown();
+			defaultTaskExecutor = null;
+		}
+	}
+
 	private byte[] serialize(StateMachineContext<S, E> context) {
-		Kryo kryo = kryoThreadLocal.get();
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		Output output = new Output(out);
-		kryo.writeObject(output, context);
-		output.close();
-		return out.toByteArray();
+		return serialisationService.serialiseStateMachineContext(context);
 	}
 
-	@SuppressWarnings("unchecked")
 	private StateMachineContext<S, E> deserialize(byte[] data) {
-		if (data == null || data.length == 0) {
-			return null;
-		}
-		Kryo kryo = kryoThreadLocal.get();
-		ByteArrayInputStream in = new ByteArrayInputStream(data);
-		Input input = new Input(in);
-		return kryo.readObject(input, StateMachineContext.class);
+		return serialisationService.deserialiseStateMachineContext(data);
 	}
 
 }
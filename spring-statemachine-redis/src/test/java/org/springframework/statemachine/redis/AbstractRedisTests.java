@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.redis;
+
+import java.nio.charset.Charset;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.util.SocketUtils;
+
+import redis.embedded.RedisServer;
+
+/**
+ * Base class for tests running against an embedded redis server.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public abstract class AbstractRedisTests {
+
+	private static RedisServer redisServer;
+	private static int port;
+	protected JedisConnectionFactory connectionFactory;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		port = SocketUtils.findAvailableTcpPort();
+		redisServer = new RedisServer(port);
+		redisServer.start();
+	}
+
+	@AfterClass
+	public static void stopServer() throws Exception {
+		if (redisServer != null) {
+			redisServer.stop();
+		}
+	}
+
+	@Before
+	public void setup() {
+		connectionFactory = new JedisConnectionFactory();
+		connectionFactory.setHostName("localhost");
+		connectionFactory.setPort(port);
+		connectionFactory.afterPropertiesSet();
+		RedisConnection connection = connectionFactory.getConnection();
+		try {
+			connection.flushDb();
+		} finally {
+			connection.close();
+		}
+	}
+
+	@After
+	public void clean() {
+		if (connectionFactory != null) {
+			connectionFactory.destroy();
+		}
+	}
+
+	protected boolean exists(String key) {
+		RedisConnection connection = connectionFactory.getConnection();
+		try {
+			return connection.exists(key.getBytes(Charset.forName("UTF-8")));
+		} finally {
+			connection.close();
+		}
+	}
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.redis;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.persist.StateMachineContextDeltas;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+/**
+ * Tests for {@link RedisHashStateMachineContextRepository}.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public class RedisHashStateMachineContextRepositoryTests extends AbstractRedisTests {
+
+	@Test
+	public void testSaveAndGet() {
+		RedisHashStateMachineContextRepository<String, String> repository =
+				new RedisHashStateMachineContextRepository<String, String>(connectionFactory);
+		List<StateMachineContext<String, String>> childs = new ArrayList<StateMachineContext<String, String>>();
+		childs.add(new DefaultStateMachineContext<String, String>("S11", null, null, new DefaultExtendedState()));
+		Map<String, String> historyStates = new HashMap<String, String>();
+		historyStates.put("S1", "S11");
+		Map<Object, Object> variables = new HashMap<Object, Object>();
+		variables.put("foo", 1);
+		variables.put(2, "bar");
+		repository.save(new DefaultStateMachineContext<String, String>(childs, "S1", "E1", null,
+				new DefaultExtendedState(variables), historyStates, "id1"), "machine1");
+
+		StateMachineContext<String, String> context = repository.getContext("machine1");
+		assertThat(context.getState(), is("S1"));
+		assertThat(context.getEvent(), is("E1"));
+		assertThat(context.getId(), is("id1"));
+		assertThat(context.getChilds().size(), is(1));
+		assertThat(context.getChilds().get(0).getState(), is("S11"));
+		assertThat(context.getHistoryStates().get("S1"), is("S11"));
+		assertThat(context.getExtendedState().getVariables().size(), is(2));
+		assertThat(context.getExtendedState().getVariables().get("foo"), is((Object) 1));
+		assertThat(context.getExtendedState().getVariables().get(2), is((Object) "bar"));
+		assertThat(repository.getContext("machine2"), nullValue());
+
+		// full save replaces all fields
+		repository.save(context("S2", "bar", 2), "machine1");
+		context = repository.getContext("machine1");
+		assertThat(context.getState(), is("S2"));
+		assertThat(context.getChilds().size(), is(0));
+		assertThat(context.getExtendedState().getVariables().size(), is(1));
+		assertThat(context.getExtendedState().getVariables().get("bar"), is((Object) 2));
+	}
+
+	@Test
+	public void testSaveDelta() {
+		RedisHashStateMachineContextRepository<String, String> repository =
+				new RedisHashStateMachineContextRepository<String, String>(connectionFactory);
+		Map<Object, Object> variables = new HashMap<Object, Object>();
+		variables.put("foo", 1);
+		variables.put("bar", 2);
+		repository.save(new DefaultStateMachineContext<String, String>("S1", null, null,
+				new DefaultExtendedState(variables)), "machine1");
+
+		Map<Object, Object> changes = new HashMap<Object, Object>();
+		changes.put("foo", StateMachineContextDeltas.REMOVED);
+		changes.put("bar", 3);
+		changes.put("baz", 4);
+		assertThat(repository.saveDelta(new DefaultStateMachineContext<String, String>("S2", "E2", null,
+				new DefaultExtendedState(changes)), "machine1"), is(0));
+
+		StateMachineContext<String, String> context = repository.getContext("machine1");
+		assertThat(context.getState(), is("S2"));
+		assertThat(context.getEvent(), is("E2"));
+		assertThat(context.getExtendedState().getVariables().size(), is(2));
+		assertThat(context.getExtendedState().getVariables().containsKey("foo"), is(false));
+		assertThat(context.getExtendedState().getVariables().get("bar"), is((Object) 3));
+		assertThat(context.getExtendedState().getVariables().get("baz"), is((Object) 4));
+	}
+
+	@Test
+	public void testSaveAllAndGetContexts() {
+		RedisHashStateMachineContextRepository<String, String> repository =
+				new RedisHashStateMachineContextRepository<String, String>(connectionFactory);
+		repository.setBatchSize(3);
+		Map<String, StateMachineContext<String, String>> contexts = new LinkedHashMap<String, StateMachineContext<String, String>>();
+		for (int i = 0; i < 10; i++) {
+			contexts.put("machine" + i, context("S" + i, "index", i));
+		}
+		repository.saveAll(contexts);
+
+		List<String> ids = new ArrayList<String>();
+		ids.add("machine10");
+		for (int i = 0; i < 10; i++) {
+			ids.add("machine" + i);
+		}
+		Map<String, StateMachineContext<String, String>> read = repository.getContexts(ids);
+		assertThat(read.size(), is(10));
+		for (int i = 0; i < 10; i++) {
+			StateMachineContext<String, String> context = read.get("machine" + i);
+			assertThat(context.getState(), is("S" + i));
+			assertThat(context.getExtendedState().getVariables().get("index"), is((Object) i));
+		}
+	}
+
+	@Test
+	public void testTimeToLive() {
+		RedisHashStateMachineContextRepository<String, String> repository =
+				new RedisHashStateMachineContextRepository<String, String>(connectionFactory);
+		repository.save(context("S1", "foo", 1), "machine1");
+		assertThat(ttl("machine1"), is(-1L));
+
+		repository.setTimeToLive(1, TimeUnit.MINUTES);
+		repository.saveDelta(context("S2", "foo", 2), "machine1");
+		assertThat(ttl("machine1"), greaterThan(0L));
+		assertThat(ttl("machine1"), lessThanOrEqualTo(60000L));
+		assertThat(repository.getContext("machine1").getState(), is("S2"));
+		repository.save(context("S3", "foo", 3), "machine2");
+		assertThat(ttl("machine2"), greaterThan(0L));
+	}
+
+	@Test
+	public void testSaveDeltaWithoutContext() {
+		RedisHashStateMachineContextRepository<String, String> repository =
+				new RedisHashStateMachineContextRepository<String, String>(connectionFactory);
+		assertThat(repository.saveDelta(context("S2", "foo", 2), "machine3"), is(Integer.MAX_VALUE));
+		assertThat(repository.getContext("machine3"), nullValue());
+
+		repository.save(context("S1", "foo", 1), "machine3");
+		assertThat(repository.saveDelta(context("S2", "foo", 2), "machine3"), is(0));
+		assertThat(repository.getContext("machine3").getState(), is("S2"));
+		assertThat(repository.getContext("machine3").getExtendedState().get("foo", Integer.class), is(2));
+	}
+
+	private long ttl(String key) {
+		RedisConnection connection = connectionFactory.getConnection();
+		try {
+			return connection.pTtl(key.getBytes(Charset.forName("UTF-8")));
+		} finally {
+			connection.close();
+		}
+	}
+
+	private static StateMachineContext<String, String> context(String state, Object key, Object value) {
+		Map<Object, Object> variables = new HashMap<Object, Object>();
+		variables.put(key, value);
+		return new DefaultStateMachineContext<String, String>(state, null, null, new DefaultExtendedState(variables));
+	}
+
+}
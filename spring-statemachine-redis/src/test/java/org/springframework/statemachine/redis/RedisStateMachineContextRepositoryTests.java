@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.redis;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.persist.StateMachineContextDeltas;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+/**
+ * Tests for {@link RedisStateMachineContextRepository}.
+ *
+ * @author Janne Valkealahti
+ *
+ */
+public class RedisStateMachineContextRepositoryTests extends AbstractRedisTests {
+
+	@Test
+	public void testSaveAndGet() {
+		RedisStateMachineContextRepository<String, String> repository =
+				new RedisStateMachineContextRepository<String, String>(connectionFactory);
+		repository.save(context("S1", "foo", 1), "machine1");
+
+		StateMachineContext<String, String> context = repository.getContext("machine1");
+		assertThat(context.getState(), is("S1"));
+		assertThat(context.getExtendedState().getVariables().get("foo"), is((Object) 1));
+		assertThat(repository.getContext("machine2"), nullValue());
+	}
+
+	@Test
+	public void testSaveAllAndGetContexts() {
+		RedisStateMachineContextRepository<String, String> repository =
+				new RedisStateMachineContextRepository<String, String>(connectionFactory);
+		repository.setDeltasEnabled(true);
+		repository.setBatchSize(3);
+		repository.saveDelta(context("S0", "bar", 1), "machine0");
+		assertThat(exists("{machine0}:deltas"), is(true));
+
+		Map<String, StateMachineContext<String, String>> contexts = new LinkedHashMap<String, StateMachineContext<String, String>>();
+		for (int i = 0; i < 10; i++) {
+			contexts.put("machine" + i, context("S" + i, "index", i));
+		}
+		repository.saveAll(contexts);
+		// full save removes deltas
+		assertThat(exists("{machine0}:deltas"), is(false));
+
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 11; i++) {
+			ids.add("machine" + i);
+		}
+		Map<String, StateMachineContext<String, String>> read = repository.getContexts(ids);
+		assertThat(read.size(), is(10));
+		for (int i = 0; i < 10; i++) {
+			StateMachineContext<String, String> context = read.get("machine" + i);
+			assertThat(context.getState(), is("S" + i));
+			assertThat(context.getExtendedState().getVariables().get("index"), is((Object) i));
+			assertThat(context.getExtendedState().getVariables().containsKey("bar"), is(false));
+		}
+	}
+
+	@Test
+	public void testDeltas() {
+		RedisStateMachineContextRepository<String, String> repository =
+				new RedisStateMachineContextRepository<String, String>(connectionFactory);
+		repository.setDeltasEnabled(true);
+		repository.save(context("S1", "foo", 1), "machine1");
+		assertThat(repository.saveDelta(context("S2", "bar", 2), "machine1"), is(1));
+		assertThat(repository.saveDelta(context("S3", "foo", StateMachineContextDeltas.REMOVED), "machine1"), is(2));
+
+		StateMachineContext<String, String> context = repository.getContext("machine1");
+		assertThat(context.getState(), is("S3"));
+		assertThat(context.getExtendedState().getVariables().size(), is(1));
+		assertThat(context.getExtendedState().getVariables().get("bar"), is((Object) 2));
+
+		repository.save(context, "machine1");
+		assertThat(exists("{machine1}:deltas"), is(false));
+		assertThat(repository.getContext("machine1").getState(), is("S3"));
+
+		// deltas of an id with a hash tag use same tag
+		repository.saveDelta(context("S1", "foo", 1), "machine{2}");
+		assertThat(exists("machine{2}:deltas"), is(true));
+	}
+
+	@Test
+	public void testDeltasDisabled() {
+		RedisStateMachineContextRepository<String, String> repository =
+				new RedisStateMachineContextRepository<String, String>(connectionFactory);
+		repository.save(context("S1", "foo", 1), "machine1");
+		assertThat(repository.saveDelta(context("S2", "bar", 2), "machine1"), is(0));
+		assertThat(exists("{machine1}:deltas"), is(false));
+
+		StateMachineContext<String, String> context = repository.getContext("machine1");
+		assertThat(context.getState(), is("S2"));
+		assertThat(context.getExtendedState().getVariables().get("foo"), is((Object) 1));
+		assertThat(context.getExtendedState().getVariables().get("bar"), is((Object) 2));
+	}
+
+	@Test
+	public void testAsync() throws Exception {
+		RedisStateMachineContextRepository<String, String> repository =
+				new RedisStateMachineContextRepository<String, String>(connectionFactory);
+		repository.saveAsync(context("S1", "foo", 1), "machine1").get(2, TimeUnit.SECONDS);
+		assertThat(repository.getContextAsync("machine1").get(2, TimeUnit.SECONDS).getState(), is("S1"));
+		repository.destroy();
+
+		ThreadPoolTaskExecutor taskExecutor = new ThreadPoolTaskExecutor();
+		taskExecutor.initialize();
+		repository.setTaskExecutor(taskExecutor);
+		assertThat(repository.getContextAsync("machine1").get(2, TimeUnit.SECONDS).getState(), is("S1"));
+		repository.destroy();
+		// given executor is not shut down by a repository
+		assertThat(taskExecutor.getThreadPoolExecutor().isShutdown(), is(false));
+		taskExecutor.shutdown();
+	}
+
+	private static StateMachineContext<String, String> context(String state, Object key, Object value) {
+		Map<Object, Object> variables = new HashMap<Object, Object>();
+		variables.put(key, value);
+		return new DefaultStateMachineContext<String, String>(state, null, null, new DefaultExtendedState(variables));
+	}
+
+}
@@ -0,0 +1,680 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.zookeeper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.recipes.nodes.PersistentEphemeralNode;
+import org.apache.curator.framework.recipes.nodes.PersistentEphemeralNode.Mode;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.data.Stat;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineException;
+import org.springframework.statemachine.ensemble.StateMachineEnsemble;
+import org.springframework.statemachine.ensemble.StateMachineEnsembleException;
+import org.springframework.statemachine.ensemble.StateMachineEnsembleObjectSupport;
+import org.springframework.statemachine.kryo.KryoStateMachineSerialisationService;
+import org.springframework.statemachine.service.StateMachineSerialisationService;
+import org.springframework.statemachine.support.LifecycleObjectSupport;
+import org.springframework.util.Assert;
+
+/**
+ * Zookeeper backed ensembles for many distributed state machines sharing
+ * a fixed number of partitions. {@link #getEnsemble(String)} returns
+ * a {@link StateMachineEnsemble} for a logical machine id which is hashed
+ * into a partition.
+ * <p>
+ * Every machine has its own node whose version is checked when its state
+ * is set, which is the only conflict check of a write. Within a same
+ * transaction a change is appended into a log of a partition as a sequential
+ * node and a current node of a partition is touched, thus a single watcher
+ * per partition is able to replay changes of all machines in a partition.
+ * Changes of different machines in a same partition are ordered by
+ * sequences given by a zookeeper and never conflict with each other, while
+ * writes of a same machine within this instance are serialized. Number of
+ * watchers and member nodes depend on a number of partitions instead of
+ * a number of machines.
+ * <p>
+ * A writing instance trims a log of a partition into a log size. If
+ * entries a partition hasn't replayed yet are trimmed, a node of every
+ * machine of that partition hosted by this instance is read as a snapshot
+ * and a newer state is notified before a rest of a log is replayed.
+ * <p>
+ * Ensembles are kept until released with {@link #releaseEnsemble(String)}
+ * and a node of a machine is kept until removed with
+ * {@link #removeEnsemble(String)}.
+ *
+ * @author Janne Valkealahti
+ *
+ * @param <S> the type of state
+ * @param <E> the type of event
+ */
+public class ZookeeperPartitionedStateMachineEnsemble<S, E> extends LifecycleObjectSupport {
+
+	private final static Log log = LogFactory.getLog(ZookeeperPartitionedStateMachineEnsemble.class);
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+	private final static int DEFAULT_PARTITIONS = 16;
+	private final static int DEFAULT_LOGSIZE = 32;
+	private final static int UNKNOWN_VERSION = -2;
+	private final static String PATH_PARTITIONS = "partitions";
+	private final static String PATH_CURRENT = "current";
+	private final static String PATH_LOG = "log";
+	private final static String PATH_MACHINES = "machines";
+	private final static String PATH_MEMBERS = "members";
+	private final static String LOG_PREFIX = "entry-";
+	private final String uuid = UUID.randomUUID().toString();
+	private final CuratorFramework curatorClient;
+	private final String basePath;
+	private final int logSize;
+	private final Partition[] partitions;
+	private final StateMachineSerialisationService<S, E> serialisationService;
+	private final ConcurrentMap<String, PartitionedEnsemble> ensembles = new ConcurrentHashMap<String, PartitionedEnsemble>();
+	private final ConnectionStateListener connectionListener = new LocalConnectionStateListener();
+	private PersistentEphemeralNode node;
+	private volatile boolean connected;
+
+	/**
+	 * Instantiates a new zookeeper partitioned state machine ensemble with
+	 * 16 partitions.
+	 *
+	 * @param curatorClient the curator client
+	 * @param basePath the base zookeeper path
+	 */
+	public ZookeeperPartitionedStateMachineEnsemble(CuratorFramework curatorClient, String basePath) {
+		this(curatorClient, basePath, DEFAULT_PARTITIONS, DEFAULT_LOGSIZE);
+	}
+
+	/**
+	 * Instantiates a new zookeeper partitioned state machine ensemble.
+	 *
+	 * @param curatorClient the curator client
+	 * @param basePath the base zookeeper path
+	 * @param partitions the number of partitions
+	 * @param logSize the log size of a partition
+	 */
+	public ZookeeperPartitionedStateMachineEnsemble(CuratorFramework curatorClient, String basePath, int partitions,
+			int logSize) {
+		this(curatorClient, basePath, partitions, logSize, new KryoStateMachineSerialisationService<S, E>());
+	}
+
+	/**
+	 * Instantiates a new zookeeper partitioned state machine ensemble.
+	 *
+	 * @param curatorClient the curator client
+	 * @param basePath the base zookeeper path
+	 * @param partitions the number of partitions
+	 * @param logSize the log size of a partition
+	 * @param serialisationService the state machine serialisation service
+	 */
+	public ZookeeperPartitionedStateMachineEnsemble(CuratorFramework curatorClient, String basePath, int partitions,
+			int logSize, StateMachineSerialisationService<S, E> serialisationService) {
+		Assert.notNull(curatorClient, "Curator client must be set");
+		Assert.isTrue(partitions > 0, "Number of partitions must be positive");
+		Assert.isTrue(logSize > 0, "Log size must be positive");
+		Assert.notNull(serialisationService, "StateMachineSerialisationService must be set");
+		this.curatorClient = curatorClient;
+		this.basePath = basePath;
+		this.logSize = logSize;
+		this.serialisationService = serialisationService;
+		this.partitions = new Partition[partitions];
+		for (int i = 0; i < partitions; i++) {
+			this.partitions[i] = new Partition(basePath + "/" + PATH_PARTITIONS + "/" + i);
+			this.partitions[i].watcher = new PartitionWatcher(this.partitions[i]);
+		}
+		setAutoStartup(true);
+	}
+
+	/**
+	 * Gets the {@link StateMachineEnsemble} for a machine id.
+	 *
+	 * @param machineId the machine id
+	 * @return the state machine ensemble
+	 */
+	public StateMachineEnsemble<S, E> getEnsemble(String machineId) {
+		Assert.hasText(machineId, "Machine id must be set");
+		Assert.isTrue(machineId.indexOf('/') < 0, "Machine id must not contain '/'");
+		PartitionedEnsemble ensemble = ensembles.get(machineId);
+		if (ensemble == null) {
+			ensemble = new PartitionedEnsemble(machineId, partitions[getPartition(machineId)]);
+			PartitionedEnsemble existing = ensembles.putIfAbsent(machineId, ensemble);
+			if (existing != null) {
+				ensemble = existing;
+			}
+		}
+		return ensemble;
+	}
+
+	/**
+	 * Releases an ensemble of a machine id hosted by this instance. Joined
+	 * machines are notified to have left it and a state of a machine is kept
+	 * in a zookeeper.
+	 *
+	 * @param machineId the machine id
+	 */
+	public void releaseEnsemble(String machineId) {
+		PartitionedEnsemble ensemble = ensembles.remove(machineId);
+		if (ensemble != null) {
+			ensemble.leaveAll();
+		}
+	}
+
+	/**
+	 * Releases an ensemble of a machine id and removes a state of a machine
+	 * from a zookeeper. Other instances hosting a same machine id should
+	 * release it as their writes fail after a state is removed.
+	 *
+	 * @param machineId the machine id
+	 */
+	public void removeEnsemble(String machineId) {
+		Assert.hasText(machineId, "Machine id must be set");
+		Assert.isTrue(machineId.indexOf('/') < 0, "Machine id must not contain '/'");
+		releaseEnsemble(machineId);
+		try {
+			curatorClient.delete().forPath(partitions[getPartition(machineId)].machinesPath + "/" + machineId);
+		} catch (KeeperException.NoNodeException e) {
+		} catch (Exception e) {
+			throw new StateMachineException("Error removing data", e);
+		}
+	}
+
+	/**
+	 * Gets the partition of a machine id.
+	 *
+	 * @param machineId the machine id
+	 * @return the partition
+	 */
+	public int getPartition(String machineId) {
+		return (machineId.hashCode() & Integer.MAX_VALUE) % partitions.length;
+	}
+
+	@Override
+	protected void onInit() throws Exception {
+		initPaths();
+	}
+
+	@Override
+	protected void doStart() {
+		for (Partition partition : partitions) {
+			try {
+				List<Integer> sequences = readLogSequences(partition);
+				synchronized (partition.replayLock) {
+					partition.notifiedSequence = sequences.isEmpty() ? -1 : sequences.get(sequences.size() - 1);
+				}
+			} catch (Exception e) {
+				log.error("Error reading partition " + partition.path + " during start", e);
+			}
+			registerWatcher(partition);
+		}
+		curatorClient.getConnectionStateListenable().addListener(connectionListener);
+		if (curatorClient.getState() == CuratorFrameworkState.STARTED) {
+			handleZkConnect();
+		} else {
+			curatorClient.start();
+		}
+	}
+
+	@Override
+	protected void doStop() {
+		if (node != null && curatorClient.getState() != CuratorFrameworkState.STOPPED) {
+			try {
+				node.close();
+			} catch (IOException e) {
+			} finally {
+				node = null;
+			}
+		}
+		connected = false;
+		curatorClient.getConnectionStateListenable().removeListener(connectionListener);
+	}
+
+	@Override
+	public String toString() {
+		return "ZookeeperPartitionedStateMachineEnsemble [uuid=" + uuid + ", partitions=" + partitions.length + "]";
+	}
+
+	private void initPaths() {
+		try {
+			for (Partition partition : partitions) {
+				if (curatorClient.checkExists().forPath(partition.path) == null) {
+					try {
+						curatorClient.create().creatingParentsIfNeeded().forPath(basePath + "/" + PATH_PARTITIONS);
+					} catch (KeeperException.NodeExistsException e) {
+					}
+					CuratorTransactionFinal tt = curatorClient.inTransaction().create().forPath(partition.path).and();
+					tt = tt.create().forPath(partition.currentPath).and();
+					tt = tt.create().forPath(partition.machinesPath).and();
+					tt = tt.create().forPath(partition.logPath).and();
+					try {
+						tt.commit();
+					} catch (KeeperException.NodeExistsException e) {
+						// created by other ensemble
+					}
+				}
+			}
+			node = new PersistentEphemeralNode(curatorClient, Mode.EPHEMERAL, basePath + "/" + PATH_MEMBERS + "/" + uuid,
+					new byte[0]);
+			node.start();
+			node.waitForInitialCreate(60, TimeUnit.SECONDS);
+		} catch (Exception e) {
+			log.warn("Error in initPaths", e);
+		}
+	}
+
+	private void registerWatcher(Partition partition) {
+		try {
+			if (curatorClient.getState() != CuratorFrameworkState.STOPPED) {
+				curatorClient.checkExists().usingWatcher(partition.watcher).forPath(partition.currentPath);
+			}
+		} catch (Exception e) {
+			log.warn("Registering watcher for path " + partition.currentPath + " threw error", e);
+		}
+	}
+
+	private void handleZkConnect() {
+		log.info("Handling Zookeeper connect");
+		connected = true;
+		for (Partition partition : partitions) {
+			registerWatcher(partition);
+		}
+		for (PartitionedEnsemble ensemble : ensembles.values()) {
+			ensemble.notifyJoined();
+		}
+	}
+
+	private void handleZkDisconnect() {
+		log.info("Handling Zookeeper disconnect");
+		connected = false;
+		for (PartitionedEnsemble ensemble : ensembles.values()) {
+			ensemble.notifyDisconnected();
+		}
+	}
+
+	private void write(PartitionedEnsemble ensemble, StateMachineContext<S, E> context) {
+		Partition partition = ensemble.partition;
+		byte[] data = serialisationService.serialiseStateMachineContext(context);
+		// only writes of a same machine need to wait for each other
+		synchronized (ensemble.writeLock) {
+			int machineVersion = ensemble.getVersion();
+			byte[] entry = encodeEntry(ensemble.machineId, machineVersion + 1, data);
+			try {
+				CuratorTransaction tx = curatorClient.inTransaction();
+				CuratorTransactionFinal tt;
+				if (machineVersion < 0) {
+					tt = tx.create().forPath(ensemble.path, data).and();
+				} else {
+					tt = tx.setData().withVersion(machineVersion).forPath(ensemble.path, data).and();
+				}
+				tt = tt.create().withMode(CreateMode.PERSISTENT_SEQUENTIAL)
+						.forPath(partition.logPath + "/" + LOG_PREFIX, entry).and();
+				// touch without a version to trigger watchers
+				tt = tt.setData().forPath(partition.currentPath, new byte[0]).and();
+				tt.commit();
+				ensemble.update(machineVersion + 1, context);
+				partition.trimRequested = true;
+			} catch (Exception e) {
+				throw new StateMachineException("Error persisting data", e);
+			}
+		}
+	}
+
+	/**
+	 * Replays changes in a partition log after a last replayed entry and
+	 * dispatches these to ensembles of this instance. If a last replayed
+	 * entry has been trimmed, entries after it may have been trimmed too and
+	 * ensembles are recovered from machine nodes as snapshots.
+	 *
+	 * @param partition the partition
+	 * @throws Exception if error occurred
+	 */
+	private void replay(Partition partition) throws Exception {
+		synchronized (partition.replayLock) {
+			List<Integer> sequences = readLogSequences(partition);
+			if (sequences.isEmpty()) {
+				return;
+			}
+			if (sequences.get(0) > partition.notifiedSequence + 1 && !sequences.contains(partition.notifiedSequence)) {
+				log.warn("Current version behind more than log size, replaying from a snapshot in partition "
+						+ partition.path);
+				recoverFromSnapshot(partition);
+			}
+			for (int sequence : sequences) {
+				if (sequence <= partition.notifiedSequence) {
+					continue;
+				}
+				try {
+					dispatchEntry(curatorClient.getData().forPath(getLogEntryPath(partition, sequence)));
+				} catch (KeeperException.NoNodeException e) {
+					// trimmed after it was listed
+					recoverFromSnapshot(partition);
+				}
+				partition.notifiedSequence = sequence;
+			}
+			if (partition.trimRequested && sequences.size() > logSize) {
+				partition.trimRequested = false;
+				for (int sequence : sequences.subList(0, sequences.size() - logSize)) {
+					try {
+						curatorClient.delete().forPath(getLogEntryPath(partition, sequence));
+					} catch (KeeperException.NoNodeException e) {
+					}
+				}
+			}
+		}
+	}
+
+	private List<Integer> readLogSequences(Partition partition) throws Exception {
+		List<Integer> sequences = new ArrayList<Integer>();
+		for (String child : curatorClient.getChildren().forPath(partition.logPath)) {
+			// skip nodes of a log format without sequential nodes
+			if (child.startsWith(LOG_PREFIX)) {
+				sequences.add(Integer.parseInt(child.substring(LOG_PREFIX.length())));
+			}
+		}
+		Collections.sort(sequences);
+		return sequences;
+	}
+
+	private String getLogEntryPath(Partition partition, int sequence) {
+		return partition.logPath + "/" + LOG_PREFIX + String.format("%010d", sequence);
+	}
+
+	private void recoverFromSnapshot(Partition partition) {
+		for (PartitionedEnsemble ensemble : ensembles.values()) {
+			if (ensemble.partition == partition) {
+				try {
+					ensemble.recover();
+				} catch (Exception e) {
+					log.error("Error recovering ensemble " + ensemble.machineId + " from a snapshot", e);
+					ensemble.notifyError(new StateMachineEnsembleException("Current version behind more than log size"));
+				}
+			}
+		}
+	}
+
+	private void dispatchEntry(byte[] entry) {
+		ByteBuffer buffer = ByteBuffer.wrap(entry);
+		byte[] id = new byte[buffer.getShort()];
+		buffer.get(id);
+		PartitionedEnsemble ensemble = ensembles.get(new String(id, UTF8));
+		if (ensemble == null) {
+			// machine not hosted by this instance
+			return;
+		}
+		int machineVersion = buffer.getInt();
+		StateMachineContext<S, E> context = serialisationService
+				.deserialiseStateMachineContext(Arrays.copyOfRange(entry, buffer.position(), entry.length));
+		ensemble.update(machineVersion, context);
+		ensemble.notifyIfNewer(machineVersion, context);
+	}
+
+	private static byte[] encodeEntry(String machineId, int machineVersion, byte[] data) {
+		byte[] id = machineId.getBytes(UTF8);
+		ByteBuffer buffer = ByteBuffer.allocate(2 + id.length + 4 + data.length);
+		buffer.putShort((short) id.length);
+		buffer.put(id);
+		buffer.putInt(machineVersion);
+		buffer.put(data);
+		return buffer.array();
+	}
+
+	/**
+	 * Partition of machines having its own current node and a log.
+	 */
+	private static class Partition {
+		private final String path;
+		private final String currentPath;
+		private final String logPath;
+		private final String machinesPath;
+		private final Object replayLock = new Object();
+		private CuratorWatcher watcher;
+		// guarded by replayLock
+		private int notifiedSequence = -1;
+		private volatile boolean trimRequested;
+
+		public Partition(String path) {
+			this.path = path;
+			this.currentPath = path + "/" + PATH_CURRENT;
+			this.logPath = path + "/" + PATH_LOG;
+			this.machinesPath = path + "/" + PATH_MACHINES;
+		}
+	}
+
+	private class PartitionWatcher implements CuratorWatcher {
+
+		private final Partition partition;
+
+		public PartitionWatcher(Partition partition) {
+			this.partition = partition;
+		}
+
+		@Override
+		public void process(WatchedEvent event) throws Exception {
+			if (log.isTraceEnabled()) {
+				log.trace("Process WatchedEvent: id=" + uuid + " " + event);
+			}
+			if (!isRunning()) {
+				// stopped ensemble doesn't replay changes nor register new watchers
+				return;
+			}
+			// register before replaying so that changes done
+			// during a replay are not missed
+			registerWatcher(partition);
+			if (event.getType() == EventType.NodeDataChanged) {
+				try {
+					replay(partition);
+				} catch (Exception e) {
+					log.error("Error handling event", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * {@link StateMachineEnsemble} of a single machine id within a partition.
+	 */
+	private class PartitionedEnsemble extends StateMachineEnsembleObjectSupport<S, E> {
+
+		private final String machineId;
+		private final Partition partition;
+		private final String path;
+		private final List<StateMachine<S, E>> joined = new CopyOnWriteArrayList<StateMachine<S, E>>();
+		private final Object writeLock = new Object();
+		private volatile StateMachineContext<S, E> context;
+		// guarded by this
+		private int version = UNKNOWN_VERSION;
+		// guarded by a replay lock of a partition
+		private int notifiedVersion = -1;
+
+		public PartitionedEnsemble(String machineId, Partition partition) {
+			this.machineId = machineId;
+			this.partition = partition;
+			this.path = partition.machinesPath + "/" + machineId;
+		}
+
+		@Override
+		public void join(StateMachine<S, E> stateMachine) {
+			joined.add(stateMachine);
+			if (connected) {
+				notifyJoined(stateMachine, getState());
+			}
+		}
+
+		@Override
+		public void leave(StateMachine<S, E> stateMachine) {
+			if (joined.remove(stateMachine)) {
+				notifyLeft(stateMachine, context);
+			}
+		}
+
+		@Override
+		public void setState(StateMachineContext<S, E> context) {
+			if (log.isDebugEnabled()) {
+				log.debug("Setting state context=" + context + " for machine " + machineId);
+			}
+			write(this, context);
+		}
+
+		@Override
+		public StateMachineContext<S, E> getState() {
+			try {
+				Stat stat = new Stat();
+				StateMachineContext<S, E> context = serialisationService
+						.deserialiseStateMachineContext(curatorClient.getData().storingStatIn(stat).forPath(path));
+				update(stat.getVersion(), context);
+				return context;
+			} catch (KeeperException.NoNodeException e) {
+				update(-1, null);
+				return null;
+			} catch (Exception e) {
+				throw new StateMachineException("Error reading data", e);
+			}
+		}
+
+		@Override
+		public StateMachine<S, E> getLeader() {
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			return "PartitionedEnsemble [machineId=" + machineId + ", ensemble=" + ZookeeperPartitionedStateMachineEnsemble.this + "]";
+		}
+
+		private int getVersion() {
+			synchronized (this) {
+				if (version != UNKNOWN_VERSION) {
+					return version;
+				}
+			}
+			getState();
+			synchronized (this) {
+				return version;
+			}
+		}
+
+		private synchronized void update(int version, StateMachineContext<S, E> context) {
+			if (version > this.version) {
+				this.version = version;
+				this.context = context;
+			}
+		}
+
+		/**
+		 * Notifies a state change unless a same or newer version has already
+		 * been notified. Needs to be called while holding a replay lock of
+		 * a partition.
+		 */
+		private void notifyIfNewer(int version, StateMachineContext<S, E> context) {
+			if (version > notifiedVersion) {
+				notifiedVersion = version;
+				notifyStateChanged(context);
+			}
+		}
+
+		/**
+		 * Reads a state of a machine node as a snapshot and notifies it
+		 * if newer than a notified one. Needs to be called while holding
+		 * a replay lock of a partition.
+		 */
+		private void recover() throws Exception {
+			Stat stat = new Stat();
+			StateMachineContext<S, E> context;
+			try {
+				context = serialisationService
+						.deserialiseStateMachineContext(curatorClient.getData().storingStatIn(stat).forPath(path));
+			} catch (KeeperException.NoNodeException e) {
+				return;
+			}
+			update(stat.getVersion(), context);
+			notifyIfNewer(stat.getVersion(), context);
+		}
+
+		private void leaveAll() {
+			for (StateMachine<S, E> stateMachine : joined) {
+				leave(stateMachine);
+			}
+		}
+
+		private void notifyJoined() {
+			for (StateMachine<S, E> stateMachine : joined) {
+				notifyJoined(stateMachine, getState());
+			}
+		}
+
+		private void notifyDisconnected() {
+			if (!joined.isEmpty()) {
+				notifyError(new StateMachineEnsembleException("Lost connection to zookeeper"));
+			}
+			for (StateMachine<S, E> stateMachine : joined) {
+				notifyLeft(stateMachine, context);
+			}
+		}
+
+		@Override
+		protected void notifyError(StateMachineEnsembleException exception) {
+			super.notifyError(exception);
+		}
+
+		@Override
+		protected void notifyStateChanged(StateMachineContext<S, E> context) {
+			super.notifyStateChanged(context);
+		}
+	}
+
+	private class LocalConnectionStateListener implements ConnectionStateListener {
+
+		@Override
+		public void stateChanged(CuratorFramework client, ConnectionState newState) {
+			if (curatorClient == client) {
+				switch (newState) {
+				case CONNECTED:
+				case RECONNECTED:
+					handleZkConnect();
+					break;
+				case LOST:
+				case SUSPENDED:
+					handleZkDisconnect();
+					break;
+				default:
+					break;
+				}
+			}
+		}
+	}
+}
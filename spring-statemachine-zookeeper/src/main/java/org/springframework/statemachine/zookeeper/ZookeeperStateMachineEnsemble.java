@@ -20,13 +20,20 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
 import org.apache.curator.framework.api.CuratorWatcher;
 import org.apache.curator.framework.api.transaction.CuratorTransaction;
 import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
@@ -36,29 +43,59 @@ import org.apache.curator.framework.recipes.nodes.PersistentEphemeralNode;
 import org.apache.curator.framework.recipes.nodes.PersistentEphemeralNode.Mode;
 import org.apache.curator.framework.state.ConnectionState;
 import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.data.Stat;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.statemachine.StateMachine;
 import org.springframework.statemachine.StateMachineContext;
 import org.springframework.statemachine.StateMachineException;
 import org.springframework.statemachine.StateMachinePersist;
+import org.springframework.statemachine.ensemble.StateMachineAsyncEnsemble;
 import org.springframework.statemachine.ensemble.StateMachineEnsemble;
 import org.springframework.statemachine.ensemble.StateMachineEnsembleException;
 import org.springframework.statemachine.ensemble.StateMachineEnsembleObjectSupport;
+import org.springframework.util.Assert;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
 
 /**
  * {@link StateMachineEnsemble} backed by a zookeeper.
+ * <p>
+ * States set asynchronously are queued and written by a single writer
+ * thread which writes all queued states, up to a maximum number of
+ * pipelined writes, within a single transaction expecting consecutive
+ * versions. Thus a number of round trips to a zookeeper doesn't limit
+ * a rate of state changes. If a transaction fails, i.e. other ensemble
+ * has changed a state, all states in it are rejected.
+ * <p>
+ * By default {@link #getState()} reads a current state from a zookeeper.
+ * With local reads enabled it returns a state kept up to date by a watcher
+ * as long as it's within configured staleness bounds, that is a connection
+ * is up, a state was confirmed within a maximum staleness time and it
+ * doesn't lag behind a highest seen version more than allowed. Otherwise
+ * a state is read from a zookeeper. {@link #getState(boolean)} can be used
+ * to request a linearizable read which syncs with a zookeeper leader before
+ * reading.
+ * <p>
+ * Log of previous states is a ring of nodes and a size of it doesn't
+ * need to be a power of two. If an ensemble is behind more than a log
+ * size, it replays from an oldest state still kept in a log as every
+ * entry is a full context.
  *
  * @author Janne Valkealahti
  *
  * @param <S> the type of state
  * @param <E> the type of event
  */
-public class ZookeeperStateMachineEnsemble<S, E> extends StateMachineEnsembleObjectSupport<S, E> {
+public class ZookeeperStateMachineEnsemble<S, E> extends StateMachineEnsembleObjectSupport<S, E>
+		implements StateMachineAsyncEnsemble<S, E> {
 
 	private final static Log log = LogFactory.getLog(ZookeeperStateMachineEnsemble.class);
 	private final String uuid = UUID.randomUUID().toString();
 	private final static int DEFAULT_LOGSIZE = 32;
+	private final static int DEFAULT_MAX_PIPELINED_WRITES = 16;
+	private final static long DEFAULT_MAX_READ_STALENESS = 1000;
 	private final static String PATH_CURRENT = "current";
 	private final static String PATH_LOG = "log";
 	private final static String PATH_MEMBERS = "members";
@@ -80,6 +117,20 @@ public class ZookeeperStateMachineEnsemble<S, E> extends StateMachineEnsembleObj
 	private final List<StateMachine<S, E>> joined = new ArrayList<StateMachine<S,E>>();
 	private final Object joinLock = new Object();
 	private final ConnectionStateListener connectionListener = new LocalConnectionStateListener();
+	private final BlockingQueue<PendingState> pendingStates = new LinkedBlockingQueue<PendingState>();
+	private final Object queueLock = new Object();
+	private PendingState lastQueued;
+	private final AtomicBoolean writing = new AtomicBoolean();
+	private final Runnable writeTask = new WriteTask();
+	private final ThreadPoolTaskExecutor taskExecutor;
+	private int maxPipelinedWrites;
+	private final AtomicInteger seenVersion = new AtomicInteger(-1);
+	private volatile long validatedTime;
+	private volatile boolean watching;
+	private volatile boolean localReads;
+	private volatile long maxReadStaleness = DEFAULT_MAX_READ_STALENESS;
+	private volatile int maxReadVersionLag;
+	private volatile boolean replayFromSnapshot = true;
 
 	/**
 	 * Instantiates a new zookeeper state machine ensemble.
@@ -109,9 +160,73 @@ public class ZookeeperStateMachineEnsemble<S, E> extends StateMachineEnsembleObj
 		this.memberPath = basePath + "/" + PATH_MEMBERS;
 		this.mutexPath = basePath + "/" + PATH_MUTEX;
 		this.persist = new ZookeeperStateMachinePersist<S, E>(curatorClient, statePath, logPath, logSize);
+		this.maxPipelinedWrites = Math.min(DEFAULT_MAX_PIPELINED_WRITES, logSize);
+		this.taskExecutor = createDefaultTaskExecutor();
 		setAutoStartup(true);
 	}
 
+	/**
+	 * Sets the maximum number of asynchronously set states written within
+	 * a single transaction. Can't be more than a log size as otherwise
+	 * other ensembles would not be able to replay missed states from a log.
+	 * Defaults to {@code 16} or a log size if it's smaller.
+	 *
+	 * @param maxPipelinedWrites the maximum number of pipelined writes
+	 */
+	public void setMaxPipelinedWrites(int maxPipelinedWrites) {
+		Assert.isTrue(maxPipelinedWrites > 0 && maxPipelinedWrites <= logSize,
+				"Maximum pipelined writes must be positive and not more than log size");
+		this.maxPipelinedWrites = maxPipelinedWrites;
+	}
+
+	/**
+	 * Sets if {@link #getState()} is allowed to return a state kept by
+	 * a watcher instead of reading it from a zookeeper. Defaults to
+	 * {@code false}.
+	 *
+	 * @param localReads the local reads flag
+	 */
+	public void setLocalReads(boolean localReads) {
+		this.localReads = localReads;
+	}
+
+	/**
+	 * Sets the maximum time in milliseconds since a local state was last
+	 * confirmed against a zookeeper for it to be used with local reads.
+	 * Defaults to {@code 1000}.
+	 *
+	 * @param maxReadStaleness the maximum read staleness in milliseconds
+	 */
+	public void setMaxReadStaleness(long maxReadStaleness) {
+		Assert.isTrue(maxReadStaleness >= 0, "Maximum read staleness must not be negative");
+		this.maxReadStaleness = maxReadStaleness;
+	}
+
+	/**
+	 * Sets the maximum number of versions a local state is allowed to lag
+	 * behind a highest version seen from a zookeeper for it to be used
+	 * with local reads. Defaults to {@code 0}.
+	 *
+	 * @param maxReadVersionLag the maximum read version lag
+	 */
+	public void setMaxReadVersionLag(int maxReadVersionLag) {
+		Assert.isTrue(maxReadVersionLag >= 0, "Maximum read version lag must not be negative");
+		this.maxReadVersionLag = maxReadVersionLag;
+	}
+
+	/**
+	 * Sets if an ensemble which is behind more than a log size replays
+	 * changes from an oldest entry still kept in a log instead of going
+	 * into an error. As every log entry is a full context, an oldest kept
+	 * entry works as a snapshot and only a tail after it is replayed while
+	 * older changes are skipped. Defaults to {@code true}.
+	 *
+	 * @param replayFromSnapshot the replay from snapshot flag
+	 */
+	public void setReplayFromSnapshot(boolean replayFromSnapshot) {
+		this.replayFromSnapshot = replayFromSnapshot;
+	}
+
 	@Override
 	protected void onInit() throws Exception {
 		initPaths();
@@ -129,6 +244,7 @@ public class ZookeeperStateMachineEnsemble<S, E> extends StateMachineEnsembleObj
 				StateWrapper currentStateWrapper = readCurrentContext();
 				stateRef.set(currentStateWrapper);
 				notifyRef.set(currentStateWrapper);
+				validated(currentStateWrapper);
 			} catch (Exception e) {
 				log.error("Error reading current state during start", e);
 			}
@@ -151,9 +267,15 @@ public class ZookeeperStateMachineEnsemble<S, E> extends StateMachineEnsembleObj
 				node = null;
 			}
 		}
+		watching = false;
 		curatorClient.getConnectionStateListenable().removeListener(connectionListener);
 	}
 
+	@Override
+	protected void doDestroy() {
+		taskExecutor.shutdown();
+	}
+
 	@Override
 	public void join(StateMachine<S, E> stateMachine) {
 		if (!isRunning()) {
@@ -236,15 +358,108 @@ public class ZookeeperStateMachineEnsemble<S, E> extends StateMachineEnsembleObj
 			if (log.isDebugEnabled()) {
 				log.debug("Request persist write ok " + context + " new version " + stat.getVersion() + " for ensemble " + uuid);
 			}
-			stateRef.set(new StateWrapper(context, stat.getVersion()));
+			StateWrapper newWrapper = new StateWrapper(context, stat.getVersion());
+			stateRef.set(newWrapper);
+			validated(newWrapper);
 		} catch (Exception e) {
 			throw new StateMachineException("Error persisting data", e);
 		}
 	}
 
+	@Override
+	public ListenableFuture<Void> setStateAsync(StateMachineContext<S, E> context) {
+		SettableListenableFuture<Void> future = new SettableListenableFuture<Void>();
+		synchronized (queueLock) {
+			// expect a version known now or one a previous queued write will create
+			int expectedVersion;
+			if (lastQueued != null && !lastQueued.future.isDone()) {
+				expectedVersion = lastQueued.expectedVersion + 1;
+			} else {
+				StateWrapper stateWrapper = stateRef.get();
+				expectedVersion = stateWrapper != null ? stateWrapper.version : 0;
+			}
+			lastQueued = new PendingState(context, expectedVersion, future);
+			pendingStates.add(lastQueued);
+		}
+		if (writing.compareAndSet(false, true)) {
+			taskExecutor.execute(writeTask);
+		}
+		return future;
+	}
+
 	@Override
 	public StateMachineContext<S, E> getState() {
-		return readCurrentContext().context;
+		if (localReads) {
+			StateWrapper stateWrapper = stateRef.get();
+			if (isFresh(stateWrapper)) {
+				return stateWrapper.context;
+			}
+		}
+		return readState().context;
+	}
+
+	/**
+	 * Gets the state as a {@link StateMachineContext}. If linearizable
+	 * read is requested, a zookeeper server is synced with a leader
+	 * before reading a state, thus all states set before this method
+	 * was called are visible. Otherwise works as {@link #getState()}.
+	 *
+	 * @param linearizable if true sync with a leader before reading
+	 * @return the state machine context
+	 */
+	public StateMachineContext<S, E> getState(boolean linearizable) {
+		if (!linearizable) {
+			return getState();
+		}
+		syncStatePath();
+		return readState().context;
+	}
+
+	private synchronized void writePending(List<PendingState> pending) {
+		List<StateMachineContext<S, E>> contexts = new ArrayList<StateMachineContext<S, E>>(pending.size());
+		for (PendingState pendingState : pending) {
+			contexts.add(pendingState.context);
+		}
+		try {
+			// queued states are chained, thus versions follow a first one
+			Stat stat = new Stat();
+			stat.setVersion(pending.get(0).expectedVersion);
+			if (log.isDebugEnabled()) {
+				log.debug("Requesting persist write of " + contexts.size() + " contexts with version " + stat.getVersion()
+						+ " for ensemble " + uuid);
+			}
+			((ZookeeperStateMachinePersist<S, E>) persist).write(contexts, stat);
+			StateWrapper newWrapper = new StateWrapper(contexts.get(contexts.size() - 1), stat.getVersion());
+			stateRef.set(newWrapper);
+			validated(newWrapper);
+		} catch (Exception e) {
+			for (PendingState pendingState : pending) {
+				pendingState.future.setException(e);
+			}
+			// states queued behind expect versions of rejected states, fail
+			// under a lock so that new states are not chained to failing ones
+			List<PendingState> queued = new ArrayList<PendingState>();
+			synchronized (queueLock) {
+				pendingStates.drainTo(queued);
+				for (PendingState pendingState : queued) {
+					pendingState.future.setException(
+							new StateMachineEnsembleException("Previous queued state was rejected", e));
+				}
+			}
+			return;
+		}
+		for (PendingState pendingState : pending) {
+			pendingState.future.set(null);
+		}
+	}
+
+	private ThreadPoolTaskExecutor createDefaultTaskExecutor() {
+		ThreadPoolTaskExecutor taskExecutor = new ThreadPoolTaskExecutor();
+		taskExecutor.setCorePoolSize(1);
+		taskExecutor.setDaemon(true);
+		taskExecutor.setThreadNamePrefix("statemachine-ensemble-");
+		taskExecutor.initialize();
+		return taskExecutor;
 	}
 
 	private void handleZkConnect() {
@@ -252,10 +467,12 @@ public class ZookeeperStateMachineEnsemble<S, E> extends StateMachineEnsembleObj
 		joinQueued();
 		notifyJoined();
 		registerWatcherForStatePath();
+		watching = true;
 	}
 
 	private void handleZkDisconnect() {
 		log.info("Handling Zookeeper disconnect");
+		watching = false;
 		notifyError(new StateMachineEnsembleException("Lost connection to zookeeper"));
 		notifyLeft();
 	}
@@ -265,6 +482,7 @@ public class ZookeeperStateMachineEnsemble<S, E> extends StateMachineEnsembleObj
 			Stat stat = new Stat();
 			registerWatcherForStatePath();
 			StateMachineContext<S, E> context = persist.read(stat);
+			seen(stat.getVersion());
 			return new StateWrapper(context, stat.getVersion());
 		} catch (Exception e) {
 			throw new StateMachineException("Error reading data", e);
@@ -363,6 +581,67 @@ public class ZookeeperStateMachineEnsemble<S, E> extends StateMachineEnsembleObj
 		}
 	}
 
+	/**
+	 * Reads a current state from a zookeeper and marks a local state
+	 * confirmed if it has a same version.
+	 *
+	 * @return the current state wrapper
+	 */
+	private StateWrapper readState() {
+		StateWrapper wrapper = readCurrentContext();
+		StateWrapper stateWrapper = stateRef.get();
+		if (stateWrapper != null && stateWrapper.version == wrapper.version) {
+			validated(stateWrapper);
+		}
+		return wrapper;
+	}
+
+	private boolean isFresh(StateWrapper stateWrapper) {
+		return watching && stateWrapper != null
+				&& seenVersion.get() - stateWrapper.version <= maxReadVersionLag
+				&& System.currentTimeMillis() - validatedTime <= maxReadStaleness;
+	}
+
+	private void validated(StateWrapper stateWrapper) {
+		seen(stateWrapper.version);
+		validatedTime = System.currentTimeMillis();
+	}
+
+	private void seen(int version) {
+		int current;
+		while ((current = seenVersion.get()) < version) {
+			if (seenVersion.compareAndSet(current, version)) {
+				break;
+			}
+		}
+	}
+
+	private void syncStatePath() {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AtomicInteger resultCode = new AtomicInteger();
+		try {
+			curatorClient.sync().inBackground(new BackgroundCallback() {
+
+				@Override
+				public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+					resultCode.set(event.getResultCode());
+					latch.countDown();
+				}
+			}).forPath(statePath);
+			if (!latch.await(curatorClient.getZookeeperClient().getConnectionTimeoutMs(), TimeUnit.MILLISECONDS)) {
+				throw new StateMachineException("Timeout syncing path " + statePath);
+			}
+		} catch (StateMachineException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StateMachineException("Error syncing path " + statePath, e);
+		}
+		if (resultCode.get() != KeeperException.Code.OK.intValue()) {
+			throw new StateMachineException("Error syncing path " + statePath,
+					KeeperException.create(KeeperException.Code.get(resultCode.get()), statePath));
+		}
+	}
+
 	@Override
 	public String toString() {
 		return "ZookeeperStateMachineEnsemble [uuid=" + uuid + "]";
@@ -423,41 +702,59 @@ public class ZookeeperStateMachineEnsemble<S, E> extends StateMachineEnsembleObj
 			// simply used to check if we don't need to replay, if so
 			// we can just try to notify
 			mayNotifyStateChanged(newWrapper);
+			validated(newWrapper);
 		} else {
-			final int start = (notifyWrapper != null ? (notifyWrapper.version) : 0) % logSize;
-			int count = newWrapper.version - (notifyWrapper != null ? (notifyWrapper.version) : 0);
+			int from = notifyWrapper != null ? notifyWrapper.version : 0;
+			int count = newWrapper.version - from;
+			if (count > logSize && replayFromSnapshot) {
+				// versions older than a log size are already overwritten, as
+				// log entries are full contexts start from an oldest entry
+				// left in a log as a snapshot and replay only a tail
+				log.warn("Current version behind more than log size, replaying from a snapshot in ensemble " + uuid);
+				from = newWrapper.version - logSize;
+			}
 			if (log.isDebugEnabled()) {
-				log.debug("Events missed, trying to replay start " + start + " count " + count);
+				log.debug("Events missed, trying to replay from " + from + " count " + count);
 			}
-			for (int i = start; i < (start + count); i++) {
+			for (int version = from + 1; version <= newWrapper.version; version++) {
 				Stat stat = new Stat();
-				StateMachineContext<S, E> context = ((ZookeeperStateMachinePersist<S, E>) persist).readLog(i, stat);
-				int ver = (stat.getVersion() - 1) * logSize + (i + 1);
+				// log position wraps when replaying over an end of a log
+				int position = (version - 1) % logSize;
+				StateMachineContext<S, E> context = ((ZookeeperStateMachinePersist<S, E>) persist).readLog(position, stat);
+				int ver = (stat.getVersion() - 1) * logSize + (position + 1);
 
 				// check if we're behind more than a log size meaning we can't
-				// replay full history, notify and break out from a loop
-				if (i + logSize < ver) {
-					notifyError(new StateMachineEnsembleException("Current version behind more than log size"));
-					break;
+				// replay full history, either continue from a newer entry as
+				// a snapshot or notify and break out from a loop
+				if (ver > version) {
+					if (!replayFromSnapshot) {
+						notifyError(new StateMachineEnsembleException("Current version behind more than log size"));
+						break;
+					}
+					version = ver;
 				}
 				if (log.isDebugEnabled()) {
-					log.debug("Replay position " + i + " with version " + ver);
-					log.debug("Context in position " + i + " " + context);
+					log.debug("Replay position " + position + " with version " + ver);
+					log.debug("Context in position " + position + " " + context);
 				}
 
 				StateWrapper wrapper = new StateWrapper(context, ver);
 
 				// need to set stateRef when replaying if its
 				// context is not set or otherwise just set
-				// if stateRef still is currentWrapper
+				// if stateRef is still behind
 				StateWrapper currentWrapperx = stateRef.get();
 				if (currentWrapperx.context == null) {
 					stateRef.set(wrapper);
-				} else if (wrapper.version == currentWrapperx.version + 1) {
-					stateRef.set(wrapper);
+				} else if (wrapper.version > currentWrapperx.version) {
+					stateRef.compareAndSet(currentWrapperx, wrapper);
 				}
 				mayNotifyStateChanged(wrapper);
 			}
+			StateWrapper replayedWrapper = stateRef.get();
+			if (replayedWrapper.version == newWrapper.version) {
+				validated(replayedWrapper);
+			}
 			// did we replay
 			return count > 0;
 		}
@@ -488,6 +785,46 @@ public class ZookeeperStateMachineEnsemble<S, E> extends StateMachineEnsembleObj
 
 	};
 
+	/**
+	 * Writes pending states until a queue is empty.
+	 */
+	private class WriteTask implements Runnable {
+
+		@Override
+		public void run() {
+			List<PendingState> pending = new ArrayList<PendingState>();
+			while (true) {
+				pendingStates.drainTo(pending, maxPipelinedWrites);
+				if (pending.isEmpty()) {
+					writing.set(false);
+					// recheck as a state may have been queued before a flag was cleared
+					if (pendingStates.isEmpty() || !writing.compareAndSet(false, true)) {
+						return;
+					}
+					continue;
+				}
+				writePending(pending);
+				pending.clear();
+			}
+		}
+	}
+
+	/**
+	 * Asynchronously set state waiting to be written.
+	 */
+	private class PendingState {
+		private final StateMachineContext<S, E> context;
+		private final int expectedVersion;
+		private final SettableListenableFuture<Void> future;
+
+		public PendingState(StateMachineContext<S, E> context, int expectedVersion,
+				SettableListenableFuture<Void> future) {
+			this.context = context;
+			this.expectedVersion = expectedVersion;
+			this.future = future;
+		}
+	}
+
 	/**
 	 * Wrapper object for a {@link StateMachineContext} and its
 	 * current version.
@@ -15,59 +15,54 @@
  */
 package org.springframework.statemachine.zookeeper;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.UUID;
+import java.util.List;
 
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.api.transaction.CuratorTransaction;
 import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
 import org.apache.curator.framework.api.transaction.CuratorTransactionResult;
 import org.apache.zookeeper.data.Stat;
-import org.springframework.messaging.MessageHeaders;
 import org.springframework.statemachine.StateMachineContext;
 import org.springframework.statemachine.StateMachineException;
 import org.springframework.statemachine.StateMachinePersist;
-import org.springframework.statemachine.kryo.MessageHeadersSerializer;
-import org.springframework.statemachine.kryo.StateMachineContextSerializer;
-import org.springframework.statemachine.kryo.UUIDSerializer;
+import org.springframework.statemachine.kryo.KryoStateMachineSerialisationService;
+import org.springframework.statemachine.persist.StateMachineContextDeltas;
+import org.springframework.statemachine.persist.StateMachineDeltaPersist;
+import org.springframework.statemachine.service.StateMachineSerialisationService;
 import org.springframework.util.Assert;
 
-import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.io.Input;
-import com.esotericsoftware.kryo.io.Output;
-
 /**
  * {@link StateMachinePersist} using zookeeper as a storage and
  *  kroy libraries as a backing serialization technique.
+ * <p>
+ * Deltas are written as child nodes {@code delta-<n>} of a path within a
+ * transaction checking a version of a path. Number of deltas is tracked
+ * in {@link Stat#getNumChildren()} of a context object similarly to a
+ * version, thus a context should be read before it's written with a same
+ * {@link Stat}. Writing a full context deletes known deltas and, as creating
+ * a child doesn't change a data version of a path, creates and deletes a next
+ * delta node within a same transaction which fails the write if a delta not
+ * known to a given {@link Stat} was written concurrently.
+ * <p>
+ * Zookeeper limits a size of a node data, large contexts can be compressed
+ * by passing a {@link KryoStateMachineSerialisationService} with
+ * a {@link org.springframework.statemachine.kryo.CompressionCodec}.
  *
  * @author Janne Valkealahti
  *
  * @param <S> the type of state
  * @param <E> the type of event
  */
-public class ZookeeperStateMachinePersist<S, E> implements StateMachinePersist<S, E, Stat> {
-
-	// kryo is not a thread safe so using thread local, also
-	// adding custom serializer for state machine context.
-	private static final ThreadLocal<Kryo> kryoThreadLocal = new ThreadLocal<Kryo>() {
-
-		@SuppressWarnings("rawtypes")
-		@Override
-		protected Kryo initialValue() {
-			Kryo kryo = new Kryo();
-			kryo.addDefaultSerializer(StateMachineContext.class, new StateMachineContextSerializer());
-			kryo.addDefaultSerializer(MessageHeaders.class, new MessageHeadersSerializer());
-			kryo.addDefaultSerializer(UUID.class, new UUIDSerializer());
-			return kryo;
-		}
-	};
+public class ZookeeperStateMachinePersist<S, E> implements StateMachineDeltaPersist<S, E, Stat> {
 
+	private static final String DELTA_PREFIX = "delta-";
 	private final CuratorFramework curatorClient;
 	private final String path;
 	private final String logPath;
 	private final int logSize;
+	private final StateMachineSerialisationService<S, E> serialisationService;
 
 	/**
 	 * Instantiates a new zookeeper state machine persist.
@@ -88,13 +83,29 @@ public class ZookeeperStateMachinePersist<S, E> implements StateMachinePersist<S
 	 * @param logSize the log size
 	 */
 	public ZookeeperStateMachinePersist(CuratorFramework curatorClient, String path, String logPath, int logSize) {
+		this(curatorClient, path, logPath, logSize, new KryoStateMachineSerialisationService<S, E>());
+	}
+
+	/**
+	 * Instantiates a new zookeeper state machine persist.
+	 *
+	 * @param curatorClient the curator client
+	 * @param path the path
+	 * @param logPath the log path
+	 * @param logSize the log size
+	 * @param serialisationService the state machine serialisation service
+	 */
+	public ZookeeperStateMachinePersist(CuratorFramework curatorClient, String path, String logPath, int logSize,
+			StateMachineSerialisationService<S, E> serialisationService) {
+		Assert.notNull(serialisationService, "StateMachineSerialisationService must be set");
 		if (logPath != null) {
-			Assert.state(logSize > 0 && ((logSize & -logSize) == logSize), "Log size must be positive and power of two");
+			Assert.state(logSize > 0, "Log size must be positive");
 		}
 		this.curatorClient = curatorClient;
 		this.path = path;
 		this.logPath = logPath;
 		this.logSize = logSize;
+		this.serialisationService = serialisationService;
 	}
 
 	@Override
@@ -106,42 +117,114 @@ public class ZookeeperStateMachinePersist<S, E> implements StateMachinePersist<S
 			if (logPath != null) {
 				tt = tt.setData().forPath(logPath + "/" + stat.getVersion() % logSize, data).and();
 			}
+			tt = deleteDeltas(tt, stat.getNumChildren());
 			Collection<CuratorTransactionResult> results = tt.commit();
 			int version = results.iterator().next().getResultStat().getVersion();
 			stat.setVersion(version);
+			stat.setNumChildren(0);
+		} catch (Exception e) {
+			throw new StateMachineException("Error persisting data", e);
+		}
+
+	}
+
+	/**
+	 * Write contexts in a given order within a single transaction. Every
+	 * context is expected to increase a version by one starting from a
+	 * version of a given {@link Stat} which is updated to a version of
+	 * a last written context.
+	 *
+	 * @param contexts the contexts
+	 * @param stat the stat
+	 */
+	public void write(List<StateMachineContext<S, E>> contexts, Stat stat) {
+		Assert.notEmpty(contexts, "Contexts must be set");
+		Assert.isTrue(logPath == null || contexts.size() <= logSize, "Can't write more contexts than log size");
+		CuratorTransaction tx = curatorClient.inTransaction();
+		int version = stat.getVersion();
+		try {
+			for (StateMachineContext<S, E> context : contexts) {
+				byte[] data = serialize(context);
+				CuratorTransactionFinal tt = tx.setData().withVersion(version).forPath(path, data).and();
+				if (logPath != null) {
+					tt = tt.setData().forPath(logPath + "/" + version % logSize, data).and();
+				}
+				tx = tt;
+				version++;
+			}
+			CuratorTransactionFinal tt = (CuratorTransactionFinal) tx;
+			tt = deleteDeltas(tt, stat.getNumChildren());
+			tt.commit();
+			stat.setVersion(version);
+			stat.setNumChildren(0);
 		} catch (Exception e) {
 			throw new StateMachineException("Error persisting data", e);
 		}
+	}
 
+	@Override
+	public boolean isDeltaSupported() {
+		return true;
+	}
+
+	@Override
+	public int writeDelta(StateMachineContext<S, E> delta, Stat stat) {
+		byte[] data = serialize(delta);
+		try {
+			curatorClient.inTransaction()
+				.check().withVersion(stat.getVersion()).forPath(path).and()
+				.create().forPath(getDeltaPath(stat.getNumChildren()), data).and()
+				.commit();
+			stat.setNumChildren(stat.getNumChildren() + 1);
+			return stat.getNumChildren();
+		} catch (Exception e) {
+			throw new StateMachineException("Error persisting data", e);
+		}
 	}
 
 	@Override
 	public StateMachineContext<S, E> read(Stat stat) throws Exception {
-		return deserialize(curatorClient.getData().storingStatIn(stat).forPath(path));
+		StateMachineContext<S, E> context = deserialize(curatorClient.getData().storingStatIn(stat).forPath(path));
+		if (stat.getNumChildren() == 0) {
+			return context;
+		}
+		int count = 0;
+		for (String child : curatorClient.getChildren().forPath(path)) {
+			if (child.startsWith(DELTA_PREFIX)) {
+				count++;
+			}
+		}
+		List<StateMachineContext<S, E>> deltas = new ArrayList<StateMachineContext<S, E>>(count);
+		for (int i = 0; i < count; i++) {
+			deltas.add(deserialize(curatorClient.getData().forPath(getDeltaPath(i))));
+		}
+		stat.setNumChildren(count);
+		return StateMachineContextDeltas.applyDeltas(context, deltas);
 	}
 
 	public StateMachineContext<S, E> readLog(int version, Stat stat) throws Exception {
 		return deserialize(curatorClient.getData().storingStatIn(stat).forPath(logPath + "/" + version));
 	}
 
+	private CuratorTransactionFinal deleteDeltas(CuratorTransactionFinal tt, int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			tt = tt.delete().forPath(getDeltaPath(i)).and();
+		}
+		// guard node fails a transaction if there are more deltas than we know of
+		tt = tt.create().forPath(getDeltaPath(count), new byte[0]).and();
+		return tt.delete().forPath(getDeltaPath(count)).and();
+	}
+
+	private String getDeltaPath(int index) {
+		return path + "/" + DELTA_PREFIX + index;
+	}
+
 	private byte[] serialize(StateMachineContext<S, E> context) {
-		Kryo kryo = kryoThreadLocal.get();
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		Output output = new Output(out);
-		kryo.writeObject(output, context);
-		output.close();
-		return out.toByteArray();
+		return serialisationService.serialiseStateMachineContext(context);
 	}
 
-	@SuppressWarnings("unchecked")
 	private StateMachineContext<S, E> deserialize(byte[] data) {
-		if (data == null || data.length == 0) {
-			return null;
-		}
-		Kryo kryo = kryoThreadLocal.get();
-		ByteArrayInputStream in = new ByteArrayInputStream(data);
-		Input input = new Input(in);
-		return kryo.readObject(input, StateMachineContext.class);
+		return serialisationService.deserialiseStateMachineContext(data);
 	}
 
 }
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.statemachine.zookeeper;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineException;
+import org.springframework.statemachine.config.StateMachineBuilder;
+import org.springframework.statemachine.ensemble.DistributedStateMachine;
+import org.springframework.statemachine.ensemble.EnsembleListenerAdapter;
+import org.springframework.statemachine.ensemble.StateMachineEnsemble;
+import org.springframework.statemachine.listener.StateMachineListenerAdapter;
+import org.springframework.statemachine.state.State;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+public class ZookeeperPartitionedStateMachineEnsembleTests extends AbstractZookeeperTests {
+
+	@Override
+	protected AnnotationConfigApplicationContext buildContext() {
+		return new AnnotationConfigApplicationContext();
+	}
+
+	@Test
+	public void testPartitionsAndMembers() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+		CuratorFramework curatorClient = context.getBean("curatorClient", CuratorFramework.class);
+
+		ZookeeperPartitionedStateMachineEnsemble<String, String> ensemble1 = buildEnsemble(curatorClient);
+		ZookeeperPartitionedStateMachineEnsemble<String, String> ensemble2 = buildEnsemble(curatorClient);
+		for (int i = 0; i < 100; i++) {
+			ensemble1.getEnsemble("machine" + i).setState(context("S1", "E1"));
+		}
+
+		// node count depends on partitions and not on machines
+		assertThat(curatorClient.getChildren().forPath("/foo/partitions").size(), is(4));
+		assertThat(curatorClient.getChildren().forPath("/foo/members").size(), is(2));
+		int machines = 0;
+		for (int i = 0; i < 4; i++) {
+			machines += curatorClient.getChildren().forPath("/foo/partitions/" + i + "/machines").size();
+		}
+		assertThat(machines, is(100));
+		assertThat(ensemble2.getEnsemble("machine10").getState().getState(), is("S1"));
+		assertThat(ensemble2.getEnsemble("machine100").getState(), nullValue());
+	}
+
+	@Test
+	public void testStateChangesRoutedByMachineId() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+		CuratorFramework curatorClient = context.getBean("curatorClient", CuratorFramework.class);
+
+		ZookeeperPartitionedStateMachineEnsemble<String, String> ensemble1 = buildEnsemble(curatorClient);
+		ZookeeperPartitionedStateMachineEnsemble<String, String> ensemble2 = buildEnsemble(curatorClient);
+		TestEnsembleListener listener1 = new TestEnsembleListener(3);
+		TestEnsembleListener listener2 = new TestEnsembleListener(1);
+		ensemble2.getEnsemble("machine1").addEnsembleListener(listener1);
+		ensemble2.getEnsemble("machine2").addEnsembleListener(listener2);
+
+		// machine1 and machine5 share a partition
+		assertThat(ensemble1.getPartition("machine1"), is(ensemble1.getPartition("machine5")));
+		StateMachineEnsemble<String, String> machine1 = ensemble1.getEnsemble("machine1");
+		StateMachineEnsemble<String, String> machine5 = ensemble1.getEnsemble("machine5");
+		machine1.setState(context("S1", "E1"));
+		machine5.setState(context("S1", "E1"));
+		machine1.setState(context("S2", "E2"));
+		ensemble2.getEnsemble("machine5").setState(context("S2", "E2"));
+		machine1.setState(context("S3", "E3"));
+		ensemble1.getEnsemble("machine2").setState(context("S1", "E1"));
+
+		assertThat(listener1.latch.await(5, TimeUnit.SECONDS), is(true));
+		assertThat(listener1.events, is(3));
+		assertThat(listener1.last.getState(), is("S3"));
+		assertThat(listener2.latch.await(5, TimeUnit.SECONDS), is(true));
+		assertThat(listener2.events, is(1));
+
+		// change of machine5 from ensemble2 is visible via its own view
+		assertThat(ensemble2.getEnsemble("machine5").getState().getState(), is("S2"));
+	}
+
+	@Test(expected = StateMachineException.class)
+	public void testConcurrentChangeRejected() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+		CuratorFramework curatorClient = context.getBean("curatorClient", CuratorFramework.class);
+
+		ZookeeperPartitionedStateMachineEnsemble<String, String> ensemble1 = buildEnsemble(curatorClient);
+		ZookeeperPartitionedStateMachineEnsemble<String, String> ensemble2 = buildEnsemble(curatorClient);
+		StateMachineEnsemble<String, String> machine1 = ensemble1.getEnsemble("machine1");
+		StateMachineEnsemble<String, String> machine1b = ensemble2.getEnsemble("machine1");
+		machine1.setState(context("S1", "E1"));
+		machine1b.getState();
+		ensemble2.stop();
+		machine1.setState(context("S2", "E2"));
+		// ensemble2 is not receiving changes and expects an old version
+		machine1b.setState(context("S3", "E3"));
+	}
+
+	@Test
+	public void testDistributedMachines() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+		CuratorFramework curatorClient = context.getBean("curatorClient", CuratorFramework.class);
+
+		ZookeeperPartitionedStateMachineEnsemble<String, String> ensemble1 = buildEnsemble(curatorClient);
+		ZookeeperPartitionedStateMachineEnsemble<String, String> ensemble2 = buildEnsemble(curatorClient);
+		StateMachine<String, String>[] machines1 = buildMachines(ensemble1, 10);
+		StateMachine<String, String>[] machines2 = buildMachines(ensemble2, 10);
+		TestListener listener = new TestListener();
+		machines2[3].addStateListener(listener);
+
+		machines1[3].sendEvent("E");
+		assertThat(listener.latch.await(5, TimeUnit.SECONDS), is(true));
+		assertThat(machines2[3].getState().getIds(), containsInAnyOrder("S2"));
+		for (int i = 0; i < 10; i++) {
+			if (i != 3) {
+				assertThat(machines2[i].getState().getIds(), containsInAnyOrder("S1"));
+			}
+		}
+
+		// machine joining later syncs its state
+		StateMachine<String, String>[] machines3 = buildMachines(buildEnsemble(curatorClient), 4);
+		assertThat(machines3[3].getState().getIds(), containsInAnyOrder("S2"));
+		assertThat(machines3[2].getState().getIds(), containsInAnyOrder("S1"));
+	}
+
+	@Test
+	public void testConcurrentChangesInPartition() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+		CuratorFramework curatorClient = context.getBean("curatorClient", CuratorFramework.class);
+
+		final ZookeeperPartitionedStateMachineEnsemble<String, String> ensemble1 = buildEnsemble(curatorClient, 1, 4);
+		final ZookeeperPartitionedStateMachineEnsemble<String, String> ensemble2 = buildEnsemble(curatorClient, 1, 4);
+		final List<Throwable> errors = new CopyOnWriteArrayList<Throwable>();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			final ZookeeperPartitionedStateMachineEnsemble<String, String> ensemble = i % 2 == 0 ? ensemble1 : ensemble2;
+			final String machineId = "machine" + i;
+			threads[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 20; j++) {
+							ensemble.getEnsemble(machineId).setState(context("S" + j, "E"));
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		// machines sharing a partition don't conflict with each other
+		assertThat(errors.size(), is(0));
+		assertThat(ensemble1.getEnsemble("machine1").getState().getState(), is("S19"));
+
+		// writing instance trims a log into a log size
+		for (int i = 0; i < 50; i++) {
+			if (curatorClient.getChildren().forPath("/foo/partitions/0/log").size() <= 4) {
+				break;
+			}
+			Thread.sleep(100);
+		}
+		assertThat(curatorClient.getChildren().forPath("/foo/partitions/0/log").size(), is(4));
+	}
+
+	@Test
+	public void testRecoverFromSnapshotWhenLogTrimmed() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+		CuratorFramework curatorClient = context.getBean("curatorClient", CuratorFramework.class);
+
+		ZookeeperPartitionedStateMachineEnsemble<String, String> ensemble1 = buildEnsemble(curatorClient, 1, 4);
+		ZookeeperPartitionedStateMachineEnsemble<String, String> ensemble2 = buildEnsemble(curatorClient, 1, 4);
+		TestEnsembleListener listener1 = new TestEnsembleListener(1);
+		ensemble2.getEnsemble("machine1").addEnsembleListener(listener1);
+		ensemble1.getEnsemble("machine1").setState(context("S1", "E1"));
+		assertThat(listener1.latch.await(5, TimeUnit.SECONDS), is(true));
+
+		// entries not yet replayed by ensemble2 are gone
+		for (String child : curatorClient.getChildren().forPath("/foo/partitions/0/log")) {
+			curatorClient.delete().forPath("/foo/partitions/0/log/" + child);
+		}
+		TestEnsembleListener listener2 = new TestEnsembleListener(1);
+		ensemble2.getEnsemble("machine1").addEnsembleListener(listener2);
+		ensemble1.getEnsemble("machine1").setState(context("S2", "E2"));
+		assertThat(listener2.latch.await(5, TimeUnit.SECONDS), is(true));
+		assertThat(listener2.last.getState(), is("S2"));
+		Thread.sleep(200);
+		// snapshot and a log entry of a same version are notified once
+		assertThat(listener2.events, is(1));
+	}
+
+	@Test
+	public void testReleaseAndRemoveEnsemble() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+		CuratorFramework curatorClient = context.getBean("curatorClient", CuratorFramework.class);
+
+		ZookeeperPartitionedStateMachineEnsemble<String, String> ensemble1 = buildEnsemble(curatorClient);
+		StateMachineEnsemble<String, String> machine1 = ensemble1.getEnsemble("machine1");
+		machine1.setState(context("S1", "E1"));
+		ensemble1.releaseEnsemble("machine1");
+		assertThat(ensemble1.getEnsemble("machine1"), not(sameInstance(machine1)));
+		assertThat(ensemble1.getEnsemble("machine1").getState().getState(), is("S1"));
+
+		String path = "/foo/partitions/" + ensemble1.getPartition("machine1") + "/machines/machine1";
+		assertThat(curatorClient.checkExists().forPath(path), notNullValue());
+		ensemble1.removeEnsemble("machine1");
+		assertThat(curatorClient.checkExists().forPath(path), nullValue());
+		assertThat(ensemble1.getEnsemble("machine1").getState(), nullValue());
+	}
+
+	private ZookeeperPartitionedStateMachineEnsemble<String, String> buildEnsemble(CuratorFramework curatorClient)
+			throws Exception {
+		return buildEnsemble(curatorClient, 4, 32);
+	}
+
+	private ZookeeperPartitionedStateMachineEnsemble<String, String> buildEnsemble(CuratorFramework curatorClient,
+			int partitions, int logSize) throws Exception {
+		ZookeeperPartitionedStateMachineEnsemble<String, String> ensemble =
+				new ZookeeperPartitionedStateMachineEnsemble<String, String>(curatorClient, "/foo", partitions, logSize);
+		ensemble.afterPropertiesSet();
+		ensemble.start();
+		return ensemble;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static StateMachine<String, String>[] buildMachines(
+			ZookeeperPartitionedStateMachineEnsemble<String, String> ensemble, int count) throws Exception {
+		StateMachine<String, String>[] machines = new StateMachine[count];
+		for (int i = 0; i < count; i++) {
+			StateMachineBuilder.Builder<String, String> builder = StateMachineBuilder.builder();
+			builder.configureConfiguration()
+				.withConfiguration()
+					.taskExecutor(new SyncTaskExecutor());
+			builder.configureStates()
+				.withStates()
+					.initial("S1")
+					.state("S2");
+			builder.configureTransitions()
+				.withExternal()
+					.source("S1").target("S2").event("E")
+					.and()
+				.withExternal()
+					.source("S2").target("S1").event("E");
+			DistributedStateMachine<String, String> machine =
+					new DistributedStateMachine<String, String>(ensemble.getEnsemble("machine" + i), builder.build());
+			machine.afterPropertiesSet();
+			machine.start();
+			machines[i] = machine;
+		}
+		return machines;
+	}
+
+	private static StateMachineContext<String, String> context(String state, String event) {
+		return new DefaultStateMachineContext<String, String>(state, event, new HashMap<String, Object>(),
+				new DefaultExtendedState());
+	}
+
+	private static class TestEnsembleListener extends EnsembleListenerAdapter<String, String> {
+
+		final CountDownLatch latch;
+		volatile int events;
+		volatile StateMachineContext<String, String> last;
+
+		TestEnsembleListener(int count) {
+			latch = new CountDownLatch(count);
+		}
+
+		@Override
+		public void stateChanged(StateMachineContext<String, String> context) {
+			events++;
+			last = context;
+			latch.countDown();
+		}
+	}
+
+	private static class TestListener extends StateMachineListenerAdapter<String, String> {
+
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		@Override
+		public void stateChanged(State<String, String> from, State<String, String> to) {
+			latch.countDown();
+		}
+	}
+}
@@ -28,8 +28,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.zookeeper.KeeperException;
 import org.junit.Test;
@@ -47,9 +50,12 @@ import org.springframework.statemachine.state.State;
 import org.springframework.statemachine.support.DefaultExtendedState;
 import org.springframework.statemachine.support.DefaultStateMachineContext;
 import org.springframework.statemachine.transition.Transition;
+import org.springframework.util.concurrent.ListenableFuture;
 
 public class ZookeeperStateMachineEnsembleTests extends AbstractZookeeperTests {
 
+	private static final Log log = LogFactory.getLog(ZookeeperStateMachineEnsembleTests.class);
+
 	@Test
 	public void testInitStart() throws Exception {
 		context.register(ZkServerConfig.class, BaseConfig.class);
@@ -229,7 +235,7 @@ public class ZookeeperStateMachineEnsembleTests extends AbstractZookeeperTests {
 
 	@Test(expected = IllegalStateException.class)
 	public void testIllegalLogSize() throws Exception {
-				new ZookeeperStateMachineEnsemble<String, String>(null, "/foo", true, 3);
+				new ZookeeperStateMachineEnsemble<String, String>(null, "/foo", true, 0);
 	}
 
 	@Test
@@ -578,6 +584,7 @@ public class ZookeeperStateMachineEnsembleTests extends AbstractZookeeperTests {
 				context.getBean("curatorClient", CuratorFramework.class);
 		OverflowControlZookeeperStateMachineEnsemble ensemble =
 				new OverflowControlZookeeperStateMachineEnsemble(curatorClient, "/foo", true, 4);
+		ensemble.setReplayFromSnapshot(false);
 
 		TestEnsembleListener listener = new TestEnsembleListener();
 		ensemble.addEnsembleListener(listener);
@@ -619,6 +626,279 @@ public class ZookeeperStateMachineEnsembleTests extends AbstractZookeeperTests {
 		assertThat(listener.errorLatch.await(2, TimeUnit.SECONDS), is(true));
 	}
 
+	@Test
+	public void testEventsOverflowReplayFromSnapshot() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+		CuratorFramework curatorClient =
+				context.getBean("curatorClient", CuratorFramework.class);
+		OverflowControlZookeeperStateMachineEnsemble ensemble =
+				new OverflowControlZookeeperStateMachineEnsemble(curatorClient, "/foo", true, 5);
+
+		TestEnsembleListener listener = new TestEnsembleListener();
+		ensemble.addEnsembleListener(listener);
+
+		ensemble.afterPropertiesSet();
+		ensemble.start();
+
+		ensemble.join(new TestStateMachine());
+		assertThat(listener.joinedLatch.await(3, TimeUnit.SECONDS), is(true));
+
+		listener.reset(0, 5, 1);
+		for (int i = 0; i < 10; i++) {
+			ensemble.setState(new DefaultStateMachineContext<String, String>("S" + i, "E" + i,
+					new HashMap<String, Object>(), new DefaultExtendedState()));
+		}
+		ensemble.enabled = true;
+		TestUtils.callMethod("registerWatcherForStatePath", ensemble);
+
+		// only a tail after an oldest entry in a log is replayed
+		ensemble.setState(new DefaultStateMachineContext<String, String>("S10", "E10",
+				new HashMap<String, Object>(), new DefaultExtendedState()));
+		assertThat(listener.eventLatch.await(2, TimeUnit.SECONDS), is(true));
+		assertThat(listener.errorLatch.await(1, TimeUnit.SECONDS), is(false));
+		assertThat(listener.events.size(), is(5));
+		for (int i = 0; i < 5; i++) {
+			assertThat(listener.events.get(i).getEvent(), is("E" + (i + 6)));
+		}
+		assertThat(ensemble.getState().getState(), is("S10"));
+	}
+
+	@Test
+	public void testPipelinedWrites() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+		CuratorFramework curatorClient =
+				context.getBean("curatorClient", CuratorFramework.class);
+
+		ZookeeperStateMachineEnsemble<String, String> ensemble1 =
+				new ZookeeperStateMachineEnsemble<String, String>(curatorClient, "/foo", true, 32);
+		ZookeeperStateMachineEnsemble<String, String> ensemble2 =
+				new ZookeeperStateMachineEnsemble<String, String>(curatorClient, "/foo", true, 32);
+		ensemble1.setMaxPipelinedWrites(4);
+		TestEnsembleListener listener2 = new TestEnsembleListener();
+		ensemble2.addEnsembleListener(listener2);
+		ensemble1.afterPropertiesSet();
+		ensemble1.start();
+		ensemble2.afterPropertiesSet();
+		ensemble2.start();
+		ensemble2.join(new TestStateMachine());
+		assertThat(listener2.joinedLatch.await(3, TimeUnit.SECONDS), is(true));
+
+		listener2.reset(0, 24);
+		for (int i = 0; i < 24; i++) {
+			ensemble1.setState(new DefaultStateMachineContext<String, String>("S", "E",
+					new HashMap<String, Object>(), new DefaultExtendedState()));
+		}
+		assertThat(listener2.eventLatch.await(10, TimeUnit.SECONDS), is(true));
+
+		// batches of states replayed by other ensemble wrap over a log end
+		listener2.reset(0, 20);
+		List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>();
+		for (int i = 0; i < 20; i++) {
+			futures.add(ensemble1.setStateAsync(new DefaultStateMachineContext<String, String>("S" + i, "E" + i,
+					new HashMap<String, Object>(), new DefaultExtendedState())));
+		}
+		for (ListenableFuture<Void> future : futures) {
+			future.get(10, TimeUnit.SECONDS);
+		}
+		assertThat(listener2.eventLatch.await(10, TimeUnit.SECONDS), is(true));
+		assertThat(listener2.errors.size(), is(0));
+		assertThat(listener2.events.size(), is(20));
+		for (int i = 0; i < 20; i++) {
+			assertThat(listener2.events.get(i).getEvent(), is("E" + i));
+		}
+		assertThat(ensemble2.getState().getState(), is("S19"));
+	}
+
+	@Test
+	public void testPipelinedWriteRejected() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+		CuratorFramework curatorClient =
+				context.getBean("curatorClient", CuratorFramework.class);
+
+		ZookeeperStateMachineEnsemble<String, String> ensemble1 =
+				new ZookeeperStateMachineEnsemble<String, String>(curatorClient, "/foo");
+		OverflowControlZookeeperStateMachineEnsemble ensemble2 =
+				new OverflowControlZookeeperStateMachineEnsemble(curatorClient, "/foo", true, 32);
+		ensemble1.afterPropertiesSet();
+		ensemble1.start();
+		ensemble2.afterPropertiesSet();
+		ensemble2.start();
+
+		ensemble1.setState(new DefaultStateMachineContext<String, String>("S1", "E1",
+				new HashMap<String, Object>(), new DefaultExtendedState()));
+
+		// ensemble2 doesn't know about a change and expects an old version
+		ListenableFuture<Void> future = ensemble2.setStateAsync(new DefaultStateMachineContext<String, String>("S2",
+				"E2", new HashMap<String, Object>(), new DefaultExtendedState()));
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			throw new AssertionError("Expected write to be rejected");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), instanceOf(StateMachineException.class));
+		}
+		assertThat(ensemble1.getState().getState(), is("S1"));
+	}
+
+	@Test
+	public void testQueuedWritesRejectedAfterConflict() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+		CuratorFramework curatorClient =
+				context.getBean("curatorClient", CuratorFramework.class);
+
+		ZookeeperStateMachineEnsemble<String, String> ensemble1 =
+				new ZookeeperStateMachineEnsemble<String, String>(curatorClient, "/foo");
+		ZookeeperStateMachineEnsemble<String, String> ensemble2 =
+				new ZookeeperStateMachineEnsemble<String, String>(curatorClient, "/foo", true, 32);
+		ensemble2.setMaxPipelinedWrites(1);
+		TestEnsembleListener listener2 = new TestEnsembleListener();
+		ensemble2.addEnsembleListener(listener2);
+		ensemble1.afterPropertiesSet();
+		ensemble1.start();
+		ensemble2.afterPropertiesSet();
+		ensemble2.start();
+		ensemble2.join(new TestStateMachine());
+		assertThat(listener2.joinedLatch.await(3, TimeUnit.SECONDS), is(true));
+
+		ListenableFuture<Void> future1;
+		ListenableFuture<Void> future2;
+		// hold a monitor of ensemble2 so that queued states are not written
+		synchronized (ensemble2) {
+			future1 = ensemble2.setStateAsync(new DefaultStateMachineContext<String, String>("S2", "E2",
+					new HashMap<String, Object>(), new DefaultExtendedState()));
+			future2 = ensemble2.setStateAsync(new DefaultStateMachineContext<String, String>("S3", "E3",
+					new HashMap<String, Object>(), new DefaultExtendedState()));
+
+			// conflicting change is seen by ensemble2 before its queued states are written
+			listener2.reset(0, 1);
+			ensemble1.setState(new DefaultStateMachineContext<String, String>("S1", "E1",
+					new HashMap<String, Object>(), new DefaultExtendedState()));
+			assertThat(listener2.eventLatch.await(3, TimeUnit.SECONDS), is(true));
+		}
+
+		try {
+			future1.get(10, TimeUnit.SECONDS);
+			throw new AssertionError("Expected write to be rejected");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), instanceOf(StateMachineException.class));
+		}
+		try {
+			future2.get(10, TimeUnit.SECONDS);
+			throw new AssertionError("Expected write queued behind rejected one to be rejected");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), instanceOf(StateMachineEnsembleException.class));
+		}
+		assertThat(ensemble1.getState().getState(), is("S1"));
+
+		// new states expect a version ensemble2 knows now
+		ensemble2.setStateAsync(new DefaultStateMachineContext<String, String>("S4", "E4",
+				new HashMap<String, Object>(), new DefaultExtendedState())).get(10, TimeUnit.SECONDS);
+		assertThat(ensemble1.getState().getState(), is("S4"));
+	}
+
+	@Test
+	public void testLocalReads() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+		CuratorFramework curatorClient =
+				context.getBean("curatorClient", CuratorFramework.class);
+
+		OverflowControlZookeeperStateMachineEnsemble ensemble1 =
+				new OverflowControlZookeeperStateMachineEnsemble(curatorClient, "/foo", true, 32);
+		ensemble1.setLocalReads(true);
+		ensemble1.setMaxReadStaleness(60000);
+		ensemble1.afterPropertiesSet();
+		ensemble1.start();
+		ensemble1.setState(new DefaultStateMachineContext<String, String>("S1", "E1",
+				new HashMap<String, Object>(), new DefaultExtendedState()));
+
+		ZookeeperStateMachineEnsemble<String, String> ensemble2 =
+				new ZookeeperStateMachineEnsemble<String, String>(curatorClient, "/foo", false, 32);
+		ensemble2.afterPropertiesSet();
+		ensemble2.start();
+		ensemble2.setState(new DefaultStateMachineContext<String, String>("S2", "E2",
+				new HashMap<String, Object>(), new DefaultExtendedState()));
+
+		// ensemble1 doesn't watch changes so local read is stale
+		assertThat(ensemble1.getState().getState(), is("S1"));
+		assertThat(ensemble1.getState(true).getState(), is("S2"));
+
+		// version lag is now known and local state is not used
+		assertThat(ensemble1.getState().getState(), is("S2"));
+	}
+
+	@Test
+	public void testLocalReadsStaleness() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+		CuratorFramework curatorClient =
+				context.getBean("curatorClient", CuratorFramework.class);
+
+		OverflowControlZookeeperStateMachineEnsemble ensemble1 =
+				new OverflowControlZookeeperStateMachineEnsemble(curatorClient, "/foo", true, 32);
+		ensemble1.setLocalReads(true);
+		ensemble1.setMaxReadStaleness(0);
+		ensemble1.afterPropertiesSet();
+		ensemble1.start();
+		ensemble1.setState(new DefaultStateMachineContext<String, String>("S1", "E1",
+				new HashMap<String, Object>(), new DefaultExtendedState()));
+
+		ZookeeperStateMachineEnsemble<String, String> ensemble2 =
+				new ZookeeperStateMachineEnsemble<String, String>(curatorClient, "/foo", false, 32);
+		ensemble2.afterPropertiesSet();
+		ensemble2.start();
+		ensemble2.setState(new DefaultStateMachineContext<String, String>("S2", "E2",
+				new HashMap<String, Object>(), new DefaultExtendedState()));
+
+		Thread.sleep(10);
+		assertThat(ensemble1.getState().getState(), is("S2"));
+	}
+
+	@Test
+	public void testLocalReadsFollowChanges() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+		CuratorFramework curatorClient =
+				context.getBean("curatorClient", CuratorFramework.class);
+
+		ZookeeperStateMachineEnsemble<String, String> ensemble1 =
+				new ZookeeperStateMachineEnsemble<String, String>(curatorClient, "/foo");
+		ZookeeperStateMachineEnsemble<String, String> ensemble2 =
+				new ZookeeperStateMachineEnsemble<String, String>(curatorClient, "/foo");
+		ensemble2.setLocalReads(true);
+		TestEnsembleListener listener2 = new TestEnsembleListener();
+		ensemble2.addEnsembleListener(listener2);
+		ensemble1.afterPropertiesSet();
+		ensemble2.afterPropertiesSet();
+		ensemble1.start();
+		ensemble2.start();
+
+		listener2.reset(0, 10);
+		for (int i = 0; i < 10; i++) {
+			ensemble1.setState(new DefaultStateMachineContext<String, String>("S" + i, "E" + i,
+					new HashMap<String, Object>(), new DefaultExtendedState()));
+		}
+		assertThat(listener2.eventLatch.await(10, TimeUnit.SECONDS), is(true));
+		assertThat(ensemble2.getState().getState(), is("S9"));
+
+		int count = 10000;
+		long now = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			ensemble2.getState();
+		}
+		long localTime = System.nanoTime() - now;
+		now = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			ensemble2.getState(true);
+		}
+		long linearizableTime = System.nanoTime() - now;
+		log.info("State reads/sec " + count * 1000000000L / localTime + " local and "
+				+ count * 1000000000L / linearizableTime + " linearizable");
+	}
+
 	private class OverflowControlZookeeperStateMachineEnsemble extends ZookeeperStateMachineEnsemble<String, String> {
 
 		boolean enabled = false;
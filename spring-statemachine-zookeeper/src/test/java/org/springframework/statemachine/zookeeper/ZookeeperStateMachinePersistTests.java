@@ -17,10 +17,13 @@ package org.springframework.statemachine.zookeeper;
 
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.UUID;
 
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.zookeeper.data.Stat;
@@ -28,10 +31,18 @@ import org.junit.Test;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
 import org.springframework.messaging.MessageHeaders;
 import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachineException;
 import org.springframework.statemachine.StateMachinePersist;
+import org.springframework.statemachine.kryo.MessageHeadersSerializer;
+import org.springframework.statemachine.kryo.StateMachineContextSerializer;
+import org.springframework.statemachine.kryo.UUIDSerializer;
+import org.springframework.statemachine.persist.StateMachineContextDeltas;
 import org.springframework.statemachine.support.DefaultExtendedState;
 import org.springframework.statemachine.support.DefaultStateMachineContext;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+
 public class ZookeeperStateMachinePersistTests extends AbstractZookeeperTests {
 
 	@Override
@@ -60,6 +71,42 @@ public class ZookeeperStateMachinePersistTests extends AbstractZookeeperTests {
 		assertThat(contextOut.getEvent(), is(contextIn.getEvent()));
 	}
 
+	@SuppressWarnings("rawtypes")
+	@Test
+	public void testReadsFormatWithoutRegisteredClasses() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+
+		CuratorFramework curatorClient =
+				context.getBean("curatorClient", CuratorFramework.class);
+		curatorClient.create().forPath("/KryoStateMachinePersistTests");
+
+		// write like older versions did, with class names
+		Kryo kryo = new Kryo();
+		kryo.addDefaultSerializer(StateMachineContext.class, new StateMachineContextSerializer());
+		kryo.addDefaultSerializer(MessageHeaders.class, new MessageHeadersSerializer());
+		kryo.addDefaultSerializer(UUID.class, new UUIDSerializer());
+		DefaultExtendedState extendedState = new DefaultExtendedState();
+		extendedState.getVariables().put("foo", 1);
+		List<StateMachineContext<String, String>> childs = new ArrayList<StateMachineContext<String, String>>();
+		childs.add(new DefaultStateMachineContext<String, String>("S11", null, null, new DefaultExtendedState()));
+		StateMachineContext<String, String> contextOut =
+				new DefaultStateMachineContext<String, String>(childs, "S1", "E1", new HashMap<String, Object>(), extendedState);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Output output = new Output(out);
+		kryo.writeObject(output, contextOut);
+		output.close();
+		curatorClient.setData().forPath("/KryoStateMachinePersistTests", out.toByteArray());
+
+		StateMachinePersist<String, String, Stat> persist = new ZookeeperStateMachinePersist<String, String>(
+				curatorClient, "/KryoStateMachinePersistTests");
+		StateMachineContext<String, String> contextIn = persist.read(new Stat());
+		assertThat(contextIn.getState(), is("S1"));
+		assertThat(contextIn.getEvent(), is("E1"));
+		assertThat(contextIn.getExtendedState().getVariables().get("foo"), is((Object) 1));
+		assertThat(contextIn.getChilds().get(0).getState(), is("S11"));
+	}
+
 	@Test
 	public void testLogs() throws Exception {
 		context.register(ZkServerConfig.class, BaseConfig.class);
@@ -196,4 +243,82 @@ public class ZookeeperStateMachinePersistTests extends AbstractZookeeperTests {
 		assertThat(contextIn.getChilds().get(0).getEvent(), is("E2"));
 	}
 
+	@Test
+	public void testDeltas() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+
+		CuratorFramework curatorClient =
+				context.getBean("curatorClient", CuratorFramework.class);
+		curatorClient.create().forPath("/KryoStateMachinePersistTests");
+
+		ZookeeperStateMachinePersist<String, String> persist = new ZookeeperStateMachinePersist<String, String>(
+				curatorClient, "/KryoStateMachinePersistTests");
+
+		HashMap<Object, Object> variables = new HashMap<Object, Object>();
+		variables.put("a", 1);
+		variables.put("b", 2);
+		Stat stat = new Stat();
+		persist.write(new DefaultStateMachineContext<String, String>("S1", null, null, new DefaultExtendedState(variables)), stat);
+
+		variables = new HashMap<Object, Object>();
+		variables.put("a", 3);
+		variables.put("b", StateMachineContextDeltas.REMOVED);
+		assertThat(persist.writeDelta(new DefaultStateMachineContext<String, String>("S2", null, null,
+				new DefaultExtendedState(variables)), stat), is(1));
+		variables = new HashMap<Object, Object>();
+		variables.put("c", 4);
+		assertThat(persist.writeDelta(new DefaultStateMachineContext<String, String>("S3", null, null,
+				new DefaultExtendedState(variables)), stat), is(2));
+
+		Stat statIn = new Stat();
+		StateMachineContext<String, String> contextIn = persist.read(statIn);
+		assertThat(contextIn.getState(), is("S3"));
+		assertThat(contextIn.getExtendedState().getVariables().size(), is(2));
+		assertThat(contextIn.getExtendedState().getVariables().get("a"), is((Object) 3));
+		assertThat(contextIn.getExtendedState().getVariables().get("c"), is((Object) 4));
+		assertThat(statIn.getNumChildren(), is(2));
+
+		persist.write(new DefaultStateMachineContext<String, String>("S4", null, null, new DefaultExtendedState()), statIn);
+		assertThat(curatorClient.getChildren().forPath("/KryoStateMachinePersistTests").size(), is(0));
+		contextIn = persist.read(new Stat());
+		assertThat(contextIn.getState(), is("S4"));
+		assertThat(contextIn.getExtendedState().getVariables().size(), is(0));
+	}
+
+	@Test
+	public void testFullWriteWithStaleStatFailsAfterDelta() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+
+		CuratorFramework curatorClient =
+				context.getBean("curatorClient", CuratorFramework.class);
+		curatorClient.create().forPath("/KryoStateMachinePersistTests");
+
+		ZookeeperStateMachinePersist<String, String> persist = new ZookeeperStateMachinePersist<String, String>(
+				curatorClient, "/KryoStateMachinePersistTests");
+
+		Stat stat = new Stat();
+		persist.write(new DefaultStateMachineContext<String, String>("S1", null, null, new DefaultExtendedState()), stat);
+		Stat staleStat = new Stat();
+		persist.read(staleStat);
+		assertThat(staleStat.getNumChildren(), is(0));
+
+		persist.writeDelta(new DefaultStateMachineContext<String, String>("S2", null, null, new DefaultExtendedState()), stat);
+
+		try {
+			persist.write(new DefaultStateMachineContext<String, String>("S3", null, null, new DefaultExtendedState()),
+					staleStat);
+			fail("Expected write with stale stat to fail");
+		} catch (StateMachineException e) {
+		}
+		Stat statIn = new Stat();
+		assertThat(persist.read(statIn).getState(), is("S2"));
+		assertThat(statIn.getNumChildren(), is(1));
+
+		persist.write(new DefaultStateMachineContext<String, String>("S4", null, null, new DefaultExtendedState()), statIn);
+		assertThat(curatorClient.getChildren().forPath("/KryoStateMachinePersistTests").size(), is(0));
+		assertThat(persist.read(new Stat()).getState(), is("S4"));
+	}
+
 }
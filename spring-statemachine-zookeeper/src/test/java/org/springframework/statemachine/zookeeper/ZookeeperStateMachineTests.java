@@ -23,6 +23,8 @@ import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.curator.framework.CuratorFramework;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -35,6 +37,7 @@ import org.springframework.messaging.Message;
 import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.statemachine.StateContext;
 import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineSystemConstants;
 import org.springframework.statemachine.action.Action;
 import org.springframework.statemachine.config.EnableStateMachine;
 import org.springframework.statemachine.config.StateMachineBuilder;
@@ -53,6 +56,9 @@ import org.springframework.statemachine.transition.Transition;
 
 public class ZookeeperStateMachineTests extends AbstractZookeeperTests {
 
+	private static final Log log = LogFactory.getLog(ZookeeperStateMachineTests.class);
+
+
 	@Override
 	protected AnnotationConfigApplicationContext buildContext() {
 		return new AnnotationConfigApplicationContext();
@@ -501,6 +507,84 @@ public class ZookeeperStateMachineTests extends AbstractZookeeperTests {
 		assertThat(machine2.getState().getIds(), containsInAnyOrder("S1"));
 	}
 
+	@Test
+	public void testAsyncStateChangesThroughput() throws Exception {
+		context.register(ZkServerConfig.class, BaseConfig.class);
+		context.refresh();
+		CuratorFramework curatorClient =
+				context.getBean("curatorClient", CuratorFramework.class);
+
+		int count = 200;
+		long syncTime = toggle(curatorClient, "/sync", false, count);
+		long asyncTime = toggle(curatorClient, "/async", true, count);
+		log.info("Distributed transitions/sec " + count * 1000000000L / syncTime + " waiting ensemble and "
+				+ count * 1000000000L / asyncTime + " with async state changes");
+	}
+
+	private long toggle(CuratorFramework curatorClient, String path, boolean async, int count) throws Exception {
+		// log needs to be large enough for ensembles to replay a burst of changes
+		ZookeeperStateMachineEnsemble<String, String> ensemble1 =
+				new ZookeeperStateMachineEnsemble<String, String>(curatorClient, path, true, 256);
+		ZookeeperStateMachineEnsemble<String, String> ensemble2 =
+				new ZookeeperStateMachineEnsemble<String, String>(curatorClient, path, true, 256);
+		ensemble1.afterPropertiesSet();
+		ensemble2.afterPropertiesSet();
+		ensemble1.start();
+		ensemble2.start();
+		StateMachine<String, String> machine1 = buildToggleStateMachine();
+		StateMachine<String, String> machine2 = buildToggleStateMachine();
+		DistributedStateMachine<String, String> machine1s =
+				new DistributedStateMachine<String, String>(ensemble1, machine1);
+		DistributedStateMachine<String, String> machine2s =
+				new DistributedStateMachine<String, String>(ensemble2, machine2);
+		machine1s.setAsyncStateChanges(async);
+		machine1s.afterPropertiesSet();
+		machine2s.afterPropertiesSet();
+		machine1s.start();
+		machine2s.start();
+
+		TestListener listener2 = new TestListener();
+		machine2.addStateListener(listener2);
+		listener2.reset(count);
+		long start = System.nanoTime();
+		for (int i = 0; i < count - 1; i++) {
+			assertThat(machine1s.sendEvent("E"), is(true));
+		}
+		// last change waits until ensemble has accepted all changes
+		assertThat(machine1s.sendEvent(MessageBuilder.withPayload("E")
+				.setHeader(StateMachineSystemConstants.STATEMACHINE_ENSEMBLE_CONFIRM, true).build()), is(true));
+		long time = Math.max(System.nanoTime() - start, 1);
+
+		assertThat(ensemble1.getState().getState(), is("S1"));
+		assertThat(listener2.stateChangedLatch.await(10, TimeUnit.SECONDS), is(true));
+		assertThat(machine1.getState().getIds(), containsInAnyOrder("S1"));
+		assertThat(machine2.getState().getIds(), containsInAnyOrder("S1"));
+		assertThat(machine1.hasStateMachineError(), is(false));
+		machine1s.stop();
+		machine2s.stop();
+		ensemble1.destroy();
+		ensemble2.destroy();
+		return time;
+	}
+
+	private StateMachine<String, String> buildToggleStateMachine() throws Exception {
+		StateMachineBuilder.Builder<String, String> builder = StateMachineBuilder.builder();
+		builder.configureConfiguration()
+			.withConfiguration()
+				.taskExecutor(new SyncTaskExecutor());
+		builder.configureStates()
+			.withStates()
+				.initial("S1")
+				.state("S2");
+		builder.configureTransitions()
+			.withExternal()
+				.source("S1").target("S2").event("E")
+				.and()
+			.withExternal()
+				.source("S2").target("S1").event("E");
+		return builder.build();
+	}
+
 	@Test
 	public void testConnectionLoss1() throws Exception {
 		context.register(ZkServerConfig.class, BaseConfig.class);